@@ -0,0 +1,398 @@
+package buffer_bci.javaserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Monitor that passes all callbacks on to another monitor from a background
+ * thread. Connection threads only record the callback in a preallocated
+ * ring, which does not lock or allocate. The background thread delivers the
+ * recorded callbacks in batches. When the ring is full new callbacks are
+ * dropped and counted instead of blocking the connection threads.
+ *
+ * @author Wieke Kanters
+ *
+ */
+public class AsyncMonitor extends Thread implements FieldtripBufferMonitor {
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	/**
+	 * Time the background thread sleeps when the ring is empty.
+	 */
+	private static final long IDLE_NANOS = 10 * 1000 * 1000;
+
+	private static final int CLOSED_CONNECTION = 0;
+	private static final int CONTINUES = 1;
+	private static final int ERROR = 2;
+	private static final int FLUSHED_DATA = 3;
+	private static final int FLUSHED_EVENTS = 4;
+	private static final int FLUSHED_HEADER = 5;
+	private static final int GET_EVENTS = 6;
+	private static final int GET_HEADER = 7;
+	private static final int GET_SAMPLES = 8;
+	private static final int OPENED_CONNECTION = 9;
+	private static final int POLLS = 10;
+	private static final int PUT_EVENTS = 11;
+	private static final int PUT_HEADER = 12;
+	private static final int PUT_SAMPLES = 13;
+	private static final int WAITS = 14;
+	private static final int GARBAGE_COLLECTED = 15;
+	private static final int MEMORY_USED = 16;
+
+	private final FieldtripBufferMonitor monitor;
+	private final int mask;
+
+	// The ring, one entry per array index. Sequence tells producers and the
+	// consumer whether an entry is free or filled.
+	private final AtomicLongArray sequence;
+	private final int[] kind;
+	private final int[] clientID;
+	private final int[] a;
+	private final int[] b;
+	private final int[] c;
+	private final float[] fSample;
+	private final long[] x;
+	private final long[] y;
+	private final long[] z;
+	private final long[] time;
+	// Adress of a connection, or name of the collector.
+	private final String[] adress;
+
+	private final AtomicLong tail = new AtomicLong();
+	private long head = 0;
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile boolean run = true;
+
+	/**
+	 * Constructor
+	 *
+	 * @param monitor
+	 *            Monitor the callbacks are passed on to.
+	 */
+	public AsyncMonitor(final FieldtripBufferMonitor monitor) {
+		this(monitor, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param monitor
+	 *            Monitor the callbacks are passed on to.
+	 * @param capacity
+	 *            Number of callbacks that can be waiting for delivery, rounded
+	 *            up to a power of two.
+	 */
+	public AsyncMonitor(final FieldtripBufferMonitor monitor,
+			final int capacity) {
+		this.monitor = monitor;
+
+		final int size = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1);
+		mask = size - 1;
+
+		sequence = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequence.set(i, i);
+		}
+
+		kind = new int[size];
+		clientID = new int[size];
+		a = new int[size];
+		b = new int[size];
+		c = new int[size];
+		fSample = new float[size];
+		x = new long[size];
+		y = new long[size];
+		z = new long[size];
+		time = new long[size];
+		adress = new String[size];
+
+		setName("Fieldtrip Monitor Dispatcher");
+		setDaemon(true);
+	}
+
+	@Override
+	public void clientClosedConnection(final int clientID, final long time) {
+		record(CLOSED_CONNECTION, clientID, 0, 0, 0, 0, null, time);
+	}
+
+	@Override
+	public void clientContinues(final int clientID, final long time) {
+		record(CONTINUES, clientID, 0, 0, 0, 0, null, time);
+	}
+
+	@Override
+	public void clientError(final int clientID, final int errorType,
+			final long time) {
+		record(ERROR, clientID, errorType, 0, 0, 0, null, time);
+	}
+
+	@Override
+	public void clientFlushedData(final int clientID, final long time) {
+		record(FLUSHED_DATA, clientID, 0, 0, 0, 0, null, time);
+	}
+
+	@Override
+	public void clientFlushedEvents(final int clientID, final long time) {
+		record(FLUSHED_EVENTS, clientID, 0, 0, 0, 0, null, time);
+	}
+
+	@Override
+	public void clientFlushedHeader(final int clientID, final long time) {
+		record(FLUSHED_HEADER, clientID, 0, 0, 0, 0, null, time);
+	}
+
+	@Override
+	public void clientGetEvents(final int count, final int clientID,
+			final long time) {
+		record(GET_EVENTS, clientID, count, 0, 0, 0, null, time);
+	}
+
+	@Override
+	public void clientGetHeader(final int clientID, final long time) {
+		record(GET_HEADER, clientID, 0, 0, 0, 0, null, time);
+	}
+
+	@Override
+	public void clientGetSamples(final int count, final int clientID,
+			final long time) {
+		record(GET_SAMPLES, clientID, count, 0, 0, 0, null, time);
+	}
+
+	@Override
+	public void clientOpenedConnection(final int clientID, final String adress,
+			final long time) {
+		record(OPENED_CONNECTION, clientID, 0, 0, 0, 0, adress, time);
+	}
+
+	@Override
+	public void clientPolls(final int clientID, final long time) {
+		record(POLLS, clientID, 0, 0, 0, 0, null, time);
+	}
+
+	@Override
+	public void clientPutEvents(final int count, final int clientID,
+			final int diff, final long time) {
+		record(PUT_EVENTS, clientID, count, diff, 0, 0, null, time);
+	}
+
+	@Override
+	public void clientPutHeader(final int dataType, final float fSample,
+			final int nChannels, final int clientID, final long time) {
+		record(PUT_HEADER, clientID, dataType, nChannels, 0, fSample, null,
+				time);
+	}
+
+	@Override
+	public void clientPutSamples(final int count, final int clientID,
+			final int diff, final long time) {
+		record(PUT_SAMPLES, clientID, count, diff, 0, 0, null, time);
+	}
+
+	@Override
+	public void clientWaits(final int nSamples, final int nEvents,
+			final int timeout, final int clientID, final long time) {
+		record(WAITS, clientID, nSamples, nEvents, timeout, 0, null, time);
+	}
+
+	@Override
+	public void garbageCollected(final String collector, final long duration,
+			final long time) {
+		record(GARBAGE_COLLECTED, -1, 0, 0, 0, 0, duration, 0, 0, collector,
+				time);
+	}
+
+	@Override
+	public void memoryUsed(final long heapUsed, final long offHeapUsed,
+			final long allocationRate, final long time) {
+		record(MEMORY_USED, -1, 0, 0, 0, 0, heapUsed, offHeapUsed,
+				allocationRate, null, time);
+	}
+
+	/**
+	 * Passes the callback in the ring entry at index on to the monitor.
+	 *
+	 * @param index
+	 */
+	private void deliver(final int index) {
+		switch (kind[index]) {
+		case CLOSED_CONNECTION:
+			monitor.clientClosedConnection(clientID[index], time[index]);
+			break;
+		case CONTINUES:
+			monitor.clientContinues(clientID[index], time[index]);
+			break;
+		case ERROR:
+			monitor.clientError(clientID[index], a[index], time[index]);
+			break;
+		case FLUSHED_DATA:
+			monitor.clientFlushedData(clientID[index], time[index]);
+			break;
+		case FLUSHED_EVENTS:
+			monitor.clientFlushedEvents(clientID[index], time[index]);
+			break;
+		case FLUSHED_HEADER:
+			monitor.clientFlushedHeader(clientID[index], time[index]);
+			break;
+		case GET_EVENTS:
+			monitor.clientGetEvents(a[index], clientID[index], time[index]);
+			break;
+		case GET_HEADER:
+			monitor.clientGetHeader(clientID[index], time[index]);
+			break;
+		case GET_SAMPLES:
+			monitor.clientGetSamples(a[index], clientID[index], time[index]);
+			break;
+		case OPENED_CONNECTION:
+			monitor.clientOpenedConnection(clientID[index], adress[index],
+					time[index]);
+			break;
+		case POLLS:
+			monitor.clientPolls(clientID[index], time[index]);
+			break;
+		case PUT_EVENTS:
+			monitor.clientPutEvents(a[index], clientID[index], b[index],
+					time[index]);
+			break;
+		case PUT_HEADER:
+			monitor.clientPutHeader(a[index], fSample[index], b[index],
+					clientID[index], time[index]);
+			break;
+		case PUT_SAMPLES:
+			monitor.clientPutSamples(a[index], clientID[index], b[index],
+					time[index]);
+			break;
+		case WAITS:
+			monitor.clientWaits(a[index], b[index], c[index],
+					clientID[index], time[index]);
+			break;
+		case GARBAGE_COLLECTED:
+			monitor.garbageCollected(adress[index], x[index], time[index]);
+			break;
+		case MEMORY_USED:
+			monitor.memoryUsed(x[index], y[index], z[index], time[index]);
+			break;
+		}
+	}
+
+	/**
+	 * Delivers all callbacks currently in the ring. Returns the number of
+	 * callbacks delivered.
+	 *
+	 * @return
+	 */
+	private int drain() {
+		int count = 0;
+
+		while (true) {
+			final int index = (int) (head & mask);
+
+			// Stop at the first entry that has not been filled yet
+			if (sequence.get(index) != head + 1) {
+				return count;
+			}
+
+			try {
+				deliver(index);
+			} catch (final RuntimeException e) {
+				e.printStackTrace();
+			}
+
+			// Hand the entry back to the producers
+			adress[index] = null;
+			sequence.lazySet(index, head + mask + 1);
+			head++;
+			count++;
+		}
+	}
+
+	/**
+	 * Returns the number of callbacks that were dropped because the ring was
+	 * full.
+	 *
+	 * @return
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Claims a free entry in the ring and fills it. Drops the callback if the
+	 * ring is full.
+	 */
+	private void record(final int kind, final int clientID, final int a,
+			final int b, final int c, final float fSample,
+			final String adress, final long time) {
+		record(kind, clientID, a, b, c, fSample, 0, 0, 0, adress, time);
+	}
+
+	/**
+	 * Claims a free entry in the ring and fills it, including the long
+	 * arguments. Drops the callback if the ring is full.
+	 */
+	private void record(final int kind, final int clientID, final int a,
+			final int b, final int c, final float fSample, final long x,
+			final long y, final long z, final String adress, final long time) {
+		long position = tail.get();
+		int index;
+
+		while (true) {
+			index = (int) (position & mask);
+			final long available = sequence.get(index) - position;
+
+			if (available == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					break;
+				}
+				position = tail.get();
+			} else if (available < 0) {
+				// The background thread has not delivered this entry yet.
+				dropped.incrementAndGet();
+				return;
+			} else {
+				// Another thread claimed the entry first.
+				position = tail.get();
+			}
+		}
+
+		this.kind[index] = kind;
+		this.clientID[index] = clientID;
+		this.a[index] = a;
+		this.b[index] = b;
+		this.c[index] = c;
+		this.fSample[index] = fSample;
+		this.x[index] = x;
+		this.y[index] = y;
+		this.z[index] = z;
+		this.time[index] = time;
+		this.adress[index] = adress;
+
+		// Publish the entry to the background thread
+		sequence.lazySet(index, position + 1);
+	}
+
+	/**
+	 * Delivers the recorded callbacks until stopMonitor is called.
+	 */
+	@Override
+	public void run() {
+		while (run) {
+			if (drain() == 0) {
+				LockSupport.parkNanos(IDLE_NANOS);
+			}
+		}
+		drain();
+	}
+
+	/**
+	 * Delivers the remaining callbacks and stops the background thread.
+	 */
+	public void stopMonitor() {
+		run = false;
+		LockSupport.unpark(this);
+		try {
+			join();
+		} catch (final InterruptedException e) {
+		}
+	}
+}
@@ -1,16 +1,38 @@
 package buffer_bci.javaserver;
 
 import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
 import java.nio.ByteOrder;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.management.JMException;
 
 import buffer_bci.javaserver.data.DataModel;
 import buffer_bci.javaserver.data.Header;
 import buffer_bci.javaserver.data.RingDataStore;
+import buffer_bci.javaserver.data.SharedSampleRing;
 import buffer_bci.javaserver.data.SimpleDataStore;
 import buffer_bci.javaserver.exceptions.DataException;
+import buffer_bci.javaserver.management.Management;
+import buffer_bci.javaserver.metrics.BufferMetrics;
+import buffer_bci.javaserver.metrics.PrometheusExporter;
 import buffer_bci.javaserver.network.ConnectionThread;
+import buffer_bci.javaserver.network.NetworkProtocol;
 
 /**
  * Buffer class, a thread that opens a serverSocket to listen for connections
@@ -42,7 +64,86 @@ public class Buffer extends Thread {
 		} else {
 			buffer = new Buffer(1972, 10000, 1000);
 		}
-		buffer.addMonitor(new SystemOutMonitor());
+
+		// Print from a background thread, off the connection threads.
+		final AsyncMonitor monitor = new AsyncMonitor(new SystemOutMonitor());
+		monitor.start();
+
+		// Export metrics over http if buffer.prometheusPort is set.
+		final int prometheusPort = Integer.getInteger("buffer.prometheusPort",
+				0);
+		final Telemetry telemetry;
+		if (prometheusPort > 0) {
+			final MetricsMonitor metricsMonitor = new MetricsMonitor();
+			final MonitorGroup group = new MonitorGroup(monitor,
+					metricsMonitor);
+			buffer.addMonitor(group);
+			telemetry = new Telemetry(group, Long.getLong(
+					"buffer.telemetryInterval", Telemetry.DEFAULT_INTERVAL));
+
+			final PrometheusExporter exporter = new PrometheusExporter(buffer,
+					metricsMonitor);
+			exporter.setTelemetry(telemetry);
+			try {
+				exporter.start(new InetSocketAddress(System.getProperty(
+						"buffer.prometheusAddress",
+						PrometheusExporter.DEFAULT_ADDRESS), prometheusPort));
+			} catch (final IOException e) {
+				System.err.println("Could not export metrics on port "
+						+ prometheusPort);
+			}
+		} else {
+			buffer.addMonitor(monitor);
+			telemetry = new Telemetry(monitor, Long.getLong(
+					"buffer.telemetryInterval", Telemetry.DEFAULT_INTERVAL));
+		}
+
+		// Sample memory use and GC pauses for as long as the buffer runs.
+		telemetry.start();
+
+		buffer.setMaxMessageSize(Integer.getInteger("buffer.maxMessageSize",
+				NetworkProtocol.DEFAULT_MAX_MESSAGE_SIZE));
+
+		// Record latencies, print them every buffer.metricsInterval seconds.
+		final BufferMetrics metrics = new BufferMetrics();
+		buffer.setMetrics(metrics);
+
+		final int interval = Integer.getInteger("buffer.metricsInterval", 0);
+		if (interval > 0) {
+			new Timer("Fieldtrip Metrics Report", true).scheduleAtFixedRate(
+					new TimerTask() {
+						@Override
+						public void run() {
+							System.out.print(metrics.report());
+						}
+					}, interval * 1000L, interval * 1000L);
+		}
+
+		// Also accept local clients on buffer.unixSocket if it is set.
+		final String unixSocket = System.getProperty("buffer.unixSocket");
+		if (unixSocket != null) {
+			buffer.setUnixSocketPath(Paths.get(unixSocket));
+		}
+
+		// Share the sample ring with local readers if buffer.sharedRing is set.
+		final String sharedRing = System.getProperty("buffer.sharedRing");
+		if (sharedRing != null) {
+			try {
+				buffer.shareSamples(Paths.get(sharedRing));
+			} catch (final IOException | DataException e) {
+				System.err.println("Could not share samples at " + sharedRing
+						+ ": " + e.getMessage());
+			}
+		}
+
+		// Expose the buffer to JMX clients such as jconsole.
+		final Management management = new Management(buffer);
+		try {
+			management.start();
+			buffer.setManagement(management);
+		} catch (final JMException e) {
+			e.printStackTrace();
+		}
 		buffer.run();
 	}
 
@@ -50,10 +151,16 @@ public class Buffer extends Thread {
 
 	private final int portNumber;
 	private ServerSocket serverSocket;
-	private boolean disconnectedOnPurpose = false;
+	private Path unixSocketPath = null;
+	private ServerSocketChannel unixSocket = null;
+	private SharedSampleRing sharedRing = null;
+	private volatile boolean disconnectedOnPurpose = false;
 	private final ArrayList<ConnectionThread> threads = new ArrayList<ConnectionThread>();
 	private FieldtripBufferMonitor monitor = null;
-	private int nextClientID = 0;
+	private volatile int nextClientID = 0;
+	private int maxMessageSize = NetworkProtocol.DEFAULT_MAX_MESSAGE_SIZE;
+	private BufferMetrics metrics = null;
+	private Management management = null;
 
 	/**
 	 * Constructor, creates a simple datastore.
@@ -95,7 +202,7 @@ public class Buffer extends Thread {
 
 	public void addMonitor(final FieldtripBufferMonitor monitor) {
 		this.monitor = monitor;
-		for (final ConnectionThread thread : threads) {
+		for (final ConnectionThread thread : connections()) {
 			thread.addMonitor(monitor);
 		}
 	}
@@ -109,6 +216,18 @@ public class Buffer extends Thread {
 		serverSocket.close();
 	}
 
+	/**
+	 * Returns a copy of the list of connections, connections remove
+	 * themselves from the list when they close.
+	 *
+	 * @return
+	 */
+	private ConnectionThread[] connections() {
+		synchronized (threads) {
+			return threads.toArray(new ConnectionThread[threads.size()]);
+		}
+	}
+
 	/**
 	 * Flushes the events from the datastore.
 	 */
@@ -178,13 +297,171 @@ public class Buffer extends Thread {
 		}
 	}
 
+	/**
+	 * Returns the number of open client connections.
+	 *
+	 * @return
+	 */
+	public int getConnectionCount() {
+		synchronized (threads) {
+			return threads.size();
+		}
+	}
+
+	/**
+	 * Returns the number of client connections accepted since the buffer
+	 * started.
+	 *
+	 * @return
+	 */
+	public int getConnectionsAccepted() {
+		return nextClientID;
+	}
+
+	/**
+	 * Returns the DataModel the buffer stores everything in.
+	 *
+	 * @return
+	 */
+	public DataModel getDataStore() {
+		return dataStore;
+	}
+
+	/**
+	 * Returns the maximum size of a message body that is read into memory.
+	 *
+	 * @return
+	 */
+	public int getMaxMessageSize() {
+		return maxMessageSize;
+	}
+
+	/**
+	 * Returns the latency histograms of the connections, null if they are not
+	 * recorded.
+	 *
+	 * @return
+	 */
+	public BufferMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns the port the buffer listens on.
+	 *
+	 * @return
+	 */
+	public int getPort() {
+		return portNumber;
+	}
+
+	/**
+	 * Returns the path of the memory-mapped file the samples are shared in,
+	 * null if they are not shared.
+	 *
+	 * @return
+	 */
+	public Path getSharedRingPath() {
+		return sharedRing == null ? null : sharedRing.getPath();
+	}
+
+	/**
+	 * Returns the path of the Unix domain socket the buffer also listens on,
+	 * null if it only listens on its port.
+	 *
+	 * @return
+	 */
+	public Path getUnixSocketPath() {
+		return unixSocketPath;
+	}
+
+	/**
+	 * Sets the JMX registration that is informed of opened and closed
+	 * connections, and registers the existing connections with it.
+	 *
+	 * @param management
+	 */
+	public void setManagement(final Management management) {
+		this.management = management;
+		if (management != null) {
+			for (final ConnectionThread thread : connections()) {
+				management.connectionOpened(thread);
+			}
+		}
+	}
+
+	/**
+	 * Sets the latency histograms new and existing connections record the
+	 * handling of messages in, null to stop recording.
+	 *
+	 * @param metrics
+	 */
+	public void setMetrics(final BufferMetrics metrics) {
+		this.metrics = metrics;
+		for (final ConnectionThread thread : connections()) {
+			thread.setMetrics(metrics);
+		}
+	}
+
+	/**
+	 * Shares the sample ring with readers on the same host through a
+	 * memory-mapped file at path, which SharedSampleReader reads without
+	 * asking the buffer. Only possible with a RingDataStore. The file is
+	 * removed when the buffer stops.
+	 *
+	 * @param path
+	 * @throws IOException
+	 * @throws DataException
+	 */
+	public void shareSamples(final Path path) throws IOException,
+			DataException {
+		final SharedSampleRing ring = new SharedSampleRing(path);
+		try {
+			dataStore.shareSamples(ring);
+		} catch (final DataException e) {
+			ring.close();
+			throw e;
+		}
+		sharedRing = ring;
+	}
+
+	/**
+	 * Sets the path of a Unix domain socket the buffer listens on besides its
+	 * port, for clients on the same host. Must be set before the buffer is
+	 * started. A file left at the path by an earlier run is removed.
+	 *
+	 * @param path
+	 */
+	public void setUnixSocketPath(final Path path) {
+		unixSocketPath = path;
+	}
+
+	/**
+	 * Sets the maximum size of a message body that is read into memory, for
+	 * new and existing connections. Larger PUT_DAT messages are stored in
+	 * pieces, other larger messages are rejected.
+	 *
+	 * @param maxMessageSize
+	 */
+	public void setMaxMessageSize(final int maxMessageSize) {
+		this.maxMessageSize = maxMessageSize;
+		for (final ConnectionThread thread : connections()) {
+			thread.setMaxMessageSize(maxMessageSize);
+		}
+	}
+
 	/**
 	 * Removes the connection from the list of threads.
 	 *
 	 * @param connection
 	 */
-	public synchronized void removeConnection(final ConnectionThread connection) {
-		threads.remove(connection);
+	public void removeConnection(final ConnectionThread connection) {
+		synchronized (threads) {
+			threads.remove(connection);
+		}
+		if (management != null) {
+			management.connectionClosed(connection);
+		}
 	}
 
 	/**
@@ -192,42 +469,166 @@ public class Buffer extends Thread {
 	 */
 	@Override
 	public void run() {
+		if (unixSocketPath != null) {
+			try {
+				listenOnUnixSocket();
+			} catch (final IOException e) {
+				System.err.println("Could not listen on " + unixSocketPath
+						+ ": " + e.getMessage());
+				return;
+			}
+		}
 		try {
 			serverSocket = new ServerSocket(portNumber);
 			while (true) {
-				final ConnectionThread connection = new ConnectionThread(
-						nextClientID++, serverSocket.accept(), dataStore, this);
-				connection.setName("Fieldtrip Client Thread "
-						+ connection.clientAdress);
-				connection.addMonitor(monitor);
-
-				synchronized (threads) {
-					threads.add(connection);
-				}
-				connection.start();
+				final Socket socket = serverSocket.accept();
+				startConnection(new ConnectionThread(newClientID(), socket,
+						dataStore, this));
 			}
 		} catch (final IOException e) {
 			if (!disconnectedOnPurpose) {
 				System.err.println("Could not listen on port " + portNumber);
 			} else {
-				for (final ConnectionThread thread : threads) {
+				for (final ConnectionThread thread : connections()) {
 					thread.disconnect();
 				}
 			}
 		}
 	}
 
+	/**
+	 * Binds the Unix domain socket and starts a thread accepting connections
+	 * on it, which are handled the same as connections on the port.
+	 *
+	 * @throws IOException
+	 *             Thrown if the socket could not be bound, also when the path
+	 *             is taken by something other than a stale socket.
+	 */
+	private void listenOnUnixSocket() throws IOException {
+		removeStaleUnixSocket();
+		final ServerSocketChannel channel = ServerSocketChannel
+				.open(StandardProtocolFamily.UNIX);
+		try {
+			channel.bind(UnixDomainSocketAddress.of(unixSocketPath));
+		} catch (final IOException e) {
+			channel.close();
+			throw e;
+		}
+		unixSocket = channel;
+
+		final Thread listener = new Thread("Fieldtrip Unix Socket Listener") {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						final SocketChannel channel = unixSocket.accept();
+						startConnection(new ConnectionThread(newClientID(),
+								channel, "unix:" + unixSocketPath, dataStore,
+								Buffer.this));
+					}
+				} catch (final IOException e) {
+					if (!disconnectedOnPurpose) {
+						System.err.println("Could not listen on "
+								+ unixSocketPath);
+					}
+				}
+			}
+		};
+		listener.setDaemon(true);
+		listener.start();
+	}
+
+	/**
+	 * Removes the file at the Unix domain socket path if it is a socket left
+	 * behind by a buffer that is no longer running. Throws IOException, and
+	 * leaves the file alone, if it is not a socket or something still accepts
+	 * connections on it.
+	 *
+	 * @throws IOException
+	 */
+	private void removeStaleUnixSocket() throws IOException {
+		final BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(unixSocketPath,
+					BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		} catch (final NoSuchFileException e) {
+			return;
+		}
+
+		if (!attributes.isOther()) {
+			throw new IOException(unixSocketPath
+					+ " exists and is not a socket.");
+		}
+
+		// A socket that accepts a connection belongs to a running buffer
+		final SocketChannel probe = SocketChannel
+				.open(StandardProtocolFamily.UNIX);
+		try {
+			probe.connect(UnixDomainSocketAddress.of(unixSocketPath));
+			throw new IOException(unixSocketPath + " is in use.");
+		} catch (final ConnectException e) {
+			// Refused, nothing listens on it anymore
+		} finally {
+			probe.close();
+		}
+
+		Files.delete(unixSocketPath);
+	}
+
+	/**
+	 * Returns the ID for the next accepted connection, which is accepted on
+	 * either the port or the Unix domain socket.
+	 *
+	 * @return
+	 */
+	private synchronized int newClientID() {
+		return nextClientID++;
+	}
+
+	/**
+	 * Sets up and starts the thread handling a newly accepted connection.
+	 *
+	 * @param connection
+	 */
+	private void startConnection(final ConnectionThread connection) {
+		connection.setName("Fieldtrip Client Thread "
+				+ connection.clientAdress);
+		connection.addMonitor(monitor);
+		connection.setMaxMessageSize(maxMessageSize);
+		connection.setMetrics(metrics);
+
+		synchronized (threads) {
+			threads.add(connection);
+		}
+		if (management != null) {
+			management.connectionOpened(connection);
+		}
+		connection.start();
+	}
+
 	/**
 	 * Stops the buffer thread and closes all existing client connections.
 	 */
 	public void stopBuffer() {
 		try {
-			for (final ConnectionThread thread : threads) {
+			for (final ConnectionThread thread : connections()) {
 				thread.disconnect();
 			}
-			serverSocket.close();
 			disconnectedOnPurpose = true;
+			serverSocket.close();
+			if (unixSocket != null) {
+				unixSocket.close();
+				Files.deleteIfExists(unixSocketPath);
+			}
+			if (sharedRing != null) {
+				dataStore.shareSamples(null);
+				sharedRing.close();
+			}
+			if (management != null) {
+				management.stop();
+			}
 		} catch (final IOException e) {
+		} catch (final DataException e) {
 		}
 	}
 }
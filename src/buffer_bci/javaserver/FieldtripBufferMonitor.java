@@ -4,6 +4,7 @@ public interface FieldtripBufferMonitor {
 	public static final int ERROR_PROTOCOL = 0;
 	public static final int ERROR_CONNECTION = 1;
 	public static final int ERROR_VERSION = 2;
+	public static final int ERROR_OVERFLOW = 3;
 
 	public void clientClosedConnection(int clientID, long time);
 
@@ -36,4 +37,36 @@ public interface FieldtripBufferMonitor {
 
 	public void clientWaits(int nSamples, int nEvents, int timeout,
 			int clientID, long time);
+
+	/**
+	 * Called by Telemetry when a garbage collection has ended. Does nothing
+	 * by default, so monitors that do not watch the JVM need not implement
+	 * it.
+	 *
+	 * @param collector
+	 *            Name of the garbage collector.
+	 * @param duration
+	 *            Duration of the collection in milliseconds.
+	 * @param time
+	 */
+	public default void garbageCollected(final String collector,
+			final long duration, final long time) {
+	}
+
+	/**
+	 * Called by Telemetry every interval with the memory use of the JVM.
+	 * Does nothing by default.
+	 *
+	 * @param heapUsed
+	 *            Bytes used on the heap.
+	 * @param offHeapUsed
+	 *            Bytes used by non-heap areas and direct/mapped buffers.
+	 * @param allocationRate
+	 *            Bytes allocated per second by all threads over the last
+	 *            interval.
+	 * @param time
+	 */
+	public default void memoryUsed(final long heapUsed,
+			final long offHeapUsed, final long allocationRate, final long time) {
+	}
 }
@@ -0,0 +1,378 @@
+package buffer_bci.javaserver;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import buffer_bci.javaserver.network.NetworkProtocol;
+
+/**
+ * Monitor that counts client activity. Callbacks only add to striped
+ * LongAdder counters and look up the client in an array that is replaced
+ * (never modified) when clients connect or disconnect, so they do not lock
+ * or allocate. Snapshots sum the counters and compute per-client rates since
+ * the previous snapshot, cheap enough to take every 100 ms.
+ *
+ * Byte counts only cover sample data and are derived from the number of
+ * channels and data type of the last header put while this monitor was
+ * installed.
+ *
+ * Memory use and garbage collections are kept as reported by Telemetry.
+ *
+ * @author Wieke Kanters
+ *
+ */
+public class MetricsMonitor implements FieldtripBufferMonitor {
+
+	/**
+	 * Counters of a single client.
+	 */
+	private static class ClientCounters {
+		final int clientID;
+		final String adress;
+		final LongAdder samplesPut = new LongAdder();
+		final LongAdder samplesGet = new LongAdder();
+		final LongAdder eventsPut = new LongAdder();
+		final LongAdder eventsGet = new LongAdder();
+		final LongAdder bytesPut = new LongAdder();
+		final LongAdder bytesGet = new LongAdder();
+		final LongAdder requests = new LongAdder();
+
+		// Values at the previous snapshot, used for the rates.
+		long lastSamplesPut;
+		long lastSamplesGet;
+		long lastEventsPut;
+		long lastEventsGet;
+		long lastBytesPut;
+		long lastBytesGet;
+
+		ClientCounters(final int clientID, final String adress) {
+			this.clientID = clientID;
+			this.adress = adress;
+		}
+	}
+
+	/**
+	 * Totals and rates of a single client at the moment of a snapshot. Rates
+	 * are per second, since the previous snapshot.
+	 */
+	public static class ClientSnapshot {
+		public final int clientID;
+		public final String adress;
+		public final long samplesPut;
+		public final long samplesGet;
+		public final long eventsPut;
+		public final long eventsGet;
+		public final long bytesPut;
+		public final long bytesGet;
+		public final long requests;
+		public final double samplesPutRate;
+		public final double samplesGetRate;
+		public final double eventsPutRate;
+		public final double eventsGetRate;
+		public final double bytesPutRate;
+		public final double bytesGetRate;
+
+		ClientSnapshot(final ClientCounters counters, final double seconds) {
+			clientID = counters.clientID;
+			adress = counters.adress;
+			samplesPut = counters.samplesPut.sum();
+			samplesGet = counters.samplesGet.sum();
+			eventsPut = counters.eventsPut.sum();
+			eventsGet = counters.eventsGet.sum();
+			bytesPut = counters.bytesPut.sum();
+			bytesGet = counters.bytesGet.sum();
+			requests = counters.requests.sum();
+
+			samplesPutRate = rate(samplesPut - counters.lastSamplesPut, seconds);
+			samplesGetRate = rate(samplesGet - counters.lastSamplesGet, seconds);
+			eventsPutRate = rate(eventsPut - counters.lastEventsPut, seconds);
+			eventsGetRate = rate(eventsGet - counters.lastEventsGet, seconds);
+			bytesPutRate = rate(bytesPut - counters.lastBytesPut, seconds);
+			bytesGetRate = rate(bytesGet - counters.lastBytesGet, seconds);
+
+			counters.lastSamplesPut = samplesPut;
+			counters.lastSamplesGet = samplesGet;
+			counters.lastEventsPut = eventsPut;
+			counters.lastEventsGet = eventsGet;
+			counters.lastBytesPut = bytesPut;
+			counters.lastBytesGet = bytesGet;
+		}
+
+		private static double rate(final long diff, final double seconds) {
+			return seconds > 0 ? diff / seconds : 0;
+		}
+	}
+
+	/**
+	 * Totals of all clients, and the state of each connected client, at the
+	 * moment of a snapshot.
+	 */
+	public static class Snapshot {
+		public final long time;
+		public final int connections;
+		public final long connectionsOpened;
+		public final long samplesPut;
+		public final long samplesGet;
+		public final long eventsPut;
+		public final long eventsGet;
+		public final long bytesPut;
+		public final long bytesGet;
+		public final long headersPut;
+		public final long headersGet;
+		public final long flushes;
+		public final long waits;
+		public final long polls;
+		public final long errors;
+		public final long garbageCollections;
+		public final long garbageCollectionTime;
+		public final long heapUsed;
+		public final long offHeapUsed;
+		public final long allocationRate;
+		public final ClientSnapshot[] clients;
+
+		Snapshot(final MetricsMonitor monitor, final long time,
+				final ClientSnapshot[] clients) {
+			this.time = time;
+			this.clients = clients;
+			connections = clients.length;
+			connectionsOpened = monitor.connectionsOpened.sum();
+			samplesPut = monitor.samplesPut.sum();
+			samplesGet = monitor.samplesGet.sum();
+			eventsPut = monitor.eventsPut.sum();
+			eventsGet = monitor.eventsGet.sum();
+			bytesPut = monitor.bytesPut.sum();
+			bytesGet = monitor.bytesGet.sum();
+			headersPut = monitor.headersPut.sum();
+			headersGet = monitor.headersGet.sum();
+			flushes = monitor.flushes.sum();
+			waits = monitor.waits.sum();
+			polls = monitor.polls.sum();
+			errors = monitor.errors.sum();
+			garbageCollections = monitor.garbageCollections.sum();
+			garbageCollectionTime = monitor.garbageCollectionTime.sum();
+			heapUsed = monitor.heapUsed;
+			offHeapUsed = monitor.offHeapUsed;
+			allocationRate = monitor.allocationRate;
+		}
+	}
+
+	private static final ClientCounters[] NO_CLIENTS = new ClientCounters[0];
+
+	private final LongAdder connectionsOpened = new LongAdder();
+	private final LongAdder samplesPut = new LongAdder();
+	private final LongAdder samplesGet = new LongAdder();
+	private final LongAdder eventsPut = new LongAdder();
+	private final LongAdder eventsGet = new LongAdder();
+	private final LongAdder bytesPut = new LongAdder();
+	private final LongAdder bytesGet = new LongAdder();
+	private final LongAdder headersPut = new LongAdder();
+	private final LongAdder headersGet = new LongAdder();
+	private final LongAdder flushes = new LongAdder();
+	private final LongAdder waits = new LongAdder();
+	private final LongAdder polls = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder garbageCollections = new LongAdder();
+	private final LongAdder garbageCollectionTime = new LongAdder();
+
+	private volatile ClientCounters[] clients = NO_CLIENTS;
+	private volatile int sampleSize = 0;
+	private volatile long heapUsed = 0;
+	private volatile long offHeapUsed = 0;
+	private volatile long allocationRate = 0;
+	private long lastSnapshot = System.nanoTime();
+
+	@Override
+	public synchronized void clientClosedConnection(final int clientID,
+			final long time) {
+		final ClientCounters[] current = clients;
+
+		// Replace the array by one without the client
+		for (int i = 0; i < current.length; i++) {
+			if (current[i].clientID == clientID) {
+				final ClientCounters[] replacement = new ClientCounters[current.length - 1];
+				System.arraycopy(current, 0, replacement, 0, i);
+				System.arraycopy(current, i + 1, replacement, i,
+						current.length - i - 1);
+				clients = replacement;
+				return;
+			}
+		}
+	}
+
+	@Override
+	public void clientContinues(final int clientID, final long time) {
+	}
+
+	@Override
+	public void clientError(final int clientID, final int errorType,
+			final long time) {
+		errors.increment();
+
+		// All errors end the connection
+		clientClosedConnection(clientID, time);
+	}
+
+	@Override
+	public void clientFlushedData(final int clientID, final long time) {
+		flushes.increment();
+		request(clientID);
+	}
+
+	@Override
+	public void clientFlushedEvents(final int clientID, final long time) {
+		flushes.increment();
+		request(clientID);
+	}
+
+	@Override
+	public void clientFlushedHeader(final int clientID, final long time) {
+		flushes.increment();
+		request(clientID);
+	}
+
+	@Override
+	public void clientGetEvents(final int count, final int clientID,
+			final long time) {
+		eventsGet.add(count);
+
+		final ClientCounters client = request(clientID);
+		if (client != null) {
+			client.eventsGet.add(count);
+		}
+	}
+
+	@Override
+	public void clientGetHeader(final int clientID, final long time) {
+		headersGet.increment();
+		request(clientID);
+	}
+
+	@Override
+	public void clientGetSamples(final int count, final int clientID,
+			final long time) {
+		final long bytes = (long) count * sampleSize;
+		samplesGet.add(count);
+		bytesGet.add(bytes);
+
+		final ClientCounters client = request(clientID);
+		if (client != null) {
+			client.samplesGet.add(count);
+			client.bytesGet.add(bytes);
+		}
+	}
+
+	@Override
+	public synchronized void clientOpenedConnection(final int clientID,
+			final String adress, final long time) {
+		connectionsOpened.increment();
+
+		// Replace the array by one with the client added
+		final ClientCounters[] current = clients;
+		final ClientCounters[] replacement = new ClientCounters[current.length + 1];
+		System.arraycopy(current, 0, replacement, 0, current.length);
+		replacement[current.length] = new ClientCounters(clientID, adress);
+		clients = replacement;
+	}
+
+	@Override
+	public void clientPolls(final int clientID, final long time) {
+		polls.increment();
+		request(clientID);
+	}
+
+	@Override
+	public void clientPutEvents(final int count, final int clientID,
+			final int diff, final long time) {
+		eventsPut.add(diff);
+
+		final ClientCounters client = request(clientID);
+		if (client != null) {
+			client.eventsPut.add(diff);
+		}
+	}
+
+	@Override
+	public void clientPutHeader(final int dataType, final float fSample,
+			final int nChannels, final int clientID, final long time) {
+		headersPut.increment();
+		sampleSize = nChannels
+				* Math.max(NetworkProtocol.dataTypeSize(dataType), 0);
+		request(clientID);
+	}
+
+	@Override
+	public void clientPutSamples(final int count, final int clientID,
+			final int diff, final long time) {
+		final long bytes = (long) diff * sampleSize;
+		samplesPut.add(diff);
+		bytesPut.add(bytes);
+
+		final ClientCounters client = request(clientID);
+		if (client != null) {
+			client.samplesPut.add(diff);
+			client.bytesPut.add(bytes);
+		}
+	}
+
+	@Override
+	public void clientWaits(final int nSamples, final int nEvents,
+			final int timeout, final int clientID, final long time) {
+		waits.increment();
+		request(clientID);
+	}
+
+	@Override
+	public void garbageCollected(final String collector, final long duration,
+			final long time) {
+		garbageCollections.increment();
+		garbageCollectionTime.add(duration);
+	}
+
+	@Override
+	public void memoryUsed(final long heapUsed, final long offHeapUsed,
+			final long allocationRate, final long time) {
+		this.heapUsed = heapUsed;
+		this.offHeapUsed = offHeapUsed;
+		this.allocationRate = allocationRate;
+	}
+
+	/**
+	 * Finds the counters of the client and counts a request. Returns null for
+	 * unknown clients, such as the buffer itself.
+	 *
+	 * @param clientID
+	 * @return
+	 */
+	private ClientCounters request(final int clientID) {
+		final ClientCounters[] current = clients;
+
+		for (final ClientCounters client : current) {
+			if (client.clientID == clientID) {
+				client.requests.increment();
+				return client;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns the current totals, and the rates of each client since the
+	 * previous snapshot.
+	 *
+	 * @return
+	 */
+	public synchronized Snapshot snapshot() {
+		final long now = System.nanoTime();
+		final double seconds = (now - lastSnapshot) / 1e9;
+		lastSnapshot = now;
+
+		final ClientCounters[] current = clients;
+		final ClientSnapshot[] snapshots = new ClientSnapshot[current.length];
+
+		for (int i = 0; i < current.length; i++) {
+			snapshots[i] = new ClientSnapshot(current[i], seconds);
+		}
+
+		return new Snapshot(this, System.currentTimeMillis(), snapshots);
+	}
+}
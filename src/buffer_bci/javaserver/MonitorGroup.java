@@ -0,0 +1,150 @@
+package buffer_bci.javaserver;
+
+/**
+ * Monitor that passes every callback on to a number of monitors, in order.
+ *
+ * @author Wieke Kanters
+ *
+ */
+public class MonitorGroup implements FieldtripBufferMonitor {
+	private final FieldtripBufferMonitor[] monitors;
+
+	/**
+	 * Constructor
+	 *
+	 * @param monitors
+	 */
+	public MonitorGroup(final FieldtripBufferMonitor... monitors) {
+		this.monitors = monitors.clone();
+	}
+
+	@Override
+	public void clientClosedConnection(final int clientID, final long time) {
+		for (final FieldtripBufferMonitor monitor : monitors) {
+			monitor.clientClosedConnection(clientID, time);
+		}
+	}
+
+	@Override
+	public void clientContinues(final int clientID, final long time) {
+		for (final FieldtripBufferMonitor monitor : monitors) {
+			monitor.clientContinues(clientID, time);
+		}
+	}
+
+	@Override
+	public void clientError(final int clientID, final int errorType,
+			final long time) {
+		for (final FieldtripBufferMonitor monitor : monitors) {
+			monitor.clientError(clientID, errorType, time);
+		}
+	}
+
+	@Override
+	public void clientFlushedData(final int clientID, final long time) {
+		for (final FieldtripBufferMonitor monitor : monitors) {
+			monitor.clientFlushedData(clientID, time);
+		}
+	}
+
+	@Override
+	public void clientFlushedEvents(final int clientID, final long time) {
+		for (final FieldtripBufferMonitor monitor : monitors) {
+			monitor.clientFlushedEvents(clientID, time);
+		}
+	}
+
+	@Override
+	public void clientFlushedHeader(final int clientID, final long time) {
+		for (final FieldtripBufferMonitor monitor : monitors) {
+			monitor.clientFlushedHeader(clientID, time);
+		}
+	}
+
+	@Override
+	public void clientGetEvents(final int count, final int clientID,
+			final long time) {
+		for (final FieldtripBufferMonitor monitor : monitors) {
+			monitor.clientGetEvents(count, clientID, time);
+		}
+	}
+
+	@Override
+	public void clientGetHeader(final int clientID, final long time) {
+		for (final FieldtripBufferMonitor monitor : monitors) {
+			monitor.clientGetHeader(clientID, time);
+		}
+	}
+
+	@Override
+	public void clientGetSamples(final int count, final int clientID,
+			final long time) {
+		for (final FieldtripBufferMonitor monitor : monitors) {
+			monitor.clientGetSamples(count, clientID, time);
+		}
+	}
+
+	@Override
+	public void clientOpenedConnection(final int clientID, final String adress,
+			final long time) {
+		for (final FieldtripBufferMonitor monitor : monitors) {
+			monitor.clientOpenedConnection(clientID, adress, time);
+		}
+	}
+
+	@Override
+	public void clientPolls(final int clientID, final long time) {
+		for (final FieldtripBufferMonitor monitor : monitors) {
+			monitor.clientPolls(clientID, time);
+		}
+	}
+
+	@Override
+	public void clientPutEvents(final int count, final int clientID,
+			final int diff, final long time) {
+		for (final FieldtripBufferMonitor monitor : monitors) {
+			monitor.clientPutEvents(count, clientID, diff, time);
+		}
+	}
+
+	@Override
+	public void clientPutHeader(final int dataType, final float fSample,
+			final int nChannels, final int clientID, final long time) {
+		for (final FieldtripBufferMonitor monitor : monitors) {
+			monitor.clientPutHeader(dataType, fSample, nChannels, clientID,
+					time);
+		}
+	}
+
+	@Override
+	public void clientPutSamples(final int count, final int clientID,
+			final int diff, final long time) {
+		for (final FieldtripBufferMonitor monitor : monitors) {
+			monitor.clientPutSamples(count, clientID, diff, time);
+		}
+	}
+
+	@Override
+	public void clientWaits(final int nSamples, final int nEvents,
+			final int timeout, final int clientID, final long time) {
+		for (final FieldtripBufferMonitor monitor : monitors) {
+			monitor.clientWaits(nSamples, nEvents, timeout, clientID, time);
+		}
+	}
+
+	@Override
+	public void garbageCollected(final String collector, final long duration,
+			final long time) {
+		for (final FieldtripBufferMonitor monitor : monitors) {
+			monitor.garbageCollected(collector, duration, time);
+		}
+	}
+
+	@Override
+	public void memoryUsed(final long heapUsed, final long offHeapUsed,
+			final long allocationRate, final long time) {
+		for (final FieldtripBufferMonitor monitor : monitors) {
+			monitor.memoryUsed(heapUsed, offHeapUsed, allocationRate, time);
+		}
+	}
+}
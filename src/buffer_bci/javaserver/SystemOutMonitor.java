@@ -2,11 +2,19 @@ package buffer_bci.javaserver;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.HashMap;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Prints every callback to System.out. Safe to call from multiple connection
+ * threads at once.
+ *
+ * @author Wieke Kanters
+ *
+ */
 public class SystemOutMonitor implements FieldtripBufferMonitor {
-	private final HashMap<Integer, String> adresses = new HashMap<Integer, String>();
-	private int count = 0;
+	private final ConcurrentHashMap<Integer, String> adresses = new ConcurrentHashMap<Integer, String>();
+	private final AtomicInteger count = new AtomicInteger();
 	private final SimpleDateFormat sdf = new SimpleDateFormat(
 			"MMM dd,yyyy HH:mm");
 
@@ -16,14 +24,14 @@ public class SystemOutMonitor implements FieldtripBufferMonitor {
 
 	@Override
 	public void clientClosedConnection(final int clientID, final long time) {
-		System.out.println(sdf.format(new Date(time)) + " Client "
-				+ adresses.get(clientID) + " closed connection now " + --count
-				+ " connections opened.");
+		System.out.println(format(time) + " Client "
+				+ adresses.get(clientID) + " closed connection now "
+				+ count.decrementAndGet() + " connections opened.");
 	}
 
 	@Override
 	public void clientContinues(final int clientID, final long time) {
-		System.out.println(sdf.format(new Date(time)) + " Client "
+		System.out.println(format(time) + " Client "
 				+ adresses.get(clientID) + " has continued.");
 	}
 
@@ -31,40 +39,44 @@ public class SystemOutMonitor implements FieldtripBufferMonitor {
 	public void clientError(final int clientID, final int errorType,
 			final long time) {
 		if (errorType == FieldtripBufferMonitor.ERROR_CONNECTION) {
-			System.out.println(sdf.format(new Date(time)) + " Lost client "
+			System.out.println(format(time) + " Lost client "
 					+ adresses.get(clientID) + " connection unexpectidly");
 		} else if (errorType == FieldtripBufferMonitor.ERROR_PROTOCOL) {
-			System.out.println(sdf.format(new Date(time)) + " Client "
+			System.out.println(format(time) + " Client "
 					+ adresses.get(clientID) + " violates protocol");
+		} else if (errorType == FieldtripBufferMonitor.ERROR_OVERFLOW) {
+			System.out.println(format(time) + " Client "
+					+ adresses.get(clientID)
+					+ " disconnected, push queue overflowed");
 		} else {
-			System.out.println(sdf.format(new Date(time)) + " Client "
+			System.out.println(format(time) + " Client "
 					+ adresses.get(clientID) + " has wrong version");
 		}
 	}
 
 	@Override
 	public void clientFlushedData(final int clientID, final long time) {
-		System.out.println(sdf.format(new Date(time)) + " Data Flushed by "
+		System.out.println(format(time) + " Data Flushed by "
 				+ adresses.get(clientID));
 	}
 
 	@Override
 	public void clientFlushedEvents(final int clientID, final long time) {
-		System.out.println(sdf.format(new Date(time)) + " Events Flushed by "
+		System.out.println(format(time) + " Events Flushed by "
 				+ adresses.get(clientID));
 
 	}
 
 	@Override
 	public void clientFlushedHeader(final int clientID, final long time) {
-		System.out.println(sdf.format(new Date(time)) + " Header Flushed by "
+		System.out.println(format(time) + " Header Flushed by "
 				+ adresses.get(clientID));
 	}
 
 	@Override
 	public void clientGetEvents(final int count, final int clientID,
 			final long time) {
-		System.out.println(sdf.format(new Date(time)) + " Client "
+		System.out.println(format(time) + " Client "
 				+ adresses.get(clientID) + " has been sent " + count
 				+ " events.");
 
@@ -72,14 +84,14 @@ public class SystemOutMonitor implements FieldtripBufferMonitor {
 
 	@Override
 	public void clientGetHeader(final int clientID, final long time) {
-		System.out.println(sdf.format(new Date(time)) + " Client "
+		System.out.println(format(time) + " Client "
 				+ adresses.get(clientID) + " has been sent the header.");
 	}
 
 	@Override
 	public void clientGetSamples(final int count, final int clientID,
 			final long time) {
-		System.out.println(sdf.format(new Date(time)) + " Client "
+		System.out.println(format(time) + " Client "
 				+ adresses.get(clientID) + " has been sent " + count
 				+ " samples.");
 	}
@@ -87,22 +99,34 @@ public class SystemOutMonitor implements FieldtripBufferMonitor {
 	@Override
 	public void clientOpenedConnection(final int clientID, final String adress,
 			final long time) {
-		System.out.println(sdf.format(new Date(time))
-				+ " Client opened connection at " + adress + " now " + ++count
+		System.out.println(format(time) + " Client opened connection at "
+				+ adress + " now " + count.incrementAndGet()
 				+ " connections opened.");
 		adresses.put(clientID, adress);
 	}
 
+	/**
+	 * Formats the time, SimpleDateFormat is not thread-safe.
+	 *
+	 * @param time
+	 * @return
+	 */
+	private String format(final long time) {
+		synchronized (sdf) {
+			return sdf.format(new Date(time));
+		}
+	}
+
 	@Override
 	public void clientPolls(final int clientID, final long time) {
-		System.out.println(sdf.format(new Date(time)) + " Client "
+		System.out.println(format(time) + " Client "
 				+ adresses.get(clientID) + " polls the buffer.");
 	}
 
 	@Override
 	public void clientPutEvents(final int count, final int clientID,
 			final int diff, final long time) {
-		System.out.println(sdf.format(new Date(time)) + " Client "
+		System.out.println(format(time) + " Client "
 				+ adresses.get(clientID) + " added " + diff
 				+ " events, total now " + count);
 	}
@@ -110,7 +134,7 @@ public class SystemOutMonitor implements FieldtripBufferMonitor {
 	@Override
 	public void clientPutHeader(final int dataType, final float fSample,
 			final int nChannels, final int clientID, final long time) {
-		System.out.println(sdf.format(new Date(time)) + " Header added by "
+		System.out.println(format(time) + " Header added by "
 				+ adresses.get(clientID) + " datatype " + dataType
 				+ " fSample " + fSample + " nChannels " + nChannels);
 	}
@@ -118,7 +142,7 @@ public class SystemOutMonitor implements FieldtripBufferMonitor {
 	@Override
 	public void clientPutSamples(final int count, final int clientID,
 			final int diff, final long time) {
-		System.out.println(sdf.format(new Date(time)) + " Client "
+		System.out.println(format(time) + " Client "
 				+ adresses.get(clientID) + " added " + diff
 				+ " samples, total now " + count);
 	}
@@ -126,10 +150,17 @@ public class SystemOutMonitor implements FieldtripBufferMonitor {
 	@Override
 	public void clientWaits(final int nSamples, final int nEvents,
 			final int timeout, final int clientID, final long time) {
-		System.out.println(sdf.format(new Date(time)) + " Client "
+		System.out.println(format(time) + " Client "
 				+ adresses.get(clientID)
 				+ " is now waiting, tresholds are sample count " + nSamples
 				+ ", event count " + nEvents + " or timeout " + timeout);
 	}
 
+	@Override
+	public void garbageCollected(final String collector, final long duration,
+			final long time) {
+		System.out.println(format(time) + " " + collector + " took "
+				+ duration + " ms");
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,337 @@
+package buffer_bci.javaserver;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadInfo;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import buffer_bci.javaserver.metrics.LatencyHistogram;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Keeps track of the memory use of the JVM for as long as the buffer runs.
+ * Every interval it samples the heap, the off-heap memory (non-heap areas
+ * plus direct and mapped buffers) and the bytes allocated by each thread,
+ * from which it computes allocation rates. Garbage collections are counted
+ * as they end, from the notifications of the collectors.
+ *
+ * Every sample is passed to the monitor as memoryUsed, every collection as
+ * garbageCollected. The latest sample, the per-thread allocation rates and a
+ * histogram of collection pauses can also be read directly.
+ *
+ * @author Wieke Kanters
+ *
+ */
+public class Telemetry extends Thread {
+	public static final long DEFAULT_INTERVAL = 1000;
+
+	/**
+	 * Allocation rate of a single thread, since the previous sample.
+	 */
+	public static class ThreadAllocation {
+		public final long threadID;
+		public final String name;
+		public final long allocated;
+		public final double rate;
+
+		ThreadAllocation(final long threadID, final String name,
+				final long allocated, final double rate) {
+			this.threadID = threadID;
+			this.name = name;
+			this.allocated = allocated;
+			this.rate = rate;
+		}
+	}
+
+	private static final ThreadAllocation[] NO_THREADS = new ThreadAllocation[0];
+
+	private final FieldtripBufferMonitor monitor;
+	private final long interval;
+	private final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+	private final List<BufferPoolMXBean> bufferPools = ManagementFactory
+			.getPlatformMXBeans(BufferPoolMXBean.class);
+	private final ThreadMXBean threadBean;
+	private final List<NotificationEmitter> collectors = new ArrayList<NotificationEmitter>();
+	private final NotificationListener gcListener;
+
+	private final LatencyHistogram gcPauses = new LatencyHistogram();
+
+	// Bytes allocated per thread ID at the previous sample.
+	private HashMap<Long, Long> lastAllocated = new HashMap<Long, Long>();
+	private long lastSample = System.nanoTime();
+
+	private volatile long heapUsed = 0;
+	private volatile long heapMax = 0;
+	private volatile long nonHeapUsed = 0;
+	private volatile long bufferPoolUsed = 0;
+	private volatile double allocationRate = 0;
+	private volatile ThreadAllocation[] threads = NO_THREADS;
+	private volatile boolean run = true;
+
+	/**
+	 * Constructor, samples every DEFAULT_INTERVAL milliseconds.
+	 *
+	 * @param monitor
+	 *            Monitor the samples are passed to, may be null.
+	 */
+	public Telemetry(final FieldtripBufferMonitor monitor) {
+		this(monitor, DEFAULT_INTERVAL);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param monitor
+	 *            Monitor the samples are passed to, may be null.
+	 * @param interval
+	 *            Milliseconds between samples.
+	 */
+	public Telemetry(final FieldtripBufferMonitor monitor, final long interval) {
+		this.monitor = monitor;
+		this.interval = interval;
+
+		final java.lang.management.ThreadMXBean bean = ManagementFactory
+				.getThreadMXBean();
+		if (bean instanceof ThreadMXBean
+				&& ((ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+			threadBean = (ThreadMXBean) bean;
+			threadBean.setThreadAllocatedMemoryEnabled(true);
+		} else {
+			threadBean = null;
+		}
+
+		gcListener = new NotificationListener() {
+			@Override
+			public void handleNotification(final Notification notification,
+					final Object handback) {
+				if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION
+						.equals(notification.getType())) {
+					collected(GarbageCollectionNotificationInfo
+							.from((CompositeData) notification.getUserData()));
+				}
+			}
+		};
+
+		setName("Fieldtrip Telemetry");
+		setDaemon(true);
+	}
+
+	/**
+	 * Records a garbage collection that has ended.
+	 *
+	 * @param info
+	 */
+	private void collected(final GarbageCollectionNotificationInfo info) {
+		final long duration = info.getGcInfo().getDuration();
+
+		// Concurrent cycles run alongside the application, only count pauses.
+		if (!isConcurrent(info.getGcName())) {
+			gcPauses.record(duration * 1000000L);
+		}
+
+		if (monitor != null) {
+			monitor.garbageCollected(info.getGcName(), duration,
+					System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Returns the allocation rate of all threads together in bytes per
+	 * second, over the last interval. Returns 0 if the JVM cannot measure
+	 * allocations.
+	 *
+	 * @return
+	 */
+	public double getAllocationRate() {
+		return allocationRate;
+	}
+
+	/**
+	 * Returns the bytes used by direct and mapped buffers.
+	 *
+	 * @return
+	 */
+	public long getBufferPoolUsed() {
+		return bufferPoolUsed;
+	}
+
+	/**
+	 * Returns the histogram of the garbage collection pauses. Concurrent
+	 * collection cycles are not included.
+	 *
+	 * @return
+	 */
+	public LatencyHistogram getGcPauses() {
+		return gcPauses;
+	}
+
+	/**
+	 * Returns the maximum heap size, or -1 if undefined.
+	 *
+	 * @return
+	 */
+	public long getHeapMax() {
+		return heapMax;
+	}
+
+	/**
+	 * Returns the bytes used on the heap.
+	 *
+	 * @return
+	 */
+	public long getHeapUsed() {
+		return heapUsed;
+	}
+
+	/**
+	 * Returns the bytes used by the non-heap memory areas, such as metaspace
+	 * and the code cache.
+	 *
+	 * @return
+	 */
+	public long getNonHeapUsed() {
+		return nonHeapUsed;
+	}
+
+	/**
+	 * Returns the bytes used outside of the heap: the non-heap areas plus the
+	 * direct and mapped buffers.
+	 *
+	 * @return
+	 */
+	public long getOffHeapUsed() {
+		return nonHeapUsed + bufferPoolUsed;
+	}
+
+	/**
+	 * Returns the allocation rate of every live thread over the last
+	 * interval.
+	 *
+	 * @return
+	 */
+	public ThreadAllocation[] getThreadAllocations() {
+		return threads;
+	}
+
+	/**
+	 * Returns true if the collector runs concurrently with the application,
+	 * so its collection time is not a pause.
+	 *
+	 * @param name
+	 * @return
+	 */
+	private static boolean isConcurrent(final String name) {
+		return name.contains("Concurrent") || name.contains("Cycles");
+	}
+
+	/**
+	 * Samples the memory use and the allocated bytes of each thread.
+	 */
+	private void sample() {
+		final long now = System.nanoTime();
+		final double seconds = (now - lastSample) / 1e9;
+		lastSample = now;
+
+		heapUsed = memoryBean.getHeapMemoryUsage().getUsed();
+		heapMax = memoryBean.getHeapMemoryUsage().getMax();
+		nonHeapUsed = memoryBean.getNonHeapMemoryUsage().getUsed();
+
+		long pools = 0;
+		for (final BufferPoolMXBean pool : bufferPools) {
+			pools += Math.max(pool.getMemoryUsed(), 0);
+		}
+		bufferPoolUsed = pools;
+
+		if (threadBean == null) {
+			return;
+		}
+
+		final long[] ids = threadBean.getAllThreadIds();
+		final long[] allocated = threadBean.getThreadAllocatedBytes(ids);
+		final ThreadInfo[] infos = threadBean.getThreadInfo(ids);
+
+		// Threads that died since the previous sample drop out, their last
+		// interval is lost.
+		final HashMap<Long, Long> current = new HashMap<Long, Long>();
+		final ArrayList<ThreadAllocation> allocations = new ArrayList<ThreadAllocation>();
+		long total = 0;
+
+		for (int i = 0; i < ids.length; i++) {
+			if (allocated[i] < 0 || infos[i] == null) {
+				continue;
+			}
+			current.put(ids[i], allocated[i]);
+
+			final Long last = lastAllocated.get(ids[i]);
+			final long diff = allocated[i] - (last == null ? 0 : last);
+			total += diff;
+
+			allocations.add(new ThreadAllocation(ids[i], infos[i]
+					.getThreadName(), allocated[i], seconds > 0 ? diff
+					/ seconds : 0));
+		}
+
+		lastAllocated = current;
+		threads = allocations.toArray(new ThreadAllocation[allocations.size()]);
+		allocationRate = seconds > 0 ? total / seconds : 0;
+	}
+
+	/**
+	 * Samples every interval until stopTelemetry is called.
+	 */
+	@Override
+	public void run() {
+		for (final GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			if (gc instanceof NotificationEmitter) {
+				((NotificationEmitter) gc).addNotificationListener(gcListener,
+						null, null);
+				collectors.add((NotificationEmitter) gc);
+			}
+		}
+
+		// The first sample only sets the starting point of the rates
+		sample();
+
+		while (run) {
+			try {
+				sleep(interval);
+			} catch (final InterruptedException e) {
+				continue;
+			}
+
+			sample();
+			if (monitor != null) {
+				monitor.memoryUsed(heapUsed, getOffHeapUsed(),
+						(long) allocationRate, System.currentTimeMillis());
+			}
+		}
+
+		for (final NotificationEmitter gc : collectors) {
+			try {
+				gc.removeNotificationListener(gcListener);
+			} catch (final ListenerNotFoundException e) {
+			}
+		}
+	}
+
+	/**
+	 * Stops sampling and stops listening to the garbage collectors.
+	 */
+	public void stopTelemetry() {
+		run = false;
+		interrupt();
+	}
+}
@@ -0,0 +1,225 @@
+package buffer_bci.javaserver.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+import buffer_bci.javaserver.data.Data;
+import buffer_bci.javaserver.data.Event;
+import buffer_bci.javaserver.data.Header;
+import buffer_bci.javaserver.network.DataView;
+import buffer_bci.javaserver.network.EventView;
+import buffer_bci.javaserver.network.Message;
+import buffer_bci.javaserver.network.NetworkProtocol;
+
+/**
+ * Benchmarks the NetworkProtocol codecs: decodeMessage, decodeData,
+ * encodeData, decodeEvents, encodeEvents, decodeHeader and encodeHeader, in
+ * both byte orders. The data codecs are measured for INT16, FLOAT32 and
+ * FLOAT64 samples, 8 to 1024 channels and blocks of 1 to 512 samples, the
+ * event codecs for batches of 1 to 512 events and the header codecs for 8 to
+ * 1024 channel names.
+ *
+ * Usage: java buffer_bci.javaserver.benchmark.CodecBenchmark [filter]
+ *
+ * The filter is a regular expression matched against the benchmark name and
+ * parameters, e.g. "encodeData FLOAT32 ch=64". See Harness for the settings.
+ *
+ * @author Wieke Kanters
+ *
+ */
+public class CodecBenchmark {
+
+	/**
+	 * Stream that returns the same bytes over and over, so decodeMessage can
+	 * be called indefinitely without allocating a new stream.
+	 */
+	private static class RepeatingInputStream extends InputStream {
+		private final byte[] bytes;
+		private int position = 0;
+
+		RepeatingInputStream(final byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		@Override
+		public int read() {
+			final int b = bytes[position++] & 0xff;
+			if (position == bytes.length) {
+				position = 0;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] destination, final int offset,
+				final int length) {
+			final int n = Math.min(length, bytes.length - position);
+			System.arraycopy(bytes, position, destination, offset, n);
+			position += n;
+			if (position == bytes.length) {
+				position = 0;
+			}
+			return n;
+		}
+	}
+
+	private static final int[] DATA_TYPES = { NetworkProtocol.INT16,
+			NetworkProtocol.FLOAT32, NetworkProtocol.FLOAT64 };
+	private static final int[] CHANNELS = { 8, 64, 256, 1024 };
+	private static final int[] BLOCK_SIZES = { 1, 32, 512 };
+	private static final int[] EVENT_COUNTS = { 1, 32, 512 };
+	private static final ByteOrder[] ORDERS = { ByteOrder.BIG_ENDIAN,
+			ByteOrder.LITTLE_ENDIAN };
+
+	public static void main(final String[] args) throws Exception {
+		final Harness harness = new Harness(args.length > 0 ? args[0] : null);
+		Harness.printHeader();
+
+		for (final ByteOrder order : ORDERS) {
+			for (final int dataType : DATA_TYPES) {
+				for (final int nChans : CHANNELS) {
+					for (final int nSamples : BLOCK_SIZES) {
+						benchmarkData(harness, nChans, nSamples, dataType,
+								order);
+					}
+				}
+			}
+
+			for (final int nEvents : EVENT_COUNTS) {
+				benchmarkEvents(harness, nEvents, order);
+			}
+
+			for (final int nChans : CHANNELS) {
+				benchmarkHeader(harness, nChans, order);
+			}
+		}
+	}
+
+	/**
+	 * Measures decodeMessage, decodeData and encodeData for one block of
+	 * samples.
+	 *
+	 * @param harness
+	 * @param nChans
+	 * @param nSamples
+	 * @param dataType
+	 * @param order
+	 * @throws Exception
+	 */
+	private static void benchmarkData(final Harness harness,
+			final int nChans, final int nSamples, final int dataType,
+			final ByteOrder order) throws Exception {
+		final String params = Messages.dataTypeName(dataType) + " ch="
+				+ nChans + " block=" + nSamples + " "
+				+ Messages.orderName(order);
+		final ByteBuffer body = Messages.data(nChans, nSamples, dataType,
+				order);
+
+		final BufferedInputStream input = new BufferedInputStream(
+				new RepeatingInputStream(Messages.message(
+						NetworkProtocol.PUT_DAT, body)));
+		final Message message = new Message();
+		harness.run("decodeMessage", params, new Operation() {
+			@Override
+			public int run() throws Exception {
+				NetworkProtocol.decodeMessage(input,
+						NetworkProtocol.DEFAULT_MAX_MESSAGE_SIZE, message);
+				return message.size;
+			}
+		});
+
+		final DataView view = new DataView();
+		harness.run("decodeData", params, new Operation() {
+			@Override
+			public int run() throws Exception {
+				body.rewind();
+				return NetworkProtocol.decodeData(body, view).nSamples();
+			}
+		});
+
+		body.rewind();
+		final Data data = NetworkProtocol.decodeData(body, view).toData(order);
+		harness.run("encodeData", params, new Operation() {
+			@Override
+			public int run() {
+				return NetworkProtocol.encodeData(data, order).length;
+			}
+		});
+	}
+
+	/**
+	 * Measures decodeEvents and encodeEvents for one batch of events.
+	 *
+	 * @param harness
+	 * @param nEvents
+	 * @param order
+	 * @throws Exception
+	 */
+	private static void benchmarkEvents(final Harness harness,
+			final int nEvents, final ByteOrder order) throws Exception {
+		final String params = "events=" + nEvents + " "
+				+ Messages.orderName(order);
+		final ByteBuffer body = Messages.events(nEvents, order);
+
+		final EventView view = new EventView();
+		harness.run("decodeEvents", params, new Operation() {
+			@Override
+			public int run() throws Exception {
+				body.rewind();
+				return NetworkProtocol.decodeEvents(body, view).count();
+			}
+		});
+
+		body.rewind();
+		NetworkProtocol.decodeEvents(body, view);
+		final ArrayList<Event> list = new ArrayList<Event>();
+		view.rewind();
+		while (view.next()) {
+			list.add(view.toEvent(order));
+		}
+		final Event[] events = list.toArray(new Event[list.size()]);
+
+		harness.run("encodeEvents", params, new Operation() {
+			@Override
+			public int run() {
+				return NetworkProtocol.encodeEvents(events, order).length;
+			}
+		});
+	}
+
+	/**
+	 * Measures decodeHeader and encodeHeader for a header with channel
+	 * names.
+	 *
+	 * @param harness
+	 * @param nChans
+	 * @param order
+	 * @throws Exception
+	 */
+	private static void benchmarkHeader(final Harness harness,
+			final int nChans, final ByteOrder order) throws Exception {
+		final String params = "ch=" + nChans + " " + Messages.orderName(order);
+		final ByteBuffer body = Messages.header(nChans,
+				NetworkProtocol.FLOAT32, order);
+
+		harness.run("decodeHeader", params, new Operation() {
+			@Override
+			public int run() throws Exception {
+				body.rewind();
+				return NetworkProtocol.decodeHeader(body).nChans;
+			}
+		});
+
+		body.rewind();
+		final Header header = NetworkProtocol.decodeHeader(body);
+		harness.run("encodeHeader", params, new Operation() {
+			@Override
+			public int run() {
+				return NetworkProtocol.encodeHeader(header, order).length;
+			}
+		});
+	}
+}
@@ -0,0 +1,333 @@
+package buffer_bci.javaserver.benchmark;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Pattern;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Minimal benchmark harness modelled after JMH: every benchmark runs a number
+ * of warmup iterations followed by measured iterations of a fixed duration,
+ * on its own threads. For each thread it reports the throughput with its
+ * standard deviation over the iterations, and the bytes allocated per
+ * operation and per second. The garbage collections during the measured
+ * iterations are reported for the whole benchmark.
+ *
+ * Settings are taken from system properties: benchmark.warmup (warmup
+ * iterations, default 3), benchmark.iterations (measured iterations, default
+ * 5) and benchmark.time (milliseconds per iteration, default 500).
+ * Benchmarks whose name and parameters do not match the filter are skipped.
+ *
+ * @author Wieke Kanters
+ *
+ */
+public class Harness {
+
+	/**
+	 * Measurements of one thread of a benchmark.
+	 */
+	public static class Result {
+		public final String name;
+		public final String params;
+		public final String role;
+		public final double opsPerSecond;
+		public final double error;
+		public final double bytesPerOp;
+		public final double bytesPerSecond;
+		public final long gcCount;
+		public final long gcMillis;
+
+		Result(final String name, final String params, final String role,
+				final double opsPerSecond, final double error,
+				final double bytesPerOp, final double bytesPerSecond,
+				final long gcCount, final long gcMillis) {
+			this.name = name;
+			this.params = params;
+			this.role = role;
+			this.opsPerSecond = opsPerSecond;
+			this.error = error;
+			this.bytesPerOp = bytesPerOp;
+			this.bytesPerSecond = bytesPerSecond;
+			this.gcCount = gcCount;
+			this.gcMillis = gcMillis;
+		}
+	}
+
+	/**
+	 * Thread that runs an operation until the benchmark is over, publishing
+	 * its operation count after every invocation.
+	 */
+	private class Worker extends Thread {
+		private final Operation operation;
+		private final int slot;
+		private int sink = 0;
+		private volatile Throwable failure = null;
+
+		Worker(final Operation operation, final int slot, final String name) {
+			this.operation = operation;
+			this.slot = slot;
+			setName(name);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			long count = 0;
+			try {
+				while (running) {
+					sink += operation.run();
+					counts.lazySet(slot, ++count);
+				}
+			} catch (final Throwable e) {
+				failure = e;
+			}
+			Harness.this.sink += sink;
+		}
+	}
+
+	private static final String ROW_FORMAT = "%-16s %-40s %-8s %14s %10s %12s %12s %6s%n";
+
+	// Counters are spaced a cache line apart so threads do not share lines.
+	private static final int STRIDE = 16;
+
+	private final int warmup;
+	private final int iterations;
+	private final long time;
+	private final Pattern filter;
+	private final ThreadMXBean threadBean = (ThreadMXBean) ManagementFactory
+			.getThreadMXBean();
+
+	private AtomicLongArray counts;
+	private volatile boolean running;
+	private volatile int sink = 0;
+
+	/**
+	 * Constructor, reads the settings from the system properties.
+	 *
+	 * @param filter
+	 *            Regular expression that must be found in "name params", null
+	 *            to run everything.
+	 */
+	public Harness(final String filter) {
+		this(Integer.getInteger("benchmark.warmup", 3), Integer.getInteger(
+				"benchmark.iterations", 5), Long.getLong("benchmark.time", 500),
+				filter);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param warmup
+	 *            Number of warmup iterations.
+	 * @param iterations
+	 *            Number of measured iterations.
+	 * @param time
+	 *            Milliseconds per iteration.
+	 * @param filter
+	 *            Regular expression that must be found in "name params", null
+	 *            to run everything.
+	 */
+	public Harness(final int warmup, final int iterations, final long time,
+			final String filter) {
+		this.warmup = warmup;
+		this.iterations = Math.max(iterations, 1);
+		this.time = time;
+		this.filter = filter == null ? null : Pattern.compile(filter);
+	}
+
+	/**
+	 * Returns true if the benchmark is selected by the filter.
+	 *
+	 * @param name
+	 * @param params
+	 * @return
+	 */
+	public boolean accepts(final String name, final String params) {
+		return filter == null || filter.matcher(name + " " + params).find();
+	}
+
+	/**
+	 * Returns true if an operation threw on any of the workers.
+	 *
+	 * @param workers
+	 * @return
+	 */
+	private static boolean failed(final Worker[] workers) {
+		for (final Worker worker : workers) {
+			if (worker.failure != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the total number and duration of garbage collections so far.
+	 *
+	 * @return
+	 */
+	private static long[] gcTotals() {
+		final long[] totals = new long[2];
+		for (final GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			totals[0] += Math.max(gc.getCollectionCount(), 0);
+			totals[1] += Math.max(gc.getCollectionTime(), 0);
+		}
+		return totals;
+	}
+
+	/**
+	 * Prints the header of the result table.
+	 */
+	public static void printHeader() {
+		System.out.printf(ROW_FORMAT, "benchmark", "params", "thread",
+				"ops/s", "error", "B/op", "MB/s", "gc");
+	}
+
+	/**
+	 * Prints a row of the result table.
+	 *
+	 * @param result
+	 */
+	public static void print(final Result result) {
+		System.out.printf(ROW_FORMAT, result.name, result.params, result.role,
+				String.format("%.1f", result.opsPerSecond),
+				String.format("%.1f", result.error),
+				String.format("%.1f", result.bytesPerOp),
+				String.format("%.2f", result.bytesPerSecond / 1e6),
+				result.gcCount);
+	}
+
+	/**
+	 * Measures a single-threaded benchmark and prints its result. Does
+	 * nothing if the filter does not select it.
+	 *
+	 * @param name
+	 * @param params
+	 * @param operation
+	 * @return the result, or null if skipped.
+	 * @throws Exception
+	 *             Thrown by the operation.
+	 */
+	public Result run(final String name, final String params,
+			final Operation operation) throws Exception {
+		final Result[] results = run(name, params,
+				new Operation[] { operation }, new String[] { "main" });
+		return results == null ? null : results[0];
+	}
+
+	/**
+	 * Measures operations running concurrently, each on its own thread, and
+	 * prints a result per thread. Does nothing if the filter does not select
+	 * the benchmark.
+	 *
+	 * @param name
+	 * @param params
+	 * @param operations
+	 * @param roles
+	 *            Name of each thread in the results.
+	 * @return the results, or null if skipped.
+	 * @throws Exception
+	 *             Thrown by one of the operations.
+	 */
+	public Result[] run(final String name, final String params,
+			final Operation[] operations, final String[] roles)
+			throws Exception {
+		if (!accepts(name, params)) {
+			return null;
+		}
+
+		final int n = operations.length;
+		counts = new AtomicLongArray(n * STRIDE);
+		running = true;
+
+		final Worker[] workers = new Worker[n];
+		final long[] ids = new long[n];
+		for (int i = 0; i < n; i++) {
+			workers[i] = new Worker(operations[i], i * STRIDE, "Benchmark "
+					+ name + " " + roles[i]);
+			workers[i].start();
+			ids[i] = workers[i].getId();
+		}
+
+		final double[][] rates = new double[n][iterations];
+		final long[] totalOps = new long[n];
+		final long[] totalBytes = new long[n];
+		long[] gcBefore = null;
+		long measured = 0;
+
+		try {
+			for (int iteration = -warmup; iteration < iterations; iteration++) {
+				if (iteration == 0) {
+					gcBefore = gcTotals();
+				}
+
+				final long[] opsBefore = new long[n];
+				final long[] bytesBefore = new long[n];
+				for (int i = 0; i < n; i++) {
+					opsBefore[i] = counts.get(i * STRIDE);
+					bytesBefore[i] = threadBean.getThreadAllocatedBytes(ids[i]);
+				}
+				final long start = System.nanoTime();
+
+				Thread.sleep(time);
+
+				final long elapsed = System.nanoTime() - start;
+				for (int i = 0; i < n; i++) {
+					final long ops = counts.get(i * STRIDE) - opsBefore[i];
+					final long bytes = threadBean
+							.getThreadAllocatedBytes(ids[i]) - bytesBefore[i];
+					if (iteration >= 0) {
+						rates[i][iteration] = ops / (elapsed / 1e9);
+						totalOps[i] += ops;
+						totalBytes[i] += bytes;
+					}
+				}
+				if (iteration >= 0) {
+					measured += elapsed;
+				}
+
+				if (failed(workers)) {
+					break;
+				}
+			}
+		} finally {
+			running = false;
+			for (final Worker worker : workers) {
+				worker.join();
+			}
+		}
+
+		for (final Worker worker : workers) {
+			if (worker.failure instanceof Exception) {
+				throw (Exception) worker.failure;
+			} else if (worker.failure != null) {
+				throw new RuntimeException(worker.failure);
+			}
+		}
+
+		final long[] gcAfter = gcTotals();
+		final Result[] results = new Result[n];
+		for (int i = 0; i < n; i++) {
+			double mean = 0;
+			for (final double rate : rates[i]) {
+				mean += rate / iterations;
+			}
+			double variance = 0;
+			for (final double rate : rates[i]) {
+				variance += (rate - mean) * (rate - mean) / iterations;
+			}
+
+			results[i] = new Result(name, params, roles[i], mean,
+					Math.sqrt(variance), totalOps[i] == 0 ? 0
+							: (double) totalBytes[i] / totalOps[i],
+					totalBytes[i] / (measured / 1e9), gcAfter[0] - gcBefore[0],
+					gcAfter[1] - gcBefore[1]);
+			print(results[i]);
+		}
+
+		return results;
+	}
+}
@@ -0,0 +1,164 @@
+package buffer_bci.javaserver.benchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import buffer_bci.javaserver.network.NetworkProtocol;
+
+/**
+ * Builds the message bodies the benchmarks decode, filled with reproducible
+ * pseudo random contents.
+ *
+ * @author Wieke Kanters
+ *
+ */
+class Messages {
+	private static final byte[] EVENT_TYPE = "stimulus"
+			.getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Returns the name of a data type.
+	 *
+	 * @param dataType
+	 * @return
+	 */
+	static String dataTypeName(final int dataType) {
+		switch (dataType) {
+		case NetworkProtocol.INT16:
+			return "INT16";
+		case NetworkProtocol.INT32:
+			return "INT32";
+		case NetworkProtocol.FLOAT32:
+			return "FLOAT32";
+		case NetworkProtocol.FLOAT64:
+			return "FLOAT64";
+		default:
+			return Integer.toString(dataType);
+		}
+	}
+
+	/**
+	 * Returns "BE" or "LE".
+	 *
+	 * @param order
+	 * @return
+	 */
+	static String orderName(final ByteOrder order) {
+		return order == ByteOrder.BIG_ENDIAN ? "BE" : "LE";
+	}
+
+	/**
+	 * Returns the body of a PUT_DAT message, positioned at its start.
+	 *
+	 * @param nChans
+	 * @param nSamples
+	 * @param dataType
+	 * @param order
+	 * @return
+	 */
+	static ByteBuffer data(final int nChans, final int nSamples,
+			final int dataType, final ByteOrder order) {
+		final int size = nChans * nSamples
+				* NetworkProtocol.dataTypeSize(dataType);
+		final ByteBuffer buffer = ByteBuffer.allocate(16 + size).order(order);
+
+		buffer.putInt(nChans);
+		buffer.putInt(nSamples);
+		buffer.putInt(dataType);
+		buffer.putInt(size);
+
+		final byte[] samples = new byte[size];
+		new Random(nChans * 31 + nSamples).nextBytes(samples);
+		buffer.put(samples);
+
+		buffer.rewind();
+		return buffer;
+	}
+
+	/**
+	 * Returns the body of a PUT_EVT message with nEvents events with a
+	 * CHAR type of 8 characters and an INT32 value, positioned at its start.
+	 *
+	 * @param nEvents
+	 * @param order
+	 * @return
+	 */
+	static ByteBuffer events(final int nEvents, final ByteOrder order) {
+		final int size = EVENT_TYPE.length + 4;
+		final ByteBuffer buffer = ByteBuffer.allocate(nEvents * (32 + size))
+				.order(order);
+
+		for (int i = 0; i < nEvents; i++) {
+			buffer.putInt(NetworkProtocol.CHAR);
+			buffer.putInt(EVENT_TYPE.length);
+			buffer.putInt(NetworkProtocol.INT32);
+			buffer.putInt(1);
+			buffer.putInt(i);
+			buffer.putInt(0);
+			buffer.putInt(0);
+			buffer.putInt(size);
+			buffer.put(EVENT_TYPE);
+			buffer.putInt(i);
+		}
+
+		buffer.rewind();
+		return buffer;
+	}
+
+	/**
+	 * Returns the body of a PUT_HDR message with a channel names chunk,
+	 * positioned at its start.
+	 *
+	 * @param nChans
+	 * @param dataType
+	 * @param order
+	 * @return
+	 */
+	static ByteBuffer header(final int nChans, final int dataType,
+			final ByteOrder order) {
+		final StringBuilder names = new StringBuilder();
+		for (int i = 0; i < nChans; i++) {
+			names.append("channel").append(i + 1).append('\0');
+		}
+		final byte[] chunk = names.toString().getBytes(
+				StandardCharsets.US_ASCII);
+
+		final ByteBuffer buffer = ByteBuffer.allocate(24 + 8 + chunk.length)
+				.order(order);
+
+		buffer.putInt(nChans);
+		buffer.putInt(0);
+		buffer.putInt(0);
+		buffer.putFloat(250);
+		buffer.putInt(dataType);
+		buffer.putInt(8 + chunk.length);
+		buffer.putInt(NetworkProtocol.CHUNK_CHANNEL_NAMES);
+		buffer.putInt(chunk.length);
+		buffer.put(chunk);
+
+		buffer.rewind();
+		return buffer;
+	}
+
+	/**
+	 * Returns a complete message, the version, type and size followed by the
+	 * body.
+	 *
+	 * @param type
+	 * @param body
+	 * @return
+	 */
+	static byte[] message(final short type, final ByteBuffer body) {
+		final ByteBuffer buffer = ByteBuffer.allocate(8 + body.limit()).order(
+				body.order());
+
+		buffer.putShort(NetworkProtocol.VERSION);
+		buffer.putShort(type);
+		buffer.putInt(body.limit());
+		buffer.put(body.duplicate().rewind());
+
+		return buffer.array();
+	}
+}
@@ -0,0 +1,21 @@
+package buffer_bci.javaserver.benchmark;
+
+/**
+ * A single invocation of the code under measurement. The Harness calls it in
+ * a loop, so it should do the same amount of work every time and keep its
+ * state in preallocated fields.
+ *
+ * @author Wieke Kanters
+ *
+ */
+public interface Operation {
+
+	/**
+	 * Performs the operation once. Returns a value derived from the result,
+	 * which the Harness consumes so the JIT cannot remove the work.
+	 *
+	 * @return
+	 * @throws Exception
+	 */
+	public int run() throws Exception;
+}
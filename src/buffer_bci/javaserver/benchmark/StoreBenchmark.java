@@ -0,0 +1,394 @@
+package buffer_bci.javaserver.benchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import buffer_bci.javaserver.data.DataModel;
+import buffer_bci.javaserver.data.RingDataStore;
+import buffer_bci.javaserver.data.SimpleDataStore;
+import buffer_bci.javaserver.exceptions.DataException;
+import buffer_bci.javaserver.network.DataView;
+import buffer_bci.javaserver.network.EventView;
+import buffer_bci.javaserver.network.NetworkProtocol;
+import buffer_bci.javaserver.network.Request;
+
+/**
+ * Benchmarks the DataModel implementations against each other: putData for
+ * different block sizes, getData(Request) and the zero-copy getData(Request,
+ * ByteBuffer) for different range sizes, putEvents, getEvents(Request),
+ * getHeader and getEncodedHeader. For the RingDataStore ranges are read both
+ * within the ring and across its wrap point. The contended benchmarks run
+ * one writer putting blocks of samples as fast as it can against 1, 2 or 4
+ * readers getting the newest samples, the way connection threads use the
+ * store.
+ *
+ * All data is 64 channels of FLOAT32. Stores that are not bounded are
+ * flushed every FLUSH_LIMIT samples or events by the putting benchmarks, so
+ * they do not run out of memory. The bounded stores are flushed at the same
+ * points to keep the comparison fair.
+ *
+ * Usage: java buffer_bci.javaserver.benchmark.StoreBenchmark [filter]
+ *
+ * The filter is a regular expression matched against the benchmark name and
+ * parameters, e.g. "getData store=ring". See Harness for the settings. To
+ * compare a new store, add it to STORES and createStore.
+ *
+ * @author Wieke Kanters
+ *
+ */
+public class StoreBenchmark {
+	private static final String[] STORES = { "simple", "ring" };
+
+	private static final int N_CHANS = 64;
+	private static final int DATA_TYPE = NetworkProtocol.FLOAT32;
+	private static final int SAMPLE_CAPACITY = 10000;
+	private static final int EVENT_CAPACITY = 1000;
+	private static final int FLUSH_LIMIT = 100000;
+
+	private static final int[] BLOCK_SIZES = { 1, 32, 512 };
+	private static final int[] RANGE_SIZES = { 1, 32, 512, 4096 };
+	private static final int[] EVENT_BATCHES = { 1, 32 };
+	private static final int[] EVENT_RANGES = { 1, 32, 512 };
+	private static final int[] READERS = { 1, 2, 4 };
+	private static final int READ_SIZE = 32;
+
+	public static void main(final String[] args) throws Exception {
+		final Harness harness = new Harness(args.length > 0 ? args[0] : null);
+		Harness.printHeader();
+
+		for (final String store : STORES) {
+			for (final int nSamples : BLOCK_SIZES) {
+				benchmarkPutData(harness, store, nSamples);
+			}
+
+			for (final int size : RANGE_SIZES) {
+				benchmarkGetData(harness, store, size, false);
+				if (size > 1 && createStore(store).getSampleCapacity() > 0) {
+					benchmarkGetData(harness, store, size, true);
+				}
+			}
+
+			for (final int nEvents : EVENT_BATCHES) {
+				benchmarkPutEvents(harness, store, nEvents);
+			}
+
+			for (final int size : EVENT_RANGES) {
+				benchmarkGetEvents(harness, store, size);
+			}
+
+			benchmarkHeader(harness, store);
+		}
+
+		for (final String store : STORES) {
+			for (final int readers : READERS) {
+				benchmarkContended(harness, store, readers);
+			}
+		}
+	}
+
+	/**
+	 * Returns a new, empty store.
+	 *
+	 * @param name
+	 * @return
+	 */
+	private static DataModel createStore(final String name) {
+		if (name.equals("simple")) {
+			return new SimpleDataStore();
+		} else if (name.equals("ring")) {
+			return new RingDataStore(SAMPLE_CAPACITY, EVENT_CAPACITY);
+		}
+		throw new IllegalArgumentException("Unknown store " + name);
+	}
+
+	/**
+	 * Returns a new store with a header.
+	 *
+	 * @param name
+	 * @return
+	 * @throws Exception
+	 */
+	private static DataModel createStoreWithHeader(final String name)
+			throws Exception {
+		final DataModel store = createStore(name);
+		store.putHeader(NetworkProtocol.decodeHeader(Messages.header(N_CHANS,
+				DATA_TYPE, ByteOrder.nativeOrder())));
+		return store;
+	}
+
+	/**
+	 * Returns a view over a block of nSamples samples.
+	 *
+	 * @param nSamples
+	 * @return
+	 * @throws Exception
+	 */
+	private static DataView block(final int nSamples) throws Exception {
+		return NetworkProtocol.decodeData(Messages.data(N_CHANS, nSamples,
+				DATA_TYPE, ByteOrder.nativeOrder()), new DataView());
+	}
+
+	/**
+	 * Returns a view over a batch of nEvents events.
+	 *
+	 * @param nEvents
+	 * @return
+	 * @throws Exception
+	 */
+	private static EventView batch(final int nEvents) throws Exception {
+		return NetworkProtocol.decodeEvents(
+				Messages.events(nEvents, ByteOrder.nativeOrder()),
+				new EventView());
+	}
+
+	/**
+	 * Puts blocks until the store holds count samples.
+	 *
+	 * @param store
+	 * @param count
+	 * @throws Exception
+	 */
+	private static void fillData(final DataModel store, final int count)
+			throws Exception {
+		final DataView block = block(100);
+		while (store.getSampleCount() < count) {
+			store.putData(block);
+		}
+	}
+
+	/**
+	 * Measures putting blocks of nSamples samples.
+	 *
+	 * @param harness
+	 * @param name
+	 * @param nSamples
+	 * @throws Exception
+	 */
+	private static void benchmarkPutData(final Harness harness,
+			final String name, final int nSamples) throws Exception {
+		final String params = "store=" + name + " block=" + nSamples;
+		if (!harness.accepts("putData", params)) {
+			return;
+		}
+
+		final DataModel store = createStoreWithHeader(name);
+		final DataView block = block(nSamples);
+
+		harness.run("putData", params, new Operation() {
+			@Override
+			public int run() throws Exception {
+				final int count = store.putData(block);
+				if (count >= FLUSH_LIMIT) {
+					store.flushData();
+				}
+				return count;
+			}
+		});
+	}
+
+	/**
+	 * Measures getting size samples, with both getData methods. If wrapped
+	 * the range crosses the point where the ring of a bounded store wraps
+	 * around, otherwise it lies within the ring.
+	 *
+	 * @param harness
+	 * @param name
+	 * @param size
+	 * @param wrapped
+	 * @throws Exception
+	 */
+	private static void benchmarkGetData(final Harness harness,
+			final String name, final int size, final boolean wrapped)
+			throws Exception {
+		final String params = "store=" + name + " range=" + size + " wrap="
+				+ (wrapped ? "yes" : "no");
+		if (!harness.accepts("getData", params)
+				&& !harness.accepts("getDataInto", params)) {
+			return;
+		}
+
+		// Fill two and a half rings, so the newest SAMPLE_CAPACITY samples
+		// span the wrap point at 2 * SAMPLE_CAPACITY.
+		final DataModel store = createStoreWithHeader(name);
+		fillData(store, SAMPLE_CAPACITY * 5 / 2);
+
+		final int begin = wrapped ? 2 * SAMPLE_CAPACITY - size / 2
+				: 2 * SAMPLE_CAPACITY + SAMPLE_CAPACITY / 20;
+		final Request request = new Request(begin, begin + size - 1);
+
+		harness.run("getData", params, new Operation() {
+			@Override
+			public int run() throws Exception {
+				return store.getData(request).nSamples;
+			}
+		});
+
+		final ByteBuffer[] buffer = { ByteBuffer.allocate(0) };
+		harness.run("getDataInto", params, new Operation() {
+			@Override
+			public int run() throws Exception {
+				buffer[0].clear();
+				buffer[0] = store.getData(request, buffer[0]);
+				return buffer[0].position();
+			}
+		});
+	}
+
+	/**
+	 * Measures putting batches of nEvents events.
+	 *
+	 * @param harness
+	 * @param name
+	 * @param nEvents
+	 * @throws Exception
+	 */
+	private static void benchmarkPutEvents(final Harness harness,
+			final String name, final int nEvents) throws Exception {
+		final String params = "store=" + name + " batch=" + nEvents;
+		if (!harness.accepts("putEvents", params)) {
+			return;
+		}
+
+		final DataModel store = createStoreWithHeader(name);
+		final EventView batch = batch(nEvents);
+
+		harness.run("putEvents", params, new Operation() {
+			@Override
+			public int run() throws Exception {
+				final int count = store.putEvents(batch);
+				if (count >= FLUSH_LIMIT) {
+					store.flushEvents();
+				}
+				return count;
+			}
+		});
+	}
+
+	/**
+	 * Measures getting the size newest events.
+	 *
+	 * @param harness
+	 * @param name
+	 * @param size
+	 * @throws Exception
+	 */
+	private static void benchmarkGetEvents(final Harness harness,
+			final String name, final int size) throws Exception {
+		final String params = "store=" + name + " range=" + size;
+		if (!harness.accepts("getEvents", params)) {
+			return;
+		}
+
+		final DataModel store = createStoreWithHeader(name);
+		final EventView batch = batch(100);
+		while (store.getEventCount() < EVENT_CAPACITY * 5 / 2) {
+			store.putEvents(batch);
+		}
+
+		final int count = store.getEventCount();
+		final Request request = new Request(count - size, count - 1);
+
+		harness.run("getEvents", params, new Operation() {
+			@Override
+			public int run() throws Exception {
+				return store.getEvents(request).length;
+			}
+		});
+	}
+
+	/**
+	 * Measures getHeader and getEncodedHeader.
+	 *
+	 * @param harness
+	 * @param name
+	 * @throws Exception
+	 */
+	private static void benchmarkHeader(final Harness harness,
+			final String name) throws Exception {
+		final String params = "store=" + name;
+		final DataModel store = createStoreWithHeader(name);
+
+		harness.run("getHeader", params, new Operation() {
+			@Override
+			public int run() throws Exception {
+				return store.getHeader().nChans;
+			}
+		});
+
+		final ByteBuffer[] buffer = { ByteBuffer.allocate(0) };
+		harness.run("getEncodedHeader", params, new Operation() {
+			@Override
+			public int run() throws Exception {
+				buffer[0].clear();
+				buffer[0] = store.getEncodedHeader(buffer[0]);
+				return buffer[0].position();
+			}
+		});
+	}
+
+	/**
+	 * Measures one writer putting blocks of READ_SIZE samples against
+	 * readers that each get the newest READ_SIZE samples into their own
+	 * buffer.
+	 *
+	 * @param harness
+	 * @param name
+	 * @param readers
+	 * @throws Exception
+	 */
+	private static void benchmarkContended(final Harness harness,
+			final String name, final int readers) throws Exception {
+		final String params = "store=" + name + " readers=" + readers;
+		if (!harness.accepts("contended", params)) {
+			return;
+		}
+
+		final DataModel store = createStoreWithHeader(name);
+		fillData(store, READ_SIZE);
+
+		final Operation[] operations = new Operation[readers + 1];
+		final String[] roles = new String[readers + 1];
+
+		final DataView block = block(READ_SIZE);
+		operations[0] = new Operation() {
+			@Override
+			public int run() throws Exception {
+				final int count = store.putData(block);
+				if (count >= FLUSH_LIMIT) {
+					// Flush back to a single block so readers always find
+					// READ_SIZE samples.
+					store.flushData();
+					store.putData(block);
+				}
+				return count;
+			}
+		};
+		roles[0] = "writer";
+
+		for (int i = 1; i <= readers; i++) {
+			final Request request = new Request();
+			final ByteBuffer[] buffer = { ByteBuffer.allocate(0) };
+
+			operations[i] = new Operation() {
+				@Override
+				public int run() throws Exception {
+					final int count = store.getSampleCount();
+					request.begin = count - READ_SIZE;
+					request.end = count - 1;
+
+					buffer[0].clear();
+					try {
+						buffer[0] = store.getData(request, buffer[0]);
+					} catch (final DataException e) {
+						// The writer flushed between the two calls.
+						return 0;
+					}
+					return buffer[0].position();
+				}
+			};
+			roles[i] = "reader" + i;
+		}
+
+		harness.run("contended", params, operations, roles);
+	}
+}
@@ -0,0 +1,782 @@
+package buffer_bci.javaserver.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import buffer_bci.javaserver.data.Header;
+import buffer_bci.javaserver.exceptions.BufferException;
+import buffer_bci.javaserver.exceptions.ClientException;
+import buffer_bci.javaserver.network.ChannelInputStream;
+import buffer_bci.javaserver.network.ChannelOutputStream;
+import buffer_bci.javaserver.network.EventView;
+import buffer_bci.javaserver.network.NetworkProtocol;
+
+/**
+ * Client for a fieldtrip buffer. Requests are built in, and responses read
+ * into, a request and a response buffer that belong to the client and only
+ * grow, so once they are large enough putting and getting data does not
+ * allocate. Samples are put from and got into primitive arrays supplied by
+ * the caller, with channels varying fastest (sample 0 channel 0, sample 0
+ * channel 1, ...). Everything is sent in the native byte order, which the
+ * RingDataStore stores without flipping.
+ *
+ * A client is one connection, requests are handled one at a time. All
+ * methods are synchronized, so a client can be shared between threads, but
+ * a pending wait holds up the other requests on the same client.
+ *
+ * A client on the same host as the buffer can connect to the Unix domain
+ * socket of the buffer instead of its port, which speaks the same protocol
+ * but skips the TCP stack.
+ *
+ * @author Wieke Kanters
+ *
+ */
+public class BufferClient {
+
+	/**
+	 * Counts returned by waitData.
+	 */
+	public static class WaitResult {
+		public int nSamples;
+		public int nEvents;
+	}
+
+	private static final int INITIAL_BUFFER_SIZE = 65536;
+
+	/**
+	 * Converts samples from a response or shared ring into floats.
+	 *
+	 * @param buffer
+	 * @param position
+	 *            Position of the first sample.
+	 * @param dataType
+	 * @param count
+	 *            Number of values.
+	 * @param destination
+	 * @param offset
+	 *            Index in destination of the first value.
+	 * @throws BufferException
+	 *             Thrown if the data type is not numeric.
+	 */
+	static void convert(final ByteBuffer buffer, int position,
+			final int dataType, final int count, final float[] destination,
+			final int offset) throws BufferException {
+		switch (dataType) {
+		case NetworkProtocol.FLOAT32:
+			for (int i = 0; i < count; i++, position += 4) {
+				destination[offset + i] = buffer.getFloat(position);
+			}
+			break;
+		case NetworkProtocol.FLOAT64:
+			for (int i = 0; i < count; i++, position += 8) {
+				destination[offset + i] = (float) buffer.getDouble(position);
+			}
+			break;
+		case NetworkProtocol.INT8:
+			for (int i = 0; i < count; i++, position += 1) {
+				destination[offset + i] = buffer.get(position);
+			}
+			break;
+		case NetworkProtocol.UINT8:
+			for (int i = 0; i < count; i++, position += 1) {
+				destination[offset + i] = buffer.get(position) & 0xff;
+			}
+			break;
+		case NetworkProtocol.INT16:
+			for (int i = 0; i < count; i++, position += 2) {
+				destination[offset + i] = buffer.getShort(position);
+			}
+			break;
+		case NetworkProtocol.UINT16:
+			for (int i = 0; i < count; i++, position += 2) {
+				destination[offset + i] = buffer.getShort(position) & 0xffff;
+			}
+			break;
+		case NetworkProtocol.INT32:
+			for (int i = 0; i < count; i++, position += 4) {
+				destination[offset + i] = buffer.getInt(position);
+			}
+			break;
+		case NetworkProtocol.UINT32:
+			for (int i = 0; i < count; i++, position += 4) {
+				destination[offset + i] = buffer.getInt(position) & 0xffffffffL;
+			}
+			break;
+		case NetworkProtocol.INT64:
+		case NetworkProtocol.UINT64:
+			for (int i = 0; i < count; i++, position += 8) {
+				destination[offset + i] = buffer.getLong(position);
+			}
+			break;
+		default:
+			throw new BufferException("Data type " + dataType
+					+ " is not numeric.");
+		}
+	}
+
+	/**
+	 * Converts samples from a response or shared ring into doubles.
+	 *
+	 * @param buffer
+	 * @param position
+	 *            Position of the first sample.
+	 * @param dataType
+	 * @param count
+	 *            Number of values.
+	 * @param destination
+	 * @param offset
+	 *            Index in destination of the first value.
+	 * @throws BufferException
+	 *             Thrown if the data type is not numeric.
+	 */
+	static void convert(final ByteBuffer buffer, int position,
+			final int dataType, final int count, final double[] destination,
+			final int offset) throws BufferException {
+		switch (dataType) {
+		case NetworkProtocol.FLOAT32:
+			for (int i = 0; i < count; i++, position += 4) {
+				destination[offset + i] = buffer.getFloat(position);
+			}
+			break;
+		case NetworkProtocol.FLOAT64:
+			for (int i = 0; i < count; i++, position += 8) {
+				destination[offset + i] = buffer.getDouble(position);
+			}
+			break;
+		case NetworkProtocol.INT8:
+			for (int i = 0; i < count; i++, position += 1) {
+				destination[offset + i] = buffer.get(position);
+			}
+			break;
+		case NetworkProtocol.UINT8:
+			for (int i = 0; i < count; i++, position += 1) {
+				destination[offset + i] = buffer.get(position) & 0xff;
+			}
+			break;
+		case NetworkProtocol.INT16:
+			for (int i = 0; i < count; i++, position += 2) {
+				destination[offset + i] = buffer.getShort(position);
+			}
+			break;
+		case NetworkProtocol.UINT16:
+			for (int i = 0; i < count; i++, position += 2) {
+				destination[offset + i] = buffer.getShort(position) & 0xffff;
+			}
+			break;
+		case NetworkProtocol.INT32:
+			for (int i = 0; i < count; i++, position += 4) {
+				destination[offset + i] = buffer.getInt(position);
+			}
+			break;
+		case NetworkProtocol.UINT32:
+			for (int i = 0; i < count; i++, position += 4) {
+				destination[offset + i] = buffer.getInt(position) & 0xffffffffL;
+			}
+			break;
+		case NetworkProtocol.INT64:
+		case NetworkProtocol.UINT64:
+			for (int i = 0; i < count; i++, position += 8) {
+				destination[offset + i] = buffer.getLong(position);
+			}
+			break;
+		default:
+			throw new BufferException("Data type " + dataType
+					+ " is not numeric.");
+		}
+	}
+
+	private final Closeable connection;
+	private final String name;
+	private final BufferedOutputStream output;
+	private final DataInputStream input;
+	private final ByteOrder order = ByteOrder.nativeOrder();
+
+	private ByteBuffer request = ByteBuffer.allocate(INITIAL_BUFFER_SIZE)
+			.order(order);
+	private ByteBuffer response = ByteBuffer.allocate(INITIAL_BUFFER_SIZE)
+			.order(order);
+	private final EventView events = new EventView();
+	private final WaitResult waitResult = new WaitResult();
+
+	private ExecutorService waiter = null;
+
+	/**
+	 * Constructor, connects to the buffer.
+	 *
+	 * @param host
+	 * @param port
+	 * @throws IOException
+	 */
+	public BufferClient(final String host, final int port) throws IOException {
+		final Socket socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		connection = socket;
+		name = Integer.toString(socket.getLocalPort());
+		output = new BufferedOutputStream(socket.getOutputStream());
+		input = new DataInputStream(new BufferedInputStream(
+				socket.getInputStream()));
+	}
+
+	/**
+	 * Constructor, connects to the Unix domain socket of a buffer on the same
+	 * host.
+	 *
+	 * @param socketPath
+	 *            The path the buffer was given as buffer.unixSocket.
+	 * @throws IOException
+	 */
+	public BufferClient(final Path socketPath) throws IOException {
+		final SocketChannel channel = SocketChannel
+				.open(StandardProtocolFamily.UNIX);
+		try {
+			channel.connect(UnixDomainSocketAddress.of(socketPath));
+		} catch (final IOException e) {
+			channel.close();
+			throw e;
+		}
+		connection = channel;
+		name = socketPath.toString();
+		output = new BufferedOutputStream(new ChannelOutputStream(channel));
+		input = new DataInputStream(new BufferedInputStream(
+				new ChannelInputStream(channel)));
+	}
+
+	/**
+	 * Starts a request of the given type with a body of size bytes, which is
+	 * put into the request buffer after this.
+	 *
+	 * @param type
+	 * @param size
+	 */
+	private void begin(final short type, final int size) {
+		if (request.capacity() < 8 + size) {
+			request = ByteBuffer.allocate(Math.max(8 + size,
+					request.capacity() * 2)).order(order);
+		}
+		request.clear();
+		request.putShort(NetworkProtocol.VERSION);
+		request.putShort(type);
+		request.putInt(size);
+	}
+
+	/**
+	 * Starts a PUT_DAT request for nSamples samples of nChans channels.
+	 *
+	 * @param length
+	 *            Length of the array the samples come from.
+	 * @param nChans
+	 * @param nSamples
+	 * @param dataType
+	 */
+	private void beginData(final int length, final int nChans,
+			final int nSamples, final int dataType) {
+		if (nChans <= 0 || nSamples <= 0) {
+			throw new IllegalArgumentException(
+					"Need at least one channel and one sample.");
+		}
+		if (length < nChans * nSamples) {
+			throw new IllegalArgumentException("Array of " + length
+					+ " values is too short for " + nSamples + " samples of "
+					+ nChans + " channels.");
+		}
+
+		final int size = nChans * nSamples
+				* NetworkProtocol.dataTypeSize(dataType);
+		begin(NetworkProtocol.PUT_DAT, 16 + size);
+		request.putInt(nChans);
+		request.putInt(nSamples);
+		request.putInt(dataType);
+		request.putInt(size);
+	}
+
+	/**
+	 * Starts a PUT_EVT request for one event, the value is put into the
+	 * request buffer after this.
+	 *
+	 * @param type
+	 * @param valueType
+	 * @param valueSize
+	 *            Number of elements of the value.
+	 * @param valueBytes
+	 *            Number of bytes of the value.
+	 * @param sample
+	 * @param offset
+	 * @param duration
+	 */
+	private void beginEvent(final byte[] type, final int valueType,
+			final int valueSize, final int valueBytes, final int sample,
+			final int offset, final int duration) {
+		begin(NetworkProtocol.PUT_EVT, 32 + type.length + valueBytes);
+		request.putInt(NetworkProtocol.CHAR);
+		request.putInt(type.length);
+		request.putInt(valueType);
+		request.putInt(valueSize);
+		request.putInt(sample);
+		request.putInt(offset);
+		request.putInt(duration);
+		request.putInt(type.length + valueBytes);
+		request.put(type);
+	}
+
+	/**
+	 * Closes the connection.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			if (waiter != null) {
+				waiter.shutdownNow();
+			}
+		}
+		connection.close();
+	}
+
+	/**
+	 * Sends the request and reads the response into the response buffer.
+	 * Throws a BufferException if the response is the error type, an
+	 * IOException if it is neither that nor the expected type.
+	 *
+	 * @param name
+	 *            Name of the request, for the exception.
+	 * @param expected
+	 * @param error
+	 * @throws IOException
+	 * @throws BufferException
+	 */
+	private void exchange(final String name, final short expected,
+			final short error) throws IOException, BufferException {
+		output.write(request.array(), 0, request.position());
+		output.flush();
+
+		response.clear();
+		input.readFully(response.array(), 0, 8);
+		final short type = response.getShort(2);
+		final int size = response.getInt(4);
+
+		if (response.capacity() < size) {
+			response = ByteBuffer.allocate(Math.max(size,
+					response.capacity() * 2)).order(order);
+		}
+		input.readFully(response.array(), 0, size);
+		response.limit(size).position(0);
+
+		if (type == error) {
+			throw new BufferException(name + " failed.");
+		}
+		if (type != expected) {
+			throw new IOException("Unexpected response type 0x"
+					+ Integer.toHexString(type) + " to " + name + ".");
+		}
+	}
+
+	/**
+	 * Flushes the samples from the buffer.
+	 *
+	 * @throws IOException
+	 * @throws BufferException
+	 */
+	public synchronized void flushData() throws IOException, BufferException {
+		begin(NetworkProtocol.FLUSH_DAT, 0);
+		exchange("FLUSH_DAT", NetworkProtocol.FLUSH_OK,
+				NetworkProtocol.FLUSH_ERR);
+	}
+
+	/**
+	 * Flushes the events from the buffer.
+	 *
+	 * @throws IOException
+	 * @throws BufferException
+	 */
+	public synchronized void flushEvents() throws IOException, BufferException {
+		begin(NetworkProtocol.FLUSH_EVT, 0);
+		exchange("FLUSH_EVT", NetworkProtocol.FLUSH_OK,
+				NetworkProtocol.FLUSH_ERR);
+	}
+
+	/**
+	 * Flushes the header, and with it the samples and events, from the
+	 * buffer.
+	 *
+	 * @throws IOException
+	 * @throws BufferException
+	 */
+	public synchronized void flushHeader() throws IOException, BufferException {
+		begin(NetworkProtocol.FLUSH_HDR, 0);
+		exchange("FLUSH_HDR", NetworkProtocol.FLUSH_OK,
+				NetworkProtocol.FLUSH_ERR);
+	}
+
+	/**
+	 * Gets the samples from begin up to and including end into destination,
+	 * converted to double. Returns the number of samples.
+	 *
+	 * @param begin
+	 * @param end
+	 * @param destination
+	 *            Holds at least (end - begin + 1) * nChans values.
+	 * @return
+	 * @throws IOException
+	 * @throws BufferException
+	 */
+	public synchronized int getData(final int begin, final int end,
+			final double[] destination) throws IOException, BufferException {
+		final int count = requestData(begin, end, destination.length);
+		convert(response, 16, response.getInt(8), count, destination, 0);
+		return response.getInt(4);
+	}
+
+	/**
+	 * Gets the samples from begin up to and including end into destination,
+	 * converted to float. Returns the number of samples.
+	 *
+	 * @param begin
+	 * @param end
+	 * @param destination
+	 *            Holds at least (end - begin + 1) * nChans values.
+	 * @return
+	 * @throws IOException
+	 * @throws BufferException
+	 */
+	public synchronized int getData(final int begin, final int end,
+			final float[] destination) throws IOException, BufferException {
+		final int count = requestData(begin, end, destination.length);
+		convert(response, 16, response.getInt(8), count, destination, 0);
+		return response.getInt(4);
+	}
+
+	/**
+	 * Gets the events from begin up to and including end. Returns a view
+	 * over the events in the response buffer, which is reused by the next
+	 * request.
+	 *
+	 * @param begin
+	 * @param end
+	 * @return
+	 * @throws IOException
+	 * @throws BufferException
+	 */
+	public synchronized EventView getEvents(final int begin, final int end)
+			throws IOException, BufferException {
+		begin(NetworkProtocol.GET_EVT, 8);
+		request.putInt(begin);
+		request.putInt(end);
+		exchange("GET_EVT", NetworkProtocol.GET_OK, NetworkProtocol.GET_ERR);
+
+		try {
+			return NetworkProtocol.decodeEvents(response, events);
+		} catch (final ClientException e) {
+			throw new IOException("Malformed GET_EVT response.", e);
+		}
+	}
+
+	/**
+	 * Gets the header, with the current number of samples and events.
+	 * Extended header chunks are not decoded.
+	 *
+	 * @return
+	 * @throws IOException
+	 * @throws BufferException
+	 */
+	public synchronized Header getHeader() throws IOException, BufferException {
+		begin(NetworkProtocol.GET_HDR, 0);
+		exchange("GET_HDR", NetworkProtocol.GET_OK, NetworkProtocol.GET_ERR);
+
+		final int nChans = response.getInt(0);
+		final int nSamples = response.getInt(4);
+		final int nEvents = response.getInt(8);
+		final float fSample = response.getFloat(12);
+		final int dataType = response.getInt(16);
+
+		return new Header(new Header(nChans, fSample, dataType, order),
+				nSamples, nEvents);
+	}
+
+	/**
+	 * Puts a block of samples as FLOAT64.
+	 *
+	 * @param samples
+	 * @param nChans
+	 * @param nSamples
+	 * @throws IOException
+	 * @throws BufferException
+	 */
+	public synchronized void putData(final double[] samples, final int nChans,
+			final int nSamples) throws IOException, BufferException {
+		beginData(samples.length, nChans, nSamples, NetworkProtocol.FLOAT64);
+		for (int i = 0; i < nChans * nSamples; i++) {
+			request.putDouble(samples[i]);
+		}
+		exchange("PUT_DAT", NetworkProtocol.PUT_OK, NetworkProtocol.PUT_ERR);
+	}
+
+	/**
+	 * Puts a block of samples as FLOAT32.
+	 *
+	 * @param samples
+	 * @param nChans
+	 * @param nSamples
+	 * @throws IOException
+	 * @throws BufferException
+	 */
+	public synchronized void putData(final float[] samples, final int nChans,
+			final int nSamples) throws IOException, BufferException {
+		beginData(samples.length, nChans, nSamples, NetworkProtocol.FLOAT32);
+		for (int i = 0; i < nChans * nSamples; i++) {
+			request.putFloat(samples[i]);
+		}
+		exchange("PUT_DAT", NetworkProtocol.PUT_OK, NetworkProtocol.PUT_ERR);
+	}
+
+	/**
+	 * Puts a block of samples as INT32.
+	 *
+	 * @param samples
+	 * @param nChans
+	 * @param nSamples
+	 * @throws IOException
+	 * @throws BufferException
+	 */
+	public synchronized void putData(final int[] samples, final int nChans,
+			final int nSamples) throws IOException, BufferException {
+		beginData(samples.length, nChans, nSamples, NetworkProtocol.INT32);
+		for (int i = 0; i < nChans * nSamples; i++) {
+			request.putInt(samples[i]);
+		}
+		exchange("PUT_DAT", NetworkProtocol.PUT_OK, NetworkProtocol.PUT_ERR);
+	}
+
+	/**
+	 * Puts a block of samples as INT16.
+	 *
+	 * @param samples
+	 * @param nChans
+	 * @param nSamples
+	 * @throws IOException
+	 * @throws BufferException
+	 */
+	public synchronized void putData(final short[] samples, final int nChans,
+			final int nSamples) throws IOException, BufferException {
+		beginData(samples.length, nChans, nSamples, NetworkProtocol.INT16);
+		for (int i = 0; i < nChans * nSamples; i++) {
+			request.putShort(samples[i]);
+		}
+		exchange("PUT_DAT", NetworkProtocol.PUT_OK, NetworkProtocol.PUT_ERR);
+	}
+
+	/**
+	 * Puts a single event with a string type and an INT32 value.
+	 *
+	 * @param type
+	 * @param value
+	 * @param sample
+	 * @param offset
+	 * @param duration
+	 * @throws IOException
+	 * @throws BufferException
+	 */
+	public synchronized void putEvent(final String type, final int value,
+			final int sample, final int offset, final int duration)
+			throws IOException, BufferException {
+		final byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+		beginEvent(typeBytes, NetworkProtocol.INT32, 1, 4, sample, offset,
+				duration);
+		request.putInt(value);
+		exchange("PUT_EVT", NetworkProtocol.PUT_OK, NetworkProtocol.PUT_ERR);
+	}
+
+	/**
+	 * Puts a single event with a string type and a string value.
+	 *
+	 * @param type
+	 * @param value
+	 * @param sample
+	 * @param offset
+	 * @param duration
+	 * @throws IOException
+	 * @throws BufferException
+	 */
+	public synchronized void putEvent(final String type, final String value,
+			final int sample, final int offset, final int duration)
+			throws IOException, BufferException {
+		final byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+		final byte[] valueBytes = value.getBytes(StandardCharsets.US_ASCII);
+		beginEvent(typeBytes, NetworkProtocol.CHAR, valueBytes.length,
+				valueBytes.length, sample, offset, duration);
+		request.put(valueBytes);
+		exchange("PUT_EVT", NetworkProtocol.PUT_OK, NetworkProtocol.PUT_ERR);
+	}
+
+	/**
+	 * Puts a header without extended header chunks.
+	 *
+	 * @param nChans
+	 * @param fSample
+	 * @param dataType
+	 * @throws IOException
+	 * @throws BufferException
+	 */
+	public synchronized void putHeader(final int nChans, final float fSample,
+			final int dataType) throws IOException, BufferException {
+		begin(NetworkProtocol.PUT_HDR, 24);
+		request.putInt(nChans);
+		request.putInt(0);
+		request.putInt(0);
+		request.putFloat(fSample);
+		request.putInt(dataType);
+		request.putInt(0);
+		exchange("PUT_HDR", NetworkProtocol.PUT_OK, NetworkProtocol.PUT_ERR);
+	}
+
+	/**
+	 * Sends a GET_DAT and checks the response fits in an array of the given
+	 * length. Returns the number of values in the response.
+	 *
+	 * @param begin
+	 * @param end
+	 * @param length
+	 * @return
+	 * @throws IOException
+	 * @throws BufferException
+	 */
+	private int requestData(final int begin, final int end, final int length)
+			throws IOException, BufferException {
+		begin(NetworkProtocol.GET_DAT, 8);
+		request.putInt(begin);
+		request.putInt(end);
+		exchange("GET_DAT", NetworkProtocol.GET_OK, NetworkProtocol.GET_ERR);
+
+		final int count = response.getInt(0) * response.getInt(4);
+		if (count > length) {
+			throw new IllegalArgumentException("Array of " + length
+					+ " values is too short for " + response.getInt(4)
+					+ " samples of " + response.getInt(0) + " channels.");
+		}
+		return count;
+	}
+
+	/**
+	 * Blocks until the buffer holds more than nSamples samples or more than
+	 * nEvents events, or until timeout ms have passed. Returns the counts in
+	 * a result that is reused by the next wait.
+	 *
+	 * @param nSamples
+	 * @param nEvents
+	 * @param timeout
+	 * @return
+	 * @throws IOException
+	 * @throws BufferException
+	 */
+	public synchronized WaitResult waitData(final int nSamples,
+			final int nEvents, final int timeout) throws IOException,
+			BufferException {
+		begin(NetworkProtocol.WAIT_DAT, 12);
+		request.putInt(nSamples);
+		request.putInt(nEvents);
+		request.putInt(timeout);
+		exchange("WAIT_DAT", NetworkProtocol.WAIT_OK, NetworkProtocol.WAIT_ERR);
+
+		waitResult.nSamples = response.getInt(0);
+		waitResult.nEvents = response.getInt(4);
+		return waitResult;
+	}
+
+	/**
+	 * Blocks like waitData until the buffer holds more than nSamples samples,
+	 * then gets the samples from index nSamples on (or from the oldest sample
+	 * still stored) into destination in the same request, converted to float.
+	 * Events are not requested. The counts are kept in the result returned by
+	 * the last waitData. Returns the number of samples got.
+	 *
+	 * @param nSamples
+	 * @param timeout
+	 * @param destination
+	 *            Holds at least nChans values for every sample got.
+	 * @return
+	 * @throws IOException
+	 * @throws BufferException
+	 */
+	public synchronized int waitGetData(final int nSamples, final int timeout,
+			final float[] destination) throws IOException, BufferException {
+		begin(NetworkProtocol.WAIT_GET_DAT, 12);
+		request.putInt(nSamples);
+		request.putInt(-1);
+		request.putInt(timeout);
+		exchange("WAIT_GET_DAT", NetworkProtocol.WAIT_OK,
+				NetworkProtocol.WAIT_ERR);
+
+		waitResult.nSamples = response.getInt(0);
+		waitResult.nEvents = response.getInt(4);
+
+		// The counts are followed by the data definition and the data
+		final int count = response.getInt(8) * response.getInt(12);
+		if (count > destination.length) {
+			throw new IllegalArgumentException("Array of "
+					+ destination.length + " values is too short for "
+					+ response.getInt(12) + " samples of " + response.getInt(8)
+					+ " channels.");
+		}
+		convert(response, 24, response.getInt(16), count, destination, 0);
+		return response.getInt(12);
+	}
+
+	/**
+	 * Waits like waitData, but on a thread of the client, and returns
+	 * immediately. The listener is called with the result. Other requests on
+	 * this client block until the wait is done.
+	 *
+	 * @param nSamples
+	 * @param nEvents
+	 * @param timeout
+	 * @param listener
+	 * @return A future that completes after the listener was called.
+	 */
+	public synchronized Future<?> waitDataAsync(final int nSamples,
+			final int nEvents, final int timeout, final WaitListener listener) {
+		if (waiter == null) {
+			waiter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable runnable) {
+					final Thread thread = new Thread(runnable,
+							"Fieldtrip Client Waiter " + name);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		return waiter.submit(new Runnable() {
+			@Override
+			public void run() {
+				final int samples;
+				final int events;
+				try {
+					synchronized (BufferClient.this) {
+						waitData(nSamples, nEvents, timeout);
+						samples = waitResult.nSamples;
+						events = waitResult.nEvents;
+					}
+				} catch (final Exception e) {
+					listener.waitFailed(e);
+					return;
+				}
+				listener.dataAvailable(samples, events);
+			}
+		});
+	}
+}
@@ -0,0 +1,428 @@
+package buffer_bci.javaserver.client;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+import buffer_bci.javaserver.data.SharedSampleRing;
+import buffer_bci.javaserver.exceptions.BufferException;
+
+/**
+ * Reads samples from the shared sample ring of a buffer on the same host (see
+ * Buffer.shareSamples), straight from the memory-mapped file without a
+ * request to the buffer. Samples are converted into caller-supplied arrays
+ * like BufferClient.getData does, so reading does not allocate. Events, the
+ * full header and writing still go through a BufferClient.
+ *
+ * A read is checked against the write sequence after copying and repeated if
+ * the ring changed underneath it, so it never returns a torn sample.
+ *
+ * @author Wieke Kanters
+ *
+ */
+public class SharedSampleReader {
+	/**
+	 * Nanoseconds between looking at the write sequence in waitData.
+	 */
+	private static final long WAIT_INTERVAL = 100000;
+
+	/**
+	 * Nanoseconds readLayout waits for the buffer to finish changing the
+	 * layout, after which it assumes the buffer stopped halfway.
+	 */
+	private static final long LAYOUT_TIMEOUT = 1000000000L;
+
+	private final Path path;
+	private final FileChannel channel;
+	private MappedByteBuffer ring;
+
+	// Layout of the generation last read by readLayout
+	private long generation;
+	private int nChans;
+	private int dataType;
+	private float fSample;
+	private int capacity;
+	private int sampleSize;
+	private int oldest;
+
+	/**
+	 * Constructor, maps the shared ring.
+	 *
+	 * @param path
+	 *            The path the buffer was given as buffer.sharedRing.
+	 * @throws IOException
+	 *             Thrown if the file could not be mapped or is not a shared
+	 *             sample ring in the native byte order.
+	 */
+	public SharedSampleReader(final Path path) throws IOException {
+		this.path = path;
+		channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			ring = map();
+			if (ring.capacity() < SharedSampleRing.HEADER_SIZE
+					|| ring.getInt(0) != SharedSampleRing.MAGIC) {
+				throw new IOException(path + " is not a shared sample ring.");
+			}
+			if (ring.getInt(4) != SharedSampleRing.VERSION) {
+				throw new IOException(path + " has version "
+						+ ring.getInt(4) + " instead of "
+						+ SharedSampleRing.VERSION + ".");
+			}
+		} catch (final IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Closes the file. The mapping is released once the reader is garbage
+	 * collected.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Returns the number of channels.
+	 *
+	 * @return
+	 * @throws BufferException
+	 *             Thrown if there is no header.
+	 */
+	public synchronized int getChannelCount() throws IOException,
+			BufferException {
+		readHeader();
+		return nChans;
+	}
+
+	/**
+	 * Gets the samples from begin up to and including end into destination,
+	 * converted to double. Returns the number of samples.
+	 *
+	 * @param begin
+	 * @param end
+	 * @param destination
+	 *            Holds at least (end - begin + 1) * nChans values.
+	 * @return
+	 * @throws IOException
+	 * @throws BufferException
+	 *             Thrown if the samples are not in the ring.
+	 */
+	public synchronized int getData(final int begin, final int end,
+			final double[] destination) throws IOException, BufferException {
+		while (true) {
+			final int nSamples = checkRange(begin, end, destination.length);
+			final int first = begin % capacity;
+			final int n = Math.min(nSamples, capacity - first);
+
+			// Copy up to the end of the ring, then the rest from its start
+			BufferClient.convert(ring, SharedSampleRing.HEADER_SIZE + first
+					* sampleSize, dataType, n * nChans, destination, 0);
+			if (n < nSamples) {
+				BufferClient.convert(ring, SharedSampleRing.HEADER_SIZE,
+						dataType, (nSamples - n) * nChans, destination, n
+								* nChans);
+			}
+
+			if (unchanged(begin)) {
+				return nSamples;
+			}
+		}
+	}
+
+	/**
+	 * Gets the samples from begin up to and including end into destination,
+	 * converted to float. Returns the number of samples.
+	 *
+	 * @param begin
+	 * @param end
+	 * @param destination
+	 *            Holds at least (end - begin + 1) * nChans values.
+	 * @return
+	 * @throws IOException
+	 * @throws BufferException
+	 *             Thrown if the samples are not in the ring.
+	 */
+	public synchronized int getData(final int begin, final int end,
+			final float[] destination) throws IOException, BufferException {
+		while (true) {
+			final int nSamples = checkRange(begin, end, destination.length);
+			final int first = begin % capacity;
+			final int n = Math.min(nSamples, capacity - first);
+
+			// Copy up to the end of the ring, then the rest from its start
+			BufferClient.convert(ring, SharedSampleRing.HEADER_SIZE + first
+					* sampleSize, dataType, n * nChans, destination, 0);
+			if (n < nSamples) {
+				BufferClient.convert(ring, SharedSampleRing.HEADER_SIZE,
+						dataType, (nSamples - n) * nChans, destination, n
+								* nChans);
+			}
+
+			if (unchanged(begin)) {
+				return nSamples;
+			}
+		}
+	}
+
+	/**
+	 * Returns the data type of the samples.
+	 *
+	 * @return
+	 * @throws BufferException
+	 *             Thrown if there is no header.
+	 */
+	public synchronized int getDataType() throws IOException, BufferException {
+		readHeader();
+		return dataType;
+	}
+
+	/**
+	 * Returns the index of the oldest sample still in the ring.
+	 *
+	 * @return
+	 * @throws BufferException
+	 *             Thrown if there is no header.
+	 */
+	public synchronized int getOldestSampleIndex() throws IOException,
+			BufferException {
+		while (true) {
+			readHeader();
+			final long reserved = (long) SharedSampleRing.LONG.getAcquire(
+					ring, SharedSampleRing.RESERVED);
+			if (unchanged()) {
+				return (int) Math.max(oldest, reserved - capacity);
+			}
+		}
+	}
+
+	/**
+	 * Returns the path of the shared ring.
+	 *
+	 * @return
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * Returns the number of samples put into the buffer.
+	 *
+	 * @return
+	 * @throws BufferException
+	 *             Thrown if there is no header.
+	 */
+	public synchronized int getSampleCount() throws IOException,
+			BufferException {
+		while (true) {
+			readHeader();
+			final int count = sequence();
+			if (unchanged()) {
+				return count;
+			}
+		}
+	}
+
+	/**
+	 * Returns the sampling frequency.
+	 *
+	 * @return
+	 * @throws BufferException
+	 *             Thrown if there is no header.
+	 */
+	public synchronized float getSampleFrequency() throws IOException,
+			BufferException {
+		readHeader();
+		return fSample;
+	}
+
+	/**
+	 * Waits until there are more than nSamples samples or until timeout
+	 * milliseconds have passed, by looking at the write sequence every
+	 * WAIT_INTERVAL. Returns the number of samples, or -1 if there is no
+	 * header yet.
+	 *
+	 * @param nSamples
+	 * @param timeout
+	 * @return
+	 * @throws IOException
+	 *             Thrown if the buffer did not finish changing the layout
+	 *             before the timeout, or LAYOUT_TIMEOUT if that is longer.
+	 */
+	public synchronized int waitData(final int nSamples, final int timeout)
+			throws IOException {
+		final long start = System.nanoTime();
+		final long deadline = start + timeout * 1000000L;
+		final long layoutDeadline = Math.max(timeout * 1000000L,
+				LAYOUT_TIMEOUT) + start;
+		while (true) {
+			readLayout(layoutDeadline);
+			final int count = nChans == 0 ? -1 : sequence();
+			if (unchanged()
+					&& (count > nSamples || System.nanoTime() - deadline >= 0)) {
+				return count;
+			}
+			LockSupport.parkNanos(WAIT_INTERVAL);
+		}
+	}
+
+	/**
+	 * Throws BufferException if the samples from begin up to and including
+	 * end are not in the ring, or IllegalArgumentException if they do not fit
+	 * in length values. Returns the number of samples.
+	 *
+	 * @param begin
+	 * @param end
+	 * @param length
+	 * @return
+	 * @throws IOException
+	 * @throws BufferException
+	 */
+	private int checkRange(final int begin, final int end, final int length)
+			throws IOException, BufferException {
+		readHeader();
+		final int count = sequence();
+		final long reserved = (long) SharedSampleRing.LONG.getAcquire(ring,
+				SharedSampleRing.RESERVED);
+
+		if (count == 0) {
+			throw new BufferException("No data stored.");
+		}
+		if (begin < 0 || end < begin) {
+			throw new BufferException("Invalid sample range " + begin + " to "
+					+ end + ".");
+		}
+		if (end >= count) {
+			throw new BufferException(
+					"Requesting samples that do not exist (end index >= sample count).");
+		}
+		if (begin < Math.max(oldest, reserved - capacity)) {
+			throw new BufferException(
+					"Requested samples that do not exist (begin index < index of oldest sample in ring)");
+		}
+
+		final int nSamples = end - begin + 1;
+		if (length < nSamples * nChans) {
+			throw new IllegalArgumentException("Array of " + length
+					+ " values is too short for " + nSamples + " samples of "
+					+ nChans + " channels.");
+		}
+		return nSamples;
+	}
+
+	/**
+	 * Maps the whole file.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	private MappedByteBuffer map() throws IOException {
+		final MappedByteBuffer buffer = channel.map(
+				FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		buffer.order(ByteOrder.nativeOrder());
+		return buffer;
+	}
+
+	/**
+	 * Reads the layout, like readLayout, and throws BufferException if there
+	 * is no header. Waits up to LAYOUT_TIMEOUT for a layout change.
+	 *
+	 * @throws IOException
+	 * @throws BufferException
+	 */
+	private void readHeader() throws IOException, BufferException {
+		readLayout(System.nanoTime() + LAYOUT_TIMEOUT);
+		if (nChans == 0) {
+			throw new BufferException("No header.");
+		}
+	}
+
+	/**
+	 * Reads a consistent copy of the layout fields of the header, waiting
+	 * while the buffer changes them. Maps the file again if it has grown
+	 * beyond the current mapping.
+	 *
+	 * @param deadline
+	 *            System.nanoTime after which a layout change is taken to
+	 *            mean that the buffer stopped halfway.
+	 * @throws IOException
+	 *             Thrown if the layout is still changing at the deadline.
+	 */
+	private void readLayout(final long deadline) throws IOException {
+		while (true) {
+			final long current = (long) SharedSampleRing.LONG.getAcquire(ring,
+					SharedSampleRing.GENERATION);
+			if ((current & 1) != 0) {
+				if (System.nanoTime() - deadline >= 0) {
+					throw new IOException("The buffer did not finish changing "
+							+ "the layout of " + path + ", it has stopped.");
+				}
+				Thread.onSpinWait();
+				continue;
+			}
+
+			nChans = ring.getInt(SharedSampleRing.N_CHANS);
+			dataType = ring.getInt(SharedSampleRing.DATA_TYPE);
+			fSample = ring.getFloat(SharedSampleRing.F_SAMPLE);
+			capacity = ring.getInt(SharedSampleRing.CAPACITY);
+			sampleSize = ring.getInt(SharedSampleRing.SAMPLE_SIZE);
+			oldest = ring.getInt(SharedSampleRing.OLDEST);
+
+			VarHandle.acquireFence();
+			if ((long) SharedSampleRing.LONG.getAcquire(ring,
+					SharedSampleRing.GENERATION) != current) {
+				continue;
+			}
+
+			if (SharedSampleRing.HEADER_SIZE + (long) capacity * sampleSize > ring
+					.capacity()) {
+				ring = map();
+				continue;
+			}
+
+			generation = current;
+			return;
+		}
+	}
+
+	/**
+	 * Returns the write sequence, the number of samples that may be read.
+	 *
+	 * @return
+	 */
+	private int sequence() {
+		return (int) (long) SharedSampleRing.LONG.getAcquire(ring,
+				SharedSampleRing.SEQUENCE);
+	}
+
+	/**
+	 * Returns true if the layout has not changed since readLayout.
+	 *
+	 * @return
+	 */
+	private boolean unchanged() {
+		VarHandle.acquireFence();
+		return (long) SharedSampleRing.LONG.getAcquire(ring,
+				SharedSampleRing.GENERATION) == generation;
+	}
+
+	/**
+	 * Returns true if the layout has not changed since readLayout and the
+	 * samples from begin on that were copied since have not been overwritten.
+	 *
+	 * @param begin
+	 * @return
+	 */
+	private boolean unchanged(final int begin) {
+		return unchanged()
+				&& begin >= (long) SharedSampleRing.LONG.getAcquire(ring,
+						SharedSampleRing.RESERVED) - capacity;
+	}
+}
@@ -0,0 +1,29 @@
+package buffer_bci.javaserver.client;
+
+/**
+ * Receives the result of a BufferClient.waitDataAsync. Called from the
+ * waiting thread of the client, after the client is free for other requests.
+ *
+ * @author Wieke Kanters
+ *
+ */
+public interface WaitListener {
+
+	/**
+	 * Called when the wait returned, because new samples or events arrived or
+	 * because it timed out.
+	 *
+	 * @param nSamples
+	 *            Number of samples in the buffer.
+	 * @param nEvents
+	 *            Number of events in the buffer.
+	 */
+	public void dataAvailable(int nSamples, int nEvents);
+
+	/**
+	 * Called when the wait failed.
+	 *
+	 * @param e
+	 */
+	public void waitFailed(Exception e);
+}
@@ -1,7 +1,12 @@
 package buffer_bci.javaserver.data;
 
+import java.nio.ByteBuffer;
+
 import buffer_bci.javaserver.exceptions.DataException;
+import buffer_bci.javaserver.network.DataView;
+import buffer_bci.javaserver.network.EventView;
 import buffer_bci.javaserver.network.Request;
+import buffer_bci.javaserver.network.Subscription;
 import buffer_bci.javaserver.network.WaitRequest;
 
 public abstract class DataModel {
@@ -9,12 +14,23 @@ public abstract class DataModel {
 	/**
 	 * Adds a thread, with corresponding request, to the list of listeners of
 	 * this dataStore. Once the threshold, as defined in request, had been met
-	 * the threads waitOver() function will be called.
+	 * the threads waitOver() function will be called. This happens right away
+	 * if the threshold has already been met.
 	 *
 	 * @param thread
 	 * @param request
+	 * @throws DataException
+	 */
+	public abstract void addWaitRequest(WaitRequest request)
+			throws DataException;
+
+	/**
+	 * Adds a subscription. Every block of data and batch of events put from
+	 * now on is pushed to it.
+	 *
+	 * @param subscription
 	 */
-	public abstract void addWaitRequest(WaitRequest request);
+	public abstract void addSubscription(Subscription subscription);
 
 	/**
 	 * Removes all data.
@@ -54,6 +70,27 @@ public abstract class DataModel {
 	 */
 	public abstract Data getData(Request request) throws DataException;
 
+	/**
+	 * Writes the data definition and the requested data to the buffer, in the
+	 * ByteOrder of the buffer. Does not allocate if the buffer is large
+	 * enough. Throws DataException if impossible.
+	 *
+	 * @param request
+	 *            Start index and end index of the range requested.
+	 * @param buffer
+	 * @return the buffer, or a larger copy if it was too small.
+	 * @throws DataException
+	 */
+	public abstract ByteBuffer getData(Request request, ByteBuffer buffer)
+			throws DataException;
+
+	/**
+	 * Returns the maximum number of events stored, -1 if unbounded.
+	 *
+	 * @return
+	 */
+	public abstract int getEventCapacity();
+
 	/**
 	 * Returns the number of events currently stored. Throws DataException if
 	 * impossible.
@@ -81,6 +118,31 @@ public abstract class DataModel {
 	 */
 	public abstract Event[] getEvents(Request request) throws DataException;
 
+	/**
+	 * Returns the events in the requested range that match the filter.
+	 * Throws DataException if impossible.
+	 *
+	 * @param request
+	 *            Start index and end index of the range requested.
+	 * @param filter
+	 * @return
+	 * @throws DataException
+	 */
+	public abstract Event[] getEvents(Request request, EventFilter filter)
+			throws DataException;
+
+	/**
+	 * Writes the header currently stored to the buffer, encoded as a GET_HDR
+	 * response in the ByteOrder of the buffer with the current sample/event
+	 * counts. Throws DataException if impossible.
+	 *
+	 * @param buffer
+	 * @return the buffer, or a larger copy if it was too small.
+	 * @throws DataException
+	 */
+	public abstract ByteBuffer getEncodedHeader(ByteBuffer buffer)
+			throws DataException;
+
 	/**
 	 * Returns the header currently stored. Throws DataException if impossible.
 	 *
@@ -89,6 +151,31 @@ public abstract class DataModel {
 	 */
 	public abstract Header getHeader() throws DataException;
 
+	/**
+	 * Returns the index of the oldest event still stored. Throws
+	 * DataException if impossible.
+	 *
+	 * @return
+	 * @throws DataException
+	 */
+	public abstract int getOldestEventIndex() throws DataException;
+
+	/**
+	 * Returns the index of the oldest sample still stored. Throws
+	 * DataException if impossible.
+	 *
+	 * @return
+	 * @throws DataException
+	 */
+	public abstract int getOldestSampleIndex() throws DataException;
+
+	/**
+	 * Returns the maximum number of samples stored, -1 if unbounded.
+	 *
+	 * @return
+	 */
+	public abstract int getSampleCapacity();
+
 	/**
 	 * Returns the number of currently stored samples. Throws DataException if
 	 * impossible.
@@ -98,6 +185,23 @@ public abstract class DataModel {
 	 */
 	public abstract int getSampleCount() throws DataException;
 
+	/**
+	 * Returns the System.nanoTime() at which the sample at index was stored.
+	 * Throws DataException if the sample is not stored.
+	 *
+	 * @param index
+	 * @return
+	 * @throws DataException
+	 */
+	public abstract long getSampleArrival(int index) throws DataException;
+
+	/**
+	 * Returns the number of WaitRequests that have not been satisfied yet.
+	 *
+	 * @return
+	 */
+	public abstract int getWaitRequestCount();
+
 	/**
 	 * Returns true if a header exists.
 	 *
@@ -106,22 +210,63 @@ public abstract class DataModel {
 	public abstract boolean headerExists();
 
 	/**
-	 * Appends the data to the storage. Throws DataException if impossible.
+	 * Removes a subscription added by addSubscription.
+	 *
+	 * @param subscription
+	 */
+	public abstract void removeSubscription(Subscription subscription);
+
+	/**
+	 * Removes a request added by addWaitRequest, if it has not been satisfied
+	 * yet.
+	 *
+	 * @param request
+	 */
+	public abstract void removeWaitRequest(WaitRequest request);
+
+	/**
+	 * Changes the maximum number of samples and events stored, keeping the
+	 * newest ones that fit. Throws DataException if impossible.
+	 *
+	 * @param nSamples
+	 * @param nEvents
+	 * @throws DataException
+	 */
+	public abstract void resize(int nSamples, int nEvents)
+			throws DataException;
+
+	/**
+	 * Copies the stored samples, and from then on every new sample, into a
+	 * shared memory ring for local readers. Null stops sharing. Throws
+	 * DataException if impossible.
+	 *
+	 * @param ring
+	 * @throws DataException
+	 */
+	public abstract void shareSamples(SharedSampleRing ring)
+			throws DataException;
+
+	/**
+	 * Copies the data from the message into the storage. Throws
+	 * DataException if impossible.
 	 *
 	 * @param data
+	 *            View over the validated samples of a PUT_DAT message.
 	 * @return the number of samples added so far.
 	 * @throws DataException
 	 */
-	public abstract int putData(Data data) throws DataException;
+	public abstract int putData(DataView data) throws DataException;
 
 	/**
-	 * Appends the events to the storage. Throws DataException if impossible.
+	 * Copies the events from the message into the storage. Throws
+	 * DataException if impossible.
 	 *
 	 * @param events
+	 *            View over the validated events of a PUT_EVT message.
 	 * @return the number of events added so far.
 	 * @throws DataException
 	 */
-	public abstract int putEvents(Event[] events) throws DataException;
+	public abstract int putEvents(EventView events) throws DataException;
 
 	/**
 	 * Adds the header to the storage. Throws DataException if impossible.
@@ -1,35 +1,108 @@
 package buffer_bci.javaserver.data;
 
+import java.nio.ByteBuffer;
+
 public class DataRingBuffer {
-	private final byte[][][] ring;
+	private final byte[] ring;
+	private final long[] arrival;
 	private final int capacity;
+	private final int nChans;
+	private final int nBytes;
+	private final int sampleSize;
 	private int sampleCount = 0;
+	private int nStored = 0;
 	private int newPos = 0;
 
 	/**
-	 * Constructor
-	 * 
+	 * Constructor. All samples are stored in a single preallocated array,
+	 * adding samples copies them into it. The arrival time of each sample is
+	 * kept in a second array at the same position.
+	 *
 	 * @param size
 	 *            size of the ring
 	 */
-	public DataRingBuffer(int size, int nChan, int nBytes) {
-		ring = new byte[size][nChan][nBytes];
+	public DataRingBuffer(int size, int nChans, int nBytes) {
+		this.nChans = nChans;
+		this.nBytes = nBytes;
+		sampleSize = nChans * nBytes;
+		ring = new byte[size * sampleSize];
+		arrival = new long[size];
 		capacity = size;
 	}
 
 	/**
-	 * Adds an item to the buffer.
-	 * 
-	 * @param item
+	 * Constructor, copies the newest samples of another ring buffer into a
+	 * ring of a different size. Sample indices stay the same, samples that
+	 * do not fit are dropped.
+	 *
+	 * @param source
+	 * @param size
+	 *            size of the new ring
+	 */
+	public DataRingBuffer(DataRingBuffer source, int size) {
+		this(size, source.nChans, source.nBytes);
+
+		final int n = Math.min(size, source.nStored);
+		final int first = source.sampleCount - n;
+
+		for (int i = 0; i < n; i++) {
+			final int position = source.position(first + i);
+			System.arraycopy(source.ring, position * sampleSize, ring, i
+					* sampleSize, sampleSize);
+			arrival[i] = source.arrival[position];
+		}
+
+		sampleCount = source.sampleCount;
+		nStored = n;
+		newPos = n == size ? 0 : n;
+	}
+
+	/**
+	 * Copies a sample into the buffer.
+	 *
+	 * @param source
+	 *            Array containing the sample.
+	 * @param offset
+	 *            Offset of the sample in the array.
+	 * @param flipOrder
+	 *            Reverse the bytes of each channel while copying.
+	 * @param time
+	 *            System.nanoTime() at which the sample arrived.
 	 */
-	public void add(byte[][] item) {
+	public void add(byte[] source, int offset, boolean flipOrder, long time) {
 		sampleCount++;
-		ring[newPos++] = item;
+		arrival[newPos] = time;
+		copyElements(source, offset, ring, newPos++ * sampleSize, flipOrder);
 
 		// If newPos has reached capacity wrap the ring around.
 		if (newPos == capacity) {
 			newPos = 0;
 		}
+
+		if (nStored < capacity) {
+			nStored++;
+		}
+	}
+
+	/**
+	 * Returns the System.nanoTime() at which the item at index was added.
+	 *
+	 * @param index
+	 *            Index ranges from 0 to the number of items added in the ring
+	 *            -1.
+	 * @return
+	 */
+	public long arrival(int index) throws IndexOutOfBoundsException {
+		return arrival[position(index)];
+	}
+
+	/**
+	 * Returns the number of samples the ring can hold.
+	 *
+	 * @return
+	 */
+	public int capacity() {
+		return capacity;
 	}
 
 	/**
@@ -37,23 +110,108 @@ public class DataRingBuffer {
 	 */
 	public void clear() {
 		sampleCount = 0;
+		nStored = 0;
 		newPos = 0;
 	}
 
 	/**
-	 * Used to get an item from the ring.
-	 * 
+	 * Copies a sample from the ring into an array.
+	 *
+	 * @param index
+	 *            Index ranges from 0 to the number of items added in the ring
+	 *            -1.
+	 * @param destination
+	 * @param offset
+	 *            Offset in the destination array.
+	 * @param flipOrder
+	 *            Reverse the bytes of each channel while copying.
+	 */
+	public void copy(int index, byte[] destination, int offset,
+			boolean flipOrder) throws IndexOutOfBoundsException {
+		copyElements(ring, position(index) * sampleSize, destination, offset,
+				flipOrder);
+	}
+
+	/**
+	 * Copies a sample from the ring into a ByteBuffer, in native byte order.
+	 *
+	 * @param index
+	 *            Index ranges from 0 to the number of items added in the ring
+	 *            -1.
+	 * @param destination
+	 * @param offset
+	 *            Absolute position in the destination buffer.
+	 */
+	public void copy(int index, ByteBuffer destination, int offset)
+			throws IndexOutOfBoundsException {
+		destination.put(offset, ring, position(index) * sampleSize,
+				sampleSize);
+	}
+
+	/**
+	 * Copies nChans elements of nBytes bytes from source to destination.
+	 *
+	 * @param source
+	 * @param sourceOffset
+	 * @param destination
+	 * @param destinationOffset
+	 * @param flipOrder
+	 */
+	private void copyElements(byte[] source, int sourceOffset,
+			byte[] destination, int destinationOffset, boolean flipOrder) {
+		if (flipOrder && nBytes > 1) {
+			for (int i = 0; i < sampleSize; i += nBytes) {
+				for (int j = 0; j < nBytes; j++) {
+					destination[destinationOffset + i + j] = source[sourceOffset
+							+ i + nBytes - j - 1];
+				}
+			}
+		} else {
+			System.arraycopy(source, sourceOffset, destination,
+					destinationOffset, sampleSize);
+		}
+	}
+
+	/**
+	 * Used to get a copy of an item from the ring.
+	 *
 	 * @param index
 	 *            Index ranges from 0 to the number of items added in the ring
 	 *            -1.
 	 * @return the value at index
 	 */
 	public byte[][] get(int index) throws IndexOutOfBoundsException {
+		final int offset = position(index) * sampleSize;
+		final byte[][] sample = new byte[nChans][nBytes];
+
+		for (int i = 0; i < nChans; i++) {
+			System.arraycopy(ring, offset + i * nBytes, sample[i], 0, nBytes);
+		}
+
+		return sample;
+	}
+
+	/**
+	 * Returns the index of the oldest item.
+	 *
+	 * @return
+	 */
+	public int indexOfOldest() {
+		return sampleCount - nStored;
+	}
+
+	/**
+	 * Returns the position in the ring of the item at index.
+	 *
+	 * @param index
+	 * @return
+	 */
+	private int position(int index) throws IndexOutOfBoundsException {
 		if (index < 0) {
 			throw new IndexOutOfBoundsException("Index < 0.");
 		}
 
-		if (index < sampleCount - capacity) {
+		if (index < sampleCount - nStored) {
 			throw new IndexOutOfBoundsException(
 					"Index < index of oldest item in buffer.");
 		}
@@ -62,47 +220,33 @@ public class DataRingBuffer {
 			throw new IndexOutOfBoundsException("Index >= size.");
 		}
 
-		if (sampleCount < capacity) {
-			// Ring hasn't wrapped yet.
-			return ring[index];
-		} else {
-			// Ring has wrapped.
-
-			index -= sampleCount - capacity; // Subtract the index of the oldest item
-										// still in the ring.
-
-			index += newPos; // Add ring-index of the oldest item still in the
-								// ring.
+		// Count back from the position of the next item.
+		final int position = newPos - (sampleCount - index);
 
-			// Check if index should be wrapped around.
-			if (index >= capacity) {
-				return ring[index - capacity];
-			} else {
-				return ring[index];
-			}
+		// Check if position should be wrapped around.
+		if (position < 0) {
+			return position + capacity;
+		} else {
+			return position;
 		}
 	}
 
 	/**
-	 * Returns the index of the oldest item.
-	 * 
+	 * Returns the total number of items that have been added to the ring.
+	 *
 	 * @return
 	 */
-	public int indexOfOldest() {
-		if (sampleCount <= capacity) {
-			return 0;
-		} else {
-			return sampleCount - capacity;
-		}
+	public int sampleCount() {
+		return sampleCount;
 	}
 
 	/**
-	 * Returns the total number of items that have been added to the ring.
-	 * 
+	 * Returns the number of bytes in a sample.
+	 *
 	 * @return
 	 */
-	public int sampleCount() {
-		return sampleCount;
+	public int sampleSize() {
+		return sampleSize;
 	}
 
 }
@@ -11,10 +11,10 @@ import java.nio.ByteOrder;
 public class Event {
 	public final int typeType;
 	public final int typeSize;
-	public final byte[][] type;
+	public final byte[] type;
 	public final int valueType;
 	public final int valueSize;
-	public final byte[][] value;
+	public final byte[] value;
 	public final int sample;
 	public final int offset;
 	public final int duration;
@@ -32,7 +32,7 @@ public class Event {
 	 * @param order
 	 *            endianess
 	 */
-	public Event(Event event, byte[][] type, byte[][] value, ByteOrder order) {
+	public Event(Event event, byte[] type, byte[] value, ByteOrder order) {
 		typeType = event.typeType;
 		typeSize = event.typeSize;
 		valueType = event.valueType;
@@ -63,15 +63,15 @@ public class Event {
 	 * @param duration
 	 *            duration of the event
 	 * @param type
-	 *            event type in bytes
+	 *            event type in bytes (typeSize elements one after another)
 	 * @param value
-	 *            event value in bytes
+	 *            event value in bytes (valueSize elements one after another)
 	 * @param order
 	 *            endianess
 	 */
 	public Event(int typeType, int typeSize, int valueType, int valueSize,
-			int sample, int offset, int duration, byte[][] type,
-			byte[][] value, ByteOrder order) {
+			int sample, int offset, int duration, byte[] type, byte[] value,
+			ByteOrder order) {
 		this.typeType = typeType;
 		this.typeSize = typeSize;
 		this.valueType = valueType;
@@ -0,0 +1,108 @@
+package buffer_bci.javaserver.data;
+
+import java.nio.ByteOrder;
+
+import buffer_bci.javaserver.network.NetworkProtocol;
+
+/**
+ * Predicate on the type and (optionally) the value of events. Used to only
+ * return, or wait for, the events a client is interested in.
+ *
+ * @author Wieke Kanters
+ *
+ */
+public class EventFilter {
+	public final int typeType;
+	public final int typeSize;
+	public final byte[] type;
+	public final int valueType;
+	public final int valueSize;
+	public final byte[] value;
+	public final ByteOrder order;
+
+	/**
+	 * Constructor
+	 *
+	 * @param typeType
+	 *            data type of event type
+	 * @param typeSize
+	 *            number of elements in event type
+	 * @param type
+	 *            event type in bytes
+	 * @param valueType
+	 *            data type of event value
+	 * @param valueSize
+	 *            number of elements in event value
+	 * @param value
+	 *            event value in bytes, null to match any value
+	 * @param order
+	 *            endianess
+	 */
+	public EventFilter(int typeType, int typeSize, byte[] type,
+			int valueType, int valueSize, byte[] value, ByteOrder order) {
+		this.typeType = typeType;
+		this.typeSize = typeSize;
+		this.type = type;
+		this.valueType = valueType;
+		this.valueSize = valueSize;
+		this.value = value;
+		this.order = order;
+	}
+
+	/**
+	 * Returns true if the type, and value if given, of the event match.
+	 *
+	 * @param event
+	 * @return
+	 */
+	public boolean matches(final Event event) {
+		if (event.typeType != typeType || event.typeSize != typeSize) {
+			return false;
+		}
+
+		if (!equal(type, event.type, NetworkProtocol.dataTypeSize(typeType),
+				event.order)) {
+			return false;
+		}
+
+		if (value == null) {
+			return true;
+		}
+
+		if (event.valueType != valueType || event.valueSize != valueSize) {
+			return false;
+		}
+
+		return equal(value, event.value,
+				NetworkProtocol.dataTypeSize(valueType), event.order);
+	}
+
+	/**
+	 * Compares two arrays of elements of nBytes bytes each, flips the bytes
+	 * of the second one if its order differs from the order of this filter.
+	 *
+	 * @param a
+	 * @param b
+	 * @param nBytes
+	 *            Number of bytes per element
+	 * @param bOrder
+	 * @return
+	 */
+	private boolean equal(final byte[] a, final byte[] b, final int nBytes,
+			final ByteOrder bOrder) {
+		final boolean flipOrder = bOrder != order && nBytes > 1;
+
+		for (int x = 0; x < a.length; x += nBytes) {
+			for (int y = 0; y < nBytes; y++) {
+				if (flipOrder) {
+					if (a[x + y] != b[x + nBytes - y - 1]) {
+						return false;
+					}
+				} else if (a[x + y] != b[x + y]) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+}
@@ -4,6 +4,7 @@ public class EventRingBuffer {
 	private final Event[] ring;
 	private final int capacity;
 	private int eventCount = 0;
+	private int nStored = 0;
 	private int newPos = 0;
 
 	/**
@@ -17,6 +18,30 @@ public class EventRingBuffer {
 		capacity = size;
 	}
 
+	/**
+	 * Constructor, copies the newest events of another ring buffer into a
+	 * ring of a different size. Event indices stay the same, events that do
+	 * not fit are dropped.
+	 * 
+	 * @param source
+	 * @param size
+	 *            size of the new ring
+	 */
+	public EventRingBuffer(EventRingBuffer source, int size) {
+		this(size);
+
+		final int n = Math.min(size, source.nStored);
+		final int first = source.eventCount - n;
+
+		for (int i = 0; i < n; i++) {
+			ring[i] = source.get(first + i);
+		}
+
+		eventCount = source.eventCount;
+		nStored = n;
+		newPos = n == size ? 0 : n;
+	}
+
 	/**
 	 * Adds an item to the buffer.
 	 * 
@@ -30,6 +55,19 @@ public class EventRingBuffer {
 		if (newPos == capacity) {
 			newPos = 0;
 		}
+
+		if (nStored < capacity) {
+			nStored++;
+		}
+	}
+
+	/**
+	 * Returns the number of events the ring can hold.
+	 * 
+	 * @return
+	 */
+	public int capacity() {
+		return capacity;
 	}
 
 	/**
@@ -37,6 +75,7 @@ public class EventRingBuffer {
 	 */
 	public void clear() {
 		eventCount = 0;
+		nStored = 0;
 		newPos = 0;
 	}
 
@@ -53,7 +92,7 @@ public class EventRingBuffer {
 			throw new IndexOutOfBoundsException("Index < 0.");
 		}
 
-		if (index < eventCount - capacity) {
+		if (index < eventCount - nStored) {
 			throw new IndexOutOfBoundsException(
 					"Index < index of oldest item in buffer.");
 		}
@@ -62,24 +101,14 @@ public class EventRingBuffer {
 			throw new IndexOutOfBoundsException("Index >= size.");
 		}
 
-		if (eventCount < capacity) {
-			// Ring hasn't wrapped yet.
-			return ring[index];
-		} else {
-			// Ring has wrapped.
-
-			index -= eventCount - capacity; // Subtract the index of the oldest item
-										// still in the ring.
-
-			index += newPos; // Add ring-index of the oldest item still in the
-								// ring.
+		// Count back from the position of the next item.
+		final int position = newPos - (eventCount - index);
 
-			// Check if index should be wrapped around.
-			if (index >= capacity) {
-				return ring[index - capacity];
-			} else {
-				return ring[index];
-			}
+		// Check if position should be wrapped around.
+		if (position < 0) {
+			return ring[position + capacity];
+		} else {
+			return ring[position];
 		}
 	}
 
@@ -89,11 +118,7 @@ public class EventRingBuffer {
 	 * @return
 	 */
 	public int indexOfOldest() {
-		if (eventCount <= capacity) {
-			return 0;
-		} else {
-			return eventCount - capacity;
-		}
+		return eventCount - nStored;
 	}
 
 	/**
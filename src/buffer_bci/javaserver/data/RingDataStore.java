@@ -1,23 +1,33 @@
 package buffer_bci.javaserver.data;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
 
 import buffer_bci.javaserver.exceptions.DataException;
+import buffer_bci.javaserver.jfr.Recording;
+import buffer_bci.javaserver.network.DataView;
+import buffer_bci.javaserver.network.EventView;
 import buffer_bci.javaserver.network.NetworkProtocol;
 import buffer_bci.javaserver.network.Request;
+import buffer_bci.javaserver.network.Subscription;
 import buffer_bci.javaserver.network.WaitRequest;
 
 public class RingDataStore extends DataModel {
 	private final ArrayList<WaitRequest> requests = new ArrayList<WaitRequest>();
+	private final ArrayList<Subscription> subscriptions = new ArrayList<Subscription>();
 	private DataRingBuffer dataBuffer;
-	private final EventRingBuffer eventBuffer;
+	private EventRingBuffer eventBuffer;
 	private int nChans;
 	private int nBytes;
 	private int dataType;
 	private Header header = null;
+	private byte[] encodedHeaderBig = null;
+	private byte[] encodedHeaderLittle = null;
 	private final static ByteOrder NATIVE_ORDER = ByteOrder.nativeOrder();
-	private final int dataBufferSize;
+	private int dataBufferSize;
+	private SharedSampleRing sharedRing = null;
 
 	/**
 	 * Constructor
@@ -46,14 +56,87 @@ public class RingDataStore extends DataModel {
 	/**
 	 * Adds a thread, with corresponding request, to the list of listeners of
 	 * this dataStore. Once the threshold, as defined in request, had been met
-	 * the threads waitOver() function will be called.
+	 * the threads waitOver() function will be called. This happens right away
+	 * if the threshold has already been met, also when a stored event past
+	 * the threshold matches the filter of the request.
 	 *
 	 * @param thread
 	 * @param request
+	 * @throws DataException
 	 */
 	@Override
-	public synchronized void addWaitRequest(final WaitRequest request) {
+	public synchronized void addWaitRequest(final WaitRequest request)
+			throws DataException {
+		// Match the filter against the events already past the threshold
+		if (request.filter != null) {
+			final int first = Math.max(request.nEvents,
+					eventBuffer.indexOfOldest());
+			for (int i = first; i < eventBuffer.eventCount(); i++) {
+				request.checkEvent(i, eventBuffer.get(i));
+			}
+		}
 		requests.add(request);
+		checkListeners();
+	}
+
+	/**
+	 * Adds a subscription. Every block of data and batch of events put from
+	 * now on is pushed to it.
+	 *
+	 * @param subscription
+	 */
+	@Override
+	public synchronized void addSubscription(final Subscription subscription) {
+		subscriptions.add(subscription);
+	}
+
+	/**
+	 * Throws DataException if the requested samples are not available.
+	 *
+	 * @param request
+	 * @throws DataException
+	 */
+	private void checkDataRequest(final Request request) throws DataException {
+		if (dataBuffer == null) {
+			throw new DataException("No header.");
+		}
+
+		if (dataBuffer.sampleCount() == 0) {
+			throw new DataException("No data stored.");
+		}
+
+		if (request.begin < 0) {
+			throw new DataException("Requesting samples with start index < 0.");
+		}
+
+		if (request.end < 0) {
+			throw new DataException("Requesting samples with end index < 0.");
+		}
+
+		if (request.end < request.begin) {
+			throw new DataException(
+					"Requesting samples with start index > end index.");
+		}
+
+		if (request.end >= dataBuffer.sampleCount()) {
+			throw new DataException(
+					"Requesting samples that do not exist (end index >= sample count).");
+		}
+
+		if (request.begin >= dataBuffer.sampleCount()) {
+			throw new DataException(
+					"Requesting samples that do not exist (begin index >= sample count).");
+		}
+
+		if (request.end < dataBuffer.indexOfOldest()) {
+			throw new DataException(
+					"Requested samples that do not exist (end index < index of oldest sample in ring)");
+		}
+
+		if (request.begin < dataBuffer.indexOfOldest()) {
+			throw new DataException(
+					"Requested samples that do not exist (begin index < index of oldest sample in ring)");
+		}
 	}
 
 	/**
@@ -64,13 +147,8 @@ public class RingDataStore extends DataModel {
 	 */
 	private synchronized void checkListeners() throws DataException {
 		for (int i = 0; i < requests.size(); i++) {
-
-			final int eventThreshold = requests.get(i).nEvents;
-			final int sampleThreshold = requests.get(i).nSamples;
-
-			if (getEventCount() > eventThreshold && eventThreshold != -1
-					|| getSampleCount() > sampleThreshold
-					&& sampleThreshold != -1) {
+			if (requests.get(i).eventThresholdMet(getEventCount())
+					|| requests.get(i).sampleThresholdMet(getSampleCount())) {
 				requests.get(i).satisfied();
 				requests.remove(i);
 				i--;
@@ -86,7 +164,7 @@ public class RingDataStore extends DataModel {
 	@Override
 	public synchronized void flushData() throws DataException {
 		dataBuffer.clear();
-
+		shareLayout();
 	}
 
 	/**
@@ -111,6 +189,9 @@ public class RingDataStore extends DataModel {
 		eventBuffer.clear();
 		dataBuffer = null;
 		header = null;
+		encodedHeaderBig = null;
+		encodedHeaderLittle = null;
+		shareLayout();
 	}
 
 	/**
@@ -125,9 +206,10 @@ public class RingDataStore extends DataModel {
 			throw new DataException("No data stored.");
 		}
 
-		final int nSamples = dataBuffer.sampleCount();
+		final int nSamples = dataBuffer.sampleCount()
+				- dataBuffer.indexOfOldest();
 
-		final byte[][][] data = new byte[nSamples][nChans][nBytes];
+		final byte[][][] data = new byte[nSamples][][];
 
 		int j = 0;
 		for (int i = dataBuffer.indexOfOldest(); i < dataBuffer.sampleCount(); i++) {
@@ -148,53 +230,73 @@ public class RingDataStore extends DataModel {
 	@Override
 	public synchronized Data getData(final Request request)
 			throws DataException {
-		if (dataBuffer.sampleCount() == 0) {
-			throw new DataException("No data stored.");
-		}
+		checkDataRequest(request);
 
-		if (request.begin < 0) {
-			throw new DataException("Requesting samples with start index < 0.");
-		}
+		final int nSamples = request.end - request.begin + 1;
 
-		if (request.end < 0) {
-			throw new DataException("Requesting samples with end index < 0.");
-		}
+		final byte[][][] data = new byte[nSamples][][];
 
-		if (request.end < request.begin) {
-			throw new DataException(
-					"Requesting samples with start index > end index.");
+		int i = 0;
+		for (int j = request.begin; j <= request.end; j++) {
+			data[i++] = dataBuffer.get(j);
 		}
 
-		if (request.end >= dataBuffer.sampleCount()) {
-			throw new DataException(
-					"Requesting samples that do not exist (end index >= sample count).");
-		}
+		return new Data(nChans, nSamples, dataType, data, NATIVE_ORDER);
+	}
 
-		if (request.begin >= dataBuffer.sampleCount()) {
-			throw new DataException(
-					"Requesting samples that do not exist (begin index >= sample count).");
-		}
+	/**
+	 * Writes the data definition and the requested data to the buffer, in the
+	 * ByteOrder of the buffer. Does not allocate if the buffer is large
+	 * enough. Throws DataException if impossible.
+	 *
+	 * @param request
+	 *            Start index and end index of the range requested.
+	 * @param buffer
+	 * @return the buffer, or a larger copy if it was too small.
+	 * @throws DataException
+	 */
+	@Override
+	public synchronized ByteBuffer getData(final Request request,
+			ByteBuffer buffer) throws DataException {
+		final Object lockEvent = Recording.beginLock();
+		checkDataRequest(request);
 
-		if (request.end < dataBuffer.indexOfOldest()) {
-			throw new DataException(
-					"Requested samples that do not exist (end index < index of oldest sample in ring)");
-		}
+		final int nSamples = request.end - request.begin + 1;
+		final int sampleSize = dataBuffer.sampleSize();
 
-		if (request.begin < dataBuffer.indexOfOldest()) {
-			throw new DataException(
-					"Requested samples that do not exist (begin index < index of oldest sample in ring)");
-		}
+		buffer = NetworkProtocol.ensureCapacity(buffer, 16 + nSamples
+				* sampleSize);
 
-		final int nSamples = request.end - request.begin + 1;
+		// Add data definition
+		buffer.putInt(nChans);
+		buffer.putInt(nSamples);
+		buffer.putInt(dataType);
+		buffer.putInt(nSamples * sampleSize);
 
-		final byte[][][] data = new byte[nSamples][nChans][nBytes];
+		// Copy the samples straight from the ring into the buffer
+		final boolean flipOrder = buffer.order() != NATIVE_ORDER;
+		final byte[] array = buffer.array();
+		int offset = buffer.arrayOffset() + buffer.position();
 
-		int i = 0;
 		for (int j = request.begin; j <= request.end; j++) {
-			data[i++] = dataBuffer.get(j);
+			dataBuffer.copy(j, array, offset, flipOrder);
+			offset += sampleSize;
 		}
 
-		return new Data(nChans, nSamples, dataType, data, NATIVE_ORDER);
+		buffer.position(buffer.position() + nSamples * sampleSize);
+
+		Recording.endLock(lockEvent, "getData", nSamples);
+		return buffer;
+	}
+
+	/**
+	 * Returns the capacity of the event ringbuffer.
+	 *
+	 * @return
+	 */
+	@Override
+	public synchronized int getEventCapacity() {
+		return eventBuffer.capacity();
 	}
 
 	/**
@@ -243,6 +345,8 @@ public class RingDataStore extends DataModel {
 	@Override
 	public synchronized Event[] getEvents(final Request request)
 			throws DataException {
+		final Object lockEvent = Recording.beginLock();
+
 		if (eventBuffer.eventCount() == 0) {
 			throw new DataException("No events stored.");
 		}
@@ -289,9 +393,72 @@ public class RingDataStore extends DataModel {
 			events[j++] = eventBuffer.get(i);
 		}
 
+		Recording.endLock(lockEvent, "getEvents", nEvents);
 		return events;
 	}
 
+	/**
+	 * Returns the events in the requested range that match the filter.
+	 * Throws DataException if impossible.
+	 *
+	 * @param request
+	 *            Start index and end index of the range requested.
+	 * @param filter
+	 * @return
+	 * @throws DataException
+	 */
+	@Override
+	public synchronized Event[] getEvents(final Request request,
+			final EventFilter filter) throws DataException {
+		final Event[] events = getEvents(request);
+
+		int nMatches = 0;
+		for (final Event event : events) {
+			if (filter.matches(event)) {
+				nMatches++;
+			}
+		}
+
+		final Event[] matches = new Event[nMatches];
+
+		int j = 0;
+		for (final Event event : events) {
+			if (filter.matches(event)) {
+				matches[j++] = event;
+			}
+		}
+
+		return matches;
+	}
+
+	/**
+	 * Writes the header currently stored to the buffer, encoded as a GET_HDR
+	 * response in the ByteOrder of the buffer with the current sample/event
+	 * counts. Throws DataException if impossible.
+	 *
+	 * @param buffer
+	 * @return the buffer, or a larger copy if it was too small.
+	 * @throws DataException
+	 */
+	@Override
+	public synchronized ByteBuffer getEncodedHeader(final ByteBuffer buffer)
+			throws DataException {
+
+		// Check if header exists
+		if (header == null) {
+			throw new DataException("No header.");
+		}
+
+		// Patch the correct sample/event counts into the cached encoding
+		if (buffer.order() == ByteOrder.BIG_ENDIAN) {
+			return NetworkProtocol.encodeHeaderCounts(encodedHeaderBig,
+					getSampleCount(), getEventCount(), buffer);
+		} else {
+			return NetworkProtocol.encodeHeaderCounts(encodedHeaderLittle,
+					getSampleCount(), getEventCount(), buffer);
+		}
+	}
+
 	/**
 	 * Returns the header currently stored. Throws DataException if impossible.
 	 *
@@ -310,6 +477,40 @@ public class RingDataStore extends DataModel {
 		return new Header(header, getSampleCount(), getEventCount());
 	}
 
+	/**
+	 * Returns the index of the oldest event still stored. Throws
+	 * DataException if impossible.
+	 *
+	 * @return
+	 * @throws DataException
+	 */
+	@Override
+	public synchronized int getOldestEventIndex() throws DataException {
+		return eventBuffer.indexOfOldest();
+	}
+
+	/**
+	 * Returns the index of the oldest sample still stored. Throws
+	 * DataException if impossible.
+	 *
+	 * @return
+	 * @throws DataException
+	 */
+	@Override
+	public synchronized int getOldestSampleIndex() throws DataException {
+		return dataBuffer.indexOfOldest();
+	}
+
+	/**
+	 * Returns the capacity of the sample ringbuffer.
+	 *
+	 * @return
+	 */
+	@Override
+	public synchronized int getSampleCapacity() {
+		return dataBufferSize;
+	}
+
 	/**
 	 * Returns the number of currently stored samples. Throws DataException if
 	 * impossible.
@@ -322,6 +523,39 @@ public class RingDataStore extends DataModel {
 		return dataBuffer.sampleCount();
 	}
 
+	/**
+	 * Returns the System.nanoTime() at which the sample at index was stored.
+	 * Throws DataException if the sample is not stored.
+	 *
+	 * @param index
+	 * @return
+	 * @throws DataException
+	 */
+	@Override
+	public synchronized long getSampleArrival(final int index)
+			throws DataException {
+		if (dataBuffer == null) {
+			throw new DataException("No header.");
+		}
+
+		if (index < dataBuffer.indexOfOldest()
+				|| index >= dataBuffer.sampleCount()) {
+			throw new DataException("Requested sample that is not stored.");
+		}
+
+		return dataBuffer.arrival(index);
+	}
+
+	/**
+	 * Returns the number of WaitRequests that have not been satisfied yet.
+	 *
+	 * @return
+	 */
+	@Override
+	public synchronized int getWaitRequestCount() {
+		return requests.size();
+	}
+
 	/**
 	 * Returns true if a header has been initialised.
 	 *
@@ -333,86 +567,186 @@ public class RingDataStore extends DataModel {
 	}
 
 	/**
-	 * Appends the data to the storage. Throws DataException if impossible.
+	 * Removes a subscription added by addSubscription.
+	 *
+	 * @param subscription
+	 */
+	@Override
+	public synchronized void removeSubscription(
+			final Subscription subscription) {
+		subscriptions.remove(subscription);
+	}
+
+	/**
+	 * Removes a request added by addWaitRequest, if it has not been satisfied
+	 * yet.
+	 *
+	 * @param request
+	 */
+	@Override
+	public synchronized void removeWaitRequest(final WaitRequest request) {
+		requests.remove(request);
+	}
+
+	/**
+	 * Changes the capacity of the sample and event ringbuffers, keeping the
+	 * newest samples and events that fit. Throws DataException if a capacity
+	 * is not positive.
+	 *
+	 * @param nSamples
+	 * @param nEvents
+	 * @throws DataException
+	 */
+	@Override
+	public synchronized void resize(final int nSamples, final int nEvents)
+			throws DataException {
+		if (nSamples <= 0 || nEvents <= 0) {
+			throw new DataException("Capacity must be positive.");
+		}
+
+		dataBufferSize = nSamples;
+		if (dataBuffer != null) {
+			dataBuffer = new DataRingBuffer(dataBuffer, nSamples);
+		}
+		eventBuffer = new EventRingBuffer(eventBuffer, nEvents);
+		shareLayout();
+	}
+
+	/**
+	 * Publishes the current header and all samples in the ring to the shared
+	 * ring, if samples are shared.
+	 *
+	 * @throws DataException
+	 */
+	private void shareLayout() throws DataException {
+		if (sharedRing != null) {
+			try {
+				sharedRing.reset(header, dataBuffer);
+			} catch (final IOException e) {
+				throw new DataException("Could not grow the shared ring: "
+						+ e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Copies the stored samples, and from then on every new sample, into a
+	 * shared memory ring for local readers. Null stops sharing.
+	 *
+	 * @param ring
+	 * @throws DataException
+	 */
+	@Override
+	public synchronized void shareSamples(final SharedSampleRing ring)
+			throws DataException {
+		sharedRing = ring;
+		shareLayout();
+	}
+
+	/**
+	 * Copies the data from the message into the storage. Throws
+	 * DataException if impossible.
 	 *
 	 * @param data
 	 * @throws DataException
 	 */
 	@Override
-	public synchronized int putData(final Data data) throws DataException {
-		if (data.dataType != dataType) {
+	public synchronized int putData(final DataView data) throws DataException {
+		if (data.dataType() != dataType) {
 			throw new DataException("Trying to append data of wrong dataType.");
 		}
-		if (data.nChans != nChans) {
+		if (data.nChans() != nChans) {
 			throw new DataException(
 					"Trying to append data with wrong number of channels");
 		}
 
-		// Check if byte order needs to be flipped
-		if (data.order != NATIVE_ORDER && nBytes != 1) {
-			for (int i = 0; i < data.nSamples; i++) {
-				final byte[][] sample = new byte[nChans][nBytes];
+		final Object lockEvent = Recording.beginLock();
+		final int overwritten = dataBuffer.sampleCount()
+				- dataBuffer.indexOfOldest() + data.nSamples()
+				- dataBuffer.capacity();
 
-				for (int j = 0; j < nChans; j++) {
-					for (int k = 0; k < nBytes; k++) {
-						sample[j][k] = data.data[i][j][nBytes - k - 1];
-					}
-				}
+		// Copy the samples into the ring, flipping the byte order if needed
+		final boolean flipOrder = data.order() != NATIVE_ORDER;
+		final byte[] array = data.array();
+		final long time = System.nanoTime();
 
-				dataBuffer.add(sample);
-			}
-		} else {
-			for (int i = 0; i < data.nSamples; i++) {
-				dataBuffer.add(data.data[i]);
-			}
+		for (int i = 0; i < data.nSamples(); i++) {
+			dataBuffer.add(array, data.offset(i), flipOrder, time);
+		}
+
+		// Publish the samples to local readers before waking any waiters
+		final int firstSample = dataBuffer.sampleCount() - data.nSamples();
+		if (sharedRing != null) {
+			sharedRing.publish(dataBuffer, firstSample, data.nSamples());
 		}
 		checkListeners();
+
+		// Push the block to the subscribers, only copy it if there are any
+		Data block = null;
+		for (int i = 0; i < subscriptions.size(); i++) {
+			if (subscriptions.get(i).data) {
+				if (block == null) {
+					block = data.toData(NATIVE_ORDER);
+				}
+				subscriptions.get(i).pushData(firstSample, block);
+			}
+		}
+
+		Recording.overwritten("samples", overwritten,
+				dataBuffer.indexOfOldest());
+		Recording.endLock(lockEvent, "putData", data.nSamples());
 		return dataBuffer.sampleCount();
 	}
 
 	/**
-	 * Appends the events to the storage. Throws DataException if impossible.
+	 * Copies the events from the message into the storage. Throws
+	 * DataException if impossible.
 	 *
 	 * @param events
 	 * @throws DataException
 	 */
 	@Override
-	public synchronized int putEvents(final Event[] events)
+	public synchronized int putEvents(final EventView events)
 			throws DataException {
-		for (final Event event : events) {
-			if (event.order != NATIVE_ORDER) {
-				final int typeNBytes = NetworkProtocol
-						.dataTypeSize(event.typeType);
-
-				final byte[][] type = event.type.clone();
-				if (typeNBytes > 1) {
-					for (int i = 0; i < event.typeSize; i++) {
-						for (int j = 0; j < typeNBytes; j++) {
-							type[i * typeNBytes + j] = event.type[i
-							                                      * typeNBytes + typeNBytes - j - 1];
-						}
-					}
-				}
+		final Object lockEvent = Recording.beginLock();
+		final int firstEvent = eventBuffer.eventCount();
+		final int overwritten = firstEvent - eventBuffer.indexOfOldest()
+				+ events.count() - eventBuffer.capacity();
+
+		// Only collect the batch if it has to be pushed
+		Event[] batch = null;
+		if (!subscriptions.isEmpty()) {
+			batch = new Event[events.count()];
+		}
 
-				final int valueNBytes = NetworkProtocol
-						.dataTypeSize(event.valueType);
+		events.rewind();
+		for (int i = 0; events.next(); i++) {
+			// Copy the event from the message, in native byte order
+			final Event event = events.toEvent(NATIVE_ORDER);
+			eventBuffer.add(event);
 
-				final byte[][] value = event.value.clone();
-				if (valueNBytes > 1) {
-					for (int i = 0; i < event.valueSize; i++) {
-						for (int j = 0; j < valueNBytes; j++) {
-							value[i * valueNBytes + j] = event.value[i
-							                                         * valueNBytes + valueNBytes - j - 1];
-						}
-					}
-				}
+			// Check the new event against the filters of the listeners
+			for (int j = 0; j < requests.size(); j++) {
+				requests.get(j).checkEvent(firstEvent + i, event);
+			}
 
-				eventBuffer.add(new Event(event, type, value, NATIVE_ORDER));
-			} else {
-				eventBuffer.add(event);
+			if (batch != null) {
+				batch[i] = event;
 			}
 		}
+
 		checkListeners();
+
+		// Push the batch to the subscribers
+		for (int i = 0; i < subscriptions.size(); i++) {
+			if (subscriptions.get(i).events) {
+				subscriptions.get(i).pushEvents(firstEvent, batch);
+			}
+		}
+
+		Recording.overwritten("events", overwritten,
+				eventBuffer.indexOfOldest());
+		Recording.endLock(lockEvent, "putEvents", events.count());
 		return eventBuffer.eventCount();
 	}
 
@@ -468,7 +802,14 @@ public class RingDataStore extends DataModel {
 		}
 
 		this.header = header;
+
+		// Encode the static part of the header once for each byte order.
+		encodedHeaderBig = NetworkProtocol.encodeHeader(header,
+				ByteOrder.BIG_ENDIAN);
+		encodedHeaderLittle = NetworkProtocol.encodeHeader(header,
+				ByteOrder.LITTLE_ENDIAN);
 		dataBuffer = new DataRingBuffer(dataBufferSize, nChans, nBytes);
+		shareLayout();
 
 	}
 }
@@ -0,0 +1,266 @@
+package buffer_bci.javaserver.data;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Copy of the sample ring of a RingDataStore in a memory-mapped file, so
+ * readers on the same host can read samples straight from shared memory
+ * without asking the buffer. Written by the RingDataStore while it holds its
+ * lock, read by SharedSampleReader.
+ *
+ * The file starts with a header of HEADER_SIZE bytes in the native byte
+ * order, followed by room for capacity samples in native byte order. Sample
+ * index i is stored in slot i % capacity. The header contains:
+ *
+ * - GENERATION, odd while the layout (the other header fields) changes,
+ * when a header is put, the data is flushed or the ring is resized.
+ *
+ * - SEQUENCE, the write sequence: the number of samples written and
+ * published, samples below it may be read.
+ *
+ * - RESERVED, the number of samples written or being written. A reader that
+ * copied sample i has a valid copy if, after copying, the generation is
+ * unchanged and i >= RESERVED - capacity.
+ *
+ * The file only grows, so a reader never loses the pages it mapped. The
+ * buffer holds a lock on the file while it writes it, so a second buffer
+ * given the same path refuses to take it over.
+ *
+ * @author Wieke Kanters
+ *
+ */
+public class SharedSampleRing {
+	public static final int MAGIC = 0x46545352;
+	public static final int VERSION = 1;
+
+	public static final int GENERATION = 8;
+	public static final int SEQUENCE = 16;
+	public static final int RESERVED = 24;
+	public static final int N_CHANS = 32;
+	public static final int DATA_TYPE = 36;
+	public static final int F_SAMPLE = 40;
+	public static final int CAPACITY = 44;
+	public static final int SAMPLE_SIZE = 48;
+	public static final int OLDEST = 52;
+	public static final int HEADER_SIZE = 64;
+
+	/**
+	 * Access to the long fields of the header with memory ordering, so a
+	 * reader in another process sees the samples before the counters.
+	 */
+	public static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(
+			long[].class, ByteOrder.nativeOrder());
+
+	private final Path path;
+	private final FileChannel channel;
+	private MappedByteBuffer ring;
+	private int capacity = 0;
+	private int sampleSize = 0;
+
+	/**
+	 * Constructor, creates the file and publishes an empty header. A ring
+	 * left at path by a buffer that no longer runs is removed rather than
+	 * truncated, so readers that still map it do not lose its pages.
+	 *
+	 * @param path
+	 * @throws IOException
+	 *             Thrown if the file could not be created, or if path is
+	 *             taken by something other than a ring no longer in use.
+	 */
+	public SharedSampleRing(final Path path) throws IOException {
+		this.path = path;
+		removeStale(path);
+		channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			// Held until close, marks the ring as in use
+			if (channel.tryLock() == null) {
+				throw new IOException(path + " is in use.");
+			}
+			ring = map(HEADER_SIZE);
+			ring.putInt(0, MAGIC);
+			ring.putInt(4, VERSION);
+			LONG.setRelease(ring, GENERATION, 0L);
+		} catch (final IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Removes a ring left at path by a buffer that no longer runs. Throws
+	 * IOException, and leaves the file alone, if it is not a shared sample
+	 * ring or a buffer still holds its lock.
+	 *
+	 * @param path
+	 * @throws IOException
+	 */
+	private static void removeStale(final Path path) throws IOException {
+		final FileChannel old;
+		try {
+			old = FileChannel.open(path, StandardOpenOption.READ,
+					StandardOpenOption.WRITE, LinkOption.NOFOLLOW_LINKS);
+		} catch (final NoSuchFileException e) {
+			return;
+		}
+
+		try {
+			final ByteBuffer magic = ByteBuffer.allocate(4).order(
+					ByteOrder.nativeOrder());
+			if (old.read(magic, 0) != 4 || magic.getInt(0) != MAGIC) {
+				throw new IOException(path + " is not a shared sample ring.");
+			}
+
+			FileLock lock;
+			try {
+				lock = old.tryLock();
+			} catch (final OverlappingFileLockException e) {
+				// Locked by a ring in this process
+				lock = null;
+			}
+			if (lock == null) {
+				throw new IOException(path + " is in use.");
+			}
+
+			Files.delete(path);
+		} finally {
+			old.close();
+		}
+	}
+
+	/**
+	 * Publishes that there is no header, then removes the file and closes
+	 * it, which releases the lock. Readers that mapped it keep their mapping.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		reset(null, null);
+		try {
+			Files.deleteIfExists(path);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Returns the path of the file.
+	 *
+	 * @return
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * Maps the first size bytes of the file, growing it if needed.
+	 *
+	 * @param size
+	 * @return
+	 * @throws IOException
+	 */
+	private MappedByteBuffer map(final long size) throws IOException {
+		final MappedByteBuffer buffer = channel.map(
+				FileChannel.MapMode.READ_WRITE, 0, size);
+		buffer.order(ByteOrder.nativeOrder());
+		return buffer;
+	}
+
+	/**
+	 * Copies the samples from first up to first + nSamples from the ring of
+	 * the store and publishes them. Samples no longer in the ring are
+	 * skipped.
+	 *
+	 * @param data
+	 * @param first
+	 * @param nSamples
+	 */
+	public void publish(final DataRingBuffer data, final int first,
+			final int nSamples) {
+		if (capacity == 0) {
+			return;
+		}
+		final int end = first + nSamples;
+
+		// Make the slots that are about to be overwritten invalid first. A
+		// volatile store does not keep the plain stores of the samples after
+		// it, on AArch64 they could become visible before RESERVED without
+		// the fence.
+		LONG.setVolatile(ring, RESERVED, (long) end);
+		VarHandle.storeStoreFence();
+
+		for (int i = Math.max(first, data.indexOfOldest()); i < end; i++) {
+			data.copy(i, ring, HEADER_SIZE + i % capacity * sampleSize);
+		}
+
+		LONG.setRelease(ring, SEQUENCE, (long) end);
+	}
+
+	/**
+	 * Publishes a new layout and copies all samples in the ring of the store,
+	 * after a header was put, the data was flushed or the ring was resized.
+	 *
+	 * @param header
+	 *            The header, null if there is none.
+	 * @param data
+	 *            The ring of the store, null if there is no header.
+	 * @throws IOException
+	 *             Thrown if the file could not be grown, the ring then
+	 *             publishes that there is no header.
+	 */
+	public void reset(final Header header, final DataRingBuffer data)
+			throws IOException {
+		final long generation = (long) LONG.getVolatile(ring, GENERATION);
+		LONG.setVolatile(ring, GENERATION, generation + 1);
+		VarHandle.storeStoreFence();
+
+		try {
+			capacity = 0;
+			sampleSize = 0;
+			ring.putInt(N_CHANS, 0);
+
+			if (header != null && data != null) {
+				final long size = HEADER_SIZE + (long) data.capacity()
+						* data.sampleSize();
+				if (size > ring.capacity()) {
+					ring = map(size);
+				}
+
+				ring.putInt(N_CHANS, header.nChans);
+				ring.putInt(DATA_TYPE, header.dataType);
+				ring.putFloat(F_SAMPLE, header.fSample);
+				capacity = data.capacity();
+				sampleSize = data.sampleSize();
+			}
+
+			ring.putInt(CAPACITY, capacity);
+			ring.putInt(SAMPLE_SIZE, sampleSize);
+
+			final int count = data == null ? 0 : data.sampleCount();
+			ring.putInt(OLDEST, data == null ? 0 : data.indexOfOldest());
+			LONG.setVolatile(ring, RESERVED, (long) count);
+			LONG.setVolatile(ring, SEQUENCE, (long) count);
+			if (capacity > 0) {
+				for (int i = data.indexOfOldest(); i < count; i++) {
+					data.copy(i, ring, HEADER_SIZE + i % capacity
+							* sampleSize);
+				}
+			}
+		} finally {
+			LONG.setRelease(ring, GENERATION, generation + 2);
+		}
+	}
+}
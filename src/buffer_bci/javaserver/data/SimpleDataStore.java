@@ -1,34 +1,101 @@
 package buffer_bci.javaserver.data;
 
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import buffer_bci.javaserver.exceptions.DataException;
+import buffer_bci.javaserver.network.DataView;
+import buffer_bci.javaserver.network.EventView;
 import buffer_bci.javaserver.network.NetworkProtocol;
 import buffer_bci.javaserver.network.Request;
+import buffer_bci.javaserver.network.Subscription;
 import buffer_bci.javaserver.network.WaitRequest;
 
 public class SimpleDataStore extends DataModel {
 	private final ArrayList<WaitRequest> requests = new ArrayList<WaitRequest>();
+	private final ArrayList<Subscription> subscriptions = new ArrayList<Subscription>();
 	private final ArrayList<byte[][]> dataArray = new ArrayList<byte[][]>();
+	private long[] arrival = new long[1024];
 	private final ArrayList<Event> eventArray = new ArrayList<Event>();
 	private int nChans;
 	private int nBytes;
 	private int dataType;
 	private Header header = null;
+	private byte[] encodedHeaderBig = null;
+	private byte[] encodedHeaderLittle = null;
 	private final static ByteOrder NATIVE_ORDER = ByteOrder.nativeOrder();
 
 	/**
 	 * Adds a thread, with corresponding request, to the list of listeners of
 	 * this dataStore. Once the threshold, as defined in request, had been met
-	 * the threads waitOver() function will be called.
+	 * the threads waitOver() function will be called. This happens right away
+	 * if the threshold has already been met, also when a stored event past
+	 * the threshold matches the filter of the request.
 	 *
 	 * @param thread
 	 * @param request
+	 * @throws DataException
 	 */
 	@Override
-	public synchronized void addWaitRequest(final WaitRequest request) {
+	public synchronized void addWaitRequest(final WaitRequest request)
+			throws DataException {
+		// Match the filter against the events already past the threshold
+		if (request.filter != null) {
+			final int first = Math.max(request.nEvents, 0);
+			for (int i = first; i < eventArray.size(); i++) {
+				request.checkEvent(i, eventArray.get(i));
+			}
+		}
 		requests.add(request);
+		checkListeners();
+	}
+
+	/**
+	 * Adds a subscription. Every block of data and batch of events put from
+	 * now on is pushed to it.
+	 *
+	 * @param subscription
+	 */
+	@Override
+	public synchronized void addSubscription(final Subscription subscription) {
+		subscriptions.add(subscription);
+	}
+
+	/**
+	 * Throws DataException if the requested samples are not stored.
+	 *
+	 * @param request
+	 * @throws DataException
+	 */
+	private void checkDataRequest(final Request request) throws DataException {
+		if (dataArray.size() == 0) {
+			throw new DataException("No data stored.");
+		}
+
+		if (request.begin < 0) {
+			throw new DataException("Requesting samples with start index < 0.");
+		}
+
+		if (request.end < 0) {
+			throw new DataException("Requesting samples with end index < 0.");
+		}
+
+		if (request.end < request.begin) {
+			throw new DataException(
+					"Requesting samples with start index > end index.");
+		}
+
+		if (request.end >= dataArray.size()) {
+			throw new DataException(
+					"Requesting samples that do not exist (end index >= sample count).");
+		}
+
+		if (request.begin >= dataArray.size()) {
+			throw new DataException(
+					"Requesting samples that do not exist (begin index >= sample count).");
+		}
 	}
 
 	/**
@@ -39,8 +106,8 @@ public class SimpleDataStore extends DataModel {
 	 */
 	private synchronized void checkListeners() throws DataException {
 		for (int i = 0; i < requests.size(); i++) {
-			if (requests.get(i).nEvents < getEventCount()
-					|| requests.get(i).nSamples < getSampleCount()) {
+			if (requests.get(i).eventThresholdMet(getEventCount())
+					|| requests.get(i).sampleThresholdMet(getSampleCount())) {
 				requests.get(i).satisfied();
 				requests.remove(i);
 				i--;
@@ -78,6 +145,8 @@ public class SimpleDataStore extends DataModel {
 		dataArray.clear();
 		eventArray.clear();
 		header = null;
+		encodedHeaderBig = null;
+		encodedHeaderLittle = null;
 
 	}
 
@@ -116,32 +185,7 @@ public class SimpleDataStore extends DataModel {
 	@Override
 	public synchronized Data getData(final Request request)
 			throws DataException {
-		if (dataArray.size() == 0) {
-			throw new DataException("No data stored.");
-		}
-
-		if (request.begin < 0) {
-			throw new DataException("Requesting samples with start index < 0.");
-		}
-
-		if (request.end < 0) {
-			throw new DataException("Requesting samples with end index < 0.");
-		}
-
-		if (request.end < request.begin) {
-			throw new DataException(
-					"Requesting samples with start index > end index.");
-		}
-
-		if (request.end >= dataArray.size()) {
-			throw new DataException(
-					"Requesting samples that do not exist (end index >= sample count).");
-		}
-
-		if (request.begin >= dataArray.size()) {
-			throw new DataException(
-					"Requesting samples that do not exist (begin index >= sample count).");
-		}
+		checkDataRequest(request);
 
 		final int nSamples = request.end - request.begin + 1;
 
@@ -156,6 +200,65 @@ public class SimpleDataStore extends DataModel {
 		return new Data(nChans, nSamples, dataType, data, NATIVE_ORDER);
 	}
 
+	/**
+	 * Writes the data definition and the requested data to the buffer, in the
+	 * ByteOrder of the buffer. Throws DataException if impossible.
+	 *
+	 * @param request
+	 *            Start index and end index of the range requested.
+	 * @param buffer
+	 * @return the buffer, or a larger copy if it was too small.
+	 * @throws DataException
+	 */
+	@Override
+	public synchronized ByteBuffer getData(final Request request,
+			ByteBuffer buffer) throws DataException {
+		checkDataRequest(request);
+
+		final int nSamples = request.end - request.begin + 1;
+		final int size = nSamples * nChans * nBytes;
+
+		buffer = NetworkProtocol.ensureCapacity(buffer, 16 + size);
+
+		// Add data definition
+		buffer.putInt(nChans);
+		buffer.putInt(nSamples);
+		buffer.putInt(dataType);
+		buffer.putInt(size);
+
+		// Copy the stored samples straight into the buffer
+		final boolean flipOrder = buffer.order() != NATIVE_ORDER && nBytes > 1;
+		final byte[] array = buffer.array();
+		int offset = buffer.arrayOffset() + buffer.position();
+
+		for (int x = request.begin; x <= request.end; x++) {
+			for (final byte[] value : dataArray.get(x)) {
+				if (flipOrder) {
+					for (int z = 0; z < nBytes; z++) {
+						array[offset + z] = value[nBytes - z - 1];
+					}
+				} else {
+					System.arraycopy(value, 0, array, offset, nBytes);
+				}
+				offset += nBytes;
+			}
+		}
+
+		buffer.position(buffer.position() + size);
+
+		return buffer;
+	}
+
+	/**
+	 * Returns -1, this store keeps all events.
+	 *
+	 * @return
+	 */
+	@Override
+	public synchronized int getEventCapacity() {
+		return -1;
+	}
+
 	/**
 	 * Returns the number of events currently stored. Throws DataException if
 	 * impossible.
@@ -227,6 +330,68 @@ public class SimpleDataStore extends DataModel {
 				new Event[nEvents]);
 	}
 
+	/**
+	 * Returns the events in the requested range that match the filter.
+	 * Throws DataException if impossible.
+	 *
+	 * @param request
+	 *            Start index and end index of the range requested.
+	 * @param filter
+	 * @return
+	 * @throws DataException
+	 */
+	@Override
+	public synchronized Event[] getEvents(final Request request,
+			final EventFilter filter) throws DataException {
+		final Event[] events = getEvents(request);
+
+		int nMatches = 0;
+		for (final Event event : events) {
+			if (filter.matches(event)) {
+				nMatches++;
+			}
+		}
+
+		final Event[] matches = new Event[nMatches];
+
+		int j = 0;
+		for (final Event event : events) {
+			if (filter.matches(event)) {
+				matches[j++] = event;
+			}
+		}
+
+		return matches;
+	}
+
+	/**
+	 * Writes the header currently stored to the buffer, encoded as a GET_HDR
+	 * response in the ByteOrder of the buffer with the current sample/event
+	 * counts. Throws DataException if impossible.
+	 *
+	 * @param buffer
+	 * @return the buffer, or a larger copy if it was too small.
+	 * @throws DataException
+	 */
+	@Override
+	public synchronized ByteBuffer getEncodedHeader(final ByteBuffer buffer)
+			throws DataException {
+
+		// Check if header exists
+		if (header == null) {
+			throw new DataException("No header.");
+		}
+
+		// Patch the correct sample/event counts into the cached encoding
+		if (buffer.order() == ByteOrder.BIG_ENDIAN) {
+			return NetworkProtocol.encodeHeaderCounts(encodedHeaderBig,
+					getSampleCount(), getEventCount(), buffer);
+		} else {
+			return NetworkProtocol.encodeHeaderCounts(encodedHeaderLittle,
+					getSampleCount(), getEventCount(), buffer);
+		}
+	}
+
 	/**
 	 * Returns the header currently stored. Throws DataException if impossible.
 	 *
@@ -245,6 +410,40 @@ public class SimpleDataStore extends DataModel {
 		return new Header(header, getSampleCount(), getEventCount());
 	}
 
+	/**
+	 * Returns the index of the oldest event still stored. Throws
+	 * DataException if impossible.
+	 *
+	 * @return
+	 * @throws DataException
+	 */
+	@Override
+	public synchronized int getOldestEventIndex() throws DataException {
+		return 0;
+	}
+
+	/**
+	 * Returns the index of the oldest sample still stored. Throws
+	 * DataException if impossible.
+	 *
+	 * @return
+	 * @throws DataException
+	 */
+	@Override
+	public synchronized int getOldestSampleIndex() throws DataException {
+		return 0;
+	}
+
+	/**
+	 * Returns -1, this store keeps all samples.
+	 *
+	 * @return
+	 */
+	@Override
+	public synchronized int getSampleCapacity() {
+		return -1;
+	}
+
 	/**
 	 * Returns the number of currently stored samples. Throws DataException if
 	 * impossible.
@@ -257,6 +456,34 @@ public class SimpleDataStore extends DataModel {
 		return dataArray.size();
 	}
 
+	/**
+	 * Returns the System.nanoTime() at which the sample at index was stored.
+	 * Throws DataException if the sample is not stored.
+	 *
+	 * @param index
+	 * @return
+	 * @throws DataException
+	 */
+	@Override
+	public synchronized long getSampleArrival(final int index)
+			throws DataException {
+		if (index < 0 || index >= dataArray.size()) {
+			throw new DataException("Requested sample that is not stored.");
+		}
+
+		return arrival[index];
+	}
+
+	/**
+	 * Returns the number of WaitRequests that have not been satisfied yet.
+	 *
+	 * @return
+	 */
+	@Override
+	public synchronized int getWaitRequestCount() {
+		return requests.size();
+	}
+
 	/**
 	 * Returns true if a header has been initialised.
 	 *
@@ -268,86 +495,139 @@ public class SimpleDataStore extends DataModel {
 	}
 
 	/**
-	 * Appends the data to the storage. Throws DataException if impossible.
+	 * Removes a subscription added by addSubscription.
+	 *
+	 * @param subscription
+	 */
+	@Override
+	public synchronized void removeSubscription(
+			final Subscription subscription) {
+		subscriptions.remove(subscription);
+	}
+
+	/**
+	 * Removes a request added by addWaitRequest, if it has not been satisfied
+	 * yet.
+	 *
+	 * @param request
+	 */
+	@Override
+	public synchronized void removeWaitRequest(final WaitRequest request) {
+		requests.remove(request);
+	}
+
+	/**
+	 * Always throws DataException, this store keeps everything.
+	 *
+	 * @param nSamples
+	 * @param nEvents
+	 * @throws DataException
+	 */
+	@Override
+	public synchronized void resize(final int nSamples, final int nEvents)
+			throws DataException {
+		throw new DataException("Store is not bounded, cannot resize.");
+	}
+
+	/**
+	 * Throws DataException, the samples are not kept in a ring that can be
+	 * shared.
+	 *
+	 * @param ring
+	 * @throws DataException
+	 */
+	@Override
+	public synchronized void shareSamples(final SharedSampleRing ring)
+			throws DataException {
+		throw new DataException("Store is not bounded, cannot share samples.");
+	}
+
+	/**
+	 * Copies the data from the message into the storage. Throws
+	 * DataException if impossible.
 	 *
 	 * @param data
 	 * @throws DataException
 	 */
 	@Override
-	public synchronized int putData(final Data data) throws DataException {
-		if (data.dataType != dataType) {
+	public synchronized int putData(final DataView data) throws DataException {
+		if (data.dataType() != dataType) {
 			throw new DataException("Trying to append data of wrong dataType.");
 		}
-		if (data.nChans != nChans) {
+		if (data.nChans() != nChans) {
 			throw new DataException(
 					"Trying to append data with wrong number of channels");
 		}
 
-		// Check if byte order needs to be flipped
-		if (data.order != NATIVE_ORDER && nBytes != 1) {
-			for (int i = 0; i < data.nSamples; i++) {
-				final byte[][] sample = new byte[nChans][nBytes];
+		// Copy the samples from the message, in native byte order
+		final Data block = data.toData(NATIVE_ORDER);
+		final long time = System.nanoTime();
 
-				for (int j = 0; j < nChans; j++) {
-					for (int k = 0; k < nBytes; k++) {
-						sample[j][k] = data.data[i][j][nBytes - k - 1];
-					}
-				}
+		if (arrival.length < dataArray.size() + block.nSamples) {
+			arrival = Arrays.copyOf(arrival, Math.max(arrival.length * 2,
+					dataArray.size() + block.nSamples));
+		}
 
-				dataArray.add(sample);
-			}
-		} else {
-			for (int i = 0; i < data.nSamples; i++) {
-				dataArray.add(data.data[i]);
-			}
+		for (int i = 0; i < block.nSamples; i++) {
+			arrival[dataArray.size()] = time;
+			dataArray.add(block.data[i]);
 		}
 		checkListeners();
+
+		// Push the block to the subscribers
+		final int firstSample = dataArray.size() - block.nSamples;
+		for (int i = 0; i < subscriptions.size(); i++) {
+			if (subscriptions.get(i).data) {
+				subscriptions.get(i).pushData(firstSample, block);
+			}
+		}
+
 		return dataArray.size();
 	}
 
 	/**
-	 * Appends the events to the storage. Throws DataException if impossible.
+	 * Copies the events from the message into the storage. Throws
+	 * DataException if impossible.
 	 *
 	 * @param events
 	 * @throws DataException
 	 */
 	@Override
-	public synchronized int putEvents(final Event[] events)
+	public synchronized int putEvents(final EventView events)
 			throws DataException {
-		for (final Event event : events) {
-			if (event.order != NATIVE_ORDER) {
-				final int typeNBytes = NetworkProtocol
-						.dataTypeSize(event.typeType);
-
-				final byte[][] type = event.type.clone();
-				if (typeNBytes > 1) {
-					for (int i = 0; i < event.typeSize; i++) {
-						for (int j = 0; j < typeNBytes; j++) {
-							type[i * typeNBytes + j] = event.type[i
-							                                      * typeNBytes + typeNBytes - j - 1];
-						}
-					}
-				}
+		final int firstEvent = eventArray.size();
 
-				final int valueNBytes = NetworkProtocol
-						.dataTypeSize(event.valueType);
+		// Only collect the batch if it has to be pushed
+		Event[] batch = null;
+		if (!subscriptions.isEmpty()) {
+			batch = new Event[events.count()];
+		}
 
-				final byte[][] value = event.value.clone();
-				if (valueNBytes > 1) {
-					for (int i = 0; i < event.valueSize; i++) {
-						for (int j = 0; j < valueNBytes; j++) {
-							value[i * valueNBytes + j] = event.value[i
-							                                         * valueNBytes + valueNBytes - j - 1];
-						}
-					}
-				}
+		events.rewind();
+		for (int i = 0; events.next(); i++) {
+			// Copy the event from the message, in native byte order
+			final Event event = events.toEvent(NATIVE_ORDER);
+			eventArray.add(event);
+
+			// Check the new event against the filters of the listeners
+			for (int j = 0; j < requests.size(); j++) {
+				requests.get(j).checkEvent(firstEvent + i, event);
+			}
 
-				eventArray.add(new Event(event, type, value, NATIVE_ORDER));
-			} else {
-				eventArray.add(event);
+			if (batch != null) {
+				batch[i] = event;
 			}
 		}
+
 		checkListeners();
+
+		// Push the batch to the subscribers
+		for (int i = 0; i < subscriptions.size(); i++) {
+			if (subscriptions.get(i).events) {
+				subscriptions.get(i).pushEvents(firstEvent, batch);
+			}
+		}
+
 		return eventArray.size();
 	}
 
@@ -403,5 +683,11 @@ public class SimpleDataStore extends DataModel {
 		}
 
 		this.header = header;
+
+		// Encode the static part of the header once for each byte order.
+		encodedHeaderBig = NetworkProtocol.encodeHeader(header,
+				ByteOrder.BIG_ENDIAN);
+		encodedHeaderLittle = NetworkProtocol.encodeHeader(header,
+				ByteOrder.LITTLE_ENDIAN);
 	}
 }
@@ -0,0 +1,17 @@
+package buffer_bci.javaserver.exceptions;
+
+/**
+ * An exception thrown by the client when the buffer responds to a request
+ * with an error.
+ *
+ * @author Wieke Kanters
+ *
+ */
+public class BufferException extends Exception {
+
+	private static final long serialVersionUID = 3140622481573216890L;
+
+	public BufferException(final String string) {
+		super(string);
+	}
+}
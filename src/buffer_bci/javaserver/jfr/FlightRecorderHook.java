@@ -0,0 +1,118 @@
+package buffer_bci.javaserver.jfr;
+
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.RecordingState;
+
+/**
+ * Recorder on top of the JDK Flight Recorder. Only loaded by Recording, which
+ * catches the LinkageError if the runtime has no jdk.jfr module. Keeps
+ * Recording.active up to date from the recordings that are running.
+ *
+ * @author Wieke Kanters
+ *
+ */
+final class FlightRecorderHook implements Recorder {
+
+	/**
+	 * Constructor, listens for recordings starting and stopping.
+	 */
+	FlightRecorderHook() {
+		FlightRecorder.addListener(new FlightRecorderListener() {
+			@Override
+			public void recordingStateChanged(
+					final jdk.jfr.Recording recording) {
+				update();
+			}
+		});
+		if (FlightRecorder.isInitialized()) {
+			update();
+		}
+	}
+
+	@Override
+	public Object beginLock() {
+		final StoreLockEvent event = new StoreLockEvent();
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public Object beginMessage() {
+		final MessageEvent event = new MessageEvent();
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public Object beginWait() {
+		final WaitEvent event = new WaitEvent();
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public void endLock(final Object event, final String operation,
+			final int count) {
+		final StoreLockEvent lockEvent = (StoreLockEvent) event;
+		if (lockEvent.shouldCommit()) {
+			lockEvent.operation = operation;
+			lockEvent.count = count;
+			lockEvent.commit();
+		}
+	}
+
+	@Override
+	public void endMessage(final Object event, final String type,
+			final int clientID, final long bytes, final long responseBytes) {
+		final MessageEvent messageEvent = (MessageEvent) event;
+		if (messageEvent.shouldCommit()) {
+			messageEvent.type = type;
+			messageEvent.clientID = clientID;
+			messageEvent.bytes = bytes;
+			messageEvent.responseBytes = responseBytes;
+			messageEvent.commit();
+		}
+	}
+
+	@Override
+	public void endWait(final Object event, final int clientID,
+			final int nSamples, final int nEvents, final long timeout,
+			final boolean woken) {
+		final WaitEvent waitEvent = (WaitEvent) event;
+		if (waitEvent.shouldCommit()) {
+			waitEvent.clientID = clientID;
+			waitEvent.nSamples = nSamples;
+			waitEvent.nEvents = nEvents;
+			waitEvent.timeout = timeout;
+			waitEvent.woken = woken;
+			waitEvent.commit();
+		}
+	}
+
+	@Override
+	public void overwritten(final String kind, final int count,
+			final int oldestIndex) {
+		final RingOverwriteEvent event = new RingOverwriteEvent();
+		if (event.shouldCommit()) {
+			event.kind = kind;
+			event.count = count;
+			event.oldestIndex = oldestIndex;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Recomputes Recording.active from the recordings of the flight recorder.
+	 */
+	private static void update() {
+		boolean running = false;
+		for (final jdk.jfr.Recording recording : FlightRecorder
+				.getFlightRecorder().getRecordings()) {
+			if (recording.getState() == RecordingState.RUNNING) {
+				running = true;
+			}
+		}
+		Recording.active = running;
+	}
+}
@@ -0,0 +1,35 @@
+package buffer_bci.javaserver.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Handling of a single request by a connection thread, from the moment its
+ * body has been read until the response has been written.
+ *
+ * @author Wieke Kanters
+ *
+ */
+@Name("buffer_bci.javaserver.Message")
+@Label("Message")
+@Category("Fieldtrip Buffer")
+@Description("Handling of a request, from reading its body to writing the response.")
+public class MessageEvent extends jdk.jfr.Event {
+
+	@Label("Type")
+	public String type;
+
+	@Label("Client ID")
+	public int clientID;
+
+	@Label("Request Size")
+	@DataAmount
+	public long bytes;
+
+	@Label("Response Size")
+	@DataAmount
+	public long responseBytes;
+}
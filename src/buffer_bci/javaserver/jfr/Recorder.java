@@ -0,0 +1,76 @@
+package buffer_bci.javaserver.jfr;
+
+/**
+ * Creates and commits the flight recorder events for Recording, so the only
+ * class referring to jdk.jfr types is its implementation FlightRecorderHook.
+ * Events are passed around as Object.
+ *
+ * @author Wieke Kanters
+ *
+ */
+interface Recorder {
+
+	/**
+	 * Creates and begins a StoreLockEvent.
+	 *
+	 * @return
+	 */
+	Object beginLock();
+
+	/**
+	 * Creates and begins a MessageEvent.
+	 *
+	 * @return
+	 */
+	Object beginMessage();
+
+	/**
+	 * Creates and begins a WaitEvent.
+	 *
+	 * @return
+	 */
+	Object beginWait();
+
+	/**
+	 * Commits a StoreLockEvent created by beginLock, if it is enabled.
+	 *
+	 * @param event
+	 * @param operation
+	 * @param count
+	 */
+	void endLock(Object event, String operation, int count);
+
+	/**
+	 * Commits a MessageEvent created by beginMessage, if it is enabled.
+	 *
+	 * @param event
+	 * @param type
+	 * @param clientID
+	 * @param bytes
+	 * @param responseBytes
+	 */
+	void endMessage(Object event, String type, int clientID, long bytes,
+			long responseBytes);
+
+	/**
+	 * Commits a WaitEvent created by beginWait, if it is enabled.
+	 *
+	 * @param event
+	 * @param clientID
+	 * @param nSamples
+	 * @param nEvents
+	 * @param timeout
+	 * @param woken
+	 */
+	void endWait(Object event, int clientID, int nSamples, int nEvents,
+			long timeout, boolean woken);
+
+	/**
+	 * Records a RingOverwriteEvent, if it is enabled.
+	 *
+	 * @param kind
+	 * @param count
+	 * @param oldestIndex
+	 */
+	void overwritten(String kind, int count, int oldestIndex);
+}
@@ -0,0 +1,141 @@
+package buffer_bci.javaserver.jfr;
+
+/**
+ * Tracks whether a flight recording is running and creates the events of
+ * this package for the rest of the buffer. While nothing is recorded the
+ * methods return after checking a volatile flag, so they neither allocate
+ * nor call into the flight recorder.
+ *
+ * This class does not refer to jdk.jfr itself. The flight recorder is
+ * resolved once, through FlightRecorderHook; on runtimes without it (a
+ * jlink image without the jdk.jfr module, Android) nothing is ever recorded.
+ *
+ * @author Wieke Kanters
+ *
+ */
+public final class Recording {
+
+	/**
+	 * True while at least one flight recording is running.
+	 */
+	public static volatile boolean active = false;
+
+	private static final Recorder RECORDER = load();
+
+	/**
+	 * Starts timing how long the store lock is held, must be called first
+	 * thing in a synchronized method.
+	 *
+	 * @return the event, or null if nothing is recorded.
+	 */
+	public static Object beginLock() {
+		return active ? RECORDER.beginLock() : null;
+	}
+
+	/**
+	 * Starts timing the handling of a message.
+	 *
+	 * @return the event, or null if nothing is recorded.
+	 */
+	public static Object beginMessage() {
+		return active ? RECORDER.beginMessage() : null;
+	}
+
+	/**
+	 * Starts timing a blocking wait request.
+	 *
+	 * @return the event, or null if nothing is recorded.
+	 */
+	public static Object beginWait() {
+		return active ? RECORDER.beginWait() : null;
+	}
+
+	/**
+	 * Ends an event started by beginLock.
+	 *
+	 * @param event
+	 * @param operation
+	 * @param count
+	 *            Number of samples or events put or returned.
+	 */
+	public static void endLock(final Object event, final String operation,
+			final int count) {
+		if (event != null) {
+			RECORDER.endLock(event, operation, count);
+		}
+	}
+
+	/**
+	 * Ends an event started by beginMessage.
+	 *
+	 * @param event
+	 * @param type
+	 * @param clientID
+	 * @param bytes
+	 *            Size of the request body.
+	 * @param responseBytes
+	 */
+	public static void endMessage(final Object event, final String type,
+			final int clientID, final long bytes, final long responseBytes) {
+		if (event != null) {
+			RECORDER.endMessage(event, type, clientID, bytes, responseBytes);
+		}
+	}
+
+	/**
+	 * Ends an event started by beginWait.
+	 *
+	 * @param event
+	 * @param clientID
+	 * @param nSamples
+	 * @param nEvents
+	 * @param timeout
+	 * @param woken
+	 *            True if the request was satisfied, false if it timed out.
+	 */
+	public static void endWait(final Object event, final int clientID,
+			final int nSamples, final int nEvents, final long timeout,
+			final boolean woken) {
+		if (event != null) {
+			RECORDER.endWait(event, clientID, nSamples, nEvents, timeout,
+					woken);
+		}
+	}
+
+	/**
+	 * Records that items were overwritten in a ring, if any were and a
+	 * flight recording is running.
+	 *
+	 * @param kind
+	 *            samples or events
+	 * @param count
+	 * @param oldestIndex
+	 */
+	public static void overwritten(final String kind, final int count,
+			final int oldestIndex) {
+		if (count > 0 && active) {
+			RECORDER.overwritten(kind, count, oldestIndex);
+		}
+	}
+
+	/**
+	 * Loads FlightRecorderHook, or returns null if the flight recorder is not
+	 * available. Recording then stays inactive.
+	 *
+	 * @return
+	 */
+	private static Recorder load() {
+		try {
+			return (Recorder) Class
+					.forName("buffer_bci.javaserver.jfr.FlightRecorderHook")
+					.getDeclaredConstructor().newInstance();
+		} catch (final ReflectiveOperationException | LinkageError
+				| SecurityException e) {
+			active = false;
+			return null;
+		}
+	}
+
+	private Recording() {
+	}
+}
@@ -0,0 +1,30 @@
+package buffer_bci.javaserver.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Samples or events dropped from a RingDataStore because the ring was full.
+ *
+ * @author Wieke Kanters
+ *
+ */
+@Name("buffer_bci.javaserver.RingOverwrite")
+@Label("Ring Overwrite")
+@Category("Fieldtrip Buffer")
+@Description("Samples or events overwritten because the ring was full.")
+public class RingOverwriteEvent extends jdk.jfr.Event {
+
+	@Label("Kind")
+	@Description("samples or events")
+	public String kind;
+
+	@Label("Overwritten")
+	public int count;
+
+	@Label("Oldest Index")
+	@Description("Index of the oldest item still stored afterwards.")
+	public int oldestIndex;
+}
@@ -0,0 +1,27 @@
+package buffer_bci.javaserver.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Time a RingDataStore operation held the store lock. Time spent waiting for
+ * the lock is recorded by the JDK as jdk.JavaMonitorEnter.
+ *
+ * @author Wieke Kanters
+ *
+ */
+@Name("buffer_bci.javaserver.StoreLock")
+@Label("Store Lock Held")
+@Category("Fieldtrip Buffer")
+@Description("Time a data store operation held the store lock.")
+public class StoreLockEvent extends jdk.jfr.Event {
+
+	@Label("Operation")
+	public String operation;
+
+	@Label("Count")
+	@Description("Number of samples or events put or returned.")
+	public int count;
+}
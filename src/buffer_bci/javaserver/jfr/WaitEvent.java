@@ -0,0 +1,38 @@
+package buffer_bci.javaserver.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * A connection thread blocking on a WaitRequest, until it is woken or times
+ * out.
+ *
+ * @author Wieke Kanters
+ *
+ */
+@Name("buffer_bci.javaserver.Wait")
+@Label("Wait Request")
+@Category("Fieldtrip Buffer")
+@Description("A WAIT_DAT blocking until it is satisfied or times out.")
+public class WaitEvent extends jdk.jfr.Event {
+
+	@Label("Client ID")
+	public int clientID;
+
+	@Label("Samples Threshold")
+	public int nSamples;
+
+	@Label("Events Threshold")
+	public int nEvents;
+
+	@Label("Timeout")
+	@Timespan(Timespan.MILLISECONDS)
+	public long timeout;
+
+	@Label("Woken")
+	@Description("True if the request was satisfied, false if it timed out.")
+	public boolean woken;
+}
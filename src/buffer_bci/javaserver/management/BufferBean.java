@@ -0,0 +1,57 @@
+package buffer_bci.javaserver.management;
+
+import buffer_bci.javaserver.Buffer;
+
+/**
+ * Exposes a Buffer as a BufferMXBean.
+ *
+ * @author Wieke Kanters
+ *
+ */
+public class BufferBean implements BufferMXBean {
+	private final Buffer buffer;
+	private final Rate acceptRate = new Rate();
+
+	/**
+	 * Constructor
+	 *
+	 * @param buffer
+	 */
+	public BufferBean(final Buffer buffer) {
+		this.buffer = buffer;
+	}
+
+	@Override
+	public double getAcceptRate() {
+		return acceptRate.update(buffer.getConnectionsAccepted());
+	}
+
+	@Override
+	public int getConnectionCount() {
+		return buffer.getConnectionCount();
+	}
+
+	@Override
+	public long getConnectionsAccepted() {
+		return buffer.getConnectionsAccepted();
+	}
+
+	@Override
+	public int getMaxMessageSize() {
+		return buffer.getMaxMessageSize();
+	}
+
+	@Override
+	public int getPort() {
+		return buffer.getPort();
+	}
+
+	@Override
+	public void setMaxMessageSize(final int maxMessageSize) {
+		if (maxMessageSize < 16) {
+			throw new IllegalArgumentException(
+					"Maximum message size must be at least 16.");
+		}
+		buffer.setMaxMessageSize(maxMessageSize);
+	}
+}
@@ -0,0 +1,55 @@
+package buffer_bci.javaserver.management;
+
+/**
+ * Management interface of a Buffer.
+ *
+ * @author Wieke Kanters
+ *
+ */
+public interface BufferMXBean {
+
+	/**
+	 * Returns the number of connections accepted per second, since the
+	 * previous call (at most once a second).
+	 *
+	 * @return
+	 */
+	public double getAcceptRate();
+
+	/**
+	 * Returns the number of open client connections.
+	 *
+	 * @return
+	 */
+	public int getConnectionCount();
+
+	/**
+	 * Returns the number of client connections accepted since the buffer
+	 * started.
+	 *
+	 * @return
+	 */
+	public long getConnectionsAccepted();
+
+	/**
+	 * Returns the maximum size of a message body that is read into memory.
+	 *
+	 * @return
+	 */
+	public int getMaxMessageSize();
+
+	/**
+	 * Returns the port the buffer listens on.
+	 *
+	 * @return
+	 */
+	public int getPort();
+
+	/**
+	 * Sets the maximum size of a message body that is read into memory, for
+	 * new and existing connections.
+	 *
+	 * @param maxMessageSize
+	 */
+	public void setMaxMessageSize(int maxMessageSize);
+}
@@ -0,0 +1,70 @@
+package buffer_bci.javaserver.management;
+
+import buffer_bci.javaserver.network.ConnectionThread;
+
+/**
+ * Exposes a ConnectionThread as a ConnectionMXBean.
+ *
+ * @author Wieke Kanters
+ *
+ */
+public class ConnectionBean implements ConnectionMXBean {
+	private final ConnectionThread connection;
+	private final Rate messageRate = new Rate();
+	private final Rate receiveRate = new Rate();
+	private final Rate sendRate = new Rate();
+
+	/**
+	 * Constructor
+	 *
+	 * @param connection
+	 */
+	public ConnectionBean(final ConnectionThread connection) {
+		this.connection = connection;
+	}
+
+	@Override
+	public void disconnect() {
+		connection.disconnect();
+	}
+
+	@Override
+	public String getAdress() {
+		return connection.clientAdress;
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return connection.getBytesReceived();
+	}
+
+	@Override
+	public long getBytesSent() {
+		return connection.getBytesSent();
+	}
+
+	@Override
+	public int getClientID() {
+		return connection.clientID;
+	}
+
+	@Override
+	public long getMessageCount() {
+		return connection.getMessageCount();
+	}
+
+	@Override
+	public double getMessageRate() {
+		return messageRate.update(connection.getMessageCount());
+	}
+
+	@Override
+	public double getReceiveRate() {
+		return receiveRate.update(connection.getBytesReceived());
+	}
+
+	@Override
+	public double getSendRate() {
+		return sendRate.update(connection.getBytesSent());
+	}
+}
@@ -0,0 +1,72 @@
+package buffer_bci.javaserver.management;
+
+/**
+ * Management interface of a single client connection. Rates are per second,
+ * since the previous call (at most once a second).
+ *
+ * @author Wieke Kanters
+ *
+ */
+public interface ConnectionMXBean {
+
+	/**
+	 * Closes the connection.
+	 */
+	public void disconnect();
+
+	/**
+	 * Returns the address and port of the client.
+	 *
+	 * @return
+	 */
+	public String getAdress();
+
+	/**
+	 * Returns the number of bytes of requests received.
+	 *
+	 * @return
+	 */
+	public long getBytesReceived();
+
+	/**
+	 * Returns the number of bytes of responses sent.
+	 *
+	 * @return
+	 */
+	public long getBytesSent();
+
+	/**
+	 * Returns the id of the client.
+	 *
+	 * @return
+	 */
+	public int getClientID();
+
+	/**
+	 * Returns the number of requests handled.
+	 *
+	 * @return
+	 */
+	public long getMessageCount();
+
+	/**
+	 * Returns the number of requests handled per second.
+	 *
+	 * @return
+	 */
+	public double getMessageRate();
+
+	/**
+	 * Returns the number of bytes received per second.
+	 *
+	 * @return
+	 */
+	public double getReceiveRate();
+
+	/**
+	 * Returns the number of bytes sent per second.
+	 *
+	 * @return
+	 */
+	public double getSendRate();
+}
@@ -0,0 +1,180 @@
+package buffer_bci.javaserver.management;
+
+import buffer_bci.javaserver.Buffer;
+import buffer_bci.javaserver.data.DataModel;
+import buffer_bci.javaserver.data.Header;
+import buffer_bci.javaserver.exceptions.DataException;
+import buffer_bci.javaserver.network.NetworkProtocol;
+
+/**
+ * Exposes the DataModel of a Buffer as a DataStoreMXBean. Values are read
+ * while holding the dataStore lock, so they are consistent with each other.
+ * Flushes go through the Buffer so its monitor is informed.
+ *
+ * @author Wieke Kanters
+ *
+ */
+public class DataStoreBean implements DataStoreMXBean {
+	private final Buffer buffer;
+	private final DataModel dataStore;
+
+	/**
+	 * Constructor
+	 *
+	 * @param buffer
+	 */
+	public DataStoreBean(final Buffer buffer) {
+		this.buffer = buffer;
+		dataStore = buffer.getDataStore();
+	}
+
+	/**
+	 * Throws IllegalStateException if there is no header, as flushing
+	 * requires one.
+	 */
+	private void checkHeader() {
+		if (!dataStore.headerExists()) {
+			throw new IllegalStateException("No header.");
+		}
+	}
+
+	@Override
+	public void flushData() {
+		checkHeader();
+		buffer.flushSamples();
+	}
+
+	@Override
+	public void flushEvents() {
+		checkHeader();
+		buffer.flushEvents();
+	}
+
+	@Override
+	public void flushHeader() {
+		checkHeader();
+		buffer.flushHeader();
+	}
+
+	@Override
+	public int getEventCapacity() {
+		return dataStore.getEventCapacity();
+	}
+
+	@Override
+	public int getEventCount() {
+		synchronized (dataStore) {
+			try {
+				return dataStore.headerExists() ? dataStore.getEventCount() : 0;
+			} catch (final DataException e) {
+				return 0;
+			}
+		}
+	}
+
+	@Override
+	public int getOldestEventIndex() {
+		synchronized (dataStore) {
+			try {
+				return dataStore.headerExists() ? dataStore
+						.getOldestEventIndex() : 0;
+			} catch (final DataException e) {
+				return 0;
+			}
+		}
+	}
+
+	@Override
+	public int getOldestSampleIndex() {
+		synchronized (dataStore) {
+			try {
+				return dataStore.headerExists() ? dataStore
+						.getOldestSampleIndex() : 0;
+			} catch (final DataException e) {
+				return 0;
+			}
+		}
+	}
+
+	@Override
+	public double getRingFill() {
+		synchronized (dataStore) {
+			final int capacity = dataStore.getSampleCapacity();
+			if (capacity <= 0) {
+				return 0;
+			}
+			return (double) storedSamples() / capacity;
+		}
+	}
+
+	@Override
+	public long getSampleBytes() {
+		synchronized (dataStore) {
+			try {
+				if (!dataStore.headerExists()) {
+					return 0;
+				}
+				final Header header = dataStore.getHeader();
+				final int sampleSize = header.nChans
+						* NetworkProtocol.dataTypeSize(header.dataType);
+				return (long) storedSamples() * sampleSize;
+			} catch (final DataException e) {
+				return 0;
+			}
+		}
+	}
+
+	@Override
+	public int getSampleCapacity() {
+		return dataStore.getSampleCapacity();
+	}
+
+	@Override
+	public int getSampleCount() {
+		synchronized (dataStore) {
+			try {
+				return dataStore.headerExists() ? dataStore.getSampleCount()
+						: 0;
+			} catch (final DataException e) {
+				return 0;
+			}
+		}
+	}
+
+	@Override
+	public int getWaitRequestCount() {
+		return dataStore.getWaitRequestCount();
+	}
+
+	@Override
+	public boolean isHeaderPresent() {
+		return dataStore.headerExists();
+	}
+
+	@Override
+	public void resize(final int nSamples, final int nEvents) {
+		try {
+			dataStore.resize(nSamples, nEvents);
+		} catch (final DataException e) {
+			throw new IllegalArgumentException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the number of samples still stored, must be called while
+	 * holding the dataStore lock.
+	 *
+	 * @return
+	 */
+	private int storedSamples() {
+		try {
+			if (!dataStore.headerExists()) {
+				return 0;
+			}
+			return dataStore.getSampleCount()
+					- dataStore.getOldestSampleIndex();
+		} catch (final DataException e) {
+			return 0;
+		}
+	}
+}
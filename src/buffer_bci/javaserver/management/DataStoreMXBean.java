@@ -0,0 +1,106 @@
+package buffer_bci.javaserver.management;
+
+/**
+ * Management interface of the DataModel of a Buffer. Counts are 0 while
+ * there is no header.
+ *
+ * @author Wieke Kanters
+ *
+ */
+public interface DataStoreMXBean {
+
+	/**
+	 * Removes all data.
+	 */
+	public void flushData();
+
+	/**
+	 * Removes all events.
+	 */
+	public void flushEvents();
+
+	/**
+	 * Removes the header, and all data & events.
+	 */
+	public void flushHeader();
+
+	/**
+	 * Returns the maximum number of events stored, -1 if unbounded.
+	 *
+	 * @return
+	 */
+	public int getEventCapacity();
+
+	/**
+	 * Returns the number of events put since the last flush.
+	 *
+	 * @return
+	 */
+	public int getEventCount();
+
+	/**
+	 * Returns the index of the oldest event still stored.
+	 *
+	 * @return
+	 */
+	public int getOldestEventIndex();
+
+	/**
+	 * Returns the index of the oldest sample still stored.
+	 *
+	 * @return
+	 */
+	public int getOldestSampleIndex();
+
+	/**
+	 * Returns the fraction of the sample capacity that is in use, 0 if
+	 * unbounded.
+	 *
+	 * @return
+	 */
+	public double getRingFill();
+
+	/**
+	 * Returns the number of bytes of sample data stored.
+	 *
+	 * @return
+	 */
+	public long getSampleBytes();
+
+	/**
+	 * Returns the maximum number of samples stored, -1 if unbounded.
+	 *
+	 * @return
+	 */
+	public int getSampleCapacity();
+
+	/**
+	 * Returns the number of samples put since the last flush.
+	 *
+	 * @return
+	 */
+	public int getSampleCount();
+
+	/**
+	 * Returns the number of WaitRequests that have not been satisfied yet.
+	 *
+	 * @return
+	 */
+	public int getWaitRequestCount();
+
+	/**
+	 * Returns true if a header has been put.
+	 *
+	 * @return
+	 */
+	public boolean isHeaderPresent();
+
+	/**
+	 * Changes the maximum number of samples and events stored, keeping the
+	 * newest ones that fit.
+	 *
+	 * @param nSamples
+	 * @param nEvents
+	 */
+	public void resize(int nSamples, int nEvents);
+}
@@ -0,0 +1,128 @@
+package buffer_bci.javaserver.management;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import buffer_bci.javaserver.Buffer;
+import buffer_bci.javaserver.network.ConnectionThread;
+
+/**
+ * Registers the MXBeans of a Buffer, its DataModel and its connections with
+ * the platform MBeanServer, so they can be inspected and tuned with standard
+ * JVM tools such as jconsole. The beans are named
+ * buffer_bci.javaserver:type=Buffer|DataStore|Connection,port=<port>, with
+ * an additional id=<clientID> for connections.
+ *
+ * @author Wieke Kanters
+ *
+ */
+public class Management {
+	public static final String DOMAIN = "buffer_bci.javaserver";
+
+	private final MBeanServer server = ManagementFactory
+			.getPlatformMBeanServer();
+	private final Buffer buffer;
+
+	/**
+	 * Constructor
+	 *
+	 * @param buffer
+	 */
+	public Management(final Buffer buffer) {
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Registers the bean of a new connection.
+	 *
+	 * @param connection
+	 */
+	public void connectionOpened(final ConnectionThread connection) {
+		try {
+			server.registerMBean(new ConnectionBean(connection),
+					connectionName(connection));
+		} catch (final JMException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Unregisters the bean of a closed connection.
+	 *
+	 * @param connection
+	 */
+	public void connectionClosed(final ConnectionThread connection) {
+		try {
+			unregister(connectionName(connection));
+		} catch (final JMException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns the name of the bean of a connection.
+	 *
+	 * @param connection
+	 * @return
+	 * @throws JMException
+	 */
+	private ObjectName connectionName(final ConnectionThread connection)
+			throws JMException {
+		return new ObjectName(DOMAIN + ":type=Connection,port="
+				+ buffer.getPort() + ",id=" + connection.clientID);
+	}
+
+	/**
+	 * Returns the name of a bean of the buffer.
+	 *
+	 * @param type
+	 * @return
+	 * @throws JMException
+	 */
+	private ObjectName name(final String type) throws JMException {
+		return new ObjectName(DOMAIN + ":type=" + type + ",port="
+				+ buffer.getPort());
+	}
+
+	/**
+	 * Registers the beans of the buffer and its DataModel.
+	 *
+	 * @throws JMException
+	 */
+	public void start() throws JMException {
+		server.registerMBean(new BufferBean(buffer), name("Buffer"));
+		server.registerMBean(new DataStoreBean(buffer), name("DataStore"));
+	}
+
+	/**
+	 * Unregisters all beans of the buffer and its connections.
+	 */
+	public void stop() {
+		try {
+			for (final ObjectName name : server.queryNames(new ObjectName(
+					DOMAIN + ":port=" + buffer.getPort() + ",*"), null)) {
+				unregister(name);
+			}
+		} catch (final JMException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Unregisters a bean, if it is registered.
+	 *
+	 * @param name
+	 * @throws JMException
+	 */
+	private void unregister(final ObjectName name) throws JMException {
+		try {
+			server.unregisterMBean(name);
+		} catch (final InstanceNotFoundException e) {
+			// Already unregistered by stop()
+		}
+	}
+}
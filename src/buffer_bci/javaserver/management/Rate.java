@@ -0,0 +1,35 @@
+package buffer_bci.javaserver.management;
+
+/**
+ * Rate of change of a growing total, per second. Recomputed at most once a
+ * second, so frequent reads by several management clients still give a
+ * stable value.
+ *
+ * @author Wieke Kanters
+ *
+ */
+class Rate {
+	private static final long MIN_INTERVAL = 1000 * 1000 * 1000;
+
+	private long lastTotal = 0;
+	private long lastTime = System.nanoTime();
+	private double rate = 0;
+
+	/**
+	 * Returns the rate since the previous update, given the current total.
+	 *
+	 * @param total
+	 * @return
+	 */
+	synchronized double update(final long total) {
+		final long now = System.nanoTime();
+
+		if (now - lastTime >= MIN_INTERVAL) {
+			rate = (total - lastTotal) * 1e9 / (now - lastTime);
+			lastTotal = total;
+			lastTime = now;
+		}
+
+		return rate;
+	}
+}
@@ -0,0 +1,260 @@
+package buffer_bci.javaserver.metrics;
+
+import buffer_bci.javaserver.network.NetworkProtocol;
+
+/**
+ * Latency histograms of the connection threads, one per message type and
+ * phase of handling a message:
+ *
+ * decode: from the first bytes of the message until its body has been read
+ * and decoded.
+ *
+ * store: accessing the dataStore, for WAIT_DAT this includes waiting.
+ *
+ * encode: encoding the response and informing the monitor.
+ *
+ * write: writing the response to the output, and flushing it if no further
+ * requests are pending.
+ *
+ * Handlers that do not mark their phases have all of their time counted as
+ * store.
+ *
+ * Besides the phases, the age of the samples returned by GET_DAT, GET_BATCH
+ * and WAIT_GET_DAT is recorded: the time from storing the oldest and the
+ * newest returned sample until writing the response.
+ *
+ * @author Wieke Kanters
+ *
+ */
+public class BufferMetrics {
+	public static final int DECODE = 0;
+	public static final int STORE = 1;
+	public static final int ENCODE = 2;
+	public static final int WRITE = 3;
+
+	private static final String[] PHASE_NAMES = { "decode", "store", "encode",
+			"write" };
+
+	private static final short[] TYPES = { NetworkProtocol.PUT_HDR,
+			NetworkProtocol.PUT_DAT, NetworkProtocol.PUT_EVT,
+			NetworkProtocol.GET_HDR, NetworkProtocol.GET_DAT,
+			NetworkProtocol.GET_EVT, NetworkProtocol.GET_BATCH,
+			NetworkProtocol.FLUSH_HDR, NetworkProtocol.FLUSH_DAT,
+			NetworkProtocol.FLUSH_EVT, NetworkProtocol.WAIT_DAT,
+			NetworkProtocol.WAIT_GET_DAT, NetworkProtocol.SUBSCRIBE,
+			NetworkProtocol.UNSUBSCRIBE };
+
+	private static final String[] TYPE_NAMES = { "PUT_HDR", "PUT_DAT",
+			"PUT_EVT", "GET_HDR", "GET_DAT", "GET_EVT", "GET_BATCH",
+			"FLUSH_HDR", "FLUSH_DAT", "FLUSH_EVT", "WAIT_DAT", "WAIT_GET_DAT",
+			"SUBSCRIBE", "UNSUBSCRIBE" };
+
+	/**
+	 * Returns the position of the message type in TYPES, or -1 if it is not
+	 * a request type.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private static int indexOf(final short type) {
+		for (int i = 0; i < TYPES.length; i++) {
+			if (TYPES[i] == type) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the name of a phase.
+	 *
+	 * @param phase
+	 * @return
+	 */
+	public static String phaseName(final int phase) {
+		return PHASE_NAMES[phase];
+	}
+
+	/**
+	 * Returns the request message types that are measured.
+	 *
+	 * @return
+	 */
+	public static short[] types() {
+		return TYPES.clone();
+	}
+
+	/**
+	 * Returns the name of a request message type.
+	 *
+	 * @param type
+	 * @return
+	 */
+	public static String typeName(final short type) {
+		final int index = indexOf(type);
+		return index < 0 ? Integer.toHexString(type) : TYPE_NAMES[index];
+	}
+
+	private final LatencyHistogram[][] histograms = new LatencyHistogram[TYPES.length][PHASE_NAMES.length];
+	private final LatencyHistogram oldestSampleAge = new LatencyHistogram();
+	private final LatencyHistogram newestSampleAge = new LatencyHistogram();
+
+	/**
+	 * Constructor
+	 */
+	public BufferMetrics() {
+		for (int i = 0; i < TYPES.length; i++) {
+			for (int j = 0; j < PHASE_NAMES.length; j++) {
+				histograms[i][j] = new LatencyHistogram();
+			}
+		}
+	}
+
+	/**
+	 * Returns the histogram of a message type and phase, or null if the type
+	 * is not measured.
+	 *
+	 * @param type
+	 * @param phase
+	 * @return
+	 */
+	public LatencyHistogram getHistogram(final short type, final int phase) {
+		final int index = indexOf(type);
+		return index < 0 ? null : histograms[index][phase];
+	}
+
+	/**
+	 * Returns the histogram of the age of the newest sample in each data
+	 * response.
+	 *
+	 * @return
+	 */
+	public LatencyHistogram getNewestSampleAge() {
+		return newestSampleAge;
+	}
+
+	/**
+	 * Returns the histogram of the age of the oldest sample in each data
+	 * response.
+	 *
+	 * @return
+	 */
+	public LatencyHistogram getOldestSampleAge() {
+		return oldestSampleAge;
+	}
+
+	/**
+	 * Records the phases of one handled message. All arguments are
+	 * System.nanoTime() values, a decoded or stored of 0 means the handler
+	 * did not mark that phase.
+	 *
+	 * @param type
+	 * @param received
+	 *            When the first bytes of the message were read.
+	 * @param decoded
+	 *            When the message body was decoded.
+	 * @param stored
+	 *            When the dataStore was done.
+	 * @param encoded
+	 *            When the response was encoded.
+	 * @param written
+	 *            When the response was written.
+	 */
+	public void record(final short type, final long received, long decoded,
+			long stored, final long encoded, final long written) {
+		final int index = indexOf(type);
+		if (index < 0) {
+			return;
+		}
+
+		// Count unmarked phases as store
+		if (decoded == 0) {
+			decoded = received;
+		}
+		if (stored == 0) {
+			stored = encoded;
+		}
+
+		final LatencyHistogram[] phases = histograms[index];
+		phases[DECODE].record(decoded - received);
+		phases[STORE].record(stored - decoded);
+		phases[ENCODE].record(encoded - stored);
+		phases[WRITE].record(written - encoded);
+	}
+
+	/**
+	 * Records the age of the samples in a data response. All arguments are
+	 * System.nanoTime() values.
+	 *
+	 * @param oldestArrival
+	 *            When the oldest returned sample was stored.
+	 * @param newestArrival
+	 *            When the newest returned sample was stored.
+	 * @param written
+	 *            When the response was written.
+	 */
+	public void recordSampleAge(final long oldestArrival,
+			final long newestArrival, final long written) {
+		oldestSampleAge.record(written - oldestArrival);
+		newestSampleAge.record(written - newestArrival);
+	}
+
+	/**
+	 * Returns a table with the count, p50, p99, p999 and max in microseconds
+	 * of every measured message type and phase, and of the sample ages.
+	 *
+	 * @return
+	 */
+	public String report() {
+		final StringBuilder report = new StringBuilder();
+		report.append(String.format("%-13s%-8s%10s%10s%10s%10s%10s%n",
+				"type", "phase", "count", "p50", "p99", "p999", "max"));
+
+		for (int i = 0; i < TYPES.length; i++) {
+			for (int j = 0; j < PHASE_NAMES.length; j++) {
+				appendRow(report, TYPE_NAMES[i], PHASE_NAMES[j],
+						histograms[i][j]);
+			}
+		}
+
+		appendRow(report, "sample age", "oldest", oldestSampleAge);
+		appendRow(report, "sample age", "newest", newestSampleAge);
+
+		return report.toString();
+	}
+
+	/**
+	 * Appends a row of the report, unless nothing was recorded.
+	 *
+	 * @param report
+	 * @param type
+	 * @param phase
+	 * @param histogram
+	 */
+	private static void appendRow(final StringBuilder report,
+			final String type, final String phase,
+			final LatencyHistogram histogram) {
+		final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+		if (snapshot.count == 0) {
+			return;
+		}
+
+		report.append(String.format("%-13s%-8s%10d%10.1f%10.1f%10.1f%10.1f%n",
+				type, phase, snapshot.count, snapshot.percentile(0.5) / 1e3,
+				snapshot.percentile(0.99) / 1e3,
+				snapshot.percentile(0.999) / 1e3, snapshot.max / 1e3));
+	}
+
+	/**
+	 * Clears all histograms.
+	 */
+	public void reset() {
+		for (final LatencyHistogram[] phases : histograms) {
+			for (final LatencyHistogram histogram : phases) {
+				histogram.reset();
+			}
+		}
+		oldestSampleAge.reset();
+		newestSampleAge.reset();
+	}
+}
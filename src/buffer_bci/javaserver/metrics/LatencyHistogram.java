@@ -0,0 +1,179 @@
+package buffer_bci.javaserver.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds. Buckets are spaced logarithmically
+ * with 16 linear sub-buckets per power of two, so percentiles are accurate to
+ * about 6%. Recording is lock-free and does not allocate, it can be done from
+ * many threads at once.
+ *
+ * @author Wieke Kanters
+ *
+ */
+public class LatencyHistogram {
+
+	/**
+	 * Counts of a histogram at one moment, used to compute percentiles.
+	 */
+	public static class Snapshot {
+		public final long count;
+		public final long max;
+		public final long sum;
+		private final long[] counts;
+
+		Snapshot(final long[] counts, final long max, final long sum) {
+			this.counts = counts;
+			this.max = max;
+			this.sum = sum;
+
+			long count = 0;
+			for (final long bucket : counts) {
+				count += bucket;
+			}
+			this.count = count;
+		}
+
+		/**
+		 * Returns the duration in nanoseconds below which the given fraction
+		 * of the recorded durations lie. Returns 0 if nothing was recorded.
+		 *
+		 * @param fraction
+		 *            Between 0 and 1, e.g. 0.99 for the 99th percentile.
+		 * @return
+		 */
+		public long percentile(final double fraction) {
+			if (count == 0) {
+				return 0;
+			}
+
+			final long rank = Math.max(1, (long) Math.ceil(fraction * count));
+
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return Math.min(upperBound(i), max);
+				}
+			}
+			return max;
+		}
+	}
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * Longest duration that is told apart, about 137 seconds. Longer
+	 * durations are counted in the last bucket (but do count for the max).
+	 */
+	private static final long MAX_TRACKABLE = (1L << 37) - 1;
+
+	private static final int N_BUCKETS = index(MAX_TRACKABLE) + 1;
+
+	/**
+	 * Returns the bucket of a duration.
+	 *
+	 * @param nanos
+	 * @return
+	 */
+	private static int index(long nanos) {
+		if (nanos < SUB_BUCKETS) {
+			return (int) Math.max(nanos, 0);
+		}
+		if (nanos > MAX_TRACKABLE) {
+			nanos = MAX_TRACKABLE;
+		}
+
+		final int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		final int shift = exponent - SUB_BUCKET_BITS;
+		final int subBucket = (int) (nanos >>> shift) & SUB_BUCKETS - 1;
+
+		return (shift + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Returns the largest duration counted in a bucket.
+	 *
+	 * @param index
+	 * @return
+	 */
+	private static long upperBound(final int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+
+		final int shift = index / SUB_BUCKETS - 1;
+		final long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+
+		return (subBucket + 1 << shift) - 1;
+	}
+
+	private final AtomicLongArray counts = new AtomicLongArray(N_BUCKETS);
+	private final AtomicLong max = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+
+	/**
+	 * Adds the durations recorded by another histogram, e.g. to compute
+	 * percentiles over several request types. Durations recorded in the other
+	 * histogram while adding may or may not be included.
+	 *
+	 * @param other
+	 */
+	public void add(final LatencyHistogram other) {
+		for (int i = 0; i < N_BUCKETS; i++) {
+			final long count = other.counts.get(i);
+			if (count > 0) {
+				counts.addAndGet(i, count);
+			}
+		}
+		sum.addAndGet(other.sum.get());
+
+		final long otherMax = other.max.get();
+		long current = max.get();
+		while (otherMax > current && !max.compareAndSet(current, otherMax)) {
+			current = max.get();
+		}
+	}
+
+	/**
+	 * Records a duration.
+	 *
+	 * @param nanos
+	 */
+	public void record(final long nanos) {
+		counts.incrementAndGet(index(nanos));
+		sum.addAndGet(nanos);
+
+		long current = max.get();
+		while (nanos > current && !max.compareAndSet(current, nanos)) {
+			current = max.get();
+		}
+	}
+
+	/**
+	 * Clears all recorded durations.
+	 */
+	public void reset() {
+		for (int i = 0; i < N_BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		max.set(0);
+		sum.set(0);
+	}
+
+	/**
+	 * Copies the current counts. Durations recorded while copying may or may
+	 * not be included.
+	 *
+	 * @return
+	 */
+	public Snapshot snapshot() {
+		final long[] copy = new long[N_BUCKETS];
+		for (int i = 0; i < N_BUCKETS; i++) {
+			copy[i] = counts.get(i);
+		}
+		return new Snapshot(copy, max.get(), sum.get());
+	}
+}
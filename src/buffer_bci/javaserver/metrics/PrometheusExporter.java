@@ -0,0 +1,455 @@
+package buffer_bci.javaserver.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import buffer_bci.javaserver.Buffer;
+import buffer_bci.javaserver.MetricsMonitor;
+import buffer_bci.javaserver.Telemetry;
+import buffer_bci.javaserver.management.DataStoreBean;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the metrics of a Buffer at /metrics in the Prometheus text format:
+ * throughput counters from a MetricsMonitor, the latency histograms of
+ * BufferMetrics as summaries, ring occupancy, and JVM memory, GC and
+ * allocation counters. Everything is rendered on the exporter's own thread
+ * when a scrape arrives, the connection threads only update their counters.
+ *
+ * @author Wieke Kanters
+ *
+ */
+public class PrometheusExporter implements HttpHandler {
+	public static final String DEFAULT_ADDRESS = "127.0.0.1";
+
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	private static final double[] QUANTILES = { 0.5, 0.99, 0.999 };
+
+	/**
+	 * Escapes a label value.
+	 *
+	 * @param value
+	 * @return
+	 */
+	private static String escape(final String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"")
+				.replace("\n", "\\n");
+	}
+
+	private final Buffer buffer;
+	private final MetricsMonitor monitor;
+	private final DataStoreBean dataStore;
+	private final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+	private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+	private Telemetry telemetry = null;
+	private HttpServer server = null;
+	private ExecutorService executor = null;
+
+	/**
+	 * Constructor
+	 *
+	 * @param buffer
+	 * @param monitor
+	 *            Monitor installed in the buffer that provides the
+	 *            throughput counters, null to leave them out. Its rates are
+	 *            reset by every scrape.
+	 */
+	public PrometheusExporter(final Buffer buffer,
+			final MetricsMonitor monitor) {
+		this.buffer = buffer;
+		this.monitor = monitor;
+		dataStore = new DataStoreBean(buffer);
+	}
+
+	/**
+	 * Appends the HELP and TYPE lines of a metric.
+	 *
+	 * @param text
+	 * @param name
+	 * @param type
+	 * @param help
+	 */
+	private static void describe(final StringBuilder text, final String name,
+			final String type, final String help) {
+		text.append("# HELP ").append(name).append(' ').append(help)
+				.append('\n');
+		text.append("# TYPE ").append(name).append(' ').append(type)
+				.append('\n');
+	}
+
+	/**
+	 * Appends a metric without labels, including its HELP and TYPE lines.
+	 *
+	 * @param text
+	 * @param name
+	 * @param type
+	 * @param help
+	 * @param value
+	 */
+	private static void metric(final StringBuilder text, final String name,
+			final String type, final String help, final double value) {
+		describe(text, name, type, help);
+		sample(text, name, null, value);
+	}
+
+	/**
+	 * Appends a single sample line.
+	 *
+	 * @param text
+	 * @param name
+	 * @param labels
+	 *            Labels in the form a="x",b="y", or null.
+	 * @param value
+	 */
+	private static void sample(final StringBuilder text, final String name,
+			final String labels, final double value) {
+		text.append(name);
+		if (labels != null) {
+			text.append('{').append(labels).append('}');
+		}
+		text.append(' ');
+		if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+			text.append((long) value);
+		} else {
+			text.append(value);
+		}
+		text.append('\n');
+	}
+
+	/**
+	 * Appends the quantiles, sum and count of a histogram in seconds.
+	 *
+	 * @param text
+	 * @param name
+	 * @param labels
+	 *            Labels in the form a="x",b="y", or null.
+	 * @param histogram
+	 */
+	private static void summary(final StringBuilder text, final String name,
+			final String labels, final LatencyHistogram histogram) {
+		final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+		if (snapshot.count == 0) {
+			return;
+		}
+
+		for (final double quantile : QUANTILES) {
+			sample(text, name, (labels == null ? "" : labels + ",")
+					+ "quantile=\"" + quantile + "\"",
+					snapshot.percentile(quantile) / 1e9);
+		}
+		sample(text, name + "_sum", labels, snapshot.sum / 1e9);
+		sample(text, name + "_count", labels, snapshot.count);
+	}
+
+	/**
+	 * Responds to a scrape.
+	 */
+	@Override
+	public void handle(final HttpExchange exchange) throws IOException {
+		try {
+			if (!"GET".equals(exchange.getRequestMethod())) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+
+			final byte[] body = render().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			exchange.sendResponseHeaders(200, body.length);
+
+			final OutputStream output = exchange.getResponseBody();
+			output.write(body);
+			output.close();
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Returns all metrics in the Prometheus text format.
+	 *
+	 * @return
+	 */
+	public String render() {
+		final StringBuilder text = new StringBuilder(16 * 1024);
+
+		renderConnections(text);
+		if (monitor != null) {
+			renderThroughput(text, monitor.snapshot());
+		}
+		renderStore(text);
+		if (buffer.getMetrics() != null) {
+			renderLatency(text, buffer.getMetrics());
+		}
+		renderJvm(text);
+		if (telemetry != null) {
+			renderTelemetry(text, telemetry);
+		}
+
+		return text.toString();
+	}
+
+	/**
+	 * Appends the connection counts.
+	 *
+	 * @param text
+	 */
+	private void renderConnections(final StringBuilder text) {
+		metric(text, "fieldtrip_connections", "gauge",
+				"Open client connections.", buffer.getConnectionCount());
+		metric(text, "fieldtrip_connections_accepted_total", "counter",
+				"Client connections accepted.",
+				buffer.getConnectionsAccepted());
+	}
+
+	/**
+	 * Appends the memory, GC and allocation counters of the JVM.
+	 *
+	 * @param text
+	 */
+	private void renderJvm(final StringBuilder text) {
+		describe(text, "jvm_memory_used_bytes", "gauge",
+				"Used heap and non-heap memory.");
+		sample(text, "jvm_memory_used_bytes", "area=\"heap\"", memoryBean
+				.getHeapMemoryUsage().getUsed());
+		sample(text, "jvm_memory_used_bytes", "area=\"nonheap\"", memoryBean
+				.getNonHeapMemoryUsage().getUsed());
+
+		describe(text, "jvm_gc_collections_total", "counter",
+				"Garbage collections.");
+		for (final GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			sample(text, "jvm_gc_collections_total",
+					"gc=\"" + escape(gc.getName()) + "\"",
+					gc.getCollectionCount());
+		}
+
+		describe(text, "jvm_gc_collection_seconds_total", "counter",
+				"Time spent in garbage collections.");
+		for (final GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			sample(text, "jvm_gc_collection_seconds_total",
+					"gc=\"" + escape(gc.getName()) + "\"",
+					gc.getCollectionTime() / 1e3);
+		}
+
+		if (threadBean instanceof com.sun.management.ThreadMXBean) {
+			long allocated = 0;
+			for (final long bytes : ((com.sun.management.ThreadMXBean) threadBean)
+					.getThreadAllocatedBytes(threadBean.getAllThreadIds())) {
+				allocated += Math.max(bytes, 0);
+			}
+			metric(text, "jvm_threads_allocated_bytes", "gauge",
+					"Bytes allocated by the live threads.", allocated);
+		}
+	}
+
+	/**
+	 * Appends the latency histograms.
+	 *
+	 * @param text
+	 * @param metrics
+	 */
+	private static void renderLatency(final StringBuilder text,
+			final BufferMetrics metrics) {
+		describe(text, "fieldtrip_request_phase_seconds", "summary",
+				"Time spent in each phase of handling a request.");
+		for (final short type : BufferMetrics.types()) {
+			for (int phase = BufferMetrics.DECODE; phase <= BufferMetrics.WRITE; phase++) {
+				summary(text, "fieldtrip_request_phase_seconds", "type=\""
+						+ BufferMetrics.typeName(type) + "\",phase=\""
+						+ BufferMetrics.phaseName(phase) + "\"",
+						metrics.getHistogram(type, phase));
+			}
+		}
+
+		describe(text, "fieldtrip_sample_age_seconds", "summary",
+				"Age of the oldest and newest sample in data responses.");
+		summary(text, "fieldtrip_sample_age_seconds", "sample=\"oldest\"",
+				metrics.getOldestSampleAge());
+		summary(text, "fieldtrip_sample_age_seconds", "sample=\"newest\"",
+				metrics.getNewestSampleAge());
+	}
+
+	/**
+	 * Appends the off-heap memory, allocation rates and GC pauses sampled by
+	 * Telemetry.
+	 *
+	 * @param text
+	 * @param telemetry
+	 */
+	private static void renderTelemetry(final StringBuilder text,
+			final Telemetry telemetry) {
+		metric(text, "jvm_buffer_pool_used_bytes", "gauge",
+				"Memory used by direct and mapped buffers.",
+				telemetry.getBufferPoolUsed());
+		metric(text, "jvm_allocation_rate_bytes", "gauge",
+				"Bytes allocated per second by all threads.",
+				telemetry.getAllocationRate());
+
+		describe(text, "jvm_thread_allocation_rate_bytes", "gauge",
+				"Bytes allocated per second by each thread.");
+		for (final Telemetry.ThreadAllocation thread : telemetry
+				.getThreadAllocations()) {
+			sample(text, "jvm_thread_allocation_rate_bytes", "thread=\""
+					+ escape(thread.name) + "\",id=\"" + thread.threadID
+					+ "\"", thread.rate);
+		}
+
+		describe(text, "jvm_gc_pause_seconds", "summary",
+				"Garbage collection pauses.");
+		summary(text, "jvm_gc_pause_seconds", null, telemetry.getGcPauses());
+	}
+
+	/**
+	 * Appends the occupancy of the dataStore.
+	 *
+	 * @param text
+	 */
+	private void renderStore(final StringBuilder text) {
+		metric(text, "fieldtrip_samples", "gauge",
+				"Samples put since the last flush.",
+				dataStore.getSampleCount());
+		metric(text, "fieldtrip_oldest_sample_index", "gauge",
+				"Index of the oldest sample still stored.",
+				dataStore.getOldestSampleIndex());
+		metric(text, "fieldtrip_sample_capacity", "gauge",
+				"Maximum number of samples stored, -1 if unbounded.",
+				dataStore.getSampleCapacity());
+		metric(text, "fieldtrip_ring_fill_ratio", "gauge",
+				"Fraction of the sample capacity in use.",
+				dataStore.getRingFill());
+		metric(text, "fieldtrip_sample_bytes", "gauge",
+				"Bytes of sample data stored.", dataStore.getSampleBytes());
+		metric(text, "fieldtrip_events", "gauge",
+				"Events put since the last flush.", dataStore.getEventCount());
+		metric(text, "fieldtrip_event_capacity", "gauge",
+				"Maximum number of events stored, -1 if unbounded.",
+				dataStore.getEventCapacity());
+		metric(text, "fieldtrip_wait_requests", "gauge",
+				"WaitRequests that have not been satisfied yet.",
+				dataStore.getWaitRequestCount());
+	}
+
+	/**
+	 * Appends the totals of the monitor, and per client.
+	 *
+	 * @param text
+	 * @param snapshot
+	 */
+	private static void renderThroughput(final StringBuilder text,
+			final MetricsMonitor.Snapshot snapshot) {
+		metric(text, "fieldtrip_samples_put_total", "counter",
+				"Samples put by clients.", snapshot.samplesPut);
+		metric(text, "fieldtrip_samples_get_total", "counter",
+				"Samples sent to clients.", snapshot.samplesGet);
+		metric(text, "fieldtrip_events_put_total", "counter",
+				"Events put by clients.", snapshot.eventsPut);
+		metric(text, "fieldtrip_events_get_total", "counter",
+				"Events sent to clients.", snapshot.eventsGet);
+		metric(text, "fieldtrip_bytes_put_total", "counter",
+				"Bytes of sample data put by clients.", snapshot.bytesPut);
+		metric(text, "fieldtrip_bytes_get_total", "counter",
+				"Bytes of sample data sent to clients.", snapshot.bytesGet);
+		metric(text, "fieldtrip_headers_put_total", "counter",
+				"Headers put.", snapshot.headersPut);
+		metric(text, "fieldtrip_headers_get_total", "counter",
+				"Headers sent to clients.", snapshot.headersGet);
+		metric(text, "fieldtrip_flushes_total", "counter",
+				"Flushes of the header, data or events.", snapshot.flushes);
+		metric(text, "fieldtrip_waits_total", "counter",
+				"Blocking WAIT_DAT requests.", snapshot.waits);
+		metric(text, "fieldtrip_polls_total", "counter",
+				"WAIT_DAT requests with timeout 0.", snapshot.polls);
+		metric(text, "fieldtrip_errors_total", "counter",
+				"Connections ended by an error.", snapshot.errors);
+
+		describe(text, "fieldtrip_client_requests_total", "counter",
+				"Requests per connected client.");
+		for (final MetricsMonitor.ClientSnapshot client : snapshot.clients) {
+			sample(text, "fieldtrip_client_requests_total", labels(client),
+					client.requests);
+		}
+
+		describe(text, "fieldtrip_client_bytes_put_total", "counter",
+				"Bytes of sample data put per connected client.");
+		for (final MetricsMonitor.ClientSnapshot client : snapshot.clients) {
+			sample(text, "fieldtrip_client_bytes_put_total", labels(client),
+					client.bytesPut);
+		}
+
+		describe(text, "fieldtrip_client_bytes_get_total", "counter",
+				"Bytes of sample data sent per connected client.");
+		for (final MetricsMonitor.ClientSnapshot client : snapshot.clients) {
+			sample(text, "fieldtrip_client_bytes_get_total", labels(client),
+					client.bytesGet);
+		}
+	}
+
+	/**
+	 * Returns the labels identifying a client.
+	 *
+	 * @param client
+	 * @return
+	 */
+	private static String labels(final MetricsMonitor.ClientSnapshot client) {
+		return "client=\"" + client.clientID + "\",adress=\""
+				+ escape(String.valueOf(client.adress)) + "\"";
+	}
+
+	/**
+	 * Adds the samples of a running Telemetry to the metrics, or removes
+	 * them if null.
+	 *
+	 * @param telemetry
+	 */
+	public void setTelemetry(final Telemetry telemetry) {
+		this.telemetry = telemetry;
+	}
+
+	/**
+	 * Starts serving /metrics on the given address, on a single daemon
+	 * thread.
+	 *
+	 * @param address
+	 * @throws IOException
+	 */
+	public void start(final InetSocketAddress address) throws IOException {
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable,
+						"Fieldtrip Metrics Exporter");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		server = HttpServer.create(address, 0);
+		server.createContext("/metrics", this);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * Stops serving.
+	 */
+	public void stop() {
+		if (server != null) {
+			server.stop(0);
+			executor.shutdown();
+			server = null;
+		}
+	}
+}
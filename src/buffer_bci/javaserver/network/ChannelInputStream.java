@@ -0,0 +1,67 @@
+package buffer_bci.javaserver.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * InputStream reading from a blocking SocketChannel, used for Unix domain
+ * sockets which have no Socket adaptor. Unlike Channels.newInputStream it
+ * does not hold the blocking lock of the channel while reading, so another
+ * thread can write to the channel while this one waits for a request.
+ *
+ * Reuses the ByteBuffer wrapping the array it last read into, so reading
+ * through a BufferedInputStream does not allocate.
+ *
+ * @author Wieke Kanters
+ *
+ */
+public class ChannelInputStream extends InputStream {
+	private final SocketChannel channel;
+	private ByteBuffer wrapper = null;
+	private final byte[] single = new byte[1];
+
+	/**
+	 * Constructor
+	 *
+	 * @param channel
+	 *            A connected, blocking channel.
+	 */
+	public ChannelInputStream(final SocketChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Returns 0, a SocketChannel cannot tell how many bytes are waiting.
+	 */
+	@Override
+	public int available() throws IOException {
+		return 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	@Override
+	public int read() throws IOException {
+		final int n = read(single, 0, 1);
+		return n < 0 ? -1 : single[0] & 0xFF;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len)
+			throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (wrapper == null || wrapper.array() != b) {
+			wrapper = ByteBuffer.wrap(b);
+		}
+		wrapper.limit(off + len);
+		wrapper.position(off);
+		return channel.read(wrapper);
+	}
+}
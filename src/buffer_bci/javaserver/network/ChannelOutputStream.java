@@ -0,0 +1,56 @@
+package buffer_bci.javaserver.network;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * OutputStream writing to a blocking SocketChannel, the counterpart of
+ * ChannelInputStream. Does not hold the blocking lock of the channel, so it
+ * can write while another thread is reading from the channel.
+ *
+ * @author Wieke Kanters
+ *
+ */
+public class ChannelOutputStream extends OutputStream {
+	private final SocketChannel channel;
+	private ByteBuffer wrapper = null;
+	private final byte[] single = new byte[1];
+
+	/**
+	 * Constructor
+	 *
+	 * @param channel
+	 *            A connected, blocking channel.
+	 */
+	public ChannelOutputStream(final SocketChannel channel) {
+		this.channel = channel;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len)
+			throws IOException {
+		if (wrapper == null || wrapper.array() != b) {
+			wrapper = ByteBuffer.wrap(b);
+		}
+		wrapper.limit(off + len);
+		wrapper.position(off);
+
+		// A blocking channel may still write less than asked for.
+		while (wrapper.hasRemaining()) {
+			channel.write(wrapper);
+		}
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+		single[0] = (byte) b;
+		write(single, 0, 1);
+	}
+}
@@ -2,34 +2,81 @@ package buffer_bci.javaserver.network;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.Socket;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
 
 import buffer_bci.javaserver.Buffer;
 import buffer_bci.javaserver.FieldtripBufferMonitor;
-import buffer_bci.javaserver.data.Data;
 import buffer_bci.javaserver.data.DataModel;
 import buffer_bci.javaserver.data.Event;
+import buffer_bci.javaserver.data.EventFilter;
 import buffer_bci.javaserver.data.Header;
 import buffer_bci.javaserver.exceptions.ClientException;
 import buffer_bci.javaserver.exceptions.DataException;
+import buffer_bci.javaserver.jfr.Recording;
+import buffer_bci.javaserver.metrics.BufferMetrics;
 
 /**
  * Thread for handling a single connection. Uses NetworkProtocol to
  * encode/decode messages. Uses a shared dataModel object for storing data.
+ * Messages, requests and the most frequent responses use containers and
+ * buffers owned by the connection, so handling PUT_DAT, GET_DAT, GET_HDR and
+ * WAIT_DAT does not allocate once the buffers have grown to size.
  *
  * @author Wieke Kanters
  *
  */
 public class ConnectionThread extends Thread {
-	private final Socket socket;
+	/**
+	 * Size of the input/output buffers. Responses to pipelined requests are
+	 * collected in the output buffer and written with a single flush.
+	 */
+	private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Milliseconds stopPushing waits for a push write to finish before it
+	 * closes the connection.
+	 */
+	private static final long PUSH_STOP_TIMEOUT = 1000;
+
+	private final Closeable socket;
 	private final DataModel dataStore;
 	public final String clientAdress;
 	private boolean disconnectedOnPurpose = false;
 	private FieldtripBufferMonitor monitor;
 	public final int clientID;
 	private final Buffer buffer;
+	private BufferedOutputStream output;
+	private BufferedInputStream input;
+	private Subscription subscription = null;
+	private PushThread pusher = null;
+	private final EventView eventView = new EventView();
+	private final DataView dataView = new DataView();
+	private final Message message = new Message();
+	private final Request range = new Request();
+	private final WaitRequest waitRequest = new WaitRequest();
+	private ByteBuffer response = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+	private int maxMessageSize = NetworkProtocol.DEFAULT_MAX_MESSAGE_SIZE;
+	private BufferMetrics metrics = null;
+
+	// Only written by this thread, read by management clients.
+	private volatile long messageCount = 0;
+	private volatile long bytesReceived = 0;
+	private volatile long bytesSent = 0;
+
+	// System.nanoTime() at which the handler of the current message finished
+	// decoding and accessing the dataStore, 0 if not marked.
+	private long decoded;
+	private long stored;
+
+	// System.nanoTime() at which the oldest and newest sample in the current
+	// response were stored, 0 if it contains no samples.
+	private long oldestArrival;
+	private long newestArrival;
 
 	/**
 	 * Constructor
@@ -50,6 +97,28 @@ public class ConnectionThread extends Thread {
 		this.buffer = buffer;
 	}
 
+	/**
+	 * Constructor for a connection accepted on a Unix domain socket.
+	 *
+	 * @param channel
+	 *            The blocking channel for the connection.
+	 * @param clientAdress
+	 *            Description of the client, Unix domain clients are usually
+	 *            unnamed.
+	 * @param dataStore
+	 *            The storage for all the data implementing the datamodel
+	 *            interface.
+	 */
+	public ConnectionThread(final int clientID, final SocketChannel channel,
+			final String clientAdress, final DataModel dataStore,
+			final Buffer buffer) {
+		this.clientID = clientID;
+		socket = channel;
+		this.dataStore = dataStore;
+		this.clientAdress = clientAdress;
+		this.buffer = buffer;
+	}
+
 	/**
 	 * Adds a FiedltripBufferMonitor to this thread.
 	 *
@@ -60,6 +129,55 @@ public class ConnectionThread extends Thread {
 
 	}
 
+	/**
+	 * Returns the number of bytes of requests received.
+	 *
+	 * @return
+	 */
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	/**
+	 * Returns the number of bytes of responses sent, not counting pushed
+	 * samples and events.
+	 *
+	 * @return
+	 */
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	/**
+	 * Returns the number of requests handled.
+	 *
+	 * @return
+	 */
+	public long getMessageCount() {
+		return messageCount;
+	}
+
+	/**
+	 * Sets the latency histograms the handling of messages is recorded in,
+	 * null to stop recording.
+	 *
+	 * @param metrics
+	 */
+	public void setMetrics(final BufferMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sets the maximum size of a message body that is read into memory.
+	 * Larger PUT_DAT messages are stored in pieces of at most this size,
+	 * other larger messages are rejected.
+	 *
+	 * @param maxMessageSize
+	 */
+	public void setMaxMessageSize(final int maxMessageSize) {
+		this.maxMessageSize = Math.max(maxMessageSize, 16);
+	}
+
 	/**
 	 * Disconnects the client connection and stops the thread.
 	 */
@@ -155,71 +273,124 @@ public class ConnectionThread extends Thread {
 	 *            @
 	 */
 	private byte[] handleGetData(final Message message) {
-		try {
+		Request request = null;
 
-			Data data;
+		// Check if a request for a specific range has been made.
+		if (message.buffer.limit() > 0) {
+			// Get data request from message
+			request = NetworkProtocol.decodeRequest(message.buffer, range);
+		}
+		markDecoded();
 
-			// Check if a request for a specific range has been made.
-			if (message.buffer.capacity() > 0) {
-				// Get data request from message
-				final Request request = NetworkProtocol
-						.decodeRequest(message.buffer);
+		return getData(request, message);
+	}
 
-				// Get the requested data
-				data = dataStore.getData(request);
-			} else {
-				data = dataStore.getData();
-			}
+	/**
+	 * Gets the requested data, or all data if request is null, and encodes it
+	 * into the response buffer for sending it to the client.
+	 *
+	 * @param request
+	 * @param message
+	 * @return
+	 */
+	private byte[] getData(final Request request, final Message message) {
+		response(message.order);
+		putData(request, message);
+		return response.array();
+	}
 
-			// Inform monitor
-			if (monitor != null) {
-				monitor.clientGetSamples(data.nSamples, clientID, message.time);
-			}
+	/**
+	 * Encodes the requested events for sending it to the client.
+	 *
+	 * @param message
+	 * @return
+	 */
+	private byte[] handleGetEvent(final Message message) {
+		Request request = null;
+		EventFilter filter = null;
 
-			// Return message containing requested data
-			return NetworkProtocol.encodeData(data, message.order);
+		// Check if a request for a specific range has been made.
+		if (message.buffer.limit() > 0) {
+			// Get event request from message
+			request = NetworkProtocol.decodeRequest(message.buffer);
 
-		} catch (final DataException e) {
-			// Return error
-			return NetworkProtocol.encodeGetError(message.order);
+			// Check if an event filter follows the range.
+			if (message.buffer.remaining() > 0) {
+				try {
+					filter = NetworkProtocol.decodeEventFilter(message.buffer);
+				} catch (final ClientException e) {
+					return NetworkProtocol.encodeGetError(message.order);
+				}
+			}
 		}
+		markDecoded();
+
+		return getEvents(request, filter, message);
 	}
 
 	/**
-	 * Encodes the requested events for sending it to the client.
+	 * Gets the requested events, or all events if request is null, and
+	 * encodes them into the response buffer for sending it to the client. Only
+	 * events matching the filter are returned, unless the filter is null.
 	 *
+	 * @param request
+	 * @param filter
 	 * @param message
 	 * @return
 	 */
-	private byte[] handleGetEvent(final Message message) {
-		try {
+	private byte[] getEvents(final Request request, final EventFilter filter,
+			final Message message) {
+		response(message.order);
+		putEvents(request, filter, message);
+		return response.array();
+	}
 
-			Event[] events;
+	/**
+	 * Handles a GET_BATCH message. Responds with the GET_HDR, GET_DAT and
+	 * GET_EVT responses concatenated, all taken from one consistent snapshot
+	 * of the dataStore. The message is either empty (all data and events) or
+	 * contains the begin/end of the data and of the events, a negative begin
+	 * requests all data/events.
+	 *
+	 * @param message
+	 * @return
+	 */
+	private byte[] handleGetBatch(final Message message) {
+		Request dataRequest = null;
+		Request eventRequest = null;
 
-			// Check if a request for a specific range has been made.
-			if (message.buffer.capacity() > 0) {
-				// Get data request from message
-				final Request request = NetworkProtocol
-						.decodeRequest(message.buffer);
+		if (message.buffer.limit() == 16) {
+			dataRequest = NetworkProtocol.decodeRequest(message.buffer);
+			eventRequest = NetworkProtocol.decodeRequest(message.buffer);
 
-				// Get the requested data
-				events = dataStore.getEvents(request);
-			} else {
-				events = dataStore.getEvents();
+			if (dataRequest.begin < 0) {
+				dataRequest = null;
 			}
-
-			// Inform monitor
-			if (monitor != null) {
-				monitor.clientGetEvents(events.length, clientID, message.time);
+			if (eventRequest.begin < 0) {
+				eventRequest = null;
 			}
-
-			// Return message containing requested data
-			return NetworkProtocol.encodeEvents(events, message.order);
-
-		} catch (final DataException e) {
-			// Return error
-			return NetworkProtocol.encodeGetError(message.order);
+		} else if (message.buffer.limit() != 0) {
+			// Malformed, respond with an error for each part.
+			final byte[] error = NetworkProtocol.encodeGetError(message.order);
+			response(message.order);
+			putResponse(error);
+			putResponse(error);
+			putResponse(error);
+			return response.array();
+		}
+		markDecoded();
+
+		// Encode the three responses one after another into the response
+		// buffer. Hold the dataStore lock so the counts in the header match
+		// the data and events.
+		response(message.order);
+		synchronized (dataStore) {
+			putHeader(message);
+			putData(dataRequest, message);
+			putEvents(eventRequest, null, message);
 		}
+
+		return response.array();
 	}
 
 	/**
@@ -230,20 +401,117 @@ public class ConnectionThread extends Thread {
 	 *            @
 	 */
 	private byte[] handleGetHeader(final Message message) {
+		markDecoded();
+		response(message.order);
+		putHeader(message);
+		return response.array();
+	}
+
+	/**
+	 * Handles the message using the appropriate function.
+	 *
+	 * @param message
+	 * @return the response
+	 * @throws ClientException
+	 *             Thrown if the message type is unknown.
+	 */
+	private byte[] handleMessage(final Message message) throws ClientException {
+		switch (message.type) {
+		case NetworkProtocol.PUT_HDR:
+			return handlePutHeader(message);
+		case NetworkProtocol.GET_HDR:
+			return handleGetHeader(message);
+		case NetworkProtocol.PUT_DAT:
+			return handlePutData(message);
+		case NetworkProtocol.GET_DAT:
+			return handleGetData(message);
+		case NetworkProtocol.GET_EVT:
+			return handleGetEvent(message);
+		case NetworkProtocol.GET_BATCH:
+			return handleGetBatch(message);
+		case NetworkProtocol.PUT_EVT:
+			return handlePutEvent(message);
+		case NetworkProtocol.FLUSH_DAT:
+			return handleFlushData(message);
+		case NetworkProtocol.FLUSH_EVT:
+			return handleFlushEvents(message);
+		case NetworkProtocol.FLUSH_HDR:
+			return handleFlushHeader(message);
+		case NetworkProtocol.WAIT_DAT:
+			return handleWaitData(message);
+		case NetworkProtocol.WAIT_GET_DAT:
+			return handleWaitGetData(message);
+		case NetworkProtocol.SUBSCRIBE:
+			return handleSubscribe(message);
+		case NetworkProtocol.UNSUBSCRIBE:
+			return handleUnsubscribe(message);
+		default:
+			throw new ClientException("Unknown message type.");
+		}
+	}
+
+	/**
+	 * Handles a message whose body exceeds the maximum message size and is
+	 * still in the input stream. A PUT_DAT is stored in pieces of at most the
+	 * maximum message size, anything else is rejected without reading the
+	 * body.
+	 *
+	 * @param message
+	 * @return the response
+	 * @throws ClientException
+	 *             Thrown if the message is not a PUT_DAT.
+	 * @throws IOException
+	 */
+	private byte[] handleOversizedMessage(final Message message)
+			throws ClientException, IOException {
+		if (message.type != NetworkProtocol.PUT_DAT) {
+			throw new ClientException("Message exceeds maximum size.");
+		}
+
+		// Get the data definition
+		final ByteBuffer definition = NetworkProtocol.readBody(input, message,
+				16);
+		final int nChans = definition.getInt(0);
+		final int nSamples = definition.getInt(4);
+		final int dataType = definition.getInt(8);
+
+		long remaining = message.size - 16L;
+
 		try {
-			final Header header = dataStore.getHeader();
+			final int sampleSize = NetworkProtocol.decodeDataDefinition(
+					definition, message.size, maxMessageSize);
+			final int samplesPerPiece = maxMessageSize / sampleSize;
 
-			// Inform monitor
+			int count = 0;
+
+			// Read, decode and store the data one piece at a time
+			for (int i = 0; i < nSamples; i += samplesPerPiece) {
+				final int n = Math.min(samplesPerPiece, nSamples - i);
+
+				final ByteBuffer piece = NetworkProtocol.readBody(input,
+						message, n * sampleSize);
+				remaining -= n * sampleSize;
+
+				count = dataStore.putData(NetworkProtocol.decodeSamples(piece,
+						nChans, n, dataType, dataView));
+			}
+
+			// Return okay and inform monitor
 			if (monitor != null) {
-				monitor.clientGetHeader(clientID, message.time);
+				monitor.clientPutSamples(count, clientID, nSamples,
+						message.time);
 			}
-			// Return message containing header
-			return NetworkProtocol.encodeHeader(header, message.order);
+			return NetworkProtocol.encodePutOkay(message.order);
 
-		} catch (final DataException e) {
-			// Return error
-			return NetworkProtocol.encodeGetError(message.order);
+		} catch (final ClientException e) {
+			// Skip the rest of the message and return error
+			NetworkProtocol.skipBody(input, remaining);
+			return NetworkProtocol.encodePutError(message.order);
 
+		} catch (final DataException e) {
+			// Skip the rest of the message and return error
+			NetworkProtocol.skipBody(input, remaining);
+			return NetworkProtocol.encodePutError(message.order);
 		}
 	}
 
@@ -257,26 +525,29 @@ public class ConnectionThread extends Thread {
 	 */
 	private byte[] handlePutData(final Message message) {
 		try {
-			// Get data from message
-			final Data data = NetworkProtocol.decodeData(message.buffer);
+			// Validate the data in the message
+			final DataView data = NetworkProtocol.decodeData(message.buffer,
+					dataView);
+			markDecoded();
 
 			// Store data
 			final int nSamples = dataStore.putData(data);
+			markStored();
 
 			// Return okay and inform monitor
 			if (monitor != null) {
-				monitor.clientPutSamples(nSamples, clientID, data.nSamples,
+				monitor.clientPutSamples(nSamples, clientID, data.nSamples(),
 						message.time);
 			}
 			return NetworkProtocol.encodePutOkay(message.order);
 
 		} catch (final ClientException e) {
 			// Return error
-			return NetworkProtocol.encodeGetError(message.order);
+			return NetworkProtocol.encodePutError(message.order);
 
 		} catch (final DataException e) {
 			// Return error
-			return NetworkProtocol.encodeGetError(message.order);
+			return NetworkProtocol.encodePutError(message.order);
 
 		}
 
@@ -291,15 +562,18 @@ public class ConnectionThread extends Thread {
 	 */
 	private byte[] handlePutEvent(final Message message) {
 		try {
-			// Get the header from the message
-			final Event[] events = NetworkProtocol.decodeEvents(message.buffer);
+			// Validate the events in the message
+			final EventView events = NetworkProtocol.decodeEvents(
+					message.buffer, eventView);
+			markDecoded();
 
-			// Store the header
+			// Store the events
 			final int nEvents = dataStore.putEvents(events);
+			markStored();
 
 			// Return Okay and inform monitor
 			if (monitor != null) {
-				monitor.clientPutEvents(nEvents, clientID, events.length,
+				monitor.clientPutEvents(nEvents, clientID, events.count(),
 						message.time);
 			}
 			return NetworkProtocol.encodePutOkay(message.order);
@@ -326,9 +600,11 @@ public class ConnectionThread extends Thread {
 		try {
 			// Get the header from the message
 			final Header header = NetworkProtocol.decodeHeader(message.buffer);
+			markDecoded();
 
 			// Store the header
 			dataStore.putHeader(header);
+			markStored();
 
 			// Return Okay and inform monitor
 			if (monitor != null) {
@@ -347,6 +623,107 @@ public class ConnectionThread extends Thread {
 		}
 	}
 
+	/**
+	 * Throws DataException if there is no header or the subscription asks for
+	 * a channel that does not exist. Called while holding the dataStore lock.
+	 *
+	 * @param request
+	 * @throws DataException
+	 */
+	private void checkChannels(final Subscription request)
+			throws DataException {
+		final Header header = dataStore.getHeader();
+
+		if (request.channels != null) {
+			for (final int channel : request.channels) {
+				if (channel < 0 || channel >= header.nChans) {
+					throw new DataException(
+							"Subscribing to channel that does not exist.");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Decodes the Subscription from the message and adds it to the dataStore,
+	 * replacing an existing subscription of this connection. Pushing starts
+	 * once the response has been written.
+	 *
+	 * @param message
+	 * @return
+	 */
+	private byte[] handleSubscribe(final Message message) {
+		try {
+			final Subscription request = NetworkProtocol
+					.decodeSubscription(message.buffer);
+
+			final int nSamples;
+			final int nEvents;
+
+			// Keep the existing subscription if the request is invalid
+			synchronized (dataStore) {
+				checkChannels(request);
+			}
+
+			// Not under the store lock, stopping may wait for a push write
+			stopPushing();
+
+			synchronized (dataStore) {
+				// The header may have been replaced in the meantime
+				checkChannels(request);
+
+				dataStore.addSubscription(request);
+				nSamples = dataStore.getSampleCount();
+				nEvents = dataStore.getEventCount();
+			}
+
+			subscription = request;
+			pusher = new PushThread(request, output, message.order, this,
+					monitor);
+
+			return NetworkProtocol.encodeSubscribeResponse(nSamples, nEvents,
+					message.order);
+
+		} catch (final ClientException e) {
+			// Return error
+			return NetworkProtocol.encodeSubscribeError(message.order);
+
+		} catch (final DataException e) {
+			// Return error
+			return NetworkProtocol.encodeSubscribeError(message.order);
+		}
+	}
+
+	/**
+	 * Stops pushing to the client. Responds with the counts at the moment
+	 * pushing stopped, no pushes follow the response.
+	 *
+	 * @param message
+	 * @return
+	 */
+	private byte[] handleUnsubscribe(final Message message) {
+		try {
+			stopPushing();
+
+			int nSamples = 0;
+			int nEvents = 0;
+
+			synchronized (dataStore) {
+				if (dataStore.headerExists()) {
+					nSamples = dataStore.getSampleCount();
+					nEvents = dataStore.getEventCount();
+				}
+			}
+
+			return NetworkProtocol.encodeSubscribeResponse(nSamples, nEvents,
+					message.order);
+
+		} catch (final DataException e) {
+			// Return error
+			return NetworkProtocol.encodeSubscribeError(message.order);
+		}
+	}
+
 	/**
 	 * Decodes the WaitRequest from the message. Adds this thread to the
 	 * WaitListeners of the dataStore. Launches a countdown thread.
@@ -358,38 +735,137 @@ public class ConnectionThread extends Thread {
 		try {
 			if (dataStore.headerExists()) {
 				// Get wait request
-				final WaitRequest request = NetworkProtocol
-						.decodeWaitRequest(message.buffer);
+				final WaitRequest request = NetworkProtocol.decodeWaitRequest(
+						message.buffer, waitRequest);
+				markDecoded();
+
+				waitFor(request, message);
+
+				final int nSamples = dataStore.getSampleCount();
+				final int nEvents = dataStore.getEventCount();
+				markStored();
+
+				response = NetworkProtocol.encodeWaitResponse(nSamples,
+						nEvents, response(message.order));
 
-				// If timeout is 0 don't bother with the listeners and waiting
-				if (request.timeout != 0) {
+				return response.array();
 
-					if (monitor != null) {
-						monitor.clientWaits(request.nSamples, request.nEvents,
-								request.timeout, clientID, message.time);
+			} else {
+				return NetworkProtocol.encodeWaitError(message.order);
+			}
+		} catch (final ClientException e) {
+			// Create error response
+			return NetworkProtocol.encodeWaitError(message.order);
+		} catch (final DataException e) {
+			// Create error response
+			return NetworkProtocol.encodeWaitError(message.order);
+		} catch (final InterruptedException e) {
+			if (monitor != null) {
+				monitor.clientContinues(clientID, message.time);
+			}
+			// Create error response
+			return NetworkProtocol.encodeWaitError(message.order);
+		} catch (final IOException e) {
+			// Flushing failed, the read loop will notice the broken
+			// connection.
+			return NetworkProtocol.encodeWaitError(message.order);
+		}
+
+	}
+
+	/**
+	 * Decodes the WaitRequest from the message and waits like handleWaitData.
+	 * Once satisfied, returns the current counts together with the samples
+	 * and events added since the indices given in the request. A negative
+	 * index means no samples/events are requested.
+	 *
+	 * @param message
+	 * @return
+	 */
+	private byte[] handleWaitGetData(final Message message) {
+		try {
+			if (dataStore.headerExists()) {
+				// Get wait request
+				final WaitRequest request = NetworkProtocol.decodeWaitRequest(
+						message.buffer, waitRequest);
+				markDecoded();
+
+				waitFor(request, message);
+
+				// Encode the counts, the data and the events straight into
+				// the response buffer.
+				response = NetworkProtocol.ensureCapacity(
+						response(message.order), 32);
+				final int start = NetworkProtocol.beginMessage(response);
+
+				int sentSamples = 0;
+				int sentEvents = 0;
+
+				// Read counts, data and events as one consistent snapshot
+				synchronized (dataStore) {
+					if (!dataStore.headerExists()) {
+						throw new DataException("No header.");
 					}
 
-					// Add this thread to the list of waitlisteners
-					dataStore.addWaitRequest(request);
+					final int nSamples = dataStore.getSampleCount();
+					final int nEvents = dataStore.getEventCount();
+					response.putInt(nSamples);
+					response.putInt(nEvents);
 
-					request.blockUntilSatisfied(request.timeout);
+					final int firstSample = Math.max(request.nSamples,
+							dataStore.getOldestSampleIndex());
 
-					if (monitor != null) {
-						monitor.clientContinues(clientID, message.time);
+					if (request.nSamples >= 0 && firstSample < nSamples) {
+						range.begin = firstSample;
+						range.end = nSamples - 1;
+						response = dataStore.getData(range, response);
+						markArrival(firstSample, nSamples - 1);
+						sentSamples = nSamples - firstSample;
+					} else {
+						// Data definition without samples
+						final Header header = dataStore.getHeader();
+						response.putInt(header.nChans);
+						response.putInt(0);
+						response.putInt(header.dataType);
+						response.putInt(0);
 					}
-				} else {
-					if (monitor != null) {
-						monitor.clientPolls(clientID, message.time);
+
+					final int firstEvent = Math.max(request.nEvents,
+							dataStore.getOldestEventIndex());
+
+					if (request.nEvents >= 0 && firstEvent < nEvents) {
+						range.begin = firstEvent;
+						range.end = nEvents - 1;
+
+						final Event[] events = request.filter != null ? dataStore
+								.getEvents(range, request.filter) : dataStore
+								.getEvents(range);
+						response = NetworkProtocol.encodeEventList(events,
+								response);
+						sentEvents = events.length;
 					}
 				}
+				markStored();
+
+				NetworkProtocol.endMessage(response, start,
+						NetworkProtocol.WAIT_OK);
+
+				// Inform monitor
+				if (monitor != null) {
+					monitor.clientGetSamples(sentSamples, clientID,
+							message.time);
+					monitor.clientGetEvents(sentEvents, clientID,
+							message.time);
+				}
 
-				return NetworkProtocol.encodeWaitResponse(
-						dataStore.getSampleCount(), dataStore.getEventCount(),
-						message.order);
+				return response.array();
 
 			} else {
 				return NetworkProtocol.encodeWaitError(message.order);
 			}
+		} catch (final ClientException e) {
+			// Create error response
+			return NetworkProtocol.encodeWaitError(message.order);
 		} catch (final DataException e) {
 			// Create error response
 			return NetworkProtocol.encodeWaitError(message.order);
@@ -399,21 +875,300 @@ public class ConnectionThread extends Thread {
 			}
 			// Create error response
 			return NetworkProtocol.encodeWaitError(message.order);
+		} catch (final IOException e) {
+			// Flushing failed, the read loop will notice the broken
+			// connection.
+			return NetworkProtocol.encodeWaitError(message.order);
+		}
+	}
+
+	/**
+	 * Appends the GET_DAT response with the requested data, or all data if
+	 * request is null, to the response buffer. Appends a GET_ERR instead if
+	 * the data cannot be read.
+	 *
+	 * @param request
+	 * @param message
+	 */
+	private void putData(Request request, final Message message) {
+		response = NetworkProtocol.ensureCapacity(response, 8);
+		final int start = NetworkProtocol.beginMessage(response);
+
+		try {
+			synchronized (dataStore) {
+				if (request == null) {
+					if (!dataStore.headerExists()) {
+						throw new DataException("No header.");
+					}
+
+					// Request all samples still stored
+					request = range;
+					request.begin = dataStore.getOldestSampleIndex();
+					request.end = dataStore.getSampleCount() - 1;
+				}
+
+				// Get the requested data
+				response = dataStore.getData(request, response);
+				markArrival(request.begin, request.end);
+			}
+			markStored();
+
+			NetworkProtocol.endMessage(response, start, NetworkProtocol.GET_OK);
+
+			// Inform monitor
+			if (monitor != null) {
+				monitor.clientGetSamples(request.end - request.begin + 1,
+						clientID, message.time);
+			}
+
+		} catch (final DataException e) {
+			// Replace the reserved message opening by an error
+			response.position(start);
+			putResponse(NetworkProtocol.encodeGetError(message.order));
+		}
+	}
+
+	/**
+	 * Appends the GET_EVT response with the requested events, or all events if
+	 * request is null, to the response buffer. Only events matching the filter
+	 * are returned, unless the filter is null. Appends a GET_ERR instead if the
+	 * events cannot be read.
+	 *
+	 * @param request
+	 * @param filter
+	 * @param message
+	 */
+	private void putEvents(final Request request, final EventFilter filter,
+			final Message message) {
+		try {
+
+			Event[] events;
+
+			if (request != null && filter != null) {
+				// Get the requested events matching the filter
+				events = dataStore.getEvents(request, filter);
+			} else if (request != null) {
+				// Get the requested data
+				events = dataStore.getEvents(request);
+			} else {
+				events = dataStore.getEvents();
+			}
+			markStored();
+
+			// Inform monitor
+			if (monitor != null) {
+				monitor.clientGetEvents(events.length, clientID, message.time);
+			}
+
+			response = NetworkProtocol.encodeEvents(events, response);
+
+		} catch (final DataException e) {
+			putResponse(NetworkProtocol.encodeGetError(message.order));
+		}
+	}
+
+	/**
+	 * Appends the GET_HDR response with the header to the response buffer, or
+	 * a GET_ERR if there is no header.
+	 *
+	 * @param message
+	 */
+	private void putHeader(final Message message) {
+		try {
+			// Get the cached encoding of the header with current counts
+			response = dataStore.getEncodedHeader(response);
+			markStored();
+
+			// Inform monitor
+			if (monitor != null) {
+				monitor.clientGetHeader(clientID, message.time);
+			}
+
+		} catch (final DataException e) {
+			putResponse(NetworkProtocol.encodeGetError(message.order));
+		}
+	}
+
+	/**
+	 * Appends an encoded response to the response buffer.
+	 *
+	 * @param encoded
+	 */
+	private void putResponse(final byte[] encoded) {
+		response = NetworkProtocol.ensureCapacity(response, encoded.length);
+		response.put(encoded);
+	}
+
+	/**
+	 * Looks up when the first and last of the returned samples were stored,
+	 * if metrics are recorded. Must be called while holding the dataStore
+	 * lock, before the samples can be overwritten.
+	 *
+	 * @param begin
+	 * @param end
+	 * @throws DataException
+	 */
+	private void markArrival(final int begin, final int end)
+			throws DataException {
+		if (metrics != null) {
+			oldestArrival = dataStore.getSampleArrival(begin);
+			newestArrival = dataStore.getSampleArrival(end);
+		}
+	}
+
+	/**
+	 * Marks the end of decoding the current message, if metrics are recorded.
+	 * Only the first mark counts.
+	 */
+	private void markDecoded() {
+		if (metrics != null && decoded == 0) {
+			decoded = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Marks the end of accessing the dataStore for the current message, if
+	 * metrics are recorded. The last mark counts.
+	 */
+	private void markStored() {
+		if (metrics != null) {
+			stored = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Empties the response buffer and sets its ByteOrder.
+	 *
+	 * @param order
+	 * @return
+	 */
+	private ByteBuffer response(final ByteOrder order) {
+		response.clear();
+		response.order(order);
+		return response;
+	}
+
+	/**
+	 * Removes the subscription of this connection from the dataStore and
+	 * waits for the push thread to finish its current write. A write to a
+	 * client that stopped reading cannot be interrupted, if it does not finish
+	 * within PUSH_STOP_TIMEOUT the connection is closed to unblock it. Must
+	 * not be called while holding the dataStore lock.
+	 */
+	private void stopPushing() {
+		if (subscription != null) {
+			dataStore.removeSubscription(subscription);
+			subscription = null;
+		}
+
+		if (pusher != null) {
+			pusher.interrupt();
+			try {
+				pusher.join(PUSH_STOP_TIMEOUT);
+			} catch (final InterruptedException e) {
+			}
+
+			if (pusher.isAlive()) {
+				if (monitor != null) {
+					monitor.clientError(clientID,
+							FieldtripBufferMonitor.ERROR_OVERFLOW,
+							System.currentTimeMillis());
+				}
+				disconnect();
+			}
+			pusher = null;
+		}
+	}
+
+	/**
+	 * Adds the WaitRequest to the WaitListeners of the dataStore and blocks
+	 * until it is satisfied or times out. Returns immediately if the timeout
+	 * is 0. Afterwards the request is no longer in the WaitListeners and can
+	 * be reused.
+	 *
+	 * @param request
+	 * @param message
+	 * @throws DataException
+	 * @throws InterruptedException
+	 * @throws IOException
+	 */
+	private void waitFor(final WaitRequest request, final Message message)
+			throws DataException, InterruptedException, IOException {
+		// If timeout is 0 don't bother with the listeners and waiting
+		if (request.timeout != 0) {
+
+			if (monitor != null) {
+				monitor.clientWaits(request.nSamples, request.nEvents,
+						request.timeout, clientID, message.time);
+			}
+
+			// Add this thread to the list of waitlisteners
+			dataStore.addWaitRequest(request);
+
+			try {
+				// Send responses to pipelined requests before blocking
+				output.flush();
+
+				final Object event = Recording.beginWait();
+
+				request.blockUntilSatisfied(request.timeout);
+
+				Recording.endWait(event, clientID, request.nSamples,
+						request.nEvents, request.timeout,
+						request.isSatisfied());
+			} finally {
+				// Remove the request if it timed out
+				dataStore.removeWaitRequest(request);
+			}
+
+			if (monitor != null) {
+				monitor.clientContinues(clientID, message.time);
+			}
+		} else {
+			if (monitor != null) {
+				monitor.clientPolls(clientID, message.time);
+			}
 		}
+	}
 
+	/**
+	 * Writes a response to the output. Responses encoded into the response
+	 * buffer only fill the start of its array.
+	 *
+	 * @param data
+	 * @throws IOException
+	 */
+	private void write(final byte[] data) throws IOException {
+		if (data == response.array()) {
+			output.write(data, 0, response.position());
+			bytesSent += response.position();
+		} else {
+			output.write(data);
+			bytesSent += data.length;
+		}
 	}
 
 	/**
 	 * Contains the readMessage/handleMessage loop that handles client/server
-	 * communication.
+	 * communication. Requests that are already waiting in the input buffer
+	 * are handled before the output is flushed, so responses to pipelined
+	 * requests are sent together.
 	 */
 	@Override
 	public void run() {
 		try {
-			final BufferedOutputStream output = new BufferedOutputStream(
-					socket.getOutputStream());
-			final BufferedInputStream input = new BufferedInputStream(
-					socket.getInputStream());
+			if (socket instanceof Socket) {
+				output = new BufferedOutputStream(
+						((Socket) socket).getOutputStream(), STREAM_BUFFER_SIZE);
+				input = new BufferedInputStream(
+						((Socket) socket).getInputStream(), STREAM_BUFFER_SIZE);
+			} else {
+				final SocketChannel channel = (SocketChannel) socket;
+				output = new BufferedOutputStream(new ChannelOutputStream(
+						channel), STREAM_BUFFER_SIZE);
+				input = new BufferedInputStream(new ChannelInputStream(channel),
+						STREAM_BUFFER_SIZE);
+			}
 
 			boolean run = true;
 
@@ -425,47 +1180,63 @@ public class ConnectionThread extends Thread {
 			while (run) {
 				try {
 					// Gets the incoming message
-					final Message message = NetworkProtocol
-							.decodeMessage(input);
-
-					byte[] data = null;
-
-					// Handles the message using the appropriate function.
-					switch (message.type) {
-					case NetworkProtocol.PUT_HDR:
-						data = handlePutHeader(message);
-						break;
-					case NetworkProtocol.GET_HDR:
-						data = handleGetHeader(message);
-						break;
-					case NetworkProtocol.PUT_DAT:
-						data = handlePutData(message);
-						break;
-					case NetworkProtocol.GET_DAT:
-						data = handleGetData(message);
-						break;
-					case NetworkProtocol.GET_EVT:
-						data = handleGetEvent(message);
-						break;
-					case NetworkProtocol.PUT_EVT:
-						data = handlePutEvent(message);
-						break;
-					case NetworkProtocol.FLUSH_DAT:
-						data = handleFlushData(message);
-						break;
-					case NetworkProtocol.FLUSH_EVT:
-						data = handleFlushEvents(message);
-						break;
-					case NetworkProtocol.FLUSH_HDR:
-						data = handleFlushHeader(message);
-						break;
-					case NetworkProtocol.WAIT_DAT:
-						data = handleWaitData(message);
-						break;
+					NetworkProtocol.decodeMessage(input, maxMessageSize,
+							message);
+
+					final Object event = Recording.beginMessage();
+					final long sent = bytesSent;
+
+					byte[] data;
+					decoded = 0;
+					stored = 0;
+					oldestArrival = 0;
+					newestArrival = 0;
+
+					if (message.buffer == null) {
+						data = handleOversizedMessage(message);
+					} else {
+						data = handleMessage(message);
+					}
+
+					final long encoded = metrics != null ? System.nanoTime()
+							: 0;
+
+					write(data);
+					messageCount++;
+					bytesReceived += 8 + message.size;
+
+					// Don't hold on to responses larger than a message
+					if (response.capacity() > maxMessageSize) {
+						response = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+					}
+
+					// Start pushing once the SUBSCRIBE response is written
+					if (pusher != null
+							&& pusher.getState() == Thread.State.NEW) {
+						pusher.start();
+					}
+
+					// Only flush once no further requests are pending.
+					if (input.available() == 0) {
+						output.flush();
 					}
 
-					output.write(data);
-					output.flush();
+					if (event != null) {
+						Recording.endMessage(event,
+								BufferMetrics.typeName(message.type), clientID,
+								message.size, bytesSent - sent);
+					}
+
+					if (metrics != null) {
+						final long written = System.nanoTime();
+						metrics.record(message.type, message.received,
+								decoded, stored, encoded, written);
+
+						if (newestArrival != 0) {
+							metrics.recordSampleAge(oldestArrival,
+									newestArrival, written);
+						}
+					}
 
 				} catch (final ClientException e) {
 
@@ -490,7 +1261,9 @@ public class ConnectionThread extends Thread {
 					}
 
 					run = false;
-				} catch (final SocketException e) {
+				} catch (final IOException e) {
+					// SocketException for TCP, ClosedChannelException for a
+					// Unix domain socket.
 					if (!disconnectedOnPurpose) {
 						socket.close();
 						if (monitor != null) {
@@ -514,7 +1287,22 @@ public class ConnectionThread extends Thread {
 			} else {
 				e.printStackTrace();
 			}
+		} catch (final RuntimeException e) {
+			// A message that slipped past decoding, drop the client
+			if (monitor != null) {
+				monitor.clientError(clientID,
+						FieldtripBufferMonitor.ERROR_PROTOCOL,
+						System.currentTimeMillis());
+			}
+			e.printStackTrace();
+		} finally {
+			// Always release the connection, whatever ended the loop
+			try {
+				socket.close();
+			} catch (final IOException e) {
+			}
+			stopPushing();
+			buffer.removeConnection(this);
 		}
-		buffer.removeConnection(this);
 	}
 }
\ No newline at end of file
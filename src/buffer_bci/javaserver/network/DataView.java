@@ -0,0 +1,107 @@
+package buffer_bci.javaserver.network;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import buffer_bci.javaserver.data.Data;
+
+/**
+ * Flyweight over the samples in a PUT_DAT message. Gives the dataStore
+ * direct access to the message bytes, so storing the samples does not create
+ * any objects. Only use after the data has been validated by
+ * NetworkProtocol.decodeData. Reusable, one per connection.
+ *
+ * @author Wieke Kanters
+ *
+ */
+public class DataView {
+	private ByteBuffer buffer;
+	private int start;
+	private int nChans;
+	private int nSamples;
+	private int dataType;
+	private int nBytes;
+
+	/**
+	 * Returns the array backing the message buffer.
+	 *
+	 * @return
+	 */
+	public byte[] array() {
+		return buffer.array();
+	}
+
+	public int dataType() {
+		return dataType;
+	}
+
+	public int nChans() {
+		return nChans;
+	}
+
+	public int nSamples() {
+		return nSamples;
+	}
+
+	/**
+	 * Returns the offset of a sample in the array returned by array().
+	 *
+	 * @param sample
+	 * @return
+	 */
+	public int offset(final int sample) {
+		return buffer.arrayOffset() + start + sample * nChans * nBytes;
+	}
+
+	public ByteOrder order() {
+		return buffer.order();
+	}
+
+	/**
+	 * Copies the samples into a new Data object in the given ByteOrder.
+	 *
+	 * @param order
+	 * @return
+	 */
+	public Data toData(final ByteOrder order) {
+		final byte[] array = buffer.array();
+		final boolean flipOrder = order != buffer.order() && nBytes > 1;
+
+		final byte[][][] data = new byte[nSamples][nChans][nBytes];
+
+		for (int x = 0; x < nSamples; x++) {
+			int offset = offset(x);
+			for (int y = 0; y < nChans; y++) {
+				for (int z = 0; z < nBytes; z++) {
+					if (flipOrder) {
+						data[x][y][z] = array[offset + nBytes - z - 1];
+					} else {
+						data[x][y][z] = array[offset + z];
+					}
+				}
+				offset += nBytes;
+			}
+		}
+
+		return new Data(nChans, nSamples, dataType, data, order);
+	}
+
+	/**
+	 * Points the view at nSamples samples in the buffer, starting at start.
+	 *
+	 * @param buffer
+	 * @param start
+	 * @param nChans
+	 * @param nSamples
+	 * @param dataType
+	 */
+	void wrap(final ByteBuffer buffer, final int start, final int nChans,
+			final int nSamples, final int dataType) {
+		this.buffer = buffer;
+		this.start = start;
+		this.nChans = nChans;
+		this.nSamples = nSamples;
+		this.dataType = dataType;
+		nBytes = NetworkProtocol.dataTypeSize(dataType);
+	}
+}
@@ -0,0 +1,143 @@
+package buffer_bci.javaserver.network;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import buffer_bci.javaserver.data.Event;
+
+/**
+ * Flyweight over the events in a PUT_EVT message. Reads the fields of the
+ * current event directly from the message buffer, so iterating over the
+ * events does not create any objects. Only use after the events have been
+ * validated by NetworkProtocol.decodeEvents. Reusable, one per connection.
+ *
+ * @author Wieke Kanters
+ *
+ */
+public class EventView {
+	private ByteBuffer buffer;
+	private int start;
+	private int count;
+	private int position;
+
+	/**
+	 * Returns the number of events in the message.
+	 *
+	 * @return
+	 */
+	public int count() {
+		return count;
+	}
+
+	public int duration() {
+		return buffer.getInt(position + 24);
+	}
+
+	/**
+	 * Moves to the next event. Returns false if there are no more events.
+	 *
+	 * @return
+	 */
+	public boolean next() {
+		if (position == -1) {
+			position = start;
+		} else {
+			position += 32 + buffer.getInt(position + 28);
+		}
+		return position < buffer.limit();
+	}
+
+	public int offset() {
+		return buffer.getInt(position + 20);
+	}
+
+	public ByteOrder order() {
+		return buffer.order();
+	}
+
+	/**
+	 * Moves back to before the first event.
+	 */
+	public void rewind() {
+		position = -1;
+	}
+
+	public int sample() {
+		return buffer.getInt(position + 16);
+	}
+
+	/**
+	 * Copies the current event into a new Event in the given ByteOrder.
+	 *
+	 * @param order
+	 * @return
+	 */
+	public Event toEvent(final ByteOrder order) {
+		final int typeNBytes = NetworkProtocol.dataTypeSize(typeType());
+		final int valueNBytes = NetworkProtocol.dataTypeSize(valueType());
+
+		final byte[] type = new byte[typeSize() * typeNBytes];
+		copy(position + 32, type, typeNBytes, order);
+
+		final byte[] value = new byte[valueSize() * valueNBytes];
+		copy(position + 32 + type.length, value, valueNBytes, order);
+
+		return new Event(typeType(), typeSize(), valueType(), valueSize(),
+				sample(), offset(), duration(), type, value, order);
+	}
+
+	public int typeSize() {
+		return buffer.getInt(position + 4);
+	}
+
+	public int typeType() {
+		return buffer.getInt(position);
+	}
+
+	public int valueSize() {
+		return buffer.getInt(position + 12);
+	}
+
+	public int valueType() {
+		return buffer.getInt(position + 8);
+	}
+
+	/**
+	 * Points the view at the validated events in the buffer.
+	 *
+	 * @param buffer
+	 * @param start
+	 *            Position of the first event.
+	 * @param count
+	 *            Number of events.
+	 */
+	void wrap(final ByteBuffer buffer, final int start, final int count) {
+		this.buffer = buffer;
+		this.start = start;
+		this.count = count;
+		position = -1;
+	}
+
+	/**
+	 * Copies bytes from the buffer into the array, flips each element of
+	 * nBytes bytes if the order differs.
+	 *
+	 * @param from
+	 * @param to
+	 * @param nBytes
+	 * @param order
+	 */
+	private void copy(final int from, final byte[] to, final int nBytes,
+			final ByteOrder order) {
+		final boolean flipOrder = order != buffer.order() && nBytes > 1;
+
+		for (int i = 0; i < to.length; i++) {
+			if (flipOrder) {
+				final int element = i - i % nBytes;
+				to[i] = buffer.get(from + element + nBytes - 1 - i % nBytes);
+			} else {
+				to[i] = buffer.get(from + i);
+			}
+		}
+	}
+}
@@ -3,26 +3,83 @@ package buffer_bci.javaserver.network;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
+/**
+ * A message received from a client. Reusable, NetworkProtocol.decodeMessage
+ * fills in the fields of one Message per connection and reads every message
+ * body into the same buffer.
+ *
+ * @author Wieke Kanters
+ *
+ */
 public class Message {
-	public final short version;
-	public final short type;
-	public final ByteBuffer buffer;
-	public final ByteOrder order;
-	public final long time;
+	public short version;
+	public short type;
+	public int size;
+	public ByteBuffer buffer;
+	public ByteOrder order;
+	public long time;
 
-	public Message(final short version, final short type,
+	/**
+	 * System.nanoTime() at which the first bytes of the message were read.
+	 */
+	public long received;
+	private ByteBuffer body = ByteBuffer.allocate(0);
+
+	/**
+	 * Constructor for a reusable message, filled in by
+	 * NetworkProtocol.decodeMessage.
+	 */
+	public Message() {
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param version
+	 * @param type
+	 * @param size
+	 *            Size of the message body.
+	 * @param buffer
+	 *            The message body, null if the body exceeded the maximum
+	 *            message size and is still in the input stream.
+	 * @param order
+	 * @param time
+	 */
+	public Message(final short version, final short type, final int size,
 			final ByteBuffer buffer, final ByteOrder order, final long time) {
 		this.version = version;
 		this.type = type;
+		this.size = size;
 		this.buffer = buffer;
 		this.order = order;
 		this.time = time;
 	}
 
+	/**
+	 * Returns the body buffer of this message, emptied and limited to size
+	 * bytes. The buffer only grows, so once the largest message has been
+	 * received no new buffers are allocated.
+	 *
+	 * @param size
+	 * @param order
+	 * @return
+	 */
+	ByteBuffer body(final int size, final ByteOrder order) {
+		if (body.capacity() < size) {
+			body = ByteBuffer.allocate(size);
+		}
+
+		body.clear();
+		body.limit(size);
+		body.order(order);
+
+		return body;
+	}
+
 	@Override
 	public String toString() {
 		return "(Version " + Short.toString(version) + ", Type "
-				+ Short.toString(type) + ", Size "
-				+ Integer.toString(buffer.capacity()) + " time " + time + ")";
+				+ Short.toString(type) + ", Size " + Integer.toString(size)
+				+ " time " + time + ")";
 	}
 }
@@ -11,6 +11,7 @@ import java.util.ArrayList;
 import buffer_bci.javaserver.data.Chunk;
 import buffer_bci.javaserver.data.Data;
 import buffer_bci.javaserver.data.Event;
+import buffer_bci.javaserver.data.EventFilter;
 import buffer_bci.javaserver.data.Header;
 import buffer_bci.javaserver.exceptions.ClientException;
 
@@ -68,7 +69,7 @@ public class NetworkProtocol {
 		final int size = buffer.getInt();
 
 		// Check if there are enough bytes remaining
-		if (buffer.capacity() - buffer.position() < size) {
+		if (buffer.limit() - buffer.position() < size) {
 			throw new ClientException("Malformed header message.");
 		}
 
@@ -94,7 +95,7 @@ public class NetworkProtocol {
 
 		// Read events while bytes remain in the buffer.
 		try {
-			while (buffer.position() < buffer.capacity()) {
+			while (buffer.position() < buffer.limit()) {
 				chunks.add(decodeChunk(buffer));
 				nChunks++;
 			}
@@ -106,15 +107,17 @@ public class NetworkProtocol {
 	}
 
 	/**
-	 * Decodes the data from the message. Handles all data as groups of bytes,
-	 * does not convert to java primitives.
+	 * Validates the data in the message and points the DataView at the
+	 * samples. Does not copy or convert any of the data.
 	 *
-	 * @param buf
-	 * @return
+	 * @param buffer
+	 * @param view
+	 *            Reusable view over the samples.
+	 * @return the view
 	 * @throws ClientException
 	 */
-	public static Data decodeData(final ByteBuffer buffer)
-			throws ClientException {
+	public static DataView decodeData(final ByteBuffer buffer,
+			final DataView view) throws ClientException {
 		// Get number of channels
 		final int nChans = buffer.getInt();
 
@@ -132,135 +135,217 @@ public class NetworkProtocol {
 
 		// Check if size and the number of bytes in the buffer match
 
-		if (buffer.capacity() - buffer.position() != size) {
+		if (buffer.limit() - buffer.position() != size) {
 			throw new ClientException(
 					"Defined size of data and actual size do not match.");
 		}
 
+		if (nBytes == -1 || nChans < 0 || nSamples < 0) {
+			throw new ClientException("Malformed data message.");
+		}
+
 		// Check if the number of bytes left in the buffer corresponds to what
 		// we expect.
-		if (buffer.capacity() - buffer.position() < nSamples * nChans * nBytes) {
+		if (buffer.limit() - buffer.position() < (long) nSamples * nChans
+				* nBytes) {
 			throw new ClientException(
 					"Recieved less bytes of data than expected.");
-		} else if (buffer.capacity() - buffer.position() > nSamples * nChans
-				* nBytes) {
+		} else if (buffer.limit() - buffer.position() > (long) nSamples
+				* nChans * nBytes) {
 			throw new ClientException(
 					"Recieved more bytes of data than expected.");
 		}
 
-		// Transfer bytes from the buffer into a nSamples*nChans*nBytes array;
-		final byte[][][] data = new byte[nSamples][nChans][nBytes];
-
-		for (int x = 0; x < nSamples; x++) {
-			for (int y = 0; y < nChans; y++) {
-				for (int z = 0; z < nBytes; z++) {
-					data[x][y][z] = buffer.get();
-				}
-			}
-		}
-
-		return new Data(nChans, nSamples, dataType, data, buffer.order());
+		return decodeSamples(buffer, nChans, nSamples, dataType, view);
 	}
 
 	/**
-	 * Partially decodes a single event from a bytebuffer. Handles type and
-	 * value of events as arrays of bytes.
+	 * Checks the data definition of a PUT_DAT message whose body is read in
+	 * pieces. Returns the number of bytes per sample.
 	 *
-	 * @param buffer
+	 * @param definition
+	 *            Buffer containing nChans, nSamples, dataType and size.
+	 * @param bodySize
+	 *            Size of the entire message body.
+	 * @param maxPieceSize
+	 *            Maximum number of bytes read at once.
 	 * @return
 	 * @throws ClientException
 	 */
-	private static Event decodeEvent(final ByteBuffer buffer)
-			throws ClientException, BufferUnderflowException {
-		// Get data type of event type
-		final int typeType = buffer.getInt();
-		final int typeNBytes = dataTypeSize(typeType);
-
-		// Get number of elements in event type
-		final int typeSize = buffer.getInt();
-
-		// Get data type of event value
-		final int valueType = buffer.getInt();
-		final int valueNBytes = dataTypeSize(valueType);
-
-		// Get number of elements in event value
-		final int valueSize = buffer.getInt();
-
-		// Get associated sample
-		final int sample = buffer.getInt();
-
-		// Get offset
-		final int offset = buffer.getInt();
-
-		// Get duration
-		final int duration = buffer.getInt();
-
-		// Get size of remaining data
-		final int size = buffer.getInt();
-
-		// Check if size and predicted size are consistent
+	public static int decodeDataDefinition(final ByteBuffer definition,
+			final int bodySize, final int maxPieceSize) throws ClientException {
+		final int nChans = definition.getInt(0);
+		final int nSamples = definition.getInt(4);
+		final int nBytes = dataTypeSize(definition.getInt(8));
+		final int size = definition.getInt(12);
+
+		if (nBytes == -1 || nChans <= 0 || nSamples < 0) {
+			throw new ClientException("Malformed data message.");
+		}
 
-		if (size != typeSize * typeNBytes + valueSize * valueNBytes) {
+		if (bodySize - 16 != size) {
 			throw new ClientException(
-					"Given size and actual size of value and type do not match or malformed event message.");
+					"Defined size of data and actual size do not match.");
 		}
 
-		if (typeNBytes == -1) {
+		if ((long) nSamples * nChans * nBytes != size) {
 			throw new ClientException(
-					"Wrong type type or malformed event message.");
+					"Recieved a different number of bytes of data than expected.");
 		}
 
-		if (valueNBytes == -1) {
-			throw new ClientException(
-					"Wrong value type or malformed event message.");
+		if (nChans * nBytes > maxPieceSize) {
+			throw new ClientException("Single sample exceeds maximum size.");
 		}
 
-		// Transfer the remaining bytes in type[][] and value[][]
-		final byte[][] type = new byte[typeSize][typeNBytes];
+		return nChans * nBytes;
+	}
 
-		for (int x = 0; x < typeSize; x++) {
-			for (int y = 0; y < typeNBytes; y++) {
-				type[x][y] = buffer.get();
+	/**
+	 * Points the DataView at nSamples samples starting at the position of the
+	 * buffer. Handles all data as groups of bytes, does not convert to java
+	 * primitives.
+	 *
+	 * @param buffer
+	 * @param nChans
+	 * @param nSamples
+	 * @param dataType
+	 * @param view
+	 *            Reusable view over the samples.
+	 * @return the view
+	 */
+	public static DataView decodeSamples(final ByteBuffer buffer,
+			final int nChans, final int nSamples, final int dataType,
+			final DataView view) {
+		view.wrap(buffer, buffer.position(), nChans, nSamples, dataType);
+		return view;
+	}
+
+	/**
+	 * Decodes an event filter from the ByteBuffer. Laid out like the start of
+	 * an event: type type, type size, value type and value size followed by
+	 * the type and value bytes. A value type of -1 matches any value, in which
+	 * case no value bytes follow.
+	 *
+	 * @param buffer
+	 * @return
+	 * @throws ClientException
+	 */
+	public static EventFilter decodeEventFilter(final ByteBuffer buffer)
+			throws ClientException {
+		try {
+			// Get data type and number of elements of the event type
+			final int typeType = buffer.getInt();
+			final int typeNBytes = dataTypeSize(typeType);
+			final int typeSize = buffer.getInt();
+
+			// Get data type and number of elements of the event value
+			final int valueType = buffer.getInt();
+			final int valueNBytes = dataTypeSize(valueType);
+			final int valueSize = buffer.getInt();
+
+			if (typeNBytes == -1 || typeSize < 0) {
+				throw new ClientException(
+						"Wrong type type or malformed event filter.");
 			}
-		}
 
-		final byte[][] value = new byte[valueSize][valueNBytes];
+			if (valueType != -1 && (valueNBytes == -1 || valueSize < 0)) {
+				throw new ClientException(
+						"Wrong value type or malformed event filter.");
+			}
 
-		for (int x = 0; x < valueSize; x++) {
-			for (int y = 0; y < valueNBytes; y++) {
-				value[x][y] = buffer.get();
+			// Check the type and value are in the message before allocating
+			final long typeBytes = (long) typeSize * typeNBytes;
+			final long valueBytes = valueType == -1 ? 0 : (long) valueSize
+					* valueNBytes;
+			if (typeBytes + valueBytes > buffer.remaining()) {
+				throw new ClientException(
+						"Malformed event filter, type or value missing.");
 			}
-		}
 
-		return new Event(typeType, typeSize, valueType, valueSize, sample,
-				offset, duration, type, value, buffer.order());
+			final byte[] type = new byte[(int) typeBytes];
+			buffer.get(type);
 
+			byte[] value = null;
+
+			if (valueType != -1) {
+				value = new byte[(int) valueBytes];
+				buffer.get(value);
+			}
+
+			return new EventFilter(typeType, typeSize, type, valueType,
+					valueSize, value, buffer.order());
+		} catch (final BufferUnderflowException e) {
+			throw new ClientException("Malformed event filter");
+		}
 	}
 
 	/**
-	 * Decodes a series of events from the ByteBuffer. Handles event values and
-	 * types as bytes.
+	 * Validates the events in the ByteBuffer and points the EventView at
+	 * them. Does not copy or convert any of the events.
 	 *
 	 * @param buffer
-	 * @return
+	 * @param view
+	 *            Reusable view that will iterate over the events.
+	 * @return the view
 	 * @throws ClientException
 	 */
-	public static Event[] decodeEvents(final ByteBuffer buffer)
-			throws ClientException {
-		final ArrayList<Event> events = new ArrayList<Event>();
+	public static EventView decodeEvents(final ByteBuffer buffer,
+			final EventView view) throws ClientException {
+		final int start = buffer.position();
+		final int limit = buffer.limit();
+		int position = start;
 		int nEvents = 0;
 
-		// Read events while bytes remain in the buffer.
-		try {
-			while (buffer.position() < buffer.capacity()) {
-				events.add(decodeEvent(buffer));
-				nEvents++;
+		// Check events while bytes remain in the buffer.
+		while (position < limit) {
+			if (limit - position < 32) {
+				throw new ClientException("Malformed event message");
 			}
-		} catch (final BufferUnderflowException e) {
-			throw new ClientException("Malformed event message");
+
+			// Get data type and number of elements of event type
+			final int typeNBytes = dataTypeSize(buffer.getInt(position));
+			final int typeSize = buffer.getInt(position + 4);
+
+			// Get data type and number of elements of event value
+			final int valueNBytes = dataTypeSize(buffer.getInt(position + 8));
+			final int valueSize = buffer.getInt(position + 12);
+
+			// Get size of remaining data
+			final int size = buffer.getInt(position + 28);
+
+			if (typeNBytes == -1) {
+				throw new ClientException(
+						"Wrong type type or malformed event message.");
+			}
+
+			if (valueNBytes == -1) {
+				throw new ClientException(
+						"Wrong value type or malformed event message.");
+			}
+
+			// Check if size and predicted size are consistent, in long so
+			// the sizes cannot overflow into a matching value
+			if (typeSize < 0 || valueSize < 0) {
+				throw new ClientException(
+						"Given size and actual size of value and type do not match or malformed event message.");
+			}
+			final long predicted = (long) typeSize * typeNBytes
+					+ (long) valueSize * valueNBytes;
+			if (size != predicted) {
+				throw new ClientException(
+						"Given size and actual size of value and type do not match or malformed event message.");
+			}
+
+			if (limit - position - 32 < predicted) {
+				throw new ClientException("Malformed event message");
+			}
+
+			position += 32 + size;
+			nEvents++;
 		}
 
-		return events.toArray(new Event[nEvents]);
+		view.wrap(buffer, start, nEvents);
+		return view;
 	}
 
 	/**
@@ -303,7 +388,7 @@ public class NetworkProtocol {
 
 		// Check if size matches the remaining bytes
 
-		if (buffer.capacity() - buffer.position() != size) {
+		if (buffer.limit() - buffer.position() != size) {
 			throw new ClientException(
 					"Defined size of header chunks and actual size do not match.");
 		}
@@ -317,35 +402,39 @@ public class NetworkProtocol {
 	 * Reads an incoming message and prepares it for further processing.
 	 *
 	 * @param input
-	 * @return A message object containing the version, type and remaining
-	 *         bytes. @ * Passed on from input.
+	 * @param maxSize
+	 *            Maximum size of a message body that is read into memory.
+	 *            Larger bodies are left in the stream and the message buffer
+	 *            is null.
+	 * @param message
+	 *            Reusable message that is filled in, the body is read into
+	 *            its buffer.
+	 * @return The message containing the version, type and remaining bytes.
+	 *         @ * Passed on from input.
 	 * @throws ClientException
 	 *             Thrown if a version conflict exists between client/server or
 	 *             if the client is closing the connection.
 	 * @throws IOException
 	 */
-	public static Message decodeMessage(final BufferedInputStream input)
-			throws ClientException, IOException, SocketException {
+	public static Message decodeMessage(final BufferedInputStream input,
+			final int maxSize, final Message message) throws ClientException,
+			IOException, SocketException {
 
 		// First we determine the endianness of the stream.
 		final byte versionByte1 = (byte) input.read();
 		final byte versionByte2 = (byte) input.read();
+		final long received = System.nanoTime();
 
 		ByteOrder order;
+		short version;
 		if (versionByte1 < versionByte2) {
 			order = ByteOrder.BIG_ENDIAN;
+			version = (short) (versionByte1 << 8 | versionByte2 & 0xff);
 		} else {
 			order = ByteOrder.LITTLE_ENDIAN;
+			version = (short) (versionByte2 << 8 | versionByte1 & 0xff);
 		}
 
-		// Determine message version
-		ByteBuffer buffer = ByteBuffer.allocate(2);
-		buffer.order(order);
-		buffer.put(versionByte1);
-		buffer.put(versionByte2);
-		buffer.rewind();
-		final short version = buffer.getShort();
-
 		// Check if version corresponds otherwise throw IOException
 		if (version == -1) {
 			throw new ClientException("Client closing connection.");
@@ -357,24 +446,75 @@ public class NetworkProtocol {
 					+ "Server Version " + Short.toString(VERSION) + ".");
 		}
 
-		// Get Message Type
-		buffer.rewind();
-		loadBuffer(buffer, input, 2);
+		// Get Message Type and Size
+		ByteBuffer buffer = message.body(6, order);
+		loadBuffer(buffer, input, 6);
 		final short type = buffer.getShort();
-
-		// Get Message Size
-		buffer = ByteBuffer.allocate(4);
-		buffer.order(order);
-		loadBuffer(buffer, input, 4);
 		final int size = buffer.getInt();
 
-		// Get Message body.
-		buffer = ByteBuffer.allocate(size);
-		buffer.order(order);
+		if (size < 0) {
+			throw new ClientException("Malformed message, negative size.");
+		}
+
+		// Leave bodies that are too large in the stream.
+		if (size > maxSize) {
+			buffer = null;
+		} else {
+			// Get Message body.
+			buffer = message.body(size, order);
+			loadBuffer(buffer, input, size);
+		}
+
+		message.version = version;
+		message.type = type;
+		message.size = size;
+		message.buffer = buffer;
+		message.order = order;
+		message.time = System.currentTimeMillis();
+		message.received = received;
+
+		return message;
+	}
+
+	/**
+	 * Reads a part of a message body from the stream into the body buffer of
+	 * the message.
+	 *
+	 * @param input
+	 * @param message
+	 * @param size
+	 *            Number of bytes to read.
+	 * @return
+	 * @throws IOException
+	 */
+	public static ByteBuffer readBody(final BufferedInputStream input,
+			final Message message, final int size) throws IOException {
+		final ByteBuffer buffer = message.body(size, message.order);
 		loadBuffer(buffer, input, size);
+		return buffer;
+	}
 
-		return new Message(version, type, buffer, order,
-				System.currentTimeMillis());
+	/**
+	 * Skips the remainder of a message body without storing it.
+	 *
+	 * @param input
+	 * @param size
+	 *            Number of bytes to skip.
+	 * @throws IOException
+	 */
+	public static void skipBody(final BufferedInputStream input, long size)
+			throws IOException {
+		while (size > 0) {
+			final long skipped = input.skip(size);
+
+			if (skipped > 0) {
+				size -= skipped;
+			} else if (input.read() != -1) {
+				size--;
+			} else {
+				throw new SocketException("Connection closed during message.");
+			}
+		}
 	}
 
 	/**
@@ -384,27 +524,96 @@ public class NetworkProtocol {
 	 * @return
 	 */
 	public static Request decodeRequest(final ByteBuffer buffer) {
+		return decodeRequest(buffer, new Request());
+	}
+
+	/**
+	 * Decodes a event/data request into an existing request.
+	 *
+	 * @param buffer
+	 * @param request
+	 *            Reusable request that is filled in.
+	 * @return the request
+	 */
+	public static Request decodeRequest(final ByteBuffer buffer,
+			final Request request) {
 
 		// Read begin
-		final int begin = buffer.getInt();
+		request.begin = buffer.getInt();
 
 		// Read end
-		final int end = buffer.getInt();
+		request.end = buffer.getInt();
 
-		return new Request(begin, end);
+		return request;
 	}
 
 	/**
-	 * Decodes a WaitRequest from the ByteBuffer.
+	 * Decodes a Subscription from the ByteBuffer. The message contains the
+	 * SUBSCRIBE_* flags, the number of channels to push (0 for all channels)
+	 * and the indices of those channels.
 	 *
 	 * @param buffer
 	 * @return
+	 * @throws ClientException
 	 */
-	public static WaitRequest decodeWaitRequest(final ByteBuffer buffer) {
+	public static Subscription decodeSubscription(final ByteBuffer buffer)
+			throws ClientException {
+		try {
+			final int flags = buffer.getInt();
+			final int nChans = buffer.getInt();
+
+			if (nChans < 0) {
+				throw new ClientException(
+						"Malformed subscribe message, negative number of channels.");
+			}
+
+			// Check the channels are in the message before allocating them
+			if (nChans * 4L > buffer.remaining()) {
+				throw new ClientException(
+						"Malformed subscribe message, channels missing.");
+			}
+
+			int[] channels = null;
+			if (nChans > 0) {
+				channels = new int[nChans];
+				for (int i = 0; i < nChans; i++) {
+					channels[i] = buffer.getInt();
+				}
+			}
+
+			return new Subscription((flags & SUBSCRIBE_DATA) != 0,
+					(flags & SUBSCRIBE_EVENTS) != 0,
+					(flags & SUBSCRIBE_DISCONNECT) != 0, channels);
+		} catch (final BufferUnderflowException e) {
+			throw new ClientException("Malformed subscribe message");
+		}
+	}
+
+	/**
+	 * Decodes a WaitRequest from the ByteBuffer into an existing request,
+	 * which must not be in the listeners of a dataStore. An event filter may
+	 * follow the timeout.
+	 *
+	 * @param buffer
+	 * @param request
+	 *            Reusable request that is reset.
+	 * @return the request
+	 * @throws ClientException
+	 */
+	public static WaitRequest decodeWaitRequest(final ByteBuffer buffer,
+			final WaitRequest request) throws ClientException {
 		final int nSamples = buffer.getInt();
 		final int nEvents = buffer.getInt();
 		final int timeout = buffer.getInt();
-		return new WaitRequest(nSamples, nEvents, timeout);
+
+		// Check if an event filter has been given.
+		EventFilter filter = null;
+		if (buffer.remaining() > 0) {
+			filter = decodeEventFilter(buffer);
+		}
+
+		request.reset(nSamples, nEvents, timeout, filter);
+		return request;
 	}
 
 	/**
@@ -418,43 +627,18 @@ public class NetworkProtocol {
 	public static byte[] encodeData(final Data data, final ByteOrder order) {
 
 		// Create ByteBuffer
-		final int nBytes = dataTypeSize(data.dataType);
+		final int size = sizeOfData(data);
 
-		final ByteBuffer buffer = ByteBuffer.allocate(8 + 16 + data.size()
-				* nBytes);
+		final ByteBuffer buffer = ByteBuffer.allocate(8 + size);
 		buffer.order(order);
 
 		// Add standard message opening
 		buffer.putShort(VERSION);
 		buffer.putShort(GET_OK);
-		buffer.putInt(16 + data.size() * nBytes);
-
-		// Add number of channels
-		buffer.putInt(data.nChans);
-
-		// Add number of samples
-		buffer.putInt(data.nSamples);
-
-		// Add data type
-		buffer.putInt(data.dataType);
-
-		// Add data
+		buffer.putInt(size);
 
-		buffer.putInt(data.size() * nBytes);
-
-		final boolean flipOrder = order != data.order && nBytes > 1;
-
-		for (int x = 0; x < data.nSamples; x++) {
-			for (int y = 0; y < data.nChans; y++) {
-				for (int z = 0; z < nBytes; z++) {
-					if (flipOrder) {
-						buffer.put(data.data[x][y][nBytes - z - 1]);
-					} else {
-						buffer.put(data.data[x][y][z]);
-					}
-				}
-			}
-		}
+		// Add data definition and data
+		putData(buffer, data, null, order);
 
 		return buffer.array();
 	}
@@ -471,99 +655,75 @@ public class NetworkProtocol {
 			final ByteOrder order) {
 
 		// Determine total message size
-		int totalBufferSize = 8;
-		for (final Event event : events) {
-			totalBufferSize += 32;
-			totalBufferSize += event.typeSize * dataTypeSize(event.typeType);
-			totalBufferSize += event.valueSize * dataTypeSize(event.valueType);
-		}
+		final int size = sizeOfEvents(events);
 
 		// Create ByteBuffer
-		final ByteBuffer buffer = ByteBuffer.allocate(totalBufferSize);
+		final ByteBuffer buffer = ByteBuffer.allocate(8 + size);
 		buffer.order(order);
 
 		// Add standard message opening
 		buffer.putShort(VERSION);
 		buffer.putShort(GET_OK);
-		buffer.putInt(totalBufferSize - 8);
+		buffer.putInt(size);
 
-		// Loop through all evens and add them to the buffer.
-
-		for (final Event event : events) {
-			// Add event type data type
-			buffer.putInt(event.typeType);
-
-			// Add number of elements in event type
-			buffer.putInt(event.typeSize);
+		// Add the events
+		putEvents(buffer, events, order);
 
-			// Add event value data type
-			buffer.putInt(event.valueType);
-
-			// Add number of elements in event value
-			buffer.putInt(event.valueSize);
-
-			// Add associated sample
-			buffer.putInt(event.sample);
-
-			// Add offset
-			buffer.putInt(event.offset);
-
-			// Add duration
-			buffer.putInt(event.duration);
-
-			// Add size of remaining value and type bytes
+		return buffer.array();
+	}
 
-			final int typeNBytes = dataTypeSize(event.typeType);
-			final int valueNBytes = dataTypeSize(event.valueType);
+	/**
+	 * Encodes the events as a GET_OK response into the buffer, in the
+	 * ByteOrder of the buffer.
+	 *
+	 * @param events
+	 * @param buffer
+	 * @return the buffer, or a larger copy if it was too small.
+	 */
+	public static ByteBuffer encodeEvents(final Event[] events,
+			ByteBuffer buffer) {
 
-			buffer.putInt(event.typeSize * typeNBytes + event.valueSize
-					* valueNBytes);
+		// Determine total message size
+		final int size = sizeOfEvents(events);
 
-			// Add type bytes
-			boolean flipOrder = order != event.order && typeNBytes > 1;
+		// Make sure the response fits
+		buffer = ensureCapacity(buffer, 8 + size);
 
-			for (int x = 0; x < event.typeSize; x++) {
-				for (int y = 0; y < typeNBytes; y++) {
-					if (flipOrder) {
-						buffer.put(event.type[x][typeNBytes - y - 1]);
-					} else {
-						buffer.put(event.type[x][y]);
-					}
-				}
-			}
+		// Add standard message opening
+		buffer.putShort(VERSION);
+		buffer.putShort(GET_OK);
+		buffer.putInt(size);
 
-			// Add value bytes
-			flipOrder = order != event.order && valueNBytes > 1;
+		// Add the events
+		putEvents(buffer, events, buffer.order());
 
-			for (int x = 0; x < event.valueSize; x++) {
-				for (int y = 0; y < valueNBytes; y++) {
-					if (flipOrder) {
-						buffer.put(event.value[x][valueNBytes - y - 1]);
-					} else {
-						buffer.put(event.value[x][y]);
-					}
-				}
-			}
-		}
+		return buffer;
+	}
 
-		return buffer.array();
+	/**
+	 * Encodes the events without a message opening into the buffer, in the
+	 * ByteOrder of the buffer.
+	 *
+	 * @param events
+	 * @param buffer
+	 * @return the buffer, or a larger copy if it was too small.
+	 */
+	public static ByteBuffer encodeEventList(final Event[] events,
+			ByteBuffer buffer) {
+		buffer = ensureCapacity(buffer, sizeOfEvents(events));
+		putEvents(buffer, events, buffer.order());
+		return buffer;
 	}
 
 	/**
-	 * Encodes a flush error.
+	 * Encodes a flush error. Like all responses without a body it returns a
+	 * shared array, which must not be modified.
 	 *
 	 * @param order
 	 * @return
 	 */
 	public static byte[] encodeFlushError(final ByteOrder order) {
-		final ByteBuffer buffer = ByteBuffer.allocate(8);
-		buffer.order(order);
-
-		buffer.putShort(VERSION);
-		buffer.putShort(FLUSH_ERR);
-		buffer.putInt(0);
-
-		return buffer.array();
+		return FLUSH_ERROR[orderIndex(order)];
 	}
 
 	/**
@@ -574,14 +734,7 @@ public class NetworkProtocol {
 	 *            @
 	 */
 	public static byte[] encodeFlushOkay(final ByteOrder order) {
-		final ByteBuffer buffer = ByteBuffer.allocate(8);
-		buffer.order(order);
-
-		buffer.putShort(VERSION);
-		buffer.putShort(FLUSH_OK);
-		buffer.putInt(0);
-
-		return buffer.array();
+		return FLUSH_OKAY[orderIndex(order)];
 	}
 
 	/**
@@ -592,14 +745,7 @@ public class NetworkProtocol {
 	 *            @
 	 */
 	public static byte[] encodeGetError(final ByteOrder order) {
-		final ByteBuffer buffer = ByteBuffer.allocate(8);
-		buffer.order(order);
-
-		buffer.putShort(VERSION);
-		buffer.putShort(GET_ERR);
-		buffer.putInt(0);
-
-		return buffer.array();
+		return GET_ERROR[orderIndex(order)];
 	}
 
 	/**
@@ -617,8 +763,10 @@ public class NetworkProtocol {
 
 		int chunkSize = 0;
 
-		for (final Chunk chunk : header.chunks) {
-			chunkSize += chunk.size + 8;
+		if (header.nChunks > 0) {
+			for (final Chunk chunk : header.chunks) {
+				chunkSize += chunk.size + 8;
+			}
 		}
 
 		// Create a byte buffer.
@@ -669,41 +817,126 @@ public class NetworkProtocol {
 	}
 
 	/**
-	 * Encodes the response to the client for a put error.
+	 * Copies a header response created by encodeHeader into the buffer and
+	 * fills in the given number of samples and events. Avoids re-encoding the
+	 * extended header chunks for every GET_HDR.
 	 *
-	 * @param output
+	 * @param encodedHeader
+	 *            Header response as returned by encodeHeader, in the ByteOrder
+	 *            of the buffer.
+	 * @param nSamples
+	 * @param nEvents
+	 * @param buffer
+	 * @return the buffer, or a larger copy if it was too small.
+	 */
+	public static ByteBuffer encodeHeaderCounts(final byte[] encodedHeader,
+			final int nSamples, final int nEvents, ByteBuffer buffer) {
+		buffer = ensureCapacity(buffer, encodedHeader.length);
+
+		final int start = buffer.position();
+		buffer.put(encodedHeader);
+
+		// Overwrite nSamples and nEvents, located after the message opening
+		// and nChans.
+		buffer.putInt(start + 12, nSamples);
+		buffer.putInt(start + 16, nEvents);
+
+		return buffer;
+	}
+
+	/**
+	 * Encodes a pushed data block. Contains the index of the first sample
+	 * followed by the data definition and the (selected channels of the)
+	 * data.
+	 *
+	 * @param firstSample
+	 * @param data
+	 * @param channels
+	 *            Indices of the channels to push, null for all channels.
 	 * @param order
-	 *            @
+	 * @return
 	 */
-	public static byte[] encodePutError(final ByteOrder order) {
-		final ByteBuffer buffer = ByteBuffer.allocate(8);
+	public static byte[] encodePushData(final int firstSample,
+			final Data data, final int[] channels, final ByteOrder order) {
+		final int nChans = channels == null ? data.nChans : channels.length;
+
+		// Determine total message size
+		final int size = 4 + 16 + data.nSamples * nChans
+				* dataTypeSize(data.dataType);
+
+		// Create ByteBuffer
+		final ByteBuffer buffer = ByteBuffer.allocate(8 + size);
 		buffer.order(order);
 
+		// Add standard message opening
 		buffer.putShort(VERSION);
-		buffer.putShort(PUT_ERR);
-		buffer.putInt(0);
+		buffer.putShort(PUSH_DAT);
+		buffer.putInt(size);
+
+		// Add index of the first sample
+		buffer.putInt(firstSample);
+
+		// Add data definition and data
+		putData(buffer, data, channels, order);
 
 		return buffer.array();
 	}
 
 	/**
-	 * Encodes the response to the client for a successful put.
+	 * Encodes a pushed batch of events. Contains the index of the first event
+	 * followed by the events.
 	 *
-	 * @param output
+	 * @param firstEvent
+	 * @param events
 	 * @param order
-	 *            @
+	 * @return
 	 */
-	public static byte[] encodePutOkay(final ByteOrder order) {
-		final ByteBuffer buffer = ByteBuffer.allocate(8);
+	public static byte[] encodePushEvents(final int firstEvent,
+			final Event[] events, final ByteOrder order) {
+
+		// Determine total message size
+		final int size = 4 + sizeOfEvents(events);
+
+		// Create ByteBuffer
+		final ByteBuffer buffer = ByteBuffer.allocate(8 + size);
 		buffer.order(order);
 
+		// Add standard message opening
 		buffer.putShort(VERSION);
-		buffer.putShort(PUT_OK);
-		buffer.putInt(0);
+		buffer.putShort(PUSH_EVT);
+		buffer.putInt(size);
+
+		// Add index of the first event
+		buffer.putInt(firstEvent);
+
+		// Add the events
+		putEvents(buffer, events, order);
 
 		return buffer.array();
 	}
 
+	/**
+	 * Encodes the response to the client for a put error.
+	 *
+	 * @param output
+	 * @param order
+	 *            @
+	 */
+	public static byte[] encodePutError(final ByteOrder order) {
+		return PUT_ERROR[orderIndex(order)];
+	}
+
+	/**
+	 * Encodes the response to the client for a successful put.
+	 *
+	 * @param output
+	 * @param order
+	 *            @
+	 */
+	public static byte[] encodePutOkay(final ByteOrder order) {
+		return PUT_OKAY[orderIndex(order)];
+	}
+
 	/**
 	 * Write a WAIT_ERR to the BufferedOutputStream
 	 *
@@ -712,31 +945,99 @@ public class NetworkProtocol {
 	 *            @
 	 */
 	public static byte[] encodeWaitError(final ByteOrder order) {
-		final ByteBuffer buffer = ByteBuffer.allocate(8);
+		return WAIT_ERROR[orderIndex(order)];
+	}
+
+	/**
+	 * Encodes the response to a WAIT_GET_DAT request. Contains the current
+	 * number of samples and events, followed by the new data (including data
+	 * definition) and the new events.
+	 *
+	 * @param nSamples
+	 * @param nEvents
+	 * @param data
+	 *            Samples added since the index given by the client.
+	 * @param events
+	 *            Events added since the index given by the client.
+	 * @param order
+	 * @return
+	 */
+	public static byte[] encodeWaitGetResponse(final int nSamples,
+			final int nEvents, final Data data, final Event[] events,
+			final ByteOrder order) {
+
+		// Determine total message size
+		final int size = 8 + sizeOfData(data) + sizeOfEvents(events);
+
+		// Create ByteBuffer
+		final ByteBuffer buffer = ByteBuffer.allocate(8 + size);
 		buffer.order(order);
 
+		// Add standard message opening
 		buffer.putShort(VERSION);
-		buffer.putShort(WAIT_ERR);
-		buffer.putInt(0);
+		buffer.putShort(WAIT_OK);
+		buffer.putInt(size);
+
+		// Add nSamples and nEvents
+		buffer.putInt(nSamples);
+		buffer.putInt(nEvents);
+
+		// Add the new data and events
+		putData(buffer, data, null, order);
+		putEvents(buffer, events, order);
 
 		return buffer.array();
 	}
 
 	/**
-	 * Encodes a WaitRequest given the ByteOrder
+	 * Encodes a SUBSCRIBE_ERR.
 	 *
-	 * @param output
-	 * @param waitRequest
 	 * @param order
-	 *            @
+	 * @return
 	 */
-	public static byte[] encodeWaitResponse(final int nSamples,
-			final int nEvents, final ByteOrder order) {
+	public static byte[] encodeSubscribeError(final ByteOrder order) {
+		return SUBSCRIBE_ERROR[orderIndex(order)];
+	}
 
-		// Create ByteBuffer
+	/**
+	 * Encodes a SUBSCRIBE_OK containing the number of samples and events at
+	 * the moment pushing starts (or stops).
+	 *
+	 * @param nSamples
+	 * @param nEvents
+	 * @param order
+	 * @return
+	 */
+	public static byte[] encodeSubscribeResponse(final int nSamples,
+			final int nEvents, final ByteOrder order) {
 		final ByteBuffer buffer = ByteBuffer.allocate(16);
 		buffer.order(order);
 
+		buffer.putShort(VERSION);
+		buffer.putShort(SUBSCRIBE_OK);
+		buffer.putInt(8);
+
+		buffer.putInt(nSamples);
+		buffer.putInt(nEvents);
+
+		return buffer.array();
+	}
+
+	/**
+	 * Encodes the response to a WaitRequest into the buffer, in the ByteOrder
+	 * of the buffer.
+	 *
+	 * @param nSamples
+	 * @param nEvents
+	 * @param buffer
+	 * @return the buffer, or a larger copy if it was too small.
+	 */
+	public static ByteBuffer encodeWaitResponse(final int nSamples,
+			final int nEvents, ByteBuffer buffer) {
+
+		// Make sure the response fits
+		buffer = ensureCapacity(buffer, 16);
+
 		// Add standard message opening
 		buffer.putShort(VERSION);
 		buffer.putShort(WAIT_OK);
@@ -748,7 +1049,61 @@ public class NetworkProtocol {
 		// Add nEvents
 		buffer.putInt(nEvents);
 
-		return buffer.array();
+		return buffer;
+	}
+
+	/**
+	 * Reserves room for a standard message opening at the position of the
+	 * buffer. Returns the position of the opening, to be passed to
+	 * endMessage once the message body has been written.
+	 *
+	 * @param buffer
+	 * @return
+	 */
+	public static int beginMessage(final ByteBuffer buffer) {
+		final int start = buffer.position();
+		buffer.position(start + 8);
+		return start;
+	}
+
+	/**
+	 * Writes the standard message opening reserved by beginMessage. The size
+	 * is the number of bytes written after the opening.
+	 *
+	 * @param buffer
+	 * @param start
+	 *            Position returned by beginMessage.
+	 * @param type
+	 */
+	public static void endMessage(final ByteBuffer buffer, final int start,
+			final short type) {
+		buffer.putShort(start, VERSION);
+		buffer.putShort(start + 2, type);
+		buffer.putInt(start + 4, buffer.position() - start - 8);
+	}
+
+	/**
+	 * Makes sure size more bytes can be put into the buffer. Returns the
+	 * buffer if they fit, otherwise a larger copy with the same ByteOrder
+	 * and contents up to the position.
+	 *
+	 * @param buffer
+	 * @param size
+	 * @return
+	 */
+	public static ByteBuffer ensureCapacity(final ByteBuffer buffer,
+			final int size) {
+		if (buffer.capacity() - buffer.position() >= size) {
+			buffer.limit(buffer.capacity());
+			return buffer;
+		}
+
+		final ByteBuffer larger = ByteBuffer.allocate(Math.max(
+				buffer.position() + size, 2 * buffer.capacity()));
+		larger.order(buffer.order());
+		larger.put(buffer.array(), buffer.arrayOffset(), buffer.position());
+
+		return larger;
 	}
 
 	/**
@@ -761,14 +1116,206 @@ public class NetworkProtocol {
 	 * @throws IOException
 	 */
 	private static void loadBuffer(final ByteBuffer buffer,
-			final BufferedInputStream input, int size) throws IOException {
-		while (size > 0) {
-			buffer.put((byte) input.read());
-			size--;
+			final BufferedInputStream input, final int size)
+			throws IOException {
+		final byte[] array = buffer.array();
+		final int offset = buffer.arrayOffset() + buffer.position();
+
+		int read = 0;
+		while (read < size) {
+			final int n = input.read(array, offset + read, size - read);
+
+			if (n == -1) {
+				throw new SocketException("Connection closed during message.");
+			}
+
+			read += n;
 		}
 		buffer.rewind();
 	}
 
+	/**
+	 * Writes the data definition and data to the buffer given the ByteOrder.
+	 *
+	 * @param buffer
+	 * @param data
+	 * @param channels
+	 *            Indices of the channels to write, null for all channels.
+	 * @param order
+	 */
+	private static void putData(final ByteBuffer buffer, final Data data,
+			final int[] channels, final ByteOrder order) {
+		final int nBytes = dataTypeSize(data.dataType);
+		final int nChans = channels == null ? data.nChans : channels.length;
+
+		// Add number of channels
+		buffer.putInt(nChans);
+
+		// Add number of samples
+		buffer.putInt(data.nSamples);
+
+		// Add data type
+		buffer.putInt(data.dataType);
+
+		// Add data
+
+		buffer.putInt(data.nSamples * nChans * nBytes);
+
+		final boolean flipOrder = order != data.order && nBytes > 1;
+
+		for (int x = 0; x < data.nSamples; x++) {
+			for (int c = 0; c < nChans; c++) {
+				final int y = channels == null ? c : channels[c];
+				for (int z = 0; z < nBytes; z++) {
+					if (flipOrder) {
+						buffer.put(data.data[x][y][nBytes - z - 1]);
+					} else {
+						buffer.put(data.data[x][y][z]);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the events to the buffer given the ByteOrder.
+	 *
+	 * @param buffer
+	 * @param events
+	 * @param order
+	 */
+	private static void putEvents(final ByteBuffer buffer,
+			final Event[] events, final ByteOrder order) {
+
+		// Loop through all evens and add them to the buffer.
+
+		for (final Event event : events) {
+			// Add event type data type
+			buffer.putInt(event.typeType);
+
+			// Add number of elements in event type
+			buffer.putInt(event.typeSize);
+
+			// Add event value data type
+			buffer.putInt(event.valueType);
+
+			// Add number of elements in event value
+			buffer.putInt(event.valueSize);
+
+			// Add associated sample
+			buffer.putInt(event.sample);
+
+			// Add offset
+			buffer.putInt(event.offset);
+
+			// Add duration
+			buffer.putInt(event.duration);
+
+			// Add size of remaining value and type bytes
+
+			final int typeNBytes = dataTypeSize(event.typeType);
+			final int valueNBytes = dataTypeSize(event.valueType);
+
+			buffer.putInt(event.typeSize * typeNBytes + event.valueSize
+					* valueNBytes);
+
+			// Add type bytes
+			putElements(buffer, event.type, typeNBytes, order != event.order);
+
+			// Add value bytes
+			putElements(buffer, event.value, valueNBytes,
+					order != event.order);
+		}
+	}
+
+	/**
+	 * Writes an array of elements of nBytes bytes each to the buffer. Flips
+	 * the bytes of each element if flipOrder is true.
+	 *
+	 * @param buffer
+	 * @param elements
+	 * @param nBytes
+	 * @param flipOrder
+	 */
+	private static void putElements(final ByteBuffer buffer,
+			final byte[] elements, final int nBytes, final boolean flipOrder) {
+		if (flipOrder && nBytes > 1) {
+			for (int x = 0; x < elements.length; x += nBytes) {
+				for (int y = nBytes - 1; y >= 0; y--) {
+					buffer.put(elements[x + y]);
+				}
+			}
+		} else {
+			buffer.put(elements);
+		}
+	}
+
+	/**
+	 * Encodes a message without a body in both byte orders, indexed by
+	 * orderIndex.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private static byte[][] encodeEmpty(final short type) {
+		final byte[][] encoded = new byte[2][];
+
+		for (final ByteOrder order : new ByteOrder[] { ByteOrder.BIG_ENDIAN,
+				ByteOrder.LITTLE_ENDIAN }) {
+			final ByteBuffer buffer = ByteBuffer.allocate(8);
+			buffer.order(order);
+
+			buffer.putShort(VERSION);
+			buffer.putShort(type);
+			buffer.putInt(0);
+
+			encoded[orderIndex(order)] = buffer.array();
+		}
+
+		return encoded;
+	}
+
+	/**
+	 * Returns 0 for BIG_ENDIAN and 1 for LITTLE_ENDIAN.
+	 *
+	 * @param order
+	 * @return
+	 */
+	private static int orderIndex(final ByteOrder order) {
+		return order == ByteOrder.BIG_ENDIAN ? 0 : 1;
+	}
+
+	/**
+	 * Returns the number of bytes putData will write for the given data.
+	 *
+	 * @param data
+	 * @return
+	 */
+	private static int sizeOfData(final Data data) {
+		return 16 + data.size() * dataTypeSize(data.dataType);
+	}
+
+	/**
+	 * Returns the number of bytes putEvents will write for the given events.
+	 *
+	 * @param events
+	 * @return
+	 */
+	private static int sizeOfEvents(final Event[] events) {
+		int size = 0;
+		for (final Event event : events) {
+			size += 32;
+			size += event.typeSize * dataTypeSize(event.typeType);
+			size += event.valueSize * dataTypeSize(event.valueType);
+		}
+		return size;
+	}
+
+	/**
+	 * Default maximum size of a message body that is read into memory.
+	 */
+	public static final int DEFAULT_MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
 	public static final short VERSION = 1;
 	public static final short GET_HDR = 0x201;
 	public static final short GET_DAT = 0x202;
@@ -792,6 +1339,47 @@ public class NetworkProtocol {
 	public static final short WAIT_OK = 0x404;
 
 	public static final short WAIT_ERR = 0x405;
+
+	/**
+	 * Extension: blocks like WAIT_DAT and responds with WAIT_OK followed by
+	 * the samples and events added since the given indices.
+	 */
+	public static final short WAIT_GET_DAT = 0x501;
+
+	/**
+	 * Extension: responds with the GET_HDR, GET_DAT and GET_EVT responses
+	 * concatenated, taken from one consistent snapshot.
+	 */
+	public static final short GET_BATCH = 0x502;
+
+	/**
+	 * Extension: server-push subscription. After SUBSCRIBE_OK the server
+	 * sends a PUSH_DAT for every block of samples and a PUSH_EVT for every
+	 * batch of events that is put, until UNSUBSCRIBE.
+	 */
+	public static final short SUBSCRIBE = 0x601;
+	public static final short UNSUBSCRIBE = 0x602;
+	public static final short SUBSCRIBE_OK = 0x604;
+	public static final short SUBSCRIBE_ERR = 0x605;
+	public static final short PUSH_DAT = 0x606;
+	public static final short PUSH_EVT = 0x607;
+
+	public static final int SUBSCRIBE_DATA = 1;
+	public static final int SUBSCRIBE_EVENTS = 2;
+	public static final int SUBSCRIBE_DISCONNECT = 4;
+
+	/**
+	 * Responses without a body, for big and little endian clients. Encoded
+	 * once so sending them does not allocate.
+	 */
+	private static final byte[][] FLUSH_ERROR = encodeEmpty(FLUSH_ERR);
+	private static final byte[][] FLUSH_OKAY = encodeEmpty(FLUSH_OK);
+	private static final byte[][] GET_ERROR = encodeEmpty(GET_ERR);
+	private static final byte[][] PUT_ERROR = encodeEmpty(PUT_ERR);
+	private static final byte[][] PUT_OKAY = encodeEmpty(PUT_OK);
+	private static final byte[][] WAIT_ERROR = encodeEmpty(WAIT_ERR);
+	private static final byte[][] SUBSCRIBE_ERROR = encodeEmpty(SUBSCRIBE_ERR);
+
 	public static final int CHUNK_UNKNOWN = 0;
 
 	public static final int CHUNK_CHANNEL_NAMES = 1;
@@ -0,0 +1,100 @@
+package buffer_bci.javaserver.network;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+
+import buffer_bci.javaserver.FieldtripBufferMonitor;
+
+/**
+ * Thread that writes the data blocks and event batches queued in a
+ * Subscription to the client. Shares the output stream with the
+ * ConnectionThread, each message is written with a single (synchronized)
+ * write.
+ *
+ * @author Wieke Kanters
+ *
+ */
+public class PushThread extends Thread {
+	private final Subscription subscription;
+	private final BufferedOutputStream output;
+	private final ByteOrder order;
+	private final ConnectionThread connection;
+	private final FieldtripBufferMonitor monitor;
+
+	/**
+	 * Constructor
+	 *
+	 * @param subscription
+	 *            The subscription to push.
+	 * @param output
+	 *            Output stream of the connection.
+	 * @param order
+	 *            ByteOrder of the client.
+	 * @param connection
+	 *            The connection, disconnected when the queue overflows.
+	 * @param monitor
+	 */
+	public PushThread(final Subscription subscription,
+			final BufferedOutputStream output, final ByteOrder order,
+			final ConnectionThread connection,
+			final FieldtripBufferMonitor monitor) {
+		this.subscription = subscription;
+		this.output = output;
+		this.order = order;
+		this.connection = connection;
+		this.monitor = monitor;
+		setName("Fieldtrip Push Thread " + connection.clientAdress);
+		setDaemon(true);
+	}
+
+	/**
+	 * Takes items from the subscription queue and writes them until
+	 * interrupted.
+	 */
+	@Override
+	public void run() {
+		try {
+			while (!isInterrupted()) {
+				final Subscription.Push push = subscription.take();
+
+				// Apply disconnect policy
+				if (subscription.overflowed()) {
+					if (monitor != null) {
+						monitor.clientError(connection.clientID,
+								FieldtripBufferMonitor.ERROR_OVERFLOW,
+								System.currentTimeMillis());
+					}
+					connection.disconnect();
+					return;
+				}
+
+				if (push.data != null) {
+					output.write(NetworkProtocol.encodePushData(push.first,
+							push.data, subscription.channels, order));
+
+					if (monitor != null) {
+						monitor.clientGetSamples(push.data.nSamples,
+								connection.clientID, System.currentTimeMillis());
+					}
+				} else {
+					output.write(NetworkProtocol.encodePushEvents(push.first,
+							push.events, order));
+
+					if (monitor != null) {
+						monitor.clientGetEvents(push.events.length,
+								connection.clientID, System.currentTimeMillis());
+					}
+				}
+
+				// Only flush once the queue has been drained
+				if (subscription.isEmpty()) {
+					output.flush();
+				}
+			}
+		} catch (final InterruptedException e) {
+		} catch (final IOException e) {
+			// Connection lost, ConnectionThread handles the cleanup.
+		}
+	}
+}
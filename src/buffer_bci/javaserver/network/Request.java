@@ -2,13 +2,17 @@ package buffer_bci.javaserver.network;
 
 /**
  * Simple wrapper for the details of the get_dat and get_evt messages.
+ * Reusable, NetworkProtocol.decodeRequest can fill in an existing request.
  * 
  * @author Wieke Kanters
  * 
  */
 public class Request {
-	public final int begin;
-	public final int end;
+	public int begin;
+	public int end;
+
+	public Request() {
+	}
 
 	public Request(int begin, int end) {
 		this.begin = begin;
@@ -0,0 +1,150 @@
+package buffer_bci.javaserver.network;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+import buffer_bci.javaserver.data.Data;
+import buffer_bci.javaserver.data.Event;
+
+/**
+ * Container for the details of a SUBSCRIBE message. Holds a bounded queue of
+ * data blocks and event batches that still have to be pushed to the client.
+ * When the queue is full new items are dropped, or the subscription is marked
+ * as overflowed if the client asked to be disconnected instead.
+ *
+ * @author Wieke Kanters
+ *
+ */
+public class Subscription {
+	/**
+	 * Data block or event batch waiting to be pushed.
+	 */
+	public static class Push {
+		public final int first;
+		public final Data data;
+		public final Event[] events;
+
+		/**
+		 * Constructor
+		 *
+		 * @param first
+		 *            Index of the first sample or event.
+		 * @param data
+		 *            The data, null for an event batch.
+		 * @param events
+		 *            The events, null for a data block.
+		 */
+		public Push(final int first, final Data data, final Event[] events) {
+			this.first = first;
+			this.data = data;
+			this.events = events;
+		}
+	}
+
+	public static final int QUEUE_CAPACITY = 256;
+
+	public final boolean data;
+	public final boolean events;
+	public final boolean disconnectOnOverflow;
+	public final int[] channels;
+
+	private final ArrayBlockingQueue<Push> queue = new ArrayBlockingQueue<Push>(
+			QUEUE_CAPACITY);
+	private volatile boolean overflowed = false;
+	private volatile int dropped = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param data
+	 *            Push new data blocks.
+	 * @param events
+	 *            Push new events.
+	 * @param disconnectOnOverflow
+	 *            Disconnect the client instead of dropping items when the
+	 *            queue is full.
+	 * @param channels
+	 *            Indices of the channels to push, null for all channels.
+	 */
+	public Subscription(final boolean data, final boolean events,
+			final boolean disconnectOnOverflow, final int[] channels) {
+		this.data = data;
+		this.events = events;
+		this.disconnectOnOverflow = disconnectOnOverflow;
+		this.channels = channels;
+	}
+
+	/**
+	 * Returns the number of items dropped because the queue was full.
+	 *
+	 * @return
+	 */
+	public int dropped() {
+		return dropped;
+	}
+
+	/**
+	 * Returns true if no items are waiting to be pushed.
+	 *
+	 * @return
+	 */
+	public boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	/**
+	 * Returns true if the queue overflowed and the client should be
+	 * disconnected.
+	 *
+	 * @return
+	 */
+	public boolean overflowed() {
+		return overflowed;
+	}
+
+	/**
+	 * Queues a data block. Never blocks.
+	 *
+	 * @param firstSample
+	 *            Index of the first sample in the block.
+	 * @param data
+	 */
+	public void pushData(final int firstSample, final Data data) {
+		offer(new Push(firstSample, data, null));
+	}
+
+	/**
+	 * Queues a batch of events. Never blocks.
+	 *
+	 * @param firstEvent
+	 *            Index of the first event in the batch.
+	 * @param events
+	 */
+	public void pushEvents(final int firstEvent, final Event[] events) {
+		offer(new Push(firstEvent, null, events));
+	}
+
+	/**
+	 * Blocks until an item is available and returns it.
+	 *
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public Push take() throws InterruptedException {
+		return queue.take();
+	}
+
+	/**
+	 * Adds the item to the queue, applies the overflow policy if it is full.
+	 *
+	 * @param push
+	 */
+	private synchronized void offer(final Push push) {
+		if (!queue.offer(push)) {
+			if (disconnectOnOverflow) {
+				overflowed = true;
+			} else {
+				dropped++;
+			}
+		}
+	}
+}
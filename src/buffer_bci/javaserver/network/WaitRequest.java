@@ -1,22 +1,139 @@
 package buffer_bci.javaserver.network;
 
+import buffer_bci.javaserver.data.Event;
+import buffer_bci.javaserver.data.EventFilter;
+
+/**
+ * Details of a wait_dat message. Reusable, NetworkProtocol.decodeWaitRequest
+ * can reset an existing request once it has been removed from the dataStore.
+ *
+ * @author Wieke Kanters
+ *
+ */
 public class WaitRequest {
-	public final int nSamples;
-	public final int nEvents;
-	public final int timeout;
+	public int nSamples;
+	public int nEvents;
+	public int timeout;
+	public EventFilter filter;
+	private boolean isSatisfied = false;
+	private boolean eventMatched = false;
+
+	public WaitRequest() {
+	}
 
 	public WaitRequest(int nSamples, int nEvents, int timeout) {
+		this(nSamples, nEvents, timeout, null);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param nSamples
+	 * @param nEvents
+	 * @param timeout
+	 * @param filter
+	 *            Only events matching the filter count towards the event
+	 *            threshold, null to count all events.
+	 */
+	public WaitRequest(int nSamples, int nEvents, int timeout,
+			EventFilter filter) {
 		this.nSamples = nSamples;
 		this.nEvents = nEvents;
 		this.timeout = timeout;
+		this.filter = filter;
 	}
 
+	/**
+	 * Blocks until satisfied() has been called or the timeout has passed.
+	 * Returns immediately if satisfied() was called before blocking.
+	 *
+	 * @param timeout
+	 * @throws InterruptedException
+	 */
 	public synchronized void blockUntilSatisfied(long timeout)
 			throws InterruptedException {
-		wait(timeout);
+		final long deadline = System.currentTimeMillis() + timeout;
+
+		while (!isSatisfied && timeout > 0) {
+			wait(timeout);
+			timeout = deadline - System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Checks a newly added event against the filter. Called by the dataStore
+	 * before checking the thresholds.
+	 *
+	 * @param index
+	 *            Index of the event.
+	 * @param event
+	 */
+	public void checkEvent(final int index, final Event event) {
+		if (filter != null && !eventMatched && index >= nEvents
+				&& filter.matches(event)) {
+			eventMatched = true;
+		}
+	}
+
+	/**
+	 * Returns true if the event threshold has been passed. With a filter only
+	 * matching events count. A negative threshold is never met, the wait does
+	 * not depend on events.
+	 *
+	 * @param eventCount
+	 * @return
+	 */
+	public boolean eventThresholdMet(final int eventCount) {
+		if (nEvents < 0) {
+			return false;
+		} else if (filter == null) {
+			return eventCount > nEvents;
+		} else {
+			return eventMatched;
+		}
+	}
+
+	/**
+	 * Returns true if the sample threshold has been passed. A negative
+	 * threshold is never met, the wait does not depend on samples.
+	 *
+	 * @param sampleCount
+	 * @return
+	 */
+	public boolean sampleThresholdMet(final int sampleCount) {
+		return nSamples >= 0 && sampleCount > nSamples;
+	}
+
+	/**
+	 * Replaces the details of the request and clears its state, so it can be
+	 * reused for a new wait.
+	 *
+	 * @param nSamples
+	 * @param nEvents
+	 * @param timeout
+	 * @param filter
+	 */
+	public synchronized void reset(int nSamples, int nEvents, int timeout,
+			EventFilter filter) {
+		this.nSamples = nSamples;
+		this.nEvents = nEvents;
+		this.timeout = timeout;
+		this.filter = filter;
+		isSatisfied = false;
+		eventMatched = false;
+	}
+
+	/**
+	 * Returns true if satisfied() was called since the last reset.
+	 *
+	 * @return
+	 */
+	public synchronized boolean isSatisfied() {
+		return isSatisfied;
 	}
 
 	public synchronized void satisfied() {
+		isSatisfied = true;
 		notifyAll();
 	}
 
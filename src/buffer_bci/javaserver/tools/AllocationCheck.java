@@ -0,0 +1,239 @@
+package buffer_bci.javaserver.tools;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.concurrent.Future;
+
+import buffer_bci.javaserver.Buffer;
+import buffer_bci.javaserver.client.BufferClient;
+import buffer_bci.javaserver.client.WaitListener;
+import buffer_bci.javaserver.metrics.BufferMetrics;
+import buffer_bci.javaserver.network.NetworkProtocol;
+
+/**
+ * Checks that the steady state PUT_DAT, WAIT_DAT, GET_DAT, GET_HDR and
+ * WAIT_GET_DAT cycle does not allocate on the server, with latency metrics recorded. Starts a
+ * buffer, connects a producer and a consumer and measures the bytes
+ * allocated by their connection threads over a number of cycles. Exits with
+ * status 1 if anything was allocated. The producer and consumer use
+ * BufferClient, the consumer waits asynchronously so its WAIT_DAT is pending
+ * while the producer puts. Given a path, the buffer also listens on a Unix
+ * domain socket there and the clients connect to that instead of the port.
+ *
+ * The cycles are measured in windows of a number of cycles. Until C2 has
+ * compiled the loop and its first deoptimizations have passed, the
+ * connection threads load classes referenced from cold branches (such as
+ * EventFilter), which is counted as allocation, and how
+ * long that takes depends on the machine. So instead of a fixed warmup the
+ * check passes once two consecutive windows allocate nothing, and fails if
+ * that does not happen within a limit on the total number of cycles.
+ *
+ * Usage: java buffer_bci.javaserver.tools.AllocationCheck [port] [window]
+ * [limit] [unixSocket]
+ *
+ * @author Wieke Kanters
+ *
+ */
+public class AllocationCheck {
+	private static final int DEFAULT_WINDOW = 10000;
+	private static final int DEFAULT_LIMIT = 500000;
+	private static final int N_CHANS = 32;
+	private static final int BLOCK_SIZE = 10;
+
+	/**
+	 * Fails the check if a wait fails.
+	 */
+	private static final WaitListener WAITED = new WaitListener() {
+		@Override
+		public void dataAvailable(final int nSamples, final int nEvents) {
+		}
+
+		@Override
+		public void waitFailed(final Exception e) {
+			throw new IllegalStateException("WAIT_DAT failed", e);
+		}
+	};
+
+	public static void main(final String[] args) throws Exception {
+		final int port = args.length > 0 ? Integer.parseInt(args[0]) : 1973;
+		final int window = args.length > 1 ? Integer.parseInt(args[1])
+				: DEFAULT_WINDOW;
+		final int limit = args.length > 2 ? Integer.parseInt(args[2])
+				: DEFAULT_LIMIT;
+		final Path unixSocket = args.length > 3 ? Paths.get(args[3]) : null;
+
+		final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+
+		final Buffer buffer = new Buffer(port, 1000, 100);
+		buffer.setMetrics(new BufferMetrics());
+		buffer.setUnixSocketPath(unixSocket);
+		buffer.start();
+		buffer.putHeader(N_CHANS, 250, NetworkProtocol.FLOAT32);
+
+		final BufferClient producer = connect(port, unixSocket);
+		final BufferClient consumer = connect(port, unixSocket);
+		final float[] block = new float[BLOCK_SIZE * N_CHANS];
+		final float[] received = new float[BLOCK_SIZE * N_CHANS];
+
+		// One cycle makes sure both connection threads are running
+		int nSamples = cycle(0, producer, consumer, block, received);
+		int total = 1;
+
+		final long[] ids = connectionThreadIds();
+		if (ids.length != 2) {
+			throw new IllegalStateException("Found " + ids.length
+					+ " connection threads instead of 2.");
+		}
+
+		// Measure windows until two consecutive ones allocate nothing
+		int clean = 0;
+		long allocated = 0;
+		while (clean < 2 && total + window <= limit) {
+			final long before = allocatedBytes(threadBean, ids);
+
+			for (int i = 0; i < window; i++) {
+				nSamples = cycle(nSamples, producer, consumer, block,
+						received);
+			}
+			total += window;
+
+			allocated = allocatedBytes(threadBean, ids) - before;
+			clean = allocated == 0 ? clean + 1 : 0;
+		}
+
+		producer.close();
+		consumer.close();
+		buffer.stopBuffer();
+
+		System.out.print(buffer.getMetrics().report());
+		if (clean == 2) {
+			System.out.println("Connection threads allocated 0 bytes in two "
+					+ "consecutive windows of " + window + " cycles, after "
+					+ total + " cycles.");
+		} else {
+			System.out.println("Connection threads still allocated "
+					+ allocated + " bytes in the last window of " + window
+					+ " cycles, after " + total + " cycles.");
+		}
+
+		System.exit(clean == 2 ? 0 : 1);
+	}
+
+	/**
+	 * Returns the total number of bytes allocated by the threads.
+	 *
+	 * @param threadBean
+	 * @param ids
+	 * @return
+	 */
+	private static long allocatedBytes(
+			final com.sun.management.ThreadMXBean threadBean, final long[] ids) {
+		long total = 0;
+		for (final long bytes : threadBean.getThreadAllocatedBytes(ids)) {
+			total += bytes;
+		}
+		return total;
+	}
+
+	/**
+	 * Connects to the buffer, retrying until it is listening.
+	 *
+	 * @param port
+	 * @param unixSocket
+	 *            Path of the Unix domain socket to connect to instead of the
+	 *            port, or null.
+	 * @return
+	 * @throws Exception
+	 */
+	private static BufferClient connect(final int port, final Path unixSocket)
+			throws Exception {
+		for (int attempt = 0;; attempt++) {
+			try {
+				return unixSocket != null ? new BufferClient(unixSocket)
+						: new BufferClient("localhost", port);
+			} catch (final IOException e) {
+				if (attempt == 50) {
+					throw e;
+				}
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	/**
+	 * Returns the ids of the connection threads of the buffer.
+	 *
+	 * @return
+	 */
+	private static long[] connectionThreadIds() {
+		final ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().startsWith("Fieldtrip Client Thread")) {
+				threads.add(thread);
+			}
+		}
+
+		final long[] ids = new long[threads.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = threads.get(i).getId();
+		}
+		return ids;
+	}
+
+	/**
+	 * Runs one cycle: the consumer waits for new samples, the producer puts a
+	 * block, the consumer gets the block and the header, the producer puts
+	 * another block which the consumer gets with WAIT_GET_DAT. Returns the
+	 * new number of samples.
+	 *
+	 * @param nSamples
+	 * @param producer
+	 * @param consumer
+	 * @param block
+	 * @param received
+	 * @return
+	 * @throws Exception
+	 */
+	private static int cycle(final int nSamples, final BufferClient producer,
+			final BufferClient consumer, final float[] block,
+			final float[] received) throws Exception {
+
+		// WAIT_DAT for more than nSamples samples
+		final Future<?> wait = consumer.waitDataAsync(nSamples, -1, 5000,
+				WAITED);
+
+		// PUT_DAT a block of samples
+		for (int i = 0; i < block.length; i++) {
+			block[i] = nSamples + i;
+		}
+		producer.putData(block, N_CHANS, BLOCK_SIZE);
+
+		wait.get();
+
+		// GET_DAT the new block and GET_HDR
+		consumer.getData(nSamples, nSamples + BLOCK_SIZE - 1, received);
+		if (received[received.length - 1] != block[block.length - 1]) {
+			throw new IllegalStateException("Got different samples than put.");
+		}
+		consumer.getHeader();
+
+		// PUT_DAT another block and WAIT_GET_DAT it
+		final int next = nSamples + BLOCK_SIZE;
+		for (int i = 0; i < block.length; i++) {
+			block[i] = next + i;
+		}
+		producer.putData(block, N_CHANS, BLOCK_SIZE);
+
+		if (consumer.waitGetData(next, 5000, received) != BLOCK_SIZE
+				|| received[received.length - 1] != block[block.length - 1]) {
+			throw new IllegalStateException(
+					"Waited for different samples than put.");
+		}
+
+		return next + BLOCK_SIZE;
+	}
+}
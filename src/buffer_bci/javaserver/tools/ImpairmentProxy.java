@@ -0,0 +1,475 @@
+package buffer_bci.javaserver.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TCP proxy that sits in front of a buffer and makes loopback behave like a
+ * poor network, so clients can be tested as if they were on Wi-Fi. Every
+ * chunk of bytes is held back by a delay plus random jitter (without
+ * reordering, like TCP), each direction of a connection is limited to a
+ * bandwidth, and connections stall completely now and then, like a radio
+ * that loses its link.
+ *
+ * Usage: java buffer_bci.javaserver.tools.ImpairmentProxy [key=value ...]
+ *
+ * listen=1973 port the proxy listens on. host=localhost port=1972 buffer the
+ * proxy forwards to. network=loopback|wifi|congested|stalls|mobile starts
+ * from one of the SCENARIOS, the keys below override it. delay=0 jitter=0
+ * (ms, one way). bandwidth=0 (bytes per second per direction, 0 for no
+ * limit). stallEvery=0 (mean seconds between stalls, 0 for none)
+ * stallTime=0 (ms a stall lasts).
+ *
+ * @author Wieke Kanters
+ *
+ */
+public class ImpairmentProxy extends Thread {
+
+	/**
+	 * Named network conditions, as delay, jitter, bandwidth, stallEvery and
+	 * stallTime.
+	 */
+	public static final String[][] SCENARIOS = {
+			{ "loopback", "0", "0", "0", "0", "0" },
+			{ "wifi", "2", "2", "2500000", "0", "0" },
+			{ "congested", "20", "15", "250000", "0", "0" },
+			{ "stalls", "2", "2", "2500000", "5", "500" },
+			{ "mobile", "40", "30", "125000", "10", "1000" } };
+
+	private static final String[] KEYS = { "delay", "jitter", "bandwidth",
+			"stallEvery", "stallTime" };
+
+	private static final int CHUNK_SIZE = 16384;
+
+	/**
+	 * Chunks a link holds at most, so a slow link pushes back on the sender
+	 * like a real one instead of buffering without bound.
+	 */
+	private static final int QUEUE_CAPACITY = 32;
+
+	/**
+	 * Receive buffer of the proxy sockets. Loopback buffers grow to
+	 * megabytes, which would hide a slow link from the sender for minutes.
+	 */
+	private static final int SOCKET_BUFFER_SIZE = 65536;
+
+	/**
+	 * Bytes read from one side, to be written to the other at release.
+	 */
+	private static class Chunk {
+		final byte[] bytes;
+		final int length;
+		final long release;
+
+		Chunk(final byte[] bytes, final int length, final long release) {
+			this.bytes = bytes;
+			this.length = length;
+			this.release = release;
+		}
+	}
+
+	/**
+	 * A proxied connection, the client and buffer sockets and the stalls
+	 * they share.
+	 */
+	private class Pipe {
+		final Socket client;
+		final Socket server;
+		private final Random random = new Random();
+		private long stallStart;
+		private long counted = -1;
+
+		Pipe(final Socket client, final Socket server) {
+			this.client = client;
+			this.server = server;
+			stallStart = nextStall(System.nanoTime());
+		}
+
+		void close() {
+			synchronized (pipes) {
+				pipes.remove(this);
+			}
+			try {
+				client.close();
+			} catch (final IOException e) {
+			}
+			try {
+				server.close();
+			} catch (final IOException e) {
+			}
+		}
+
+		private long nextStall(final long after) {
+			if (stallEvery <= 0 || stallTime <= 0) {
+				return Long.MAX_VALUE;
+			}
+			// Exponentially distributed, so stalls come at random
+			return after
+					+ (long) (-Math.log(1 - random.nextDouble()) * stallEvery * 1e9);
+		}
+
+		/**
+		 * Returns the end of the stall the pipe is in at time now, or 0 if it
+		 * is not stalled.
+		 *
+		 * @param now
+		 * @return
+		 */
+		synchronized long stalledUntil(final long now) {
+			final long length = (long) (stallTime * 1e6);
+			while (now >= stallStart + length) {
+				stallStart = nextStall(stallStart + length);
+			}
+			if (now >= stallStart) {
+				if (counted != stallStart) {
+					counted = stallStart;
+					stalls.incrementAndGet();
+				}
+				return stallStart + length;
+			}
+			return 0;
+		}
+	}
+
+	/**
+	 * One direction of a pipe: a reader that timestamps chunks and a writer
+	 * that releases them after the delay, at the bandwidth.
+	 */
+	private class Link {
+		private final Pipe pipe;
+		private final InputStream input;
+		private final OutputStream output;
+		private final Socket destination;
+		private final LinkedBlockingQueue<Chunk> queue = new LinkedBlockingQueue<Chunk>(
+				QUEUE_CAPACITY);
+		private final Random random = new Random();
+
+		Link(final Pipe pipe, final Socket source, final Socket destination)
+				throws IOException {
+			this.pipe = pipe;
+			this.destination = destination;
+			input = source.getInputStream();
+			output = destination.getOutputStream();
+		}
+
+		void start(final String name) {
+			final Thread reader = new Thread(name + " reader") {
+				@Override
+				public void run() {
+					read();
+				}
+			};
+			final Thread writer = new Thread(name + " writer") {
+				@Override
+				public void run() {
+					write();
+				}
+			};
+			reader.setDaemon(true);
+			writer.setDaemon(true);
+			reader.start();
+			writer.start();
+		}
+
+		private void read() {
+			long last = 0;
+			try {
+				while (true) {
+					final byte[] bytes = new byte[CHUNK_SIZE];
+					final int length = input.read(bytes);
+					if (length < 0) {
+						break;
+					}
+
+					// Delay plus jitter, but never before the previous chunk
+					final double jittered = delay + jitter
+							* (2 * random.nextDouble() - 1);
+					final long release = Math.max(last, System.nanoTime()
+							+ (long) (Math.max(0, jittered) * 1e6));
+					last = release;
+
+					queue.put(new Chunk(bytes, length, release));
+				}
+				queue.put(new Chunk(null, -1, last));
+			} catch (final Exception e) {
+				pipe.close();
+				queue.offer(new Chunk(null, -1, 0));
+			}
+		}
+
+		private void write() {
+			long free = 0;
+			try {
+				while (true) {
+					final Chunk chunk = queue.take();
+					sleepUntil(chunk.release);
+					if (chunk.length < 0) {
+						destination.shutdownOutput();
+						return;
+					}
+
+					// Wait out any stall
+					long stall = pipe.stalledUntil(System.nanoTime());
+					while (stall > 0) {
+						sleepUntil(stall);
+						stall = pipe.stalledUntil(System.nanoTime());
+					}
+
+					// Send at the bandwidth, in slices so a large chunk
+					// trickles out rather than arriving at once
+					int offset = 0;
+					while (offset < chunk.length) {
+						final int n = bandwidth > 0 ? Math.min(chunk.length
+								- offset, (int) Math.max(1, bandwidth / 100))
+								: chunk.length - offset;
+						if (bandwidth > 0) {
+							free = Math.max(free, System.nanoTime())
+									+ (long) (n * 1e9 / bandwidth);
+						}
+						output.write(chunk.bytes, offset, n);
+						output.flush();
+						offset += n;
+						bytes.addAndGet(n);
+						sleepUntil(free);
+					}
+				}
+			} catch (final Exception e) {
+				pipe.close();
+			}
+		}
+	}
+
+	/**
+	 * Sleeps until System.nanoTime() reaches time.
+	 *
+	 * @param time
+	 * @throws InterruptedException
+	 */
+	private static void sleepUntil(final long time) throws InterruptedException {
+		long remaining = time - System.nanoTime();
+		while (remaining > 0) {
+			Thread.sleep(remaining / 1000000, (int) (remaining % 1000000));
+			remaining = time - System.nanoTime();
+		}
+	}
+
+	public static void main(final String[] args) throws Exception {
+		final HashMap<String, String> options = LoadGenerator.parse(args);
+		final ImpairmentProxy proxy = new ImpairmentProxy(
+				Integer.parseInt(option(options, "listen", "1973")), option(
+						options, "host", "localhost"), Integer.parseInt(option(
+						options, "port", "1972")), options);
+		proxy.start();
+		System.out.println(proxy.describe());
+		proxy.join();
+	}
+
+	private static String option(final HashMap<String, String> options,
+			final String key, final String value) {
+		return options.containsKey(key) ? options.get(key) : value;
+	}
+
+	/**
+	 * Returns the settings of a scenario in SCENARIOS, with the keys in
+	 * options overriding them.
+	 *
+	 * @param options
+	 * @return
+	 */
+	static HashMap<String, String> settings(
+			final HashMap<String, String> options) {
+		final String network = option(options, "network", "loopback");
+		String[] scenario = null;
+		for (final String[] candidate : SCENARIOS) {
+			if (candidate[0].equals(network)) {
+				scenario = candidate;
+			}
+		}
+		if (scenario == null) {
+			throw new IllegalArgumentException("Unknown network " + network);
+		}
+
+		final HashMap<String, String> settings = new HashMap<String, String>();
+		for (int i = 0; i < KEYS.length; i++) {
+			settings.put(KEYS[i], option(options, KEYS[i], scenario[i + 1]));
+		}
+		return settings;
+	}
+
+	/**
+	 * Returns true if the options ask for an impaired network.
+	 *
+	 * @param options
+	 * @return
+	 */
+	static boolean impaired(final HashMap<String, String> options) {
+		for (final String value : settings(options).values()) {
+			if (Double.parseDouble(value) != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private final int listenPort;
+	private final String host;
+	private final int port;
+	private final double delay;
+	private final double jitter;
+	private final double bandwidth;
+	private final double stallEvery;
+	private final double stallTime;
+
+	private final AtomicLong connections = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong stalls = new AtomicLong();
+	private final ArrayList<Pipe> pipes = new ArrayList<Pipe>();
+
+	private ServerSocket serverSocket;
+	private volatile boolean stopped = false;
+
+	/**
+	 * Constructor
+	 *
+	 * @param listenPort
+	 *            Port the proxy listens on.
+	 * @param host
+	 *            Host of the buffer.
+	 * @param port
+	 *            Port of the buffer.
+	 * @param options
+	 *            Network conditions as described in the class
+	 *            documentation.
+	 */
+	public ImpairmentProxy(final int listenPort, final String host,
+			final int port, final HashMap<String, String> options) {
+		super("Impairment Proxy");
+		setDaemon(true);
+		this.listenPort = listenPort;
+		this.host = host;
+		this.port = port;
+
+		final HashMap<String, String> settings = settings(options);
+		delay = Double.parseDouble(settings.get("delay"));
+		jitter = Double.parseDouble(settings.get("jitter"));
+		bandwidth = Double.parseDouble(settings.get("bandwidth"));
+		stallEvery = Double.parseDouble(settings.get("stallEvery"));
+		stallTime = Double.parseDouble(settings.get("stallTime"));
+	}
+
+	/**
+	 * Returns a single line describing the network conditions.
+	 *
+	 * @return
+	 */
+	public String describe() {
+		return String.format(
+				"proxy :%d -> %s:%d, delay %.1f ms, jitter %.1f ms, bandwidth %s, stalls %s",
+				listenPort, host, port, delay, jitter,
+				bandwidth > 0 ? String.format("%.0f B/s", bandwidth)
+						: "unlimited",
+				stallEvery > 0 && stallTime > 0 ? String.format(
+						"of %.0f ms every %.1f s", stallTime, stallEvery)
+						: "none");
+	}
+
+	/**
+	 * Returns the number of bytes forwarded in both directions.
+	 *
+	 * @return
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * Returns the number of connections accepted.
+	 *
+	 * @return
+	 */
+	public long getConnections() {
+		return connections.get();
+	}
+
+	/**
+	 * Returns the number of times a link had to wait for a stall.
+	 *
+	 * @return
+	 */
+	public long getStalls() {
+		return stalls.get();
+	}
+
+	/**
+	 * Opens the listening socket, so clients can connect as soon as this
+	 * returns, and starts accepting.
+	 */
+	@Override
+	public synchronized void start() {
+		try {
+			serverSocket = new ServerSocket();
+			serverSocket.setReuseAddress(true);
+			serverSocket.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+			serverSocket.bind(new InetSocketAddress(listenPort));
+		} catch (final IOException e) {
+			throw new IllegalStateException("Could not listen on port "
+					+ listenPort, e);
+		}
+		super.start();
+	}
+
+	@Override
+	public void run() {
+		while (!stopped) {
+			try {
+				final Socket client = serverSocket.accept();
+				final Socket server = new Socket();
+				server.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+				server.connect(new InetSocketAddress(host, port));
+				client.setTcpNoDelay(true);
+				server.setTcpNoDelay(true);
+
+				final Pipe pipe = new Pipe(client, server);
+				synchronized (pipes) {
+					pipes.add(pipe);
+				}
+				final long index = connections.incrementAndGet();
+				new Link(pipe, client, server).start("Proxy " + index
+						+ " upstream");
+				new Link(pipe, server, client).start("Proxy " + index
+						+ " downstream");
+			} catch (final IOException e) {
+				if (!stopped) {
+					System.err.println("Proxy: " + e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting and closes all proxied connections.
+	 */
+	public void stopProxy() {
+		stopped = true;
+		try {
+			serverSocket.close();
+		} catch (final IOException e) {
+		}
+		final Pipe[] open;
+		synchronized (pipes) {
+			open = pipes.toArray(new Pipe[pipes.size()]);
+		}
+		for (final Pipe pipe : open) {
+			pipe.close();
+		}
+	}
+}
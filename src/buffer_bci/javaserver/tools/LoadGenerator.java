@@ -0,0 +1,1009 @@
+package buffer_bci.javaserver.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import buffer_bci.javaserver.Buffer;
+import buffer_bci.javaserver.metrics.BufferMetrics;
+import buffer_bci.javaserver.metrics.LatencyHistogram;
+import buffer_bci.javaserver.network.NetworkProtocol;
+
+/**
+ * End-to-end load test. Starts a buffer on loopback (or connects to a running
+ * one) and runs synthetic producers that put blocks of samples and events at
+ * the pace of an amplifier, and consumers that follow the data like a viewer,
+ * either by waiting for new samples with WAIT_DAT or by polling. Reports the
+ * sustained throughput, the latency percentiles of every request type, the
+ * samples the consumers missed because the ring overwrote them before they
+ * were read, and the blocks producers sent late because the buffer could not
+ * keep up.
+ *
+ * Usage: java buffer_bci.javaserver.tools.LoadGenerator [key=value ...]
+ *
+ * port=1972 port of the buffer. host=localhost host the clients connect to.
+ * server=true starts a buffer in this process, false uses a running one.
+ * store=ring|simple and samples=10000 events=1000 size of the ring.
+ * producers=1 channels=32 fSample=250 block=10 dataType=FLOAT32|INT16|FLOAT64
+ * eventRate=1 (events per second per producer). consumers=2
+ * pipeline=1 (PUT_DAT requests a producer sends before reading a PUT_OK).
+ * mode=wait|poll|subscribe pollInterval=10 (ms) timeout=1000 (ms, of
+ * WAIT_DAT). slowClient=drop|disconnect what the buffer does when a
+ * subscribed consumer falls behind.
+ * duration=10 (seconds, or with an s, m or h suffix) report=0 (seconds between intermediate reports, 0 for none).
+ * network=wifi (or delay, jitter, bandwidth, stallEvery, stallTime) connects
+ * the consumers through an ImpairmentProxy on proxyPort=port+1, see there
+ * for the scenarios. impair=consumers|all also sends the producers through
+ * it.
+ * soak=true runs for hours and fails when latency, memory or threads drift,
+ * see Soak for its options.
+ *
+ * @author Wieke Kanters
+ *
+ */
+public class LoadGenerator {
+
+	/**
+	 * Client connection speaking the buffer protocol in big endian through
+	 * DataOutputStream and DataInputStream. Responses are read into a
+	 * reusable body array.
+	 */
+	static class Connection {
+		private final Socket socket;
+		private final DataOutputStream output;
+		private final DataInputStream input;
+		private byte[] body = new byte[1024];
+		private int size = 0;
+
+		Connection(final String host, final int port) throws Exception {
+			socket = connect(host, port);
+			output = new DataOutputStream(new BufferedOutputStream(
+					socket.getOutputStream()));
+			input = new DataInputStream(new BufferedInputStream(
+					socket.getInputStream()));
+		}
+
+		/**
+		 * Reads the int at offset in the body of the last response.
+		 *
+		 * @param offset
+		 * @return
+		 */
+		int bodyInt(final int offset) {
+			return (body[offset] & 0xff) << 24
+					| (body[offset + 1] & 0xff) << 16
+					| (body[offset + 2] & 0xff) << 8 | body[offset + 3]
+					& 0xff;
+		}
+
+		/**
+		 * Counts the events from offset to the end of the body of the last
+		 * response.
+		 *
+		 * @param offset
+		 * @return
+		 */
+		int countEvents(int offset) {
+			int count = 0;
+			while (offset < size) {
+				offset += 32 + bodyInt(offset + 28);
+				count++;
+			}
+			return count;
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (final IOException e) {
+			}
+		}
+
+		/**
+		 * Writes a message header, the body follows with output.
+		 *
+		 * @param type
+		 * @param size
+		 * @throws IOException
+		 */
+		void begin(final short type, final int size) throws IOException {
+			output.writeShort(NetworkProtocol.VERSION);
+			output.writeShort(type);
+			output.writeInt(size);
+		}
+
+		/**
+		 * Flushes the request and reads the response. Returns its type.
+		 *
+		 * @return
+		 * @throws IOException
+		 */
+		short response() throws IOException {
+			output.flush();
+			input.readShort();
+			final short type = input.readShort();
+			size = input.readInt();
+			if (size > body.length) {
+				body = new byte[Math.max(size, body.length * 2)];
+			}
+			input.readFully(body, 0, size);
+			return type;
+		}
+
+		/**
+		 * Sends a request and fails if the response is not of the expected
+		 * type.
+		 *
+		 * @param expected
+		 * @throws IOException
+		 */
+		void expect(final short expected) throws IOException {
+			final short type = response();
+			if (type != expected) {
+				throw new IOException("Unexpected response type 0x"
+						+ Integer.toHexString(type));
+			}
+		}
+	}
+
+	/**
+	 * Puts blocks of samples at the sample rate, and events at the event
+	 * rate, like an amplifier. With pipeline above 1 up to that many PUT_DAT
+	 * requests are sent before the first PUT_OK is read.
+	 */
+	private class Producer extends Thread {
+		private final byte[] block;
+
+		Producer(final int index) {
+			setName("Load Producer " + index);
+			setDaemon(true);
+			block = dataMessage();
+		}
+
+		@Override
+		public void run() {
+			Connection connection = null;
+			try {
+				connection = new Connection(producerHost, producerPort);
+
+				final long period = (long) (blockSize * 1e9 / fSample);
+				final double eventsPerBlock = eventRate * blockSize / fSample;
+				double eventsDue = 0;
+				long next = System.nanoTime();
+
+				// Send times of the PUT_DAT requests still waiting for PUT_OK
+				final long[] sent = new long[pipeline];
+				int oldest = 0;
+				int outstanding = 0;
+
+				while (running) {
+					long now = System.nanoTime();
+					if (now < next) {
+						// Read PUT_OK responses while waiting, so their
+						// latency is not held up until the next block
+						if (outstanding > 0
+								&& connection.input.available() >= 8) {
+							connection.expect(NetworkProtocol.PUT_OK);
+							putData.record(System.nanoTime() - sent[oldest]);
+							oldest = (oldest + 1) % pipeline;
+							outstanding--;
+							continue;
+						}
+						LockSupport.parkNanos(outstanding > 0 ? Math.min(
+								next - now, 1000000) : next - now);
+						continue;
+					}
+					if (now - next > period) {
+						lateBlocks.incrementAndGet();
+					}
+
+					connection.output.write(block);
+					connection.output.flush();
+					sent[(oldest + outstanding) % pipeline] = now;
+					outstanding++;
+					samplesPut.addAndGet(blockSize);
+
+					eventsDue += eventsPerBlock;
+					final boolean eventsDueNow = eventsDue >= 1;
+
+					// Read the PUT_OK responses that have arrived, the oldest
+					// once the pipeline is full, and all of them before
+					// putting events.
+					while (outstanding == pipeline || outstanding > 0
+							&& (eventsDueNow || connection.input.available() >= 8)) {
+						connection.expect(NetworkProtocol.PUT_OK);
+						putData.record(System.nanoTime() - sent[oldest]);
+						oldest = (oldest + 1) % pipeline;
+						outstanding--;
+					}
+
+					while (eventsDue >= 1) {
+						now = System.nanoTime();
+						putEvent(connection, samplesPut.get());
+						putEvents.record(System.nanoTime() - now);
+						eventsPut.incrementAndGet();
+						eventsDue--;
+					}
+
+					next += period;
+				}
+			} catch (final Exception e) {
+				if (running) {
+					failure(getName(), e);
+				}
+			} finally {
+				if (connection != null) {
+					connection.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Follows the newest samples and events, like a viewer. Either waits for
+	 * them or polls, and then gets them, or subscribes and reads what is
+	 * pushed.
+	 */
+	private class Consumer extends Thread {
+		private volatile Connection connection = null;
+		private volatile int nextSample = -1;
+		private volatile int nextEvent = -1;
+
+		Consumer(final int index) {
+			setName("Load Consumer " + index);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					final Connection connection = new Connection(consumerHost,
+							consumerPort);
+					this.connection = connection;
+					try {
+						if (mode.equals("subscribe")) {
+							stream(connection);
+						} else {
+							follow(connection);
+						}
+					} catch (final IOException e) {
+						if (!running || !disconnectSlowClients) {
+							throw e;
+						}
+						// Disconnected by the buffer for falling behind
+						disconnects.incrementAndGet();
+					} finally {
+						connection.close();
+					}
+				}
+			} catch (final Exception e) {
+				if (running) {
+					failure(getName(), e);
+				}
+			}
+		}
+
+		/**
+		 * Closes the current connection, which unblocks a consumer reading
+		 * pushed messages once the load is stopped.
+		 */
+		void disconnect() {
+			final Connection current = connection;
+			if (current != null) {
+				current.close();
+			}
+		}
+
+		/**
+		 * Starts at the given counts, counting anything missed since the
+		 * previous connection as dropped.
+		 *
+		 * @param nSamples
+		 * @param nEvents
+		 */
+		private void startAt(final int nSamples, final int nEvents) {
+			if (nextSample >= 0 && nSamples > nextSample) {
+				droppedSamples.addAndGet(nSamples - nextSample);
+			}
+			if (nextEvent >= 0 && nEvents > nextEvent) {
+				droppedEvents.addAndGet(nEvents - nextEvent);
+			}
+			nextSample = nSamples;
+			nextEvent = nEvents;
+		}
+
+		/**
+		 * Waits for or polls new samples and events and gets them.
+		 */
+		private void follow(final Connection connection) throws Exception {
+			// Start at the current counts.
+			waitData(connection, 0, 0, 0);
+			startAt(connection.bodyInt(0), connection.bodyInt(4));
+
+			final boolean poll = mode.equals("poll");
+
+			while (running) {
+				final long start = System.nanoTime();
+				waitData(connection, nextSample, nextEvent, poll ? 0 : timeout);
+				(poll ? polls : waits).record(System.nanoTime() - start);
+
+				final int nSamples = connection.bodyInt(0);
+				final int nEvents = connection.bodyInt(4);
+				final boolean idle = nSamples == nextSample
+						&& nEvents == nextEvent;
+
+				// Start over after a flush.
+				if (nSamples < nextSample) {
+					nextSample = nSamples;
+				}
+				if (nEvents < nextEvent) {
+					nextEvent = nEvents;
+				}
+
+				if (nSamples > nextSample) {
+					getData(connection, nextSample, nSamples);
+					nextSample = nSamples;
+				}
+
+				if (nEvents > nextEvent) {
+					getEvents(connection, nextEvent, nEvents);
+					nextEvent = nEvents;
+				}
+
+				if (poll && idle) {
+					Thread.sleep(pollInterval);
+				}
+			}
+		}
+
+		/**
+		 * Subscribes and reads the pushed blocks and events. Gaps between
+		 * pushes count as dropped, the buffer skips what it could not queue
+		 * for a slow client.
+		 */
+		private void stream(final Connection connection) throws IOException {
+			connection.begin(NetworkProtocol.SUBSCRIBE, 8);
+			connection.output.writeInt(NetworkProtocol.SUBSCRIBE_DATA
+					| NetworkProtocol.SUBSCRIBE_EVENTS
+					| (disconnectSlowClients ? NetworkProtocol.SUBSCRIBE_DISCONNECT
+							: 0));
+			connection.output.writeInt(0);
+			connection.expect(NetworkProtocol.SUBSCRIBE_OK);
+			startAt(connection.bodyInt(0), connection.bodyInt(4));
+
+			// Blocks until a push arrives, stop closes the connection.
+			long last = System.nanoTime();
+
+			while (running) {
+				final short type = connection.response();
+
+				if (type == NetworkProtocol.PUSH_DAT) {
+					final long now = System.nanoTime();
+					pushes.record(now - last);
+					last = now;
+
+					final int first = connection.bodyInt(0);
+					final int nSamples = connection.bodyInt(8);
+					if (first > nextSample) {
+						droppedSamples.addAndGet(first - nextSample);
+					}
+					samplesGot.addAndGet(nSamples);
+					nextSample = first + nSamples;
+				} else if (type == NetworkProtocol.PUSH_EVT) {
+					final int first = connection.bodyInt(0);
+					final int nEvents = connection.countEvents(4);
+					if (first > nextEvent) {
+						droppedEvents.addAndGet(first - nextEvent);
+					}
+					eventsGot.addAndGet(nEvents);
+					nextEvent = first + nEvents;
+				} else {
+					throw new IOException("Unexpected message type 0x"
+							+ Integer.toHexString(type));
+				}
+			}
+		}
+
+		/**
+		 * Gets the samples from begin up to end, skipping those that have
+		 * already been overwritten.
+		 */
+		private void getData(final Connection connection, int begin,
+				final int end) throws IOException {
+			if (sampleCapacity > 0 && end - begin > sampleCapacity) {
+				droppedSamples.addAndGet(end - sampleCapacity - begin);
+				begin = end - sampleCapacity;
+			}
+
+			final long start = System.nanoTime();
+			connection.begin(NetworkProtocol.GET_DAT, 8);
+			connection.output.writeInt(begin);
+			connection.output.writeInt(end - 1);
+			final short type = connection.response();
+			getData.record(System.nanoTime() - start);
+
+			if (type == NetworkProtocol.GET_OK) {
+				samplesGot.addAndGet(end - begin);
+			} else {
+				// Overwritten between WAIT_DAT and GET_DAT
+				droppedSamples.addAndGet(end - begin);
+			}
+		}
+
+		/**
+		 * Gets the events from begin up to end, skipping those that have
+		 * already been overwritten.
+		 */
+		private void getEvents(final Connection connection, int begin,
+				final int end) throws IOException {
+			if (eventCapacity > 0 && end - begin > eventCapacity) {
+				droppedEvents.addAndGet(end - eventCapacity - begin);
+				begin = end - eventCapacity;
+			}
+
+			final long start = System.nanoTime();
+			connection.begin(NetworkProtocol.GET_EVT, 8);
+			connection.output.writeInt(begin);
+			connection.output.writeInt(end - 1);
+			final short type = connection.response();
+			getEvents.record(System.nanoTime() - start);
+
+			if (type == NetworkProtocol.GET_OK) {
+				eventsGot.addAndGet(end - begin);
+			} else {
+				droppedEvents.addAndGet(end - begin);
+			}
+		}
+	}
+
+	public static void main(final String[] args) throws Exception {
+		final HashMap<String, String> options = parse(args);
+		if (Boolean.parseBoolean(option(options, "soak", "false"))) {
+			System.exit(new Soak(options).run() ? 0 : 1);
+		}
+
+		final LoadGenerator generator = new LoadGenerator(options);
+
+		generator.start();
+		System.out.println(generator.describe());
+
+		final long start = System.nanoTime();
+		final long end = start + (long) (generator.duration * 1e9);
+		final long interval = generator.reportInterval * 1000000000L;
+		long nextReport = interval > 0 ? start + interval : Long.MAX_VALUE;
+
+		while (System.nanoTime() < end && generator.failure == null) {
+			Thread.sleep(100);
+			if (System.nanoTime() >= nextReport) {
+				System.out.print(generator.report());
+				nextReport += interval;
+			}
+		}
+
+		generator.stop();
+		System.out.print(generator.report());
+		if (generator.buffer != null) {
+			System.out.print(generator.buffer.getMetrics().report());
+		}
+
+		System.exit(generator.failure == null ? 0 : 1);
+	}
+
+	/**
+	 * Parses key=value arguments.
+	 *
+	 * @param args
+	 * @return
+	 */
+	static HashMap<String, String> parse(final String[] args) {
+		final HashMap<String, String> options = new HashMap<String, String>();
+		for (final String arg : args) {
+			final int split = arg.indexOf('=');
+			if (split < 1) {
+				throw new IllegalArgumentException("Expected key=value, got "
+						+ arg);
+			}
+			options.put(arg.substring(0, split), arg.substring(split + 1));
+		}
+		return options;
+	}
+
+	/**
+	 * Parses a duration in seconds, with an optional s, m or h suffix.
+	 *
+	 * @param value
+	 * @return
+	 */
+	static double seconds(final String value) {
+		final char unit = value.charAt(value.length() - 1);
+		final String number = value.substring(0, value.length() - 1);
+		switch (unit) {
+		case 's':
+			return Double.parseDouble(number);
+		case 'm':
+			return Double.parseDouble(number) * 60;
+		case 'h':
+			return Double.parseDouble(number) * 3600;
+		default:
+			return Double.parseDouble(value);
+		}
+	}
+
+	/**
+	 * Connects to the buffer, retrying until it is listening.
+	 *
+	 * @param host
+	 * @param port
+	 * @return
+	 * @throws Exception
+	 */
+	static Socket connect(final String host, final int port) throws Exception {
+		for (int attempt = 0;; attempt++) {
+			try {
+				final Socket socket = new Socket(host, port);
+				socket.setTcpNoDelay(true);
+				return socket;
+			} catch (final ConnectException e) {
+				if (attempt == 50) {
+					throw e;
+				}
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	private final String host;
+	private final int port;
+	private final boolean startServer;
+	private final String store;
+	private final int sampleCapacity;
+	private final int eventCapacity;
+	private final int producers;
+	private final int channels;
+	private final float fSample;
+	private final int blockSize;
+	private final int dataType;
+	private final double eventRate;
+	private final int consumers;
+	private final String mode;
+	private final boolean disconnectSlowClients;
+	private final int pipeline;
+	private final long pollInterval;
+	private final int timeout;
+	private final double duration;
+	private final int reportInterval;
+	private final HashMap<String, String> network;
+	private final String producerHost;
+	private final int producerPort;
+	private final String consumerHost;
+	private final int consumerPort;
+
+	final LatencyHistogram putData = new LatencyHistogram();
+	final LatencyHistogram putEvents = new LatencyHistogram();
+	final LatencyHistogram waits = new LatencyHistogram();
+	final LatencyHistogram polls = new LatencyHistogram();
+	final LatencyHistogram getData = new LatencyHistogram();
+	final LatencyHistogram getEvents = new LatencyHistogram();
+	final LatencyHistogram pushes = new LatencyHistogram();
+
+	final AtomicLong samplesPut = new AtomicLong();
+	final AtomicLong eventsPut = new AtomicLong();
+	final AtomicLong samplesGot = new AtomicLong();
+	final AtomicLong eventsGot = new AtomicLong();
+	final AtomicLong droppedSamples = new AtomicLong();
+	final AtomicLong droppedEvents = new AtomicLong();
+	final AtomicLong lateBlocks = new AtomicLong();
+	final AtomicLong flushes = new AtomicLong();
+	final AtomicLong disconnects = new AtomicLong();
+
+	private Buffer buffer = null;
+	private ImpairmentProxy proxy = null;
+	private Thread[] threads = new Thread[0];
+	private volatile boolean running = false;
+	private volatile String failure = null;
+	private long started = 0;
+	private long stopped = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param options
+	 *            Settings as described in the class documentation, missing
+	 *            keys take their default.
+	 */
+	public LoadGenerator(final HashMap<String, String> options) {
+		host = option(options, "host", "localhost");
+		port = Integer.parseInt(option(options, "port", "1972"));
+		startServer = Boolean.parseBoolean(option(options, "server", "true"));
+		store = option(options, "store", "ring");
+		producers = Integer.parseInt(option(options, "producers", "1"));
+		channels = Integer.parseInt(option(options, "channels", "32"));
+		fSample = Float.parseFloat(option(options, "fSample", "250"));
+		blockSize = Integer.parseInt(option(options, "block", "10"));
+		dataType = dataType(option(options, "dataType", "FLOAT32"));
+		eventRate = Double.parseDouble(option(options, "eventRate", "1"));
+		consumers = Integer.parseInt(option(options, "consumers", "2"));
+		mode = option(options, "mode", "wait");
+		disconnectSlowClients = option(options, "slowClient", "drop").equals(
+				"disconnect");
+		pipeline = Integer.parseInt(option(options, "pipeline", "1"));
+		pollInterval = Long.parseLong(option(options, "pollInterval", "10"));
+		timeout = Integer.parseInt(option(options, "timeout", "1000"));
+		duration = seconds(option(options, "duration", "10"));
+		reportInterval = Integer.parseInt(option(options, "report", "0"));
+
+		if (store.equals("simple")) {
+			sampleCapacity = -1;
+			eventCapacity = -1;
+		} else {
+			sampleCapacity = Integer.parseInt(option(options, "samples",
+					"10000"));
+			eventCapacity = Integer.parseInt(option(options, "events", "1000"));
+		}
+
+		if (!mode.equals("wait") && !mode.equals("poll")
+				&& !mode.equals("subscribe")) {
+			throw new IllegalArgumentException("Unknown mode " + mode);
+		}
+		if (pipeline < 1) {
+			throw new IllegalArgumentException("Pipeline must be at least 1");
+		}
+
+		// Route the clients through a proxy if the network is impaired
+		if (ImpairmentProxy.impaired(options)) {
+			network = ImpairmentProxy.settings(options);
+			final int proxyPort = Integer.parseInt(option(options,
+					"proxyPort", Integer.toString(port + 1)));
+			final boolean all = option(options, "impair", "consumers").equals(
+					"all");
+			producerHost = all ? "localhost" : host;
+			producerPort = all ? proxyPort : port;
+			consumerHost = "localhost";
+			consumerPort = proxyPort;
+		} else {
+			network = null;
+			producerHost = host;
+			producerPort = port;
+			consumerHost = host;
+			consumerPort = port;
+		}
+	}
+
+	/**
+	 * Returns a single line describing the load.
+	 *
+	 * @return
+	 */
+	public String describe() {
+		return String.format(
+				"%d producers x %d ch %s @ %.0f Hz, blocks of %d%s, %.1f events/s; "
+						+ "%d consumers (%s); %s store%s%s", producers,
+				channels, dataTypeName(dataType), fSample, blockSize,
+				pipeline > 1 ? " pipelined " + pipeline : "", eventRate,
+				consumers, mode.equals("subscribe") ? "subscribe, "
+						+ (disconnectSlowClients ? "disconnect" : "drop")
+						+ " when slow" : mode, store, startServer ? ""
+						: " at " + host + ":" + port, proxy != null ? "; "
+						+ proxy.describe() : "");
+	}
+
+	/**
+	 * Returns the data type constant of a name.
+	 *
+	 * @param name
+	 * @return
+	 */
+	private static int dataType(final String name) {
+		if (name.equals("INT16")) {
+			return NetworkProtocol.INT16;
+		} else if (name.equals("FLOAT32")) {
+			return NetworkProtocol.FLOAT32;
+		} else if (name.equals("FLOAT64")) {
+			return NetworkProtocol.FLOAT64;
+		}
+		throw new IllegalArgumentException("Unsupported data type " + name);
+	}
+
+	private static String dataTypeName(final int dataType) {
+		return dataType == NetworkProtocol.INT16 ? "INT16"
+				: dataType == NetworkProtocol.FLOAT32 ? "FLOAT32" : "FLOAT64";
+	}
+
+	/**
+	 * Returns a complete PUT_DAT message with a block of sine waves.
+	 *
+	 * @return
+	 */
+	private byte[] dataMessage() {
+		final int size = blockSize * channels
+				* NetworkProtocol.dataTypeSize(dataType);
+		final ByteBuffer message = ByteBuffer.allocate(8 + 16 + size);
+
+		message.putShort(NetworkProtocol.VERSION);
+		message.putShort(NetworkProtocol.PUT_DAT);
+		message.putInt(16 + size);
+		message.putInt(channels);
+		message.putInt(blockSize);
+		message.putInt(dataType);
+		message.putInt(size);
+
+		for (int sample = 0; sample < blockSize; sample++) {
+			for (int channel = 0; channel < channels; channel++) {
+				final double value = 100 * Math.sin(2 * Math.PI
+						* (channel + 1) * sample / fSample);
+				if (dataType == NetworkProtocol.INT16) {
+					message.putShort((short) value);
+				} else if (dataType == NetworkProtocol.FLOAT32) {
+					message.putFloat((float) value);
+				} else {
+					message.putDouble(value);
+				}
+			}
+		}
+
+		return message.array();
+	}
+
+	/**
+	 * Records the first failure and stops the load.
+	 *
+	 * @param thread
+	 * @param e
+	 */
+	private synchronized void failure(final String thread, final Exception e) {
+		if (failure == null) {
+			failure = thread + ": " + e;
+			System.err.println(failure);
+		}
+		if (running) {
+			stopped = System.nanoTime();
+		}
+		running = false;
+	}
+
+	/**
+	 * Flushes the samples and events from the buffer, over a connection of
+	 * its own. Producers carry on, consumers start over at the new counts.
+	 *
+	 * @throws Exception
+	 */
+	public void flush() throws Exception {
+		final Connection connection = new Connection(host, port);
+		try {
+			connection.begin(NetworkProtocol.FLUSH_DAT, 0);
+			connection.expect(NetworkProtocol.FLUSH_OK);
+			connection.begin(NetworkProtocol.FLUSH_EVT, 0);
+			connection.expect(NetworkProtocol.FLUSH_OK);
+			flushes.incrementAndGet();
+		} finally {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Returns the reason the load stopped early, or null.
+	 *
+	 * @return
+	 */
+	public String getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Returns the buffer started by this generator, or null.
+	 *
+	 * @return
+	 */
+	public Buffer getBuffer() {
+		return buffer;
+	}
+
+	private static String option(final HashMap<String, String> options,
+			final String key, final String value) {
+		return options.containsKey(key) ? options.get(key) : value;
+	}
+
+	/**
+	 * Puts a single event with type "load" and the sample count as value.
+	 *
+	 * @param connection
+	 * @param sample
+	 * @throws IOException
+	 */
+	private static void putEvent(final Connection connection, final long sample)
+			throws IOException {
+		connection.begin(NetworkProtocol.PUT_EVT, 32 + 4 + 4);
+		connection.output.writeInt(NetworkProtocol.CHAR);
+		connection.output.writeInt(4);
+		connection.output.writeInt(NetworkProtocol.INT32);
+		connection.output.writeInt(1);
+		connection.output.writeInt((int) sample);
+		connection.output.writeInt(0);
+		connection.output.writeInt(0);
+		connection.output.writeInt(8);
+		connection.output.writeBytes("load");
+		connection.output.writeInt((int) sample);
+		connection.expect(NetworkProtocol.PUT_OK);
+	}
+
+	/**
+	 * Returns the totals and throughput since the start, and the latency
+	 * percentiles.
+	 *
+	 * @return
+	 */
+	public String report() {
+		final long end = running ? System.nanoTime() : stopped;
+		final double seconds = (end - started) / 1e9;
+
+		final StringBuilder report = new StringBuilder();
+		report.append(String.format("after %.1f s%n", seconds));
+		report.append(String.format("%-16s%12s%12s%12s%n", "", "total", "/s",
+				"dropped"));
+		appendTotal(report, "samples put", samplesPut.get(), seconds,
+				lateBlocks.get());
+		appendTotal(report, "events put", eventsPut.get(), seconds, 0);
+		appendTotal(report, "samples got", samplesGot.get(), seconds,
+				droppedSamples.get());
+		appendTotal(report, "events got", eventsGot.get(), seconds,
+				droppedEvents.get());
+		if (disconnects.get() > 0) {
+			appendTotal(report, "disconnects", disconnects.get(), seconds, 0);
+		}
+		report.append(String.format(
+				"(dropped for puts counts blocks sent late)%n"));
+		report.append(String.format("%-16s%12d%n", "samples behind",
+				behind()));
+
+		report.append(String.format("%-16s%10s%10s%10s%10s%10s%n", "us",
+				"count", "p50", "p99", "p999", "max"));
+		appendLatency(report, "PUT_DAT", putData);
+		appendLatency(report, "PUT_EVT", putEvents);
+		appendLatency(report, "WAIT_DAT", waits);
+		appendLatency(report, "WAIT_DAT poll", polls);
+		appendLatency(report, "GET_DAT", getData);
+		appendLatency(report, "GET_EVT", getEvents);
+		appendLatency(report, "PUSH_DAT gap", pushes);
+
+		return report.toString();
+	}
+
+	/**
+	 * Returns how many samples the consumer that is furthest behind has yet
+	 * to receive. For a slow subscriber these are queued in the buffer, the
+	 * socket buffers and the proxy.
+	 *
+	 * @return
+	 */
+	private long behind() {
+		final long put = samplesPut.get();
+		long behind = 0;
+		for (final Thread thread : threads) {
+			if (thread instanceof Consumer) {
+				final int next = ((Consumer) thread).nextSample;
+				if (next >= 0) {
+					behind = Math.max(behind, put - next);
+				}
+			}
+		}
+		return behind;
+	}
+
+	private static void appendTotal(final StringBuilder report,
+			final String name, final long total, final double seconds,
+			final long dropped) {
+		report.append(String.format("%-16s%12d%12.1f%12d%n", name, total,
+				total / seconds, dropped));
+	}
+
+	private static void appendLatency(final StringBuilder report,
+			final String name, final LatencyHistogram histogram) {
+		final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+		if (snapshot.count == 0) {
+			return;
+		}
+		report.append(String.format("%-16s%10d%10.1f%10.1f%10.1f%10.1f%n",
+				name, snapshot.count, snapshot.percentile(0.5) / 1e3,
+				snapshot.percentile(0.99) / 1e3,
+				snapshot.percentile(0.999) / 1e3, snapshot.max / 1e3));
+	}
+
+	/**
+	 * Starts the buffer if requested, puts the header and starts the
+	 * producers and consumers.
+	 *
+	 * @throws Exception
+	 */
+	public void start() throws Exception {
+		if (startServer) {
+			buffer = store.equals("simple") ? new Buffer(port) : new Buffer(
+					port, sampleCapacity, eventCapacity);
+			buffer.setMetrics(new BufferMetrics());
+			buffer.start();
+		}
+		if (network != null) {
+			proxy = new ImpairmentProxy(consumerPort, host, port, network);
+			proxy.start();
+		}
+
+		final Connection setup = new Connection(host, port);
+		setup.begin(NetworkProtocol.PUT_HDR, 24);
+		setup.output.writeInt(channels);
+		setup.output.writeInt(0);
+		setup.output.writeInt(0);
+		setup.output.writeFloat(fSample);
+		setup.output.writeInt(dataType);
+		setup.output.writeInt(0);
+		setup.expect(NetworkProtocol.PUT_OK);
+		setup.close();
+
+		running = true;
+		started = System.nanoTime();
+
+		threads = new Thread[producers + consumers];
+		for (int i = 0; i < consumers; i++) {
+			threads[i] = new Consumer(i);
+		}
+		for (int i = 0; i < producers; i++) {
+			threads[consumers + i] = new Producer(i);
+		}
+		for (final Thread thread : threads) {
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stops the producers and consumers, and the buffer if it was started
+	 * here.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void stop() throws InterruptedException {
+		if (running) {
+			stopped = System.nanoTime();
+		}
+		running = false;
+		for (final Thread thread : threads) {
+			if (thread instanceof Consumer) {
+				((Consumer) thread).disconnect();
+			}
+		}
+		for (final Thread thread : threads) {
+			thread.join(timeout + 1000);
+		}
+		if (proxy != null) {
+			proxy.stopProxy();
+		}
+		if (buffer != null) {
+			buffer.stopBuffer();
+		}
+	}
+
+	/**
+	 * Sends a WAIT_DAT and reads the WAIT_OK.
+	 *
+	 * @param connection
+	 * @param nSamples
+	 * @param nEvents
+	 * @param timeout
+	 * @throws IOException
+	 */
+	private static void waitData(final Connection connection,
+			final int nSamples, final int nEvents, final int timeout)
+			throws IOException {
+		connection.begin(NetworkProtocol.WAIT_DAT, 12);
+		connection.output.writeInt(nSamples);
+		connection.output.writeInt(nEvents);
+		connection.output.writeInt(timeout);
+		connection.expect(NetworkProtocol.WAIT_OK);
+	}
+}
@@ -0,0 +1,291 @@
+package buffer_bci.javaserver.tools;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+
+import buffer_bci.javaserver.Telemetry;
+import buffer_bci.javaserver.metrics.LatencyHistogram;
+
+/**
+ * Soak mode of the LoadGenerator: runs the load for hours against an
+ * in-process buffer and checks every interval that it has not degraded.
+ * Samples the heap left after garbage collection, GC pauses, the number of
+ * threads and the request latency of the last interval, and fails as soon as
+ * one of them crosses its threshold. The first interval after the warmup is
+ * the baseline that drift is measured against (for the heap the first one
+ * after a collection).
+ *
+ * Request latency covers PUT_DAT, PUT_EVT, GET_DAT, GET_EVT and polls, not
+ * WAIT_DAT which includes waiting for data.
+ *
+ * Usage: java buffer_bci.javaserver.tools.LoadGenerator soak=true
+ * [key=value ...]
+ *
+ * Besides the LoadGenerator options: store=ring|simple|both (both soaks the
+ * RingDataStore and then the SimpleDataStore, each for the full duration).
+ * duration=1h and interval=60s accept an s, m or h suffix. warmup=1
+ * (intervals before the baseline). flush=0 (seconds between flushing data and
+ * events, the SimpleDataStore grows without bound otherwise). Thresholds, 0
+ * to disable: maxP99=50 maxP999=200 (ms), maxLatencyDrift=3 (times the
+ * baseline p99), maxHeapGrowth=64 (MB over the baseline), maxThreadGrowth=0,
+ * maxGcPause=200 (ms), maxDropped=0 (samples per interval, -1 to disable,
+ * not checked in intervals with a flush since consumers lose the samples
+ * flushed between WAIT_DAT and GET_DAT).
+ *
+ * @author Wieke Kanters
+ *
+ */
+public class Soak {
+
+	/**
+	 * Minimum p99 in ms before latency drift is considered, so microsecond
+	 * jitter on an idle machine does not count as drift.
+	 */
+	private static final double DRIFT_FLOOR = 1;
+
+	private final HashMap<String, String> options;
+	private final double duration;
+	private final double interval;
+	private final int warmup;
+	private final double flush;
+	private final double maxP99;
+	private final double maxP999;
+	private final double maxLatencyDrift;
+	private final double maxHeapGrowth;
+	private final int maxThreadGrowth;
+	private final double maxGcPause;
+	private final long maxDropped;
+
+	private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+	/**
+	 * Constructor
+	 *
+	 * @param options
+	 *            Settings as described in the class documentation.
+	 */
+	public Soak(final HashMap<String, String> options) {
+		this.options = options;
+		duration = LoadGenerator.seconds(option("duration", "1h"));
+		interval = LoadGenerator.seconds(option("interval", "60s"));
+		warmup = Integer.parseInt(option("warmup", "1"));
+		flush = LoadGenerator.seconds(option("flush", "0"));
+		maxP99 = Double.parseDouble(option("maxP99", "50"));
+		maxP999 = Double.parseDouble(option("maxP999", "200"));
+		maxLatencyDrift = Double.parseDouble(option("maxLatencyDrift", "3"));
+		maxHeapGrowth = Double.parseDouble(option("maxHeapGrowth", "64"));
+		maxThreadGrowth = Integer.parseInt(option("maxThreadGrowth", "0"));
+		maxGcPause = Double.parseDouble(option("maxGcPause", "200"));
+		maxDropped = Long.parseLong(option("maxDropped", "0"));
+	}
+
+	/**
+	 * Returns the bytes left on the heap after the last garbage collection of
+	 * each heap pool, which only grows if something leaks. Returns -1 before
+	 * the first collection.
+	 *
+	 * @return
+	 */
+	private static long heapAfterGc() {
+		long collections = 0;
+		for (final GarbageCollectorMXBean collector : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			collections += Math.max(0, collector.getCollectionCount());
+		}
+		if (collections == 0) {
+			return -1;
+		}
+
+		long used = 0;
+		for (final MemoryPoolMXBean pool : ManagementFactory
+				.getMemoryPoolMXBeans()) {
+			final MemoryUsage usage = pool.getCollectionUsage();
+			if (pool.getType() == MemoryType.HEAP && usage != null) {
+				used += usage.getUsed();
+			}
+		}
+		return used;
+	}
+
+	private String option(final String key, final String value) {
+		return options.containsKey(key) ? options.get(key) : value;
+	}
+
+	/**
+	 * Soaks the stores selected by the store option. Returns true if all
+	 * thresholds held.
+	 *
+	 * @return
+	 * @throws Exception
+	 */
+	public boolean run() throws Exception {
+		final String store = option("store", "ring");
+		if (store.equals("both")) {
+			final boolean ring = run("ring");
+			final boolean simple = run("simple");
+			return ring && simple;
+		}
+		return run(store);
+	}
+
+	/**
+	 * Soaks a single store.
+	 *
+	 * @param store
+	 * @return
+	 * @throws Exception
+	 */
+	private boolean run(final String store) throws Exception {
+		final HashMap<String, String> settings = new HashMap<String, String>(
+				options);
+		settings.put("store", store);
+		settings.put("server", "true");
+
+		final LoadGenerator generator = new LoadGenerator(settings);
+		final Telemetry telemetry = new Telemetry(null);
+		final LatencyHistogram[] requests = { generator.putData,
+				generator.putEvents, generator.getData, generator.getEvents,
+				generator.polls };
+		final LatencyHistogram[] totals = new LatencyHistogram[requests.length];
+		for (int i = 0; i < totals.length; i++) {
+			totals[i] = new LatencyHistogram();
+		}
+
+		telemetry.start();
+		generator.start();
+		System.out.println("Soaking " + generator.describe() + " for "
+				+ duration + " s");
+		System.out.printf("%8s%10s%8s%6s%10s%10s%10s%10s%12s%10s%n", "s",
+				"heap MB", "threads", "gcs", "gc max", "p50", "p99", "p999",
+				"samples/s", "dropped");
+
+		final long start = System.nanoTime();
+		long nextFlush = flush > 0 ? start + (long) (flush * 1e9)
+				: Long.MAX_VALUE;
+		long samples = 0;
+		long dropped = 0;
+		long flushes = 0;
+		double baselineHeap = -1;
+		int baselineThreads = 0;
+		double baselineP99 = 0;
+		String failure = null;
+
+		for (int i = 1; failure == null; i++) {
+			final long end = start + (long) (i * interval * 1e9);
+			while (System.nanoTime() < end && generator.getFailure() == null) {
+				Thread.sleep(Math.min(100,
+						(end - System.nanoTime()) / 1000000 + 1));
+				if (System.nanoTime() >= nextFlush) {
+					generator.flush();
+					nextFlush += (long) (flush * 1e9);
+				}
+			}
+			if (generator.getFailure() != null) {
+				failure = "load failed, " + generator.getFailure();
+				break;
+			}
+
+			// Sample the last interval
+			final double seconds = (System.nanoTime() - start) / 1e9;
+			final long heapBytes = heapAfterGc();
+			final double heap = heapBytes / (1024.0 * 1024.0);
+			final int threads = threadBean.getThreadCount();
+			final LatencyHistogram.Snapshot gc = telemetry.getGcPauses()
+					.snapshot();
+			telemetry.getGcPauses().reset();
+
+			final LatencyHistogram merged = new LatencyHistogram();
+			for (int j = 0; j < requests.length; j++) {
+				merged.add(requests[j]);
+				totals[j].add(requests[j]);
+				requests[j].reset();
+			}
+			final LatencyHistogram.Snapshot latency = merged.snapshot();
+			final double p99 = latency.percentile(0.99) / 1e6;
+			final double p999 = latency.percentile(0.999) / 1e6;
+
+			final long flushesNow = generator.flushes.get();
+			final boolean flushed = flushesNow != flushes;
+			flushes = flushesNow;
+
+			final long samplesNow = generator.samplesPut.get();
+			final long droppedNow = generator.droppedSamples.get();
+			final long droppedInterval = droppedNow - dropped;
+			final double rate = (samplesNow - samples) / interval;
+			samples = samplesNow;
+			dropped = droppedNow;
+
+			System.out.printf(
+					"%8.0f%10s%8d%6d%10.1f%10.2f%10.2f%10.2f%12.1f%10d%n",
+					seconds, heapBytes < 0 ? "-" : String.format("%.1f", heap),
+					threads, gc.count, gc.max / 1e6,
+					latency.percentile(0.5) / 1e6, p99, p999, rate,
+					droppedInterval);
+
+			if (i == warmup + 1) {
+				baselineThreads = threads;
+				baselineP99 = p99;
+			}
+			if (i > warmup && baselineHeap < 0 && heapBytes >= 0) {
+				baselineHeap = heap;
+			}
+
+			// Check the thresholds
+			if (maxP99 > 0 && p99 > maxP99) {
+				failure = String.format("p99 latency %.2f ms exceeds %.2f",
+						p99, maxP99);
+			} else if (maxP999 > 0 && p999 > maxP999) {
+				failure = String.format("p999 latency %.2f ms exceeds %.2f",
+						p999, maxP999);
+			} else if (maxGcPause > 0 && gc.max / 1e6 > maxGcPause) {
+				failure = String.format("GC pause %.2f ms exceeds %.2f",
+						gc.max / 1e6, maxGcPause);
+			} else if (maxDropped >= 0 && !flushed
+					&& droppedInterval > maxDropped) {
+				failure = droppedInterval + " samples dropped, more than "
+						+ maxDropped;
+			} else if (i > warmup + 1) {
+				if (maxLatencyDrift > 0 && p99 > DRIFT_FLOOR
+						&& p99 > baselineP99 * maxLatencyDrift) {
+					failure = String.format(
+							"p99 latency drifted from %.2f to %.2f ms",
+							baselineP99, p99);
+				} else if (maxHeapGrowth > 0 && baselineHeap >= 0
+						&& heap - baselineHeap > maxHeapGrowth) {
+					failure = String.format(
+							"heap after GC grew from %.1f to %.1f MB",
+							baselineHeap, heap);
+				} else if (maxThreadGrowth >= 0
+						&& threads - baselineThreads > maxThreadGrowth) {
+					failure = "thread count grew from " + baselineThreads
+							+ " to " + threads;
+				}
+			}
+
+			if (seconds >= duration) {
+				break;
+			}
+		}
+
+		generator.stop();
+		telemetry.stopTelemetry();
+
+		// Report the latencies of the whole soak
+		for (int j = 0; j < requests.length; j++) {
+			requests[j].add(totals[j]);
+		}
+		System.out.print(generator.report());
+
+		if (failure != null) {
+			System.out.println("FAIL " + store + ": " + failure);
+			return false;
+		}
+		System.out.println("PASS " + store);
+		return true;
+	}
+}